@@ -0,0 +1,202 @@
+//
+// Copyright 2016 Jeff Bush
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package waveapp;
+
+import java.util.Arrays;
+
+///
+/// Summary of the transitions of a net at a series of time resolutions, for
+/// drawing it when zoomed out so far that many transitions land in the same
+/// pixel column. Time is divided into buckets whose width is a power of
+/// two. The finest level stores the index of the first transition at or
+/// after the start of each bucket. From that, the number of transitions in
+/// any range of buckets, and their first and last values, can be found
+/// without reading the transitions in between. Each coarser level has
+/// buckets twice as wide as the one below, and shares its indices. Every
+/// level also has a bit for each bucket that is set if a transition in it
+/// has X or Z bits.
+///
+/// The finest buckets hold about BUCKET_TRANSITIONS transitions on average,
+/// so the indices take about a quarter of a byte per transition.
+///
+public class ActivityPyramid {
+    /// Vectors with fewer transitions than this are cheap enough to draw
+    /// one transition at a time, so they don't get a pyramid.
+    static final int MIN_TRANSITIONS = 4096;
+    private static final int BUCKET_TRANSITIONS = 16;
+
+    ActivityPyramid() {}
+
+    /// Summarize transitions that were appended since the last update. If
+    /// the vector was cleared and refilled, or the timestamps have grown
+    /// far past the range the bucket width was chosen for, this starts
+    /// over.
+    void update(TransitionVector vector) {
+        TimestampVector timestamps = vector.getTimestamps();
+        int count = vector.getTransitionCount();
+        long maxBuckets = Math.max(count / BUCKET_TRANSITIONS, 1) * 4L;
+        if (timestamps != fTimestamps || timestamps.getGeneration() != fGeneration
+                || count < fBuiltCount
+                || (vector.getMaxTimestamp() >>> fShift) >= maxBuckets) {
+            fTimestamps = timestamps;
+            fGeneration = timestamps.getGeneration();
+            fShift = chooseShift(vector.getMaxTimestamp(), count);
+            fFirstIndex = new int[0];
+            fBucketCount = 0;
+            fXZ = new long[0][];
+            fBuiltCount = 0;
+        }
+
+        TimestampVector.Reader reader = timestamps.new Reader();
+        for (int index = fBuiltCount; index < count; index++) {
+            int bucket = (int) (reader.get(index) >>> fShift);
+            if (bucket >= fBucketCount)
+                addBuckets(bucket + 1, index);
+
+            if (vector.isXOrZ(index))
+                setXZ(bucket);
+        }
+
+        fBuiltCount = count;
+        addLevels();
+    }
+
+    /// @returns The smallest shift that makes the number of buckets
+    ///   covering 0 to maxTimestamp no more than count / BUCKET_TRANSITIONS
+    private static int chooseShift(long maxTimestamp, int count) {
+        long width = maxTimestamp / Math.max(count / BUCKET_TRANSITIONS, 1) + 1;
+        return 64 - Long.numberOfLeadingZeros(width - 1);
+    }
+
+    /// Buckets from fBucketCount up to newCount start at this index
+    private void addBuckets(int newCount, int index) {
+        if (newCount > fFirstIndex.length)
+            fFirstIndex = Arrays.copyOf(fFirstIndex, Math.max(newCount, fFirstIndex.length * 2));
+
+        Arrays.fill(fFirstIndex, fBucketCount, newCount, index);
+        fBucketCount = newCount;
+    }
+
+    /// Mark a bucket of the finest level, and the ones that contain it in
+    /// the existing coarser levels, as having an X or Z transition.
+    private void setXZ(int bucket) {
+        if (fXZ.length == 0)
+            fXZ = new long[1][];
+
+        for (int level = 0; level < fXZ.length; level++) {
+            int word = (bucket >> level) >> 6;
+            if (fXZ[level] == null || word >= fXZ[level].length) {
+                long[] bits = new long[Math.max(word + 1, ((fBucketCount >> level) >> 6) + 1)];
+                if (fXZ[level] != null)
+                    System.arraycopy(fXZ[level], 0, bits, 0, fXZ[level].length);
+
+                fXZ[level] = bits;
+            }
+
+            fXZ[level][word] |= 1L << ((bucket >> level) & 63);
+        }
+    }
+
+    /// Create the X/Z bits of levels that were added because the number of
+    /// buckets grew, from the level below each.
+    private void addLevels() {
+        int oldCount = fXZ.length;
+        if (oldCount == 0 || oldCount >= getLevelCount())
+            return;
+
+        fXZ = Arrays.copyOf(fXZ, getLevelCount());
+        for (int level = oldCount; level < fXZ.length; level++) {
+            long[] below = fXZ[level - 1];
+            if (below == null)
+                continue;
+
+            long[] bits = new long[(below.length + 1) / 2];
+            for (int i = 0; i < below.length * 64; i++) {
+                if ((below[i >> 6] & (1L << (i & 63))) != 0)
+                    bits[i >> 7] |= 1L << ((i >> 1) & 63);
+            }
+
+            fXZ[level] = bits;
+        }
+    }
+
+    /// @returns Number of levels. The coarsest has a single bucket.
+    public int getLevelCount() {
+        return 33 - Integer.numberOfLeadingZeros(Math.max(fBucketCount - 1, 0));
+    }
+
+    /// Pick a level for drawing. A pixel column then spans at least one,
+    /// but less than two buckets.
+    /// @param timePerPixel Time units covered by each pixel column
+    /// @returns The coarsest level whose buckets are no wider than a pixel
+    ///   column, or -1 if the finest buckets are wider than that, and
+    ///   transitions must be drawn individually.
+    public int getLevel(double timePerPixel) {
+        if (timePerPixel < getBucketWidth(0) || timePerPixel >= Long.MAX_VALUE)
+            return -1;
+
+        int level = 63 - Long.numberOfLeadingZeros((long) timePerPixel) - fShift;
+        return Math.min(level, getLevelCount() - 1);
+    }
+
+    public long getBucketWidth(int level) {
+        return 1L << (fShift + level);
+    }
+
+    /// @returns Index of the first transition at or after the start of a
+    ///   bucket, or the number of transitions if there are none after it.
+    public int getFirstIndex(int level, long bucket) {
+        long finest = bucket << level;
+        if (finest >= fBucketCount)
+            return fBuiltCount;
+
+        return fFirstIndex[(int) finest];
+    }
+
+    /// @returns Index of the first transition at or after the first bucket
+    ///   boundary at or after this timestamp. That is the first transition
+    ///   after the timestamp, give or take one bucket.
+    public int getIndexAfter(int level, long timestamp) {
+        long width = getBucketWidth(level);
+        return getFirstIndex(level, (timestamp + width - 1) / width);
+    }
+
+    /// @returns true if a transition in any bucket that overlaps the range
+    ///   of timestamps from start (inclusive) to end (exclusive) has X or Z
+    ///   bits.
+    public boolean hasXZ(int level, long start, long end) {
+        if (level >= fXZ.length || fXZ[level] == null || end <= start)
+            return false;
+
+        long[] bits = fXZ[level];
+        long last = Math.min((end - 1) >>> (fShift + level), (long) bits.length * 64 - 1);
+        for (long bucket = start >>> (fShift + level); bucket <= last; bucket++) {
+            if ((bits[(int) (bucket >> 6)] & (1L << (bucket & 63))) != 0)
+                return true;
+        }
+
+        return false;
+    }
+
+    private TimestampVector fTimestamps;
+    private int fGeneration;
+    private int fShift;
+    private int[] fFirstIndex = new int[0];   // For each bucket of the finest level
+    private int fBucketCount;
+    private long[][] fXZ = new long[0][];     // Bit per bucket, for each level
+    private int fBuiltCount;                  // Transitions summarized so far
+}
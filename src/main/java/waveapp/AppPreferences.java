@@ -54,6 +54,50 @@ class AppPreferences {
         return new File(fPrefs.get("initialTraceDirectory", ""));
     }
 
+    /// Patterns used to choose which nets are loaded (see NetFilter)
+    void setLoadFilter(String includePatterns, String excludePatterns) {
+        fPrefs.put("loadIncludePatterns", includePatterns);
+        fPrefs.put("loadExcludePatterns", excludePatterns);
+    }
+
+    String getLoadIncludePatterns() {
+        return fPrefs.get("loadIncludePatterns", "");
+    }
+
+    String getLoadExcludePatterns() {
+        return fPrefs.get("loadExcludePatterns", "");
+    }
+
+    /// If true, read transitions for each net when it is first displayed
+    /// rather than when the trace is loaded (see VCDLoader.setLazyMode)
+    void setLoadNetsOnDemand(boolean onDemand) {
+        fPrefs.putBoolean("loadNetsOnDemand", onDemand);
+    }
+
+    boolean getLoadNetsOnDemand() {
+        return fPrefs.getBoolean("loadNetsOnDemand", false);
+    }
+
+    /// Memory used for nets that are loaded on demand, in megabytes (see
+    /// TraceDataModel.setMemoryBudget)
+    void setNetCacheSize(int megabytes) {
+        fPrefs.putInt("netCacheSize", megabytes);
+    }
+
+    int getNetCacheSize() {
+        return fPrefs.getInt("netCacheSize", 256);
+    }
+
+    /// Where transition data is kept: "heap", "direct" (off-heap buffers),
+    /// or "mapped" (a memory mapped temporary file). See TransitionStorage.
+    void setTransitionStorage(String storage) {
+        fPrefs.put("transitionStorage", storage);
+    }
+
+    String getTransitionStorage() {
+        return fPrefs.get("transitionStorage", "heap");
+    }
+
     void addFileToRecents(String path) {
         // check if this is already in the recent files list
         for (String recentFile : fRecentFiles) {
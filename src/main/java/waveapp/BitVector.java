@@ -21,6 +21,11 @@ import java.lang.*;
 
 ///
 /// Array of arbitrary lengthed four-valued logic values
+/// The values are stored in two bit planes, 64 bits per word. For each
+/// bit, the value plane has the low bit of VALUE_x and the mask plane has
+/// the high bit: 0 and 1 have a clear mask bit, X is 0 with the mask bit
+/// set, and Z is 1 with the mask bit set. This allows most operations to
+/// work on 64 bits at a time.
 ///
 public class BitVector {
     public static final byte VALUE_0 = 0;
@@ -35,7 +40,7 @@ public class BitVector {
     }
 
     public BitVector(int width) {
-        fValues = new byte[width];
+        setWidth(width);
     }
 
     public BitVector(BitVector from) {
@@ -43,20 +48,30 @@ public class BitVector {
     }
 
     public void assign(BitVector from) {
-        if (from.fValues != null) {
-            if (fValues == null || fValues.length != from.fValues.length)
-                fValues = new byte[from.fValues.length];
+        if (from.fValueWords != null) {
+            if (fValueWords == null || fValueWords.length != from.fValueWords.length) {
+                fValueWords = new long[from.fValueWords.length];
+                fMaskWords = new long[from.fValueWords.length];
+            }
 
-            System.arraycopy(from.fValues, 0, fValues, 0, from.fValues.length);
+            System.arraycopy(from.fValueWords, 0, fValueWords, 0, fValueWords.length);
+            System.arraycopy(from.fMaskWords, 0, fMaskWords, 0, fMaskWords.length);
+            fWidth = from.fWidth;
+        } else {
+            fValueWords = null;
+            fMaskWords = null;
+            fWidth = 0;
         }
-        else
-            fValues = null;
     }
 
     /// @param index bit number, where 0 is least significant
     /// @returns Value of bit at position, one of VALUE_0, VALUE_1, VALUE_X, VALUE_Z
     public int getBit(int index) {
-        return fValues[index];
+        if (index >= fWidth)
+            throw new ArrayIndexOutOfBoundsException(index);
+
+        return (int) (((fMaskWords[index >> 6] >>> index) & 1) << 1
+            | ((fValueWords[index >> 6] >>> index) & 1));
     }
 
     /// @param index bit number, where 0 is least significant
@@ -65,25 +80,132 @@ public class BitVector {
         if (value > VALUE_Z || value < 0)
             throw new NumberFormatException("invalid bit value");
 
-        fValues[index] = (byte) value;
+        if (index >= fWidth)
+            throw new ArrayIndexOutOfBoundsException(index);
+
+        long bit = 1L << index;
+        int word = index >> 6;
+        if ((value & 1) != 0)
+            fValueWords[word] |= bit;
+        else
+            fValueWords[word] &= ~bit;
+
+        if ((value & 2) != 0)
+            fMaskWords[word] |= bit;
+        else
+            fMaskWords[word] &= ~bit;
     }
 
     /// @returns total number of bits in this vector (which may contain some number
     /// of leading zeroes)
     public int getWidth() {
-        return fValues.length;
+        return fWidth;
     }
 
     /// @param width number of bits
     /// @note This will set the value of the the bit vector to zero.
     public void setWidth(int width) {
-        fValues = new byte[width];
+        int wordCount = wordCount(width);
+        if (fValueWords == null || fValueWords.length != wordCount) {
+            fValueWords = new long[wordCount];
+            fMaskWords = new long[wordCount];
+        } else {
+            java.util.Arrays.fill(fValueWords, 0);
+            java.util.Arrays.fill(fMaskWords, 0);
+        }
+
+        fWidth = width;
+    }
+
+    /// @returns Number of longs in each bit plane for a vector of this width
+    static int wordCount(int width) {
+        return (width + 63) >>> 6;
+    }
+
+    /// Direct access to the value plane, for copying values without
+    /// going through getBit/setBit. Bits above the width are always zero.
+    /// The array is replaced if the width changes.
+    long[] getValueWords() {
+        return fValueWords;
+    }
+
+    /// Direct access to the mask plane (see getValueWords)
+    long[] getMaskWords() {
+        return fMaskWords;
+    }
+
+    /// @returns Number of ints needed to hold a packed value of this many bits
+    /// (see unpack).
+    static int packedWordCount(int width) {
+        return (width + 15) >> 4;
+    }
+
+    /// Set this vector from a packed array. Packed values use two bits for
+    /// each bit (one of VALUE_0, VALUE_1, VALUE_X, VALUE_Z), sixteen bits
+    /// per word. Bit 0 is in the least significant position of the first word.
+    /// @param words Array containing the packed value
+    /// @param offset Index of the first word of the value in words
+    /// @param width Number of bits. The vector will be resized to this.
+    void unpack(int[] words, int offset, int width) {
+        setWidth(width);
+        long[] planes = new long[2];
+        for (int i = 0; i < fValueWords.length; i++) {
+            unpackPlanes(words, offset, width, i, planes);
+            fValueWords[i] = planes[0];
+            fMaskWords[i] = planes[1];
+        }
+    }
+
+    /// Convert 64 bits of a packed value into bit planes
+    /// @param width Total number of bits in the packed value
+    /// @param planeWord Index of the 64 bit chunk to convert
+    /// @param outPlanes Receives the value plane bits at index 0 and the
+    ///    mask plane bits at index 1. Bits above the width are zero.
+    static void unpackPlanes(int[] words, int offset, int width, int planeWord,
+                             long[] outPlanes) {
+        long value = 0;
+        long mask = 0;
+        int firstPacked = planeWord * 4;
+        int lastPacked = Math.min(firstPacked + 4, packedWordCount(width));
+        for (int i = firstPacked; i < lastPacked; i++) {
+            int packed = words[offset + i];
+            int shift = (i - firstPacked) * 16;
+            value |= (long) evenBits(packed) << shift;
+            mask |= (long) evenBits(packed >>> 1) << shift;
+        }
+
+        int bitsInWord = width - planeWord * 64;
+        if (bitsInWord < 64) {
+            long validBits = (1L << bitsInWord) - 1;
+            value &= validBits;
+            mask &= validBits;
+        }
+
+        outPlanes[0] = value;
+        outPlanes[1] = mask;
+    }
+
+    /// @returns The even numbered bits of a word, compressed into the low
+    ///   16 bits
+    private static int evenBits(int word) {
+        word &= 0x55555555;
+        word = (word | (word >>> 1)) & 0x33333333;
+        word = (word | (word >>> 2)) & 0x0f0f0f0f;
+        word = (word | (word >>> 4)) & 0x00ff00ff;
+        return (word | (word >>> 8)) & 0x0000ffff;
+    }
+
+    /// @returns Mask with the bits of word index that are below the width set
+    private long validBits(int index) {
+        int bitsInWord = fWidth - index * 64;
+        return bitsInWord >= 64 ? -1L : (1L << bitsInWord) - 1;
     }
 
     /// @returns true if this is all Zs
     public boolean isZ() {
-        for (int i = 0; i < fValues.length; i++) {
-            if (fValues[i] != VALUE_Z)
+        for (int i = 0; i < wordCount(fWidth); i++) {
+            long valid = validBits(i);
+            if ((fValueWords[i] & fMaskWords[i] & valid) != valid)
                 return false;
         }
 
@@ -92,8 +214,8 @@ public class BitVector {
 
     /// @returns true if this contains any Z or X values in any positions
     public boolean isX() {
-        for (int i = 0; i < fValues.length; i++) {
-            if (fValues[i] == VALUE_Z || fValues[i] == VALUE_X)
+        for (int i = 0; i < wordCount(fWidth); i++) {
+            if (fMaskWords[i] != 0)
                 return true;
         }
 
@@ -124,48 +246,32 @@ public class BitVector {
     /// less than, 0 if equal
     /// @bug Ignores X and Z values, should have a rule for those.
     public int compare(BitVector other) {
-        int myWidth = getWidth();
-        int otherWidth = other.getWidth();
-        if (otherWidth > myWidth) {
-            // The other one is wider than me.  Check if its leading digits
-            // have any ones.  If so, it is bigger
-            for (int i = otherWidth - 1; i >= myWidth; i--)
-                if (other.fValues[i] == VALUE_1)
-                    return -1;
-        } else if (myWidth > otherWidth) {
-            // I am wider than the other number.  Check if my leading digits
-            // have any ones.  If so, I am bigger.
-            for (int i = myWidth - 1; i >= otherWidth; i--)
-                if (fValues[i] == VALUE_1)
-                    return 1;
+        int myWords = wordCount(fWidth);
+        int otherWords = wordCount(other.fWidth);
+        int commonWords = Math.min(myWords, otherWords);
+
+        // If either one is wider than the other, check if its leading digits
+        // have any ones. If so, it is bigger.
+        for (int i = otherWords - 1; i >= commonWords; i--) {
+            if ((other.fValueWords[i] & ~other.fMaskWords[i]) != 0)
+                return -1;
         }
 
-        int index = Math.min(myWidth, otherWidth) - 1;
-
-        // Compare remaining digits
-        while (index >= 0) {
-            switch (other.fValues[index]) {
-            case VALUE_0:
-                if (fValues[index] == VALUE_1)
-                    return 1;
-
-                // If my value is Z or X, ignore
-                break;
-
-            case VALUE_1:
-                if (fValues[index] == VALUE_0)
-                    return -1;
-
-                // If my value is Z or X, ignore
-                break;
+        for (int i = myWords - 1; i >= commonWords; i--) {
+            if ((fValueWords[i] & ~fMaskWords[i]) != 0)
+                return 1;
+        }
 
-            case VALUE_X:
-            case VALUE_Z:
-                // Ignore...
-                break;
+        // Bits above the width of either vector in the shared words are zero,
+        // so they compare as leading zeroes. Positions with X or Z in either
+        // value are ignored.
+        for (int i = commonWords - 1; i >= 0; i--) {
+            long different = (fValueWords[i] ^ other.fValueWords[i])
+                & ~(fMaskWords[i] | other.fMaskWords[i]);
+            if (different != 0) {
+                long highestBit = Long.highestOneBit(different);
+                return (fValueWords[i] & highestBit) != 0 ? 1 : -1;
             }
-
-            index--;
         }
 
         return 0;
@@ -174,21 +280,16 @@ public class BitVector {
     /// @returns int representation of BitVector. Zs and Xs are
     /// treated as zeroes. This is limited to 32 bits.
     public int intValue() {
-        int value = 0;
-
-        for (int index = getWidth() - 1; index >= 0; index--) {
-            value <<= 1;
-            if (getBit(index) == VALUE_1)
-                value |= 1;
-        }
+        if (fWidth == 0)
+            return 0;
 
-        return value;
+        return (int) (fValueWords[0] & ~fMaskWords[0]);
     }
 
     /// @param radix may be 2, 10, or 16
     /// @returns A string representation of this BitVector with the given radix
     public String toString(int radix) {
-        if (fValues == null)
+        if (fValueWords == null)
             return "0";
 
         switch (radix) {
@@ -212,21 +313,21 @@ public class BitVector {
     }
 
     private void parseBinaryValue(String string) throws NumberFormatException {
-        if (fValues == null || fValues.length != string.length())
-            fValues = new byte[string.length()];
-
         int length = string.length();
+        setWidth(length);
         for (int index = 0; index < length; index++) {
             char c = string.charAt(index);
+            int bit = length - index - 1;
             if (c == '0')
-                fValues[length - index - 1] = VALUE_0;
+                continue;
             else if (c == '1')
-                fValues[length - index - 1] = VALUE_1;
+                fValueWords[bit >> 6] |= 1L << bit;
             else if (c == 'x' || c == 'X')
-                fValues[length - index - 1] = VALUE_X;
-            else if (c == 'z' || c == 'Z')
-                fValues[length - index - 1] = VALUE_Z;
-            else
+                fMaskWords[bit >> 6] |= 1L << bit;
+            else if (c == 'z' || c == 'Z') {
+                fValueWords[bit >> 6] |= 1L << bit;
+                fMaskWords[bit >> 6] |= 1L << bit;
+            } else
                 throw new NumberFormatException("number format exception parsing " + string);
         }
     }
@@ -236,107 +337,89 @@ public class BitVector {
         byte[] bytes = bigint.toByteArray();
         int totalBits = bytes.length * 8;
 
-        if (fValues == null || fValues.length != totalBits)
-            fValues = new byte[totalBits];
-
-        for (int i = 0; i < totalBits; i++) {
-            fValues[i] = (bytes[bytes.length - (i / 8) - 1] & (1 << (i % 8))) != 0
-                         ? VALUE_1: VALUE_0;
+        setWidth(totalBits);
+        for (int i = 0; i < bytes.length; i++) {
+            int bit = i * 8;
+            fValueWords[bit >> 6] |= (long) (bytes[bytes.length - i - 1] & 0xff) << bit;
         }
     }
 
     private void parseHexadecimalValue(String string) throws NumberFormatException {
-        if (fValues == null || fValues.length != string.length() * 4)
-            fValues = new byte[string.length() * 4];
-
         int length = string.length();
+        setWidth(length * 4);
         for (int index = 0; index < length; index++) {
             char c = string.charAt(length - index - 1);
-            if (c >= '0' && c <= '9') {
-                int digitVal = c - '0';
-                for (int offset = 0; offset < 4; offset++) {
-                    fValues[(index + 1) * 4 - offset - 1] =
-                        (digitVal & (8 >> offset)) != 0 ? VALUE_1 : VALUE_0;
-                }
-            } else if (c >= 'a' && c <= 'f') {
-                int digitVal = c - 'a' + 10;
-                for (int offset = 0; offset < 4; offset++) {
-                    fValues[(index + 1) * 4 - offset - 1] =
-                        (digitVal & (8 >> offset)) != 0 ? VALUE_1 : VALUE_0;
-                }
-            } else if (c >= 'A' && c <= 'F') {
-                int digitVal = c - 'A' + 10;
-                for (int offset = 0; offset < 4; offset++) {
-                    fValues[(index + 1) * 4 - offset - 1] =
-                        (digitVal & (8 >> offset)) != 0 ? VALUE_1 : VALUE_0;
-                }
-            } else if (c == 'X' || c == 'x') {
-                for (int offset = 0; offset < 4; offset++)
-                    fValues[(index + 1) * 4 - offset - 1] = VALUE_X;
+            long value;
+            long mask = 0;
+            if (c >= '0' && c <= '9')
+                value = c - '0';
+            else if (c >= 'a' && c <= 'f')
+                value = c - 'a' + 10;
+            else if (c >= 'A' && c <= 'F')
+                value = c - 'A' + 10;
+            else if (c == 'X' || c == 'x') {
+                value = 0;
+                mask = 15;
             } else if (c == 'Z' || c == 'z') {
-                for (int offset = 0; offset < 4; offset++)
-                    fValues[(index + 1) * 4 - offset - 1] = VALUE_Z;
+                value = 15;
+                mask = 15;
             } else {
                 throw new NumberFormatException("number format exception parsing "
                     + string);
             }
+
+            int bit = index * 4;
+            fValueWords[bit >> 6] |= value << bit;
+            fMaskWords[bit >> 6] |= mask << bit;
         }
     }
 
     private String toBinaryString() {
-        StringBuffer result = new StringBuffer();
+        char[] result = new char[fWidth];
+        for (int index = 0; index < fWidth; index++) {
+            int word = index >> 6;
+            long bit = 1L << index;
+            char c;
+            if ((fMaskWords[word] & bit) == 0)
+                c = (fValueWords[word] & bit) != 0 ? '1' : '0';
+            else
+                c = (fValueWords[word] & bit) != 0 ? 'z' : 'x';
 
-        for (int index = getWidth() - 1; index >= 0; index--) {
-            switch (getBit(index)) {
-            case VALUE_0:
-                result.append('0');
-                break;
-            case VALUE_1:
-                result.append('1');
-                break;
-            case VALUE_Z:
-                result.append('z');
-                break;
-            case VALUE_X:
-            default:
-                result.append('x');
-                break;
-            }
+            result[fWidth - index - 1] = c;
         }
 
-        return result.toString();
+        return new String(result);
     }
 
     /// @bug will crash if the bit vector hasn't been assigned.
     private String toDecimalString() {
-        // We add one leading byte that is always zero so this will
-        // be treated as unsigned.
-        byte[] bytes = new byte[(fValues.length + 7) / 8 + 1];
-
-        for (int i = 0; i < fValues.length; i++) {
-            if (fValues[i] == VALUE_1)
-                bytes[bytes.length - (i / 8) - 1] |= 1 << (i % 8);
+        // Words are stored least significant first. Add one leading byte that
+        // is always zero so this will be treated as unsigned.
+        int wordCount = wordCount(fWidth);
+        byte[] bytes = new byte[wordCount * 8 + 1];
+        for (int i = 0; i < wordCount; i++) {
+            long ones = fValueWords[i] & ~fMaskWords[i];
+            for (int j = 0; j < 8; j++)
+                bytes[bytes.length - (i * 8 + j) - 1] = (byte) (ones >>> (j * 8));
         }
 
         return new BigInteger(bytes).toString();
     }
 
+    /// @param offset Index of the lowest bit of the digit. The digit must
+    ///    not cross a word boundary, which is true for all digits at
+    ///    multiples of 4.
+    /// @param count Number of bits in the digit, 1-4
     private char bitsToHexDigit(int offset, int count) {
-        int value = 0;
-
-        for (int i = count - 1; i >= 0; i--) {
-            value <<= 1;
-            switch (getBit(i + offset)) {
-            case VALUE_0:
-                break;
-            case VALUE_1:
-                value |= 1;
-                break;
-            case VALUE_X:
-                return 'X';
-            case VALUE_Z:    // @bug should only be Z if all bits are Z
-                return 'Z';
-            }
+        int word = offset >> 6;
+        int digitMask = (1 << count) - 1;
+        int value = (int) (fValueWords[word] >>> offset) & digitMask;
+        int mask = (int) (fMaskWords[word] >>> offset) & digitMask;
+        if (mask != 0) {
+            // The most significant unknown bit determines which it is.
+            // @bug should only be Z if all bits are Z
+            int highestBit = Integer.highestOneBit(mask);
+            return (value & highestBit) != 0 ? 'Z' : 'X';
         }
 
         return "0123456789ABCDEF".charAt(value);
@@ -362,6 +445,10 @@ public class BitVector {
         return result.toString();
     }
 
-    // Bit 0 is least significant value
-    private byte[] fValues;
+    private int fWidth;
+
+    // Bit 0 is the least significant bit of the first word. Both are null
+    // if the vector hasn't been assigned.
+    private long[] fValueWords;
+    private long[] fMaskWords;
 }
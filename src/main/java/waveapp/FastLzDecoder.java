@@ -0,0 +1,101 @@
+//
+// Copyright 2016 Jeff Bush
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package waveapp;
+
+import java.io.IOException;
+
+///
+/// Decompresses data produced by FastLZ (levels 1 and 2), which FST
+/// writers may use for value changes.
+///
+class FastLzDecoder {
+    /// Matches with this extra distance encoding are relative to this
+    /// (level 2 only)
+    private static final int MAX_L2_DISTANCE = 8191;
+
+    /// @returns Number of bytes written to dest
+    /// @throws IOException if the compressed data is malformed
+    static int decompress(byte[] src, int srcOffset, int srcLength, byte[] dest,
+                          int destOffset, int destLength) throws IOException {
+        if (srcLength == 0)
+            return 0;
+
+        int level = ((src[srcOffset] & 0xff) >> 5) + 1;
+        if (level > 2)
+            throw new IOException("unknown FastLZ level " + level);
+
+        int ip = srcOffset;
+        int ipEnd = srcOffset + srcLength;
+        int op = destOffset;
+        int opEnd = destOffset + destLength;
+        try {
+            int ctrl = src[ip++] & 31;
+            for (;;) {
+                if (ctrl >= 32) {
+                    // Back reference
+                    int length = (ctrl >> 5) - 1;
+                    int distance = (ctrl & 31) << 8;
+                    if (length == 6) {
+                        if (level == 1)
+                            length += src[ip++] & 0xff;
+                        else {
+                            int code;
+                            do {
+                                code = src[ip++] & 0xff;
+                                length += code;
+                            } while (code == 255);
+                        }
+                    }
+
+                    int code = src[ip++] & 0xff;
+                    int ref = op - distance - code - 1;
+                    if (level == 2 && code == 255 && distance == (31 << 8)) {
+                        distance = ((src[ip] & 0xff) << 8) | (src[ip + 1] & 0xff);
+                        ip += 2;
+                        ref = op - distance - MAX_L2_DISTANCE - 1;
+                    }
+
+                    length += 3;
+                    if (ref < destOffset || op + length > opEnd)
+                        throw new IOException("bad FastLZ match");
+
+                    // The match may overlap the output, which repeats it
+                    for (int i = 0; i < length; i++)
+                        dest[op++] = dest[ref++];
+                } else {
+                    // Literal run
+                    int length = ctrl + 1;
+                    if (ip + length > ipEnd || op + length > opEnd)
+                        throw new IOException("bad FastLZ literal run");
+
+                    System.arraycopy(src, ip, dest, op, length);
+                    ip += length;
+                    op += length;
+                }
+
+                if (ip >= ipEnd)
+                    break;
+
+                ctrl = src[ip++] & 0xff;
+            }
+        } catch (ArrayIndexOutOfBoundsException exc) {
+            throw new IOException("truncated FastLZ data");
+        }
+
+        return op - destOffset;
+    }
+}
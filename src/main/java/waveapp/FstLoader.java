@@ -0,0 +1,957 @@
+//
+// Copyright 2016 Jeff Bush
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package waveapp;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+///
+/// Loads traces in the FST format used by GTKWave and many simulators.
+/// An FST file is a sequence of blocks: a header, value change blocks, then
+/// the geometry (width of each signal) and the hierarchy. The hierarchy is
+/// compressed with gzip or LZ4. Value change blocks contain the values of
+/// all signals at the start of the block, a table of timestamps, and a
+/// separately compressed stream of changes for each signal, using zlib,
+/// FastLZ or LZ4. Value change blocks are independent, so they are
+/// decompressed and decoded concurrently, then added to the builder in
+/// file order.
+///
+public class FstLoader implements TraceLoader {
+    // Block types
+    private static final int BL_HDR = 0;
+    private static final int BL_VCDATA = 1;
+    private static final int BL_GEOM = 3;
+    private static final int BL_HIER = 4;
+    private static final int BL_VCDATA_DYN_ALIAS = 5;
+    private static final int BL_HIER_LZ4 = 6;
+    private static final int BL_HIER_LZ4DUO = 7;
+    private static final int BL_VCDATA_DYN_ALIAS2 = 8;
+    private static final int BL_ZWRAPPER = 254;
+
+    // Hierarchy record tags. Any other value is the type of a variable.
+    private static final int ST_GEN_ATTRBEGIN = 252;
+    private static final int ST_GEN_ATTREND = 253;
+    private static final int ST_VCD_SCOPE = 254;
+    private static final int ST_VCD_UPSCOPE = 255;
+
+    private static final int HEADER_SECTION_LENGTH = 329;
+
+    /// Offset of the timescale in the header block, relative to the
+    /// section length
+    private static final int HEADER_TIMESCALE = 72;
+
+    /// Offset of a double with the value ENDIAN_TEST, written in the byte
+    /// order the writer used for real values
+    private static final int HEADER_ENDIAN_TEST = 24;
+    private static final double ENDIAN_TEST = 2.7182818284590452354;
+
+    // Kinds of signals, from the geometry block
+    private static final byte KIND_BITS = 0;
+    private static final byte KIND_REAL = 1;
+    private static final byte KIND_VARLEN = 2;     // Strings
+
+    /// Geometry value for a signal with variable length values
+    private static final long GEOM_VARLEN = 0xffffffffL;
+
+    /// Values of single bit changes that aren't 0 or 1, indexed by the
+    /// code in the change record.
+    private static final String FOUR_STATE_VALUES = "xzhuwl-?";
+
+    /// Number of value change blocks being decoded, per thread, ahead of
+    /// the one being added to the builder.
+    private static final int BLOCKS_PER_THREAD = 2;
+
+    public FstLoader() {}
+
+    /// @returns true if the file starts with an FST header block, or is
+    ///   an FST file wrapped in gzip.
+    public static boolean isFstFile(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            int type = in.read();
+            if (type == BL_ZWRAPPER)
+                return true;
+
+            return type == BL_HDR && in.readLong() == HEADER_SECTION_LENGTH;
+        } catch (EOFException exc) {
+            return false;
+        } finally {
+            in.close();
+        }
+    }
+
+    /// @param threadCount Number of threads used to decode value change
+    ///    blocks. 1 (the default) decodes them on the calling thread.
+    public void setParallelism(int threadCount) {
+        fParallelism = Math.max(threadCount, 1);
+    }
+
+    @Override
+    public void load(File file, TraceBuilder builder, ProgressListener listener)
+        throws LoadException, IOException {
+        fTraceBuilder = builder;
+        fProgressListener = listener;
+
+        File unwrapped = null;
+        FileInputStream inputStream = new FileInputStream(file);
+        try {
+            FileChannel channel = inputStream.getChannel();
+            if (channel.size() > 0 && readBytes(channel, 0, 1)[0] == (byte) BL_ZWRAPPER) {
+                // The whole file is compressed. Decompress it to a temporary
+                // file, because blocks are read out of order.
+                unwrapped = unwrap(channel);
+                inputStream.close();
+                inputStream = new FileInputStream(unwrapped);
+                channel = inputStream.getChannel();
+            }
+
+            loadBlocks(channel);
+        } finally {
+            inputStream.close();
+            if (unwrapped != null)
+                unwrapped.delete();
+        }
+
+        builder.loadFinished();
+    }
+
+    private File unwrap(FileChannel channel) throws IOException {
+        byte[] lengths = readBytes(channel, 1, 16);
+        long sectionLength = getUint64(lengths, 0);
+        File unwrapped = File.createTempFile("waveview", ".fst");
+        InputStream compressed = new GZIPInputStream(new BufferedInputStream(
+            new BoundedChannelInputStream(channel, 17, 1 + sectionLength)), 0x10000);
+        try {
+            OutputStream out = new FileOutputStream(unwrapped);
+            try {
+                byte[] buffer = new byte[0x10000];
+                int got;
+                while ((got = compressed.read(buffer)) > 0)
+                    out.write(buffer, 0, got);
+            } finally {
+                out.close();
+            }
+        } catch (IOException exc) {
+            unwrapped.delete();
+            throw exc;
+        } finally {
+            compressed.close();
+        }
+
+        return unwrapped;
+    }
+
+    private void loadBlocks(FileChannel channel) throws LoadException, IOException {
+        fFileLength = channel.size();
+
+        // Find all blocks. The hierarchy and geometry are usually at the
+        // end, but are needed to decode value changes.
+        ArrayList<long[]> valueChangeBlocks = new ArrayList<long[]>();
+        long hierarchyBlock = -1;
+        int hierarchyType = 0;
+        long geometryBlock = -1;
+        boolean sawHeader = false;
+        long offset = 0;
+        while (offset + 9 <= fFileLength) {
+            byte[] blockHeader = readBytes(channel, offset, 9);
+            int type = blockHeader[0] & 0xff;
+            long sectionLength = getUint64(blockHeader, 1);
+            long sectionStart = offset + 1;
+            if (sectionLength == 0)
+                break;  // Writer didn't finish this block
+
+            if (sectionLength < 8 || sectionStart + sectionLength > fFileLength)
+                throw new LoadException("bad block length at offset " + offset);
+
+            switch (type) {
+                case BL_HDR:
+                    parseHeader(channel, sectionStart);
+                    sawHeader = true;
+                    break;
+
+                case BL_VCDATA:
+                case BL_VCDATA_DYN_ALIAS:
+                case BL_VCDATA_DYN_ALIAS2:
+                    valueChangeBlocks.add(new long[] { type, sectionStart, sectionLength });
+                    break;
+
+                case BL_GEOM:
+                    geometryBlock = sectionStart;
+                    break;
+
+                case BL_HIER:
+                case BL_HIER_LZ4:
+                case BL_HIER_LZ4DUO:
+                    hierarchyBlock = sectionStart;
+                    hierarchyType = type;
+                    break;
+
+                default:
+                    // Blackout and skip blocks are ignored
+                    break;
+            }
+
+            offset = sectionStart + sectionLength;
+        }
+
+        if (!sawHeader)
+            throw new LoadException("missing FST header");
+
+        if (geometryBlock < 0 || hierarchyBlock < 0)
+            throw new LoadException("incomplete FST file (no hierarchy)");
+
+        parseGeometry(channel, geometryBlock);
+        parseHierarchy(channel, hierarchyBlock, hierarchyType);
+        parseValueChangeBlocks(channel, valueChangeBlocks);
+    }
+
+    private void parseHeader(FileChannel channel, long sectionStart) throws IOException {
+        byte[] header = readBytes(channel, sectionStart, HEADER_SECTION_LENGTH);
+        fTraceBuilder.setTimescale(header[HEADER_TIMESCALE]);
+        fRealsBigEndian = Double.longBitsToDouble(getUint64(header, HEADER_ENDIAN_TEST))
+            == ENDIAN_TEST;
+    }
+
+    /// The geometry block has the width of each signal, indexed by handle.
+    private void parseGeometry(FileChannel channel, long sectionStart)
+        throws LoadException, IOException {
+        byte[] lengths = readBytes(channel, sectionStart, 24);
+        long sectionLength = getUint64(lengths, 0);
+        long uncompressedLength = getUint64(lengths, 8);
+        int handleCount = toInt(getUint64(lengths, 16));
+        int compressedLength = toInt(sectionLength - 24);
+        byte[] data = readBytes(channel, sectionStart + 24, compressedLength);
+        if (compressedLength != uncompressedLength)
+            data = inflate(data, 0, compressedLength, toInt(uncompressedLength));
+
+        fWidths = new int[handleCount];
+        fKinds = new byte[handleCount];
+        fHandleNets = new int[handleCount];
+        Arrays.fill(fHandleNets, -1);
+        Cursor cursor = new Cursor(data, 0, data.length);
+        for (int i = 0; i < handleCount; i++) {
+            long length = cursor.readVarint();
+            if (length == 0) {
+                fKinds[i] = KIND_REAL;
+                fWidths[i] = 8;    // Bytes in the frame
+            } else if (length == GEOM_VARLEN) {
+                fKinds[i] = KIND_VARLEN;
+                fWidths[i] = 0;
+            } else {
+                fKinds[i] = KIND_BITS;
+                fWidths[i] = toInt(length);
+            }
+
+            fMaxWidth = Math.max(fMaxWidth, fWidths[i]);
+        }
+    }
+
+    private void parseHierarchy(FileChannel channel, long sectionStart, int type)
+        throws LoadException, IOException {
+        byte[] lengths = readBytes(channel, sectionStart, 16);
+        long sectionLength = getUint64(lengths, 0);
+        int uncompressedLength = toInt(getUint64(lengths, 8));
+        byte[] data;
+        if (type == BL_HIER) {
+            InputStream in = new GZIPInputStream(new BufferedInputStream(
+                new BoundedChannelInputStream(channel, sectionStart + 16,
+                sectionStart + sectionLength)));
+            try {
+                data = new byte[uncompressedLength];
+                new DataInputStream(in).readFully(data);
+            } finally {
+                in.close();
+            }
+        } else {
+            byte[] compressed = readBytes(channel, sectionStart + 16,
+                toInt(sectionLength - 16));
+            int compressedLength = compressed.length;
+            if (type == BL_HIER_LZ4DUO) {
+                // Compressed twice. The length after the first pass precedes it.
+                Cursor cursor = new Cursor(compressed, 0, compressed.length);
+                int onceLength = toInt(cursor.readVarint());
+                byte[] once = new byte[onceLength];
+                Lz4Decoder.decompress(compressed, cursor.getOffset(),
+                    compressed.length - cursor.getOffset(), once, 0, onceLength);
+                compressed = once;
+                compressedLength = onceLength;
+            }
+
+            data = new byte[uncompressedLength];
+            if (Lz4Decoder.decompress(compressed, 0, compressedLength, data, 0,
+                uncompressedLength) != uncompressedLength)
+                throw new LoadException("truncated FST hierarchy");
+        }
+
+        Cursor cursor = new Cursor(data, 0, data.length);
+        int nextHandle = 0;
+        while (cursor.hasMore()) {
+            int tag = cursor.readByte();
+            switch (tag) {
+                case ST_VCD_SCOPE:
+                    cursor.readByte();      // Scope type
+                    fTraceBuilder.enterScope(cursor.readString());
+                    cursor.readString();    // Component name
+                    break;
+
+                case ST_VCD_UPSCOPE:
+                    fTraceBuilder.exitScope();
+                    break;
+
+                case ST_GEN_ATTRBEGIN:
+                    cursor.readByte();      // Attribute type
+                    cursor.readByte();      // Subtype
+                    cursor.readString();    // Name
+                    cursor.readVarint();    // Argument
+                    break;
+
+                case ST_GEN_ATTREND:
+                    break;
+
+                default: {
+                    // Variable. The tag is the variable type.
+                    cursor.readByte();      // Direction
+                    String name = cursor.readString();
+                    cursor.readVarint();    // Length, also in geometry
+                    int alias = toInt(cursor.readVarint());
+
+                    // Strip off the width declaration
+                    int openBracket = name.indexOf('[');
+                    if (openBracket > 0)
+                        name = name.substring(0, openBracket).trim();
+
+                    if (alias == 0) {
+                        int handle = nextHandle++;
+                        if (handle >= fHandleNets.length)
+                            throw new LoadException("FST hierarchy has more variables than geometry");
+
+                        int netId;
+                        if (fKinds[handle] == KIND_REAL)
+                            netId = fTraceBuilder.newRealNet(name, -1);
+                        else
+                            netId = fTraceBuilder.newNet(name, -1, getNetWidth(handle));
+
+                        fHandleNets[handle] = netId;
+                        if (fKinds[handle] == KIND_VARLEN)
+                            fTraceBuilder.setNetLoaded(netId, false);  // Not supported
+                    } else {
+                        if (alias > nextHandle)
+                            throw new LoadException("bad FST alias " + alias);
+
+                        if (fKinds[alias - 1] == KIND_REAL)
+                            fTraceBuilder.newRealNet(name, fHandleNets[alias - 1]);
+                        else {
+                            fTraceBuilder.newNet(name, fHandleNets[alias - 1],
+                                getNetWidth(alias - 1));
+                        }
+                    }
+
+                    break;
+                }
+            }
+        }
+    }
+
+    private int getNetWidth(int handle) {
+        if (fKinds[handle] == KIND_REAL)
+            return 64;
+        else if (fKinds[handle] == KIND_VARLEN)
+            return 1;
+        else
+            return fWidths[handle];
+    }
+
+    private void parseValueChangeBlocks(final FileChannel channel, ArrayList<long[]> blocks)
+        throws LoadException, IOException {
+        ExecutorService executor = null;
+        if (fParallelism > 1)
+            executor = Executors.newFixedThreadPool(fParallelism);
+
+        try {
+            ArrayDeque<Future<TransitionBatch>> pending = new ArrayDeque<Future<TransitionBatch>>();
+            int nextBlock = 0;
+            for (int i = 0; i < blocks.size(); i++) {
+                if (executor == null) {
+                    long[] block = blocks.get(i);
+                    decodeBlock(channel, (int) block[0], block[1], block[2], i == 0)
+                        .appendTo(fTraceBuilder, Long.MIN_VALUE);
+                } else {
+                    while (nextBlock < blocks.size()
+                           && pending.size() < fParallelism * BLOCKS_PER_THREAD) {
+                        final long[] block = blocks.get(nextBlock);
+                        final boolean isFirst = nextBlock == 0;
+                        pending.add(executor.submit(new Callable<TransitionBatch>() {
+                            @Override
+                            public TransitionBatch call() throws LoadException, IOException {
+                                return decodeBlock(channel, (int) block[0], block[1],
+                                    block[2], isFirst);
+                            }
+                        }));
+
+                        nextBlock++;
+                    }
+
+                    waitForBlock(pending.remove()).appendTo(fTraceBuilder, Long.MIN_VALUE);
+                }
+
+                if (fProgressListener != null) {
+                    long[] block = blocks.get(i);
+                    if (!fProgressListener.updateProgress((int) ((block[1] + block[2])
+                        * 100 / fFileLength)))
+                        throw new LoadException("load cancelled");
+                }
+            }
+        } finally {
+            if (executor != null)
+                executor.shutdownNow();
+        }
+    }
+
+    private TransitionBatch waitForBlock(Future<TransitionBatch> future)
+        throws LoadException, IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException exc) {
+            throw new LoadException("load interrupted");
+        } catch (ExecutionException exc) {
+            Throwable cause = exc.getCause();
+            if (cause instanceof LoadException)
+                throw (LoadException) cause;
+            else if (cause instanceof IOException)
+                throw (IOException) cause;
+            else if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /// Decode one value change block. This may be called on any thread.
+    /// @param isFirst If true, add the initial values of all signals, which
+    ///   are stored at the beginning of the block.
+    private TransitionBatch decodeBlock(FileChannel channel, int type, long sectionStart,
+                                        long sectionLength, boolean isFirst)
+        throws LoadException, IOException {
+        byte[] section = readBytes(channel, sectionStart, toInt(sectionLength));
+        int end = section.length;
+        long beginTime = getUint64(section, 8);
+
+        // Time table, at the end of the block
+        long timeUncompressedLength = getUint64(section, end - 24);
+        int timeCompressedLength = toInt(getUint64(section, end - 16));
+        int timeCount = toInt(getUint64(section, end - 8));
+        int timeStart = end - 24 - timeCompressedLength;
+        byte[] timeData = section;
+        int timeOffset = timeStart;
+        if (timeCompressedLength != timeUncompressedLength) {
+            timeData = inflate(section, timeStart, timeCompressedLength,
+                toInt(timeUncompressedLength));
+            timeOffset = 0;
+        }
+
+        long[] times = new long[timeCount];
+        Cursor cursor = new Cursor(timeData, timeOffset, timeData.length);
+        long time = 0;
+        for (int i = 0; i < timeCount; i++) {
+            time += cursor.readVarint();
+            times[i] = time;
+        }
+
+        // Frame, which has the values of all signals at the start
+        cursor = new Cursor(section, 32, end);
+        int frameUncompressedLength = toInt(cursor.readVarint());
+        int frameCompressedLength = toInt(cursor.readVarint());
+        int frameHandleCount = toInt(cursor.readVarint());
+        int frameStart = cursor.getOffset();
+        byte[] frame = null;
+        int frameOffset = 0;
+        if (isFirst) {
+            if (frameCompressedLength != frameUncompressedLength) {
+                frame = inflate(section, frameStart, frameCompressedLength,
+                    frameUncompressedLength);
+            } else {
+                frame = section;
+                frameOffset = frameStart;
+            }
+        }
+
+        cursor.skip(frameCompressedLength);
+        int handleCount = toInt(cursor.readVarint());
+        int changesStart = cursor.getOffset();
+        int packType = section[changesStart];
+
+        // Position table, before the time table
+        int chainLengthOffset = timeStart - 8;
+        int chainStart = toInt(chainLengthOffset - getUint64(section, chainLengthOffset));
+        long[] positions = new long[handleCount + 1];
+        long[] lengths = new long[handleCount + 1];
+        decodePositionTable(type, section, chainStart, chainLengthOffset, handleCount,
+            positions, lengths, chainStart - changesStart);
+
+        TransitionBatch batch = new TransitionBatch();
+        int[] packedValue = new int[BitVector.packedWordCount(Math.max(fMaxWidth, 1))];
+        byte[] changes = new byte[0];
+        int signalCount = Math.max(handleCount, isFirst ? frameHandleCount : 0);
+        for (int handle = 0; handle < signalCount && handle < fWidths.length; handle++) {
+            int netId = fHandleNets[handle];
+            boolean loaded = netId >= 0 && fKinds[handle] != KIND_VARLEN;
+            boolean isReal = fKinds[handle] == KIND_REAL;
+            int width = fWidths[handle];
+            int changesLength = 0;
+            if (loaded && handle < handleCount && positions[handle] != 0) {
+                int start = toInt(changesStart + positions[handle]);
+                int length = toInt(lengths[handle]);
+                Cursor changeCursor = new Cursor(section, start, start + length);
+                int uncompressedLength = toInt(changeCursor.readVarint());
+                int dataStart = changeCursor.getOffset();
+                int dataLength = start + length - dataStart;
+                if (uncompressedLength == 0) {
+                    // Stored without compression
+                    changesLength = dataLength;
+                    if (changes.length < changesLength)
+                        changes = new byte[changesLength];
+
+                    System.arraycopy(section, dataStart, changes, 0, changesLength);
+                } else {
+                    changesLength = uncompressedLength;
+                    if (changes.length < changesLength)
+                        changes = new byte[changesLength];
+
+                    decompress(packType, section, dataStart, dataLength, changes,
+                        changesLength);
+                }
+            }
+
+            if (frame != null && handle < frameHandleCount) {
+                if (loaded && !(changesLength > 0
+                    && times[firstTimeIndex(changes, width)] == beginTime)) {
+                    if (isReal)
+                        batch.addReal(netId, beginTime, decodeReal(frame, frameOffset));
+                    else {
+                        decodeChars(frame, frameOffset, width, packedValue);
+                        batch.add(netId, beginTime, width, packedValue);
+                    }
+                }
+
+                frameOffset += width;
+            }
+
+            if (changesLength > 0 && isReal)
+                decodeRealChanges(changes, changesLength, netId, times, batch);
+            else if (changesLength > 0) {
+                decodeChanges(changes, changesLength, netId, width, times, batch,
+                    packedValue);
+            }
+        }
+
+        return batch;
+    }
+
+    /// Decode the table of offsets of the change data for each signal,
+    /// relative to the pack type byte.
+    /// @param positions Filled with the offset for each handle, or 0 if it
+    ///   has no changes in this block.
+    /// @param lengths Filled with the length of the change data
+    /// @param tableOffset Offset of the table from the pack type byte
+    private static void decodePositionTable(int type, byte[] section, int start, int end,
+                                            int handleCount, long[] positions,
+                                            long[] lengths, long tableOffset)
+        throws LoadException, IOException {
+        Cursor cursor = new Cursor(section, start, end);
+        int index = 0;
+        int previousIndex = -1;     // Last signal with change data
+        long position = 0;
+        long previousAlias = 0;
+        while (cursor.hasMore()) {
+            if (type == BL_VCDATA_DYN_ALIAS2) {
+                if ((section[cursor.getOffset()] & 1) != 0) {
+                    long value = cursor.readSignedVarint() >> 1;
+                    if (value > 0) {
+                        position += value;
+                        checkHandle(index, handleCount);
+                        if (previousIndex >= 0)
+                            lengths[previousIndex] = position - positions[previousIndex];
+
+                        positions[index] = position;
+                        previousIndex = index++;
+                    } else {
+                        // Same data as another signal. 0 repeats the last alias.
+                        if (value < 0)
+                            previousAlias = value;
+
+                        checkHandle(index, handleCount);
+                        positions[index] = 0;
+                        lengths[index++] = previousAlias;
+                    }
+                } else {
+                    // Run of signals without changes
+                    long count = cursor.readVarint() >> 1;
+                    checkHandle(index + count - 1, handleCount);
+                    index += (int) count;
+                }
+            } else {
+                long value = cursor.readVarint();
+                if (value == 0) {
+                    // Alias
+                    checkHandle(index, handleCount);
+                    positions[index] = 0;
+                    lengths[index++] = -cursor.readVarint();
+                } else if ((value & 1) != 0) {
+                    position += value >> 1;
+                    checkHandle(index, handleCount);
+                    if (previousIndex >= 0)
+                        lengths[previousIndex] = position - positions[previousIndex];
+
+                    positions[index] = position;
+                    previousIndex = index++;
+                } else {
+                    long count = value >> 1;
+                    checkHandle(index + count - 1, handleCount);
+                    index += (int) count;
+                }
+            }
+        }
+
+        if (previousIndex >= 0)
+            lengths[previousIndex] = tableOffset - positions[previousIndex];
+
+        // Resolve aliases, which are stored as -(handle + 1)
+        for (int i = 0; i < index; i++) {
+            if (positions[i] == 0 && lengths[i] < 0) {
+                long target = -lengths[i] - 1;
+                if (target < i) {
+                    positions[i] = positions[(int) target];
+                    lengths[i] = lengths[(int) target];
+                } else
+                    lengths[i] = 0;
+            }
+        }
+    }
+
+    private static void checkHandle(long index, int handleCount) throws LoadException {
+        if (index >= handleCount)
+            throw new LoadException("bad FST position table");
+    }
+
+    private static void decompress(int packType, byte[] src, int srcOffset, int srcLength,
+                                   byte[] dest, int destLength) throws IOException {
+        int got;
+        if (packType == '4')
+            got = Lz4Decoder.decompress(src, srcOffset, srcLength, dest, 0, destLength);
+        else if (packType == 'F')
+            got = FastLzDecoder.decompress(src, srcOffset, srcLength, dest, 0, destLength);
+        else
+            got = inflate(src, srcOffset, srcLength, dest, destLength);
+
+        if (got != destLength)
+            throw new IOException("truncated FST value changes");
+    }
+
+    /// @returns Index into the time table of the first change in a stream
+    private static int firstTimeIndex(byte[] changes, int width) throws IOException {
+        long code = new Cursor(changes, 0, changes.length).readVarint();
+        if (width == 1)
+            return (int) ((code & 1) == 0 ? code >>> 2 : code >>> 4);
+
+        return (int) (code >>> 1);
+    }
+
+    private static void decodeChanges(byte[] changes, int length, int netId, int width,
+                                      long[] times, TransitionBatch batch,
+                                      int[] packedValue)
+        throws LoadException, IOException {
+        Cursor cursor = new Cursor(changes, 0, length);
+        long timeIndex = 0;
+        int byteCount = (width + 7) / 8;
+        int wordCount = BitVector.packedWordCount(width);
+        while (cursor.hasMore()) {
+            long code = cursor.readVarint();
+            if (width == 1) {
+                if ((code & 1) == 0) {
+                    timeIndex += code >>> 2;
+                    packedValue[0] = (int) (code >>> 1) & 1;
+                } else {
+                    timeIndex += code >>> 4;
+                    packedValue[0] = charToValue(FOUR_STATE_VALUES.charAt((int) (code >>> 1) & 7));
+                }
+            } else {
+                timeIndex += code >>> 1;
+                int offset = cursor.getOffset();
+                if ((code & 1) != 0) {
+                    // One character per bit
+                    cursor.skip(width);
+                    decodeChars(changes, offset, width, packedValue);
+                } else {
+                    // One bit per bit, most significant first
+                    cursor.skip(byteCount);
+                    Arrays.fill(packedValue, 0, wordCount, 0);
+                    for (int i = 0; i < width; i++) {
+                        int bit = (changes[offset + (i >> 3)] >> (7 - (i & 7))) & 1;
+                        int outBit = width - i - 1;
+                        packedValue[outBit >> 4] |= bit << ((outBit & 15) * 2);
+                    }
+                }
+            }
+
+            if (timeIndex >= times.length)
+                throw new LoadException("bad FST time index");
+
+            batch.add(netId, times[(int) timeIndex], width, packedValue);
+        }
+    }
+
+    /// Each change of a real signal is a varint with the time index delta
+    /// shifted left by one, followed by the 8 bytes of the double.
+    private void decodeRealChanges(byte[] changes, int length, int netId, long[] times,
+                                   TransitionBatch batch)
+        throws LoadException, IOException {
+        Cursor cursor = new Cursor(changes, 0, length);
+        long timeIndex = 0;
+        while (cursor.hasMore()) {
+            timeIndex += cursor.readVarint() >>> 1;
+            int offset = cursor.getOffset();
+            cursor.skip(8);
+            if (timeIndex >= times.length)
+                throw new LoadException("bad FST time index");
+
+            batch.addReal(netId, times[(int) timeIndex], decodeReal(changes, offset));
+        }
+    }
+
+    /// Read a double in the byte order given by the header
+    private double decodeReal(byte[] data, int offset) {
+        long bits = 0;
+        for (int i = 0; i < 8; i++) {
+            int shift = fRealsBigEndian ? (7 - i) * 8 : i * 8;
+            bits |= (long) (data[offset + i] & 0xff) << shift;
+        }
+
+        return Double.longBitsToDouble(bits);
+    }
+
+    /// Convert a value stored as one ASCII character per bit, most
+    /// significant first, to packed format.
+    private static void decodeChars(byte[] data, int offset, int width, int[] packedValue) {
+        Arrays.fill(packedValue, 0, BitVector.packedWordCount(width), 0);
+        for (int i = 0; i < width; i++) {
+            int outBit = width - i - 1;
+            packedValue[outBit >> 4] |= charToValue(data[offset + i]) << ((outBit & 15) * 2);
+        }
+    }
+
+    private static int charToValue(int c) {
+        switch (c) {
+            case '0':
+            case 'l':
+            case 'L':
+                return BitVector.VALUE_0;
+
+            case '1':
+            case 'h':
+            case 'H':
+                return BitVector.VALUE_1;
+
+            case 'z':
+            case 'Z':
+                return BitVector.VALUE_Z;
+
+            default:
+                return BitVector.VALUE_X;
+        }
+    }
+
+    private static byte[] inflate(byte[] src, int offset, int length, int uncompressedLength)
+        throws IOException {
+        byte[] dest = new byte[uncompressedLength];
+        if (inflate(src, offset, length, dest, uncompressedLength) != uncompressedLength)
+            throw new IOException("truncated zlib data");
+
+        return dest;
+    }
+
+    private static int inflate(byte[] src, int offset, int length, byte[] dest,
+                               int destLength) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(src, offset, length);
+            int total = 0;
+            while (total < destLength && !inflater.finished()) {
+                int got = inflater.inflate(dest, total, destLength - total);
+                if (got == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+
+                total += got;
+            }
+
+            return total;
+        } catch (DataFormatException exc) {
+            throw new IOException("bad zlib data: " + exc.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static byte[] readBytes(FileChannel channel, long offset, int length)
+        throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0)
+                throw new EOFException();
+        }
+
+        return buffer.array();
+    }
+
+    /// Fixed size fields are big endian
+    private static long getUint64(byte[] data, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++)
+            value = (value << 8) | (data[offset + i] & 0xff);
+
+        return value;
+    }
+
+    private static int toInt(long value) throws IOException {
+        if (value < 0 || value > Integer.MAX_VALUE)
+            throw new IOException("FST section too large");
+
+        return (int) value;
+    }
+
+    /// Reads variable length fields from part of an array
+    private static class Cursor {
+        Cursor(byte[] data, int offset, int end) {
+            fData = data;
+            fOffset = offset;
+            fEnd = end;
+        }
+
+        boolean hasMore() {
+            return fOffset < fEnd;
+        }
+
+        int getOffset() {
+            return fOffset;
+        }
+
+        void skip(int length) throws EOFException {
+            if (fOffset + length > fEnd)
+                throw new EOFException();
+
+            fOffset += length;
+        }
+
+        int readByte() throws EOFException {
+            if (fOffset >= fEnd)
+                throw new EOFException();
+
+            return fData[fOffset++] & 0xff;
+        }
+
+        /// Unsigned LEB128
+        long readVarint() throws EOFException {
+            long value = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = readByte();
+                value |= (long) (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+
+            return value;
+        }
+
+        /// Signed LEB128
+        long readSignedVarint() throws EOFException {
+            long value = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = readByte();
+                value |= (long) (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+
+            if (shift < 64 && (b & 0x40) != 0)
+                value |= -1L << shift;
+
+            return value;
+        }
+
+        /// Null terminated
+        String readString() throws IOException {
+            int start = fOffset;
+            while (readByte() != 0)
+                ;
+
+            return new String(fData, start, fOffset - start - 1, "UTF-8");
+        }
+
+        private byte[] fData;
+        private int fOffset;
+        private int fEnd;
+    }
+
+    /// Reads a range of a file
+    private static class BoundedChannelInputStream extends InputStream {
+        BoundedChannelInputStream(FileChannel channel, long start, long end) {
+            fChannel = channel;
+            fOffset = start;
+            fEnd = end;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] buffer = new byte[1];
+            return read(buffer, 0, 1) < 0 ? -1 : buffer[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (fOffset >= fEnd)
+                return -1;
+
+            length = (int) Math.min(length, fEnd - fOffset);
+            int got = fChannel.read(ByteBuffer.wrap(buffer, offset, length), fOffset);
+            if (got > 0)
+                fOffset += got;
+
+            return got;
+        }
+
+        private FileChannel fChannel;
+        private long fOffset;
+        private long fEnd;
+    }
+
+    private TraceBuilder fTraceBuilder;
+    private ProgressListener fProgressListener;
+    private int fParallelism = 1;
+    private long fFileLength;
+
+    // Indexed by handle (numbered from 0)
+    private int[] fWidths;
+    private byte[] fKinds;
+    private boolean fRealsBigEndian;
+    private int[] fHandleNets;  // ID from the builder, or -1 if not in the hierarchy
+    private int fMaxWidth;
+}
@@ -0,0 +1,184 @@
+//
+// Copyright 2016 Jeff Bush
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package waveapp;
+
+import java.io.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.GZIPInputStream;
+
+///
+/// Decompresses a gzip stream on a separate thread, so inflating can
+/// overlap with parsing. Decompressed data is passed to the reader in
+/// fixed size blocks through a small ring of buffers, which are returned
+/// with recycle() once the reader is done with them.
+///
+class GzipBlockReader {
+    /// Number of bytes reserved at the beginning of each block. The reader
+    /// may copy the end of the previous block here so a token that spans
+    /// two blocks is contiguous.
+    static final int HEADROOM = 0x1000;
+
+    private static final int BLOCK_SIZE = 0x40000;
+    private static final int RING_SIZE = 4;
+
+    static class Block {
+        Block(int size) {
+            fData = new byte[size];
+        }
+
+        byte[] fData;
+        int fLength;    // Number of bytes after HEADROOM
+    }
+
+    /// @param compressed Stream of gzip compressed data. It will be read
+    ///    on another thread, and is closed when the end is reached.
+    GzipBlockReader(InputStream compressed) {
+        fCompressedStream = new CountingInputStream(compressed);
+        fFreeBlocks = new ArrayBlockingQueue<Block>(RING_SIZE);
+        fFilledBlocks = new ArrayBlockingQueue<Block>(RING_SIZE + 1);
+        for (int i = 0; i < RING_SIZE; i++)
+            fFreeBlocks.add(new Block(HEADROOM + BLOCK_SIZE));
+
+        fThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                decompress();
+            }
+        }, "gzip decompress");
+        fThread.setDaemon(true);
+        fThread.start();
+    }
+
+    /// Wait for the next block of decompressed data.
+    /// @returns Block, or null if the end of the stream has been reached.
+    Block next() throws IOException {
+        if (fFinished)
+            return null;
+
+        Block block;
+        try {
+            block = fFilledBlocks.take();
+        } catch (InterruptedException exc) {
+            throw new InterruptedIOException();
+        }
+
+        if (block == END_OF_STREAM) {
+            fFinished = true;
+            if (fError != null)
+                throw fError;
+
+            return null;
+        }
+
+        return block;
+    }
+
+    /// Return a block from next so it can be filled again
+    void recycle(Block block) {
+        fFreeBlocks.offer(block);
+    }
+
+    /// @returns Number of compressed bytes that have been read from the
+    ///   underlying stream. This may be called from any thread.
+    long getCompressedBytesRead() {
+        return fCompressedStream.fCount;
+    }
+
+    /// Stop decompressing, if it hasn't finished already.
+    void close() {
+        fThread.interrupt();
+    }
+
+    /// Called on the decompression thread
+    private void decompress() {
+        try {
+            InputStream inflater = new GZIPInputStream(fCompressedStream, 0x10000);
+            try {
+                for (;;) {
+                    Block block = fFreeBlocks.take();
+                    block.fLength = 0;
+                    while (block.fLength < BLOCK_SIZE) {
+                        int got = inflater.read(block.fData, HEADROOM + block.fLength,
+                            BLOCK_SIZE - block.fLength);
+                        if (got < 0)
+                            break;
+
+                        block.fLength += got;
+                    }
+
+                    if (block.fLength > 0)
+                        fFilledBlocks.put(block);
+
+                    if (block.fLength < BLOCK_SIZE)
+                        break;
+                }
+            } finally {
+                inflater.close();
+            }
+        } catch (IOException exc) {
+            fError = exc;
+        } catch (InterruptedException exc) {
+            return;     // Closed, nothing is reading
+        }
+
+        // There is always room for this, because the filled queue is larger
+        // than the number of blocks.
+        fFilledBlocks.offer(END_OF_STREAM);
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int value = super.read();
+            if (value >= 0)
+                fCount++;
+
+            return value;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int got = super.read(buffer, offset, length);
+            if (got > 0)
+                fCount += got;
+
+            return got;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            fCount += skipped;
+            return skipped;
+        }
+
+        volatile long fCount;
+    }
+
+    private static final Block END_OF_STREAM = new Block(0);
+
+    private CountingInputStream fCompressedStream;
+    private ArrayBlockingQueue<Block> fFreeBlocks;
+    private ArrayBlockingQueue<Block> fFilledBlocks;
+    private Thread fThread;
+    private volatile IOException fError;
+    private boolean fFinished;
+}
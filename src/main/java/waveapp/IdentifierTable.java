@@ -0,0 +1,195 @@
+//
+// Copyright 2016 Jeff Bush
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package waveapp;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+///
+/// Maps VCD identifier codes to values. Identifier codes are short strings
+/// of printable ASCII characters (33-126), which this treats as numbers in
+/// bijective base 94, so each code has a unique non-zero key. Codes of up to
+/// three characters, which is what most writers generate, index a flat
+/// array. Longer codes that still fit in a long are stored in an open
+/// addressing hash table. Anything else falls back to a HashMap. Looking up
+/// the current token doesn't allocate.
+///
+class IdentifierTable<T> {
+    private static final int RADIX = 94;
+    private static final int FIRST_CHAR = 33;
+    private static final int LAST_CHAR = 126;
+
+    /// All keys of up to 3 characters are smaller than this.
+    private static final int MAX_FLAT_KEY = RADIX + RADIX * RADIX + RADIX * RADIX * RADIX;
+
+    /// Longest code that is guaranteed to fit in a positive long
+    private static final int MAX_KEY_LENGTH = 9;
+
+    private static final int INITIAL_HASH_SIZE = 64;
+
+    /// @returns Value for the identifier, or null if it isn't in the table
+    T get(String id) {
+        long key = 0;
+        int length = id.length();
+        if (length > MAX_KEY_LENGTH)
+            return fOverflow.get(id);
+
+        for (int i = 0; i < length; i++) {
+            int c = id.charAt(i);
+            if (c < FIRST_CHAR || c > LAST_CHAR)
+                return fOverflow.get(id);
+
+            key = key * RADIX + c - FIRST_CHAR + 1;
+        }
+
+        return getByKey(key);
+    }
+
+    /// Look up the identifier in the current token of a tokenizer.
+    /// @param start Offset into the current token of the first character
+    ///    of the identifier.
+    /// @returns Value for the identifier, or null if it isn't in the table
+    T get(VCDTokenizer tokenizer, int start) {
+        long key = 0;
+        int length = tokenizer.getTokenLength();
+        if (length - start > MAX_KEY_LENGTH)
+            return fOverflow.get(tokenizer.getTokenString(start));
+
+        for (int i = start; i < length; i++) {
+            int c = tokenizer.getTokenChar(i);
+            if (c < FIRST_CHAR || c > LAST_CHAR)
+                return fOverflow.get(tokenizer.getTokenString(start));
+
+            key = key * RADIX + c - FIRST_CHAR + 1;
+        }
+
+        return getByKey(key);
+    }
+
+    void put(String id, T value) {
+        long key = 0;
+        int length = id.length();
+        if (length > MAX_KEY_LENGTH) {
+            putOverflow(id, value);
+            return;
+        }
+
+        for (int i = 0; i < length; i++) {
+            int c = id.charAt(i);
+            if (c < FIRST_CHAR || c > LAST_CHAR) {
+                putOverflow(id, value);
+                return;
+            }
+
+            key = key * RADIX + c - FIRST_CHAR + 1;
+        }
+
+        if (key <= MAX_FLAT_KEY)
+            putFlat((int) key, value);
+        else
+            putHashed(key, value);
+    }
+
+    /// @returns Number of identifiers in the table
+    int size() {
+        return fSize;
+    }
+
+    @SuppressWarnings("unchecked")
+    private T getByKey(long key) {
+        if (key <= MAX_FLAT_KEY)
+            return key < fFlat.length ? (T) fFlat[(int) key] : null;
+
+        if (fHashKeys == null)
+            return null;
+
+        int mask = fHashKeys.length - 1;
+        for (int slot = hash(key) & mask; fHashKeys[slot] != 0; slot = (slot + 1) & mask) {
+            if (fHashKeys[slot] == key)
+                return (T) fHashValues[slot];
+        }
+
+        return null;
+    }
+
+    private void putFlat(int key, T value) {
+        if (key >= fFlat.length) {
+            fFlat = Arrays.copyOf(fFlat, Math.min(Math.max(fFlat.length * 2, key + 1),
+                MAX_FLAT_KEY + 1));
+        }
+
+        if (fFlat[key] == null)
+            fSize++;
+
+        fFlat[key] = value;
+    }
+
+    private void putHashed(long key, T value) {
+        if (fHashKeys == null) {
+            fHashKeys = new long[INITIAL_HASH_SIZE];
+            fHashValues = new Object[INITIAL_HASH_SIZE];
+        } else if (fHashCount * 2 >= fHashKeys.length)
+            rehash(fHashKeys.length * 2);
+
+        int mask = fHashKeys.length - 1;
+        int slot = hash(key) & mask;
+        while (fHashKeys[slot] != 0 && fHashKeys[slot] != key)
+            slot = (slot + 1) & mask;
+
+        if (fHashKeys[slot] == 0) {
+            fHashKeys[slot] = key;
+            fHashCount++;
+            fSize++;
+        }
+
+        fHashValues[slot] = value;
+    }
+
+    private void rehash(int newSize) {
+        long[] oldKeys = fHashKeys;
+        Object[] oldValues = fHashValues;
+        fHashKeys = new long[newSize];
+        fHashValues = new Object[newSize];
+        int mask = newSize - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                int slot = hash(oldKeys[i]) & mask;
+                while (fHashKeys[slot] != 0)
+                    slot = (slot + 1) & mask;
+
+                fHashKeys[slot] = oldKeys[i];
+                fHashValues[slot] = oldValues[i];
+            }
+        }
+    }
+
+    private void putOverflow(String id, T value) {
+        if (fOverflow.put(id, value) == null)
+            fSize++;
+    }
+
+    private static int hash(long key) {
+        return (int) ((key * 0x9e3779b97f4a7c15L) >>> 32);
+    }
+
+    private Object[] fFlat = new Object[RADIX + 1];
+    private long[] fHashKeys;       // 0 marks an empty slot (keys are never 0)
+    private Object[] fHashValues;
+    private int fHashCount;
+    private HashMap<String, T> fOverflow = new HashMap<String, T>();
+    private int fSize;
+}
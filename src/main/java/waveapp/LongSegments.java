@@ -0,0 +1,192 @@
+//
+// Copyright 2016 Jeff Bush
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package waveapp;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+///
+/// A large array of longs, stored as a list of fixed size segments, so it
+/// can grow without copying what has already been written: adding elements
+/// allocates a new segment rather than a larger array. Only the small
+/// directory of segment references is reallocated. So short arrays don't
+/// use a whole segment, the first segment starts small and doubles until it
+/// is full size. Once loading is finished, compact trims the last segment
+/// to the length that is used.
+///
+/// Full size segments are allocated from a TransitionStorage, which may put
+/// them outside the Java heap. Segments that are shorter are always on the
+/// heap, so small arrays don't fragment off-heap space.
+///
+class LongSegments {
+    private static final int MIN_ALLOC = 16;
+
+    /// @param segmentLength Number of elements in each segment
+    LongSegments(int segmentLength, TransitionStorage storage) {
+        assert segmentLength > 0;
+        fSegmentLength = segmentLength;
+        fStorage = storage;
+    }
+
+    LongSegments(int segmentLength) {
+        this(segmentLength, TransitionStorage.HEAP);
+    }
+
+    int getSegmentLength() {
+        return fSegmentLength;
+    }
+
+    /// Direct access to the elements in a segment, for callers that
+    /// access many of them. Element n of the array is element
+    /// n % getSegmentLength() of segment n / getSegmentLength(). This may be
+    /// shorter than the segment length if the end of the array hasn't been
+    /// reserved. Only absolute get and put methods may be used on it.
+    LongBuffer getSegment(int index) {
+        return fSegments[index];
+    }
+
+    long get(long index) {
+        return fSegments[(int) (index / fSegmentLength)].get((int) (index % fSegmentLength));
+    }
+
+    void set(long index, long value) {
+        fSegments[(int) (index / fSegmentLength)].put((int) (index % fSegmentLength), value);
+    }
+
+    /// Make sure elements 0 through length - 1 are allocated. Elements
+    /// that are newly allocated are zero.
+    void reserve(long length) {
+        int segmentCount = (int) ((length + fSegmentLength - 1) / fSegmentLength);
+        if (fSegmentCount > 0) {
+            // The last segment may be short, because it is the first one and
+            // hasn't reached full size yet, or it was compacted.
+            int last = fSegmentCount - 1;
+            int oldLength = fSegments[last].capacity();
+            if (oldLength < fSegmentLength) {
+                long needed = length - (long) last * fSegmentLength;
+                if (needed > oldLength) {
+                    int newLength = fSegmentLength;
+                    if (needed < fSegmentLength) {
+                        newLength = (int) Math.min(fSegmentLength, Math.max(needed,
+                            oldLength * 2L));
+                    }
+
+                    resizeSegment(last, newLength);
+                }
+            }
+        }
+
+        if (segmentCount <= fSegmentCount)
+            return;
+
+        if (segmentCount > fSegments.length) {
+            int newSize = Math.max(segmentCount, fSegments.length * 2);
+            fSegments = Arrays.copyOf(fSegments, newSize);
+            fOffHeapBuffers = Arrays.copyOf(fOffHeapBuffers, newSize);
+        }
+
+        if (fSegmentCount == 0 && segmentCount == 1) {
+            allocateSegment(0, (int) Math.min(fSegmentLength, Math.max(MIN_ALLOC, length)));
+            fSegmentCount = 1;
+        }
+
+        while (fSegmentCount < segmentCount)
+            allocateSegment(fSegmentCount++, fSegmentLength);
+    }
+
+    /// Release memory for elements at or after length. They read as zero
+    /// if they are reserved again.
+    void compact(long length) {
+        int segmentCount = (int) ((length + fSegmentLength - 1) / fSegmentLength);
+        if (segmentCount > fSegmentCount)
+            return;
+
+        for (int i = segmentCount; i < fSegmentCount; i++)
+            releaseSegment(i);
+
+        if (segmentCount > 0) {
+            int last = segmentCount - 1;
+            int lastLength = (int) (length - (long) last * fSegmentLength);
+            if (fSegments[last].capacity() > lastLength)
+                resizeSegment(last, lastLength);
+        }
+
+        if (fSegments.length != segmentCount) {
+            fSegments = Arrays.copyOf(fSegments, segmentCount);
+            fOffHeapBuffers = Arrays.copyOf(fOffHeapBuffers, segmentCount);
+        }
+
+        fSegmentCount = segmentCount;
+    }
+
+    /// @returns Approximate number of bytes used, on and off the heap
+    long getMemoryUsage() {
+        long usage = fSegments.length * 16L;
+        for (int i = 0; i < fSegmentCount; i++)
+            usage += fSegments[i].capacity() * 8L;
+
+        return usage;
+    }
+
+    void clear() {
+        for (int i = 0; i < fSegmentCount; i++)
+            releaseSegment(i);
+
+        fSegments = new LongBuffer[0];
+        fOffHeapBuffers = new ByteBuffer[0];
+        fSegmentCount = 0;
+    }
+
+    private void allocateSegment(int index, int length) {
+        if (length == fSegmentLength && fStorage.isOffHeap()) {
+            ByteBuffer buffer = fStorage.allocate(length * 8);
+            fOffHeapBuffers[index] = buffer;
+            fSegments[index] = buffer.asLongBuffer();
+        } else {
+            fOffHeapBuffers[index] = null;
+            fSegments[index] = LongBuffer.wrap(new long[length]);
+        }
+    }
+
+    /// Copy a segment to a new one with a different length. Elements past
+    /// the end of the old one are zero.
+    private void resizeSegment(int index, int newLength) {
+        LongBuffer oldSegment = fSegments[index];
+        ByteBuffer oldBuffer = fOffHeapBuffers[index];
+        allocateSegment(index, newLength);
+        LongBuffer source = oldSegment.duplicate();
+        source.limit(Math.min(oldSegment.capacity(), newLength));
+        fSegments[index].duplicate().put(source);
+        if (oldBuffer != null)
+            fStorage.release(oldBuffer);
+    }
+
+    private void releaseSegment(int index) {
+        if (fOffHeapBuffers[index] != null)
+            fStorage.release(fOffHeapBuffers[index]);
+
+        fOffHeapBuffers[index] = null;
+        fSegments[index] = null;
+    }
+
+    private int fSegmentLength;
+    private TransitionStorage fStorage;
+    private LongBuffer[] fSegments = new LongBuffer[0];
+    private ByteBuffer[] fOffHeapBuffers = new ByteBuffer[0];  // null for heap segments
+    private int fSegmentCount;
+}
@@ -0,0 +1,86 @@
+//
+// Copyright 2016 Jeff Bush
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package waveapp;
+
+import java.io.IOException;
+
+///
+/// Decompresses data in the LZ4 block format (not the frame format), which
+/// FST files use for hierarchy blocks and value changes.
+///
+class Lz4Decoder {
+    private static final int MIN_MATCH = 4;
+
+    /// Decompress until the source is exhausted or the destination is full.
+    /// @returns Number of bytes written to dest
+    /// @throws IOException if the compressed data is malformed
+    static int decompress(byte[] src, int srcOffset, int srcLength, byte[] dest,
+                          int destOffset, int destLength) throws IOException {
+        int ip = srcOffset;
+        int ipEnd = srcOffset + srcLength;
+        int op = destOffset;
+        int opEnd = destOffset + destLength;
+        try {
+            while (ip < ipEnd && op < opEnd) {
+                int token = src[ip++] & 0xff;
+                int literalLength = token >>> 4;
+                if (literalLength == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xff;
+                        literalLength += b;
+                    } while (b == 255);
+                }
+
+                if (ip + literalLength > ipEnd)
+                    throw new IOException("LZ4 literal past end of input");
+
+                literalLength = Math.min(literalLength, opEnd - op);
+                System.arraycopy(src, ip, dest, op, literalLength);
+                ip += literalLength;
+                op += literalLength;
+                if (ip >= ipEnd || op >= opEnd)
+                    break;  // The last sequence only has literals
+
+                int offset = (src[ip] & 0xff) | ((src[ip + 1] & 0xff) << 8);
+                ip += 2;
+                int match = op - offset;
+                if (offset == 0 || match < destOffset)
+                    throw new IOException("bad LZ4 match offset");
+
+                int matchLength = token & 15;
+                if (matchLength == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xff;
+                        matchLength += b;
+                    } while (b == 255);
+                }
+
+                matchLength = Math.min(matchLength + MIN_MATCH, opEnd - op);
+
+                // The match may overlap the output, which repeats it
+                for (int i = 0; i < matchLength; i++)
+                    dest[op++] = dest[match++];
+            }
+        } catch (ArrayIndexOutOfBoundsException exc) {
+            throw new IOException("truncated LZ4 data");
+        }
+
+        return op - destOffset;
+    }
+}
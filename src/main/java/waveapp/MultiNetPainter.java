@@ -17,15 +17,16 @@
 package waveapp;
 
 import java.awt.*;
-import java.util.*;
 
 ///
 /// Delegate that draws the waveform for a single net that has more than one
 /// bit in it.
 ///
 class MultiNetPainter implements WaveformPainter {
+    private static final int LABEL_SPACING = 256;
+
     @Override
-    public void paint(Graphics g, TraceDataModel model, int netId,
+    public void paint(Graphics g, TransitionCursor cursor,
                       int topOffset, Rectangle visibleRect, double horizontalScale,
                       ValueFormatter formatter) {
         FontMetrics metrics = g.getFontMetrics();
@@ -40,16 +41,32 @@ class MultiNetPainter implements WaveformPainter {
 
         g.setColor(AppPreferences.getInstance().traceColor);
 
-        Iterator<Transition> i = model.findTransition(netId, firstTimestamp);
+        cursor.seek(firstTimestamp);
+        if (cursor.getTransitionCount() == 0)
+            return;
+
+        boolean isReal = cursor.isReal();
+        ActivityPyramid pyramid = cursor.getActivityPyramid();
+        int level = pyramid == null ? -1 : pyramid.getLevel(1 / horizontalScale);
+
         while (true) {
             // Draw the segment to the left of this transition
-            Transition transition = i.next();
-
-            boolean isZ = transition.isZ();
-            boolean isX = !isZ && transition.isX();
+            cursor.getValue(fValue);
+
+            // A real value that is NaN (for example, converted from a
+            // value with X bits) is drawn as X.
+            boolean isZ;
+            boolean isX;
+            if (isReal) {
+                isZ = false;
+                isX = Double.isNaN(cursor.getRealValue());
+            } else {
+                isZ = fValue.isZ();
+                isX = !isZ && fValue.isX();
+            }
 
             // Compute the boundaries of this segment
-            int x = (int)(transition.getTimestamp() * horizontalScale);
+            int x = (int)(cursor.getTimestamp() * horizontalScale);
 
             // Draw transition
             if (x - lastX > DrawMetrics.WAVEFORM_TRANSITION_WIDTH * 2) {
@@ -103,9 +120,8 @@ class MultiNetPainter implements WaveformPainter {
                     DrawMetrics.WAVEFORM_TRANSITION_WIDTH * 2, DrawMetrics.WAVEFORM_HEIGHT);
             }
 
-            drawSpan(g, Math.max(visibleRect.x, lastX + DrawMetrics.WAVEFORM_TRANSITION_WIDTH),
-                     Math.min(visibleRect.x + visibleRect.width, x
-                         - DrawMetrics.WAVEFORM_TRANSITION_WIDTH),
+            drawSpan(g, lastX + DrawMetrics.WAVEFORM_TRANSITION_WIDTH,
+                     x - DrawMetrics.WAVEFORM_TRANSITION_WIDTH, visibleRect,
                      topOffset, previousValue, lastValueWasZ, lastValueWasX, fontBaseline,
                      metrics);
 
@@ -114,53 +130,97 @@ class MultiNetPainter implements WaveformPainter {
             if (x > visibleRect.x + visibleRect.width)
                 break;
 
-            previousValue = formatter.format(transition);
+            previousValue = formatter.format(fValue);
             lastValueWasZ = isZ;
             lastValueWasX = isX;
             lastX = x;
-            if (!i.hasNext()) {
+
+            // When zoomed out, many transitions land in the same pixel
+            // column. Draw them as one squished value, then continue from
+            // the last one, which has the value after the column.
+            int first = cursor.getIndex();
+            if (cursor.skipColumn((long) Math.ceil((x + 1) / horizontalScale), level)) {
+                if (cursor.hasXOrZ(first, level))
+                    g.setColor(AppPreferences.getInstance().conflictColor);
+
+                g.fillRect(x - DrawMetrics.WAVEFORM_TRANSITION_WIDTH, topOffset,
+                    DrawMetrics.WAVEFORM_TRANSITION_WIDTH * 2, DrawMetrics.WAVEFORM_HEIGHT);
+                g.setColor(AppPreferences.getInstance().traceColor);
+                continue;
+            }
+
+            if (!cursor.next()) {
                 // End of the trace.  Draw remaining span running off to the right...
-                drawSpan(g, Math.max(visibleRect.x,lastX + DrawMetrics.WAVEFORM_TRANSITION_WIDTH),
-                         visibleRect.x + visibleRect.width, topOffset, previousValue,
-                         lastValueWasZ, lastValueWasX, fontBaseline, metrics);
+                drawSpan(g, lastX + DrawMetrics.WAVEFORM_TRANSITION_WIDTH, Integer.MAX_VALUE,
+                         visibleRect, topOffset, previousValue, lastValueWasZ, lastValueWasX,
+                         fontBaseline, metrics);
                 break;
             }
         }
     }
 
-    private void drawSpan(Graphics g, int left, int right, int top, String label,
-                          boolean isZ, boolean isX, int fontBaseline, FontMetrics metrics) {
-        if (right <= left)
+    /// Draw the segment of a value between two transitions.
+    /// The label is placed using only the bounds of the segment, never
+    /// those of the visible rectangle, so a segment drawn in separate
+    /// pieces (for example, by WaveformPanel's tiles) looks the same as one
+    /// drawn at once. Long segments have a copy of the label every
+    /// LABEL_SPACING pixels or more, so it can be seen wherever the view is
+    /// scrolled.
+    /// @param left Left edge of the segment
+    /// @param right Right edge of the segment, or Integer.MAX_VALUE if it
+    ///   runs off the end of the trace
+    private void drawSpan(Graphics g, int left, int right, Rectangle visibleRect, int top,
+                          String label, boolean isZ, boolean isX, int fontBaseline,
+                          FontMetrics metrics) {
+        int visibleLeft = Math.max(left, visibleRect.x);
+        int visibleRight = Math.min(right, visibleRect.x + visibleRect.width);
+        if (visibleRight <= visibleLeft)
             return; // You'll end up with single pixel boogers in some cases otherwise
 
         if (isZ)
-            g.drawLine(left, top + DrawMetrics.WAVEFORM_HEIGHT / 2, right, top
+            g.drawLine(visibleLeft, top + DrawMetrics.WAVEFORM_HEIGHT / 2, visibleRight, top
                 + DrawMetrics.WAVEFORM_HEIGHT / 2);
         else {
             if (isX) {
                 g.setColor(AppPreferences.getInstance().conflictColor);
-                g.fillRect(left, top, right - left, DrawMetrics.WAVEFORM_HEIGHT);
+                g.fillRect(visibleLeft, top, visibleRight - visibleLeft,
+                    DrawMetrics.WAVEFORM_HEIGHT);
                 g.setColor(AppPreferences.getInstance().traceColor);
             }
 
-            g.drawLine(left, top, right, top);
-            g.drawLine(left, top + DrawMetrics.WAVEFORM_HEIGHT, right, top
+            g.drawLine(visibleLeft, top, visibleRight, top);
+            g.drawLine(visibleLeft, top + DrawMetrics.WAVEFORM_HEIGHT, visibleRight, top
                 + DrawMetrics.WAVEFORM_HEIGHT);
 
             // Draw text label with values
             int stringWidth = metrics.stringWidth(label);
-            int visibleWidth = right - left;
-            if (stringWidth < visibleWidth) {
+            int spacing = LABEL_SPACING;
+            while (spacing < stringWidth * 2)
+                spacing *= 2;
+
+            long width = (long) right - left;
+            if (width >= spacing * 2) {
+                // Draw a copy centered in each interval of the label grid that
+                // is inside the segment and overlaps the visible rectangle.
+                int first = Math.max(left, visibleRect.x - spacing);
+                long center = first - Math.floorMod(first, spacing) + spacing / 2;
+                long last = Math.min(right, (long) visibleRect.x + visibleRect.width + spacing);
+                for (; center <= last; center += spacing) {
+                    int fontX = (int) center - stringWidth / 2;
+                    if (fontX >= left && fontX + stringWidth <= right)
+                        g.drawString(label, fontX, fontBaseline);
+                }
+            } else if (stringWidth < width) {
                 // Fits, draw it.
-                int fontX = (visibleWidth - stringWidth) / 2 + left;
+                int fontX = (int)(width - stringWidth) / 2 + left;
                 g.drawString(label, fontX, fontBaseline);
             } else {
                 // Try to squeeze in an ellipsis
                 String ellipsis = "\u2026";
                 stringWidth = metrics.stringWidth(ellipsis);
-                if (stringWidth < visibleWidth) {
+                if (stringWidth < width) {
                     // At least this fits
-                    int fontX = (visibleWidth - stringWidth) / 2 + left;
+                    int fontX = (int)(width - stringWidth) / 2 + left;
                     g.drawString("\u2026", fontX, fontBaseline);
                 }
 
@@ -171,4 +231,5 @@ class MultiNetPainter implements WaveformPainter {
 
     private int[] fPolygonXPoints = new int[3];
     private int[] fPolygonYPoints = new int[3];
+    private BitVector fValue = new BitVector();   // Reused for each transition
 }
@@ -0,0 +1,37 @@
+//
+// Copyright 2016 Jeff Bush
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package waveapp;
+
+import java.io.IOException;
+
+///
+/// Reads transitions for individual nets after a trace has been loaded
+/// without them (see TraceBuilder.setNetDataSource). The model calls this
+/// the first time it needs the transitions for a net, and may call it again
+/// for the same net if it has discarded them to save memory.
+///
+public interface NetDataSource {
+    /// @returns Timestamp of the last transition in the trace
+    public long getMaxTimestamp();
+
+    /// Append all transitions for a set of nets to a sink. Transitions for
+    /// other nets are not appended.
+    /// @param netIds Values returned from TraceBuilder.newNet when the trace
+    ///    was loaded. Clones are loaded along with the net they share data with.
+    public void loadNets(int[] netIds, TransitionSink sink)
+        throws TraceLoader.LoadException, IOException;
+}
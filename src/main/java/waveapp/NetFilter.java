@@ -0,0 +1,95 @@
+//
+// Copyright 2016 Jeff Bush
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package waveapp;
+
+import java.util.ArrayList;
+import java.util.regex.Pattern;
+
+///
+/// Decides which nets a loader should read transitions for, based on their
+/// full dotted names (e.g. top.cpu.alu.result). Patterns are globs: '*'
+/// matches any sequence of characters, including dots, and '?' matches
+/// a single character. A net is accepted if it matches at least one include
+/// pattern (or there are none) and doesn't match any exclude pattern.
+///
+public class NetFilter {
+    /// @param includePatterns Whitespace separated globs. If this is empty,
+    ///   all nets are included unless they are excluded.
+    /// @param excludePatterns Whitespace separated globs.
+    public NetFilter(String includePatterns, String excludePatterns) {
+        fInclude = compilePatterns(includePatterns);
+        fExclude = compilePatterns(excludePatterns);
+    }
+
+    /// @returns true if this filter doesn't exclude anything
+    public boolean isEmpty() {
+        return fInclude.length == 0 && fExclude.length == 0;
+    }
+
+    /// @param fullName Dotted name of the net, including all containing scopes
+    /// @returns true if transitions for this net should be loaded
+    public boolean accept(String fullName) {
+        if (fInclude.length > 0 && !matchesAny(fInclude, fullName))
+            return false;
+
+        return !matchesAny(fExclude, fullName);
+    }
+
+    private static boolean matchesAny(Pattern[] patterns, String name) {
+        for (Pattern pattern : patterns) {
+            if (pattern.matcher(name).matches())
+                return true;
+        }
+
+        return false;
+    }
+
+    private static Pattern[] compilePatterns(String globs) {
+        ArrayList<Pattern> patterns = new ArrayList<Pattern>();
+        if (globs != null) {
+            for (String glob : globs.trim().split("\\s+")) {
+                if (!glob.isEmpty())
+                    patterns.add(globToPattern(glob));
+            }
+        }
+
+        return patterns.toArray(new Pattern[patterns.size()]);
+    }
+
+    private static Pattern globToPattern(String glob) {
+        StringBuffer regex = new StringBuffer();
+        int literalStart = 0;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*' || c == '?') {
+                if (i > literalStart)
+                    regex.append(Pattern.quote(glob.substring(literalStart, i)));
+
+                regex.append(c == '*' ? ".*" : ".");
+                literalStart = i + 1;
+            }
+        }
+
+        if (literalStart < glob.length())
+            regex.append(Pattern.quote(glob.substring(literalStart)));
+
+        return Pattern.compile(regex.toString());
+    }
+
+    private Pattern[] fInclude;
+    private Pattern[] fExclude;
+}
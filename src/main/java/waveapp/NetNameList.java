@@ -27,7 +27,7 @@ import java.awt.datatransfer.*;
 /// Displays names of nets next to waveforms, along with value at cursor
 ///
 class NetNameList extends JList<Integer> implements TraceDisplayModel.Listener,
-    ActionListener {
+    TraceDataModel.Listener, ActionListener {
 
     class NetNameRenderer extends JPanel implements ListCellRenderer<Integer> {
         private int fCurrentNet;
@@ -36,6 +36,7 @@ class NetNameList extends JList<Integer> implements TraceDisplayModel.Listener,
         private int fValueBaseline;
         private Font fLabelFont = new Font("SansSerif", Font.BOLD, 10);
         private Font fValueFont = new Font("SansSerif", Font.PLAIN, 8);
+        private BitVector fValue = new BitVector();   // Reused for each net
 
         NetNameRenderer() {
             setOpaque(true);
@@ -95,9 +96,15 @@ class NetNameList extends JList<Integer> implements TraceDisplayModel.Listener,
                        : prefs.valueColor);
             g.setFont(fValueFont);
 
-            Transition t = fTraceDataModel.findTransition(netId,
-                           fTraceDisplayModel.getCursorPosition()).next();
-            g.drawString(fTraceDisplayModel.getValueFormatter(fCurrentNet).format(t),
+            // The value is shown once the net has been read (see
+            // NetNameList.paintComponent)
+            if (!fTraceDataModel.isNetPopulated(netId))
+                return;
+
+            TransitionCursor cursor = fCursors.get(netId);
+            cursor.seek(fTraceDisplayModel.getCursorPosition());
+            cursor.getValue(fValue);
+            g.drawString(fTraceDisplayModel.getValueFormatter(fCurrentNet).format(fValue),
                          1, fValueBaseline);
         }
 
@@ -203,8 +210,11 @@ class NetNameList extends JList<Integer> implements TraceDisplayModel.Listener,
             } else {
                 // Drag from another window (for example, net tree)
                 String[] values = data.split("\n");
-                for (String value : values)
-                    fTraceDisplayModel.makeNetVisible(insertionPoint++, fTraceDataModel.findNet(value));
+                for (String value : values) {
+                    int netId = fTraceDataModel.findNet(value);
+                    fTraceDisplayModel.makeNetVisible(insertionPoint++, netId,
+                        fTraceDataModel.isNetReal(netId) ? new RealValueFormatter() : null);
+                }
             }
 
             // @todo Deal with selection changes.  Should probably just clear the selection.
@@ -219,7 +229,9 @@ class NetNameList extends JList<Integer> implements TraceDisplayModel.Listener,
     NetNameList(TraceDisplayModel displayModel, TraceDataModel dataModel) {
         fTraceDisplayModel = displayModel;
         fTraceDataModel = dataModel;
+        fCursors = new TransitionCursorCache(dataModel);
         displayModel.addListener(this);
+        dataModel.addListener(this);
         setModel(new ListModelAdapter());
         setCellRenderer(new NetNameRenderer());
         computeBounds();
@@ -246,6 +258,9 @@ class NetNameList extends JList<Integer> implements TraceDisplayModel.Listener,
         subItem = new JMenuItem("ASCII");
         subItem.addActionListener(this);
         item.add(subItem);
+        subItem = new JMenuItem("Real");
+        subItem.addActionListener(this);
+        item.add(subItem);
         subItem = new JMenuItem("Enum");
         subItem.addActionListener(this);
         item.add(subItem);
@@ -290,12 +305,52 @@ class NetNameList extends JList<Integer> implements TraceDisplayModel.Listener,
         computeBounds();
     }
 
+    /// Request all visible nets that haven't been read yet at once, rather
+    /// than as each row is drawn, so they are read in one pass.
+    @Override
+    protected void paintComponent(Graphics g) {
+        int first = getFirstVisibleIndex();
+        int last = getLastVisibleIndex();
+        if (first >= 0) {
+            int[] missingNets = new int[last - first + 1];
+            int missingCount = 0;
+            for (int i = first; i <= last; i++) {
+                int netId = fTraceDisplayModel.getVisibleNet(i);
+                if (!fTraceDataModel.isNetPopulated(netId))
+                    missingNets[missingCount++] = netId;
+            }
+
+            if (missingCount > 0)
+                fTraceDataModel.requestNets(Arrays.copyOf(missingNets, missingCount));
+        }
+
+        super.paintComponent(g);
+    }
+
     @Override
     public void markerChanged(long timestamp) {}
 
     @Override
     public void cursorChanged(long oldTimestamp, long newTimestamp) {
-        repaint();
+        // This is called for every mouse event while the cursor is dragged.
+        // Only repaint nets whose value at the cursor changed.
+        if (oldTimestamp == newTimestamp)
+            return;
+
+        int first = getFirstVisibleIndex();
+        int last = getLastVisibleIndex();
+        if (first < 0)
+            return;
+
+        for (int i = first; i <= last; i++) {
+            int netId = fTraceDisplayModel.getVisibleNet(i);
+            if (!fTraceDataModel.isNetPopulated(netId))
+                continue;   // Repainted when it is read (see netsLoaded)
+
+            TransitionCursor cursor = fCursors.get(netId);
+            if (cursor.seek(oldTimestamp) != cursor.seek(newTimestamp))
+                repaint(getCellBounds(i, i));
+        }
     }
 
     @Override
@@ -303,6 +358,18 @@ class NetNameList extends JList<Integer> implements TraceDisplayModel.Listener,
         repaint();
     }
 
+    @Override
+    public void dataAppended(long oldMaxTimestamp, long newMaxTimestamp) {
+        // Values at the cursor may have changed
+        if (fTraceDisplayModel.getCursorPosition() > oldMaxTimestamp)
+            repaint();
+    }
+
+    @Override
+    public void netsLoaded() {
+        repaint();
+    }
+
     @Override
     public void actionPerformed(ActionEvent e) {
         int[] indices = getSelectedIndices();
@@ -337,6 +404,8 @@ class NetNameList extends JList<Integer> implements TraceDisplayModel.Listener,
                     formatter = new DecimalValueFormatter();
                 else if (e.getActionCommand().equals("ASCII"))
                     formatter = new ASCIIValueFormatter();
+                else if (e.getActionCommand().equals("Real"))
+                    formatter = new RealValueFormatter();
 
                 if (formatter != null) {
                     for (int i = 0; i < indices.length; i++)
@@ -348,5 +417,6 @@ class NetNameList extends JList<Integer> implements TraceDisplayModel.Listener,
 
     private TraceDisplayModel fTraceDisplayModel;
     private TraceDataModel fTraceDataModel;
+    private TransitionCursorCache fCursors;
     private JPopupMenu fPopupMenu;
 }
@@ -135,9 +135,15 @@ class NetSearchPanel extends JPanel {
                 expanded, leaf, row,
                 hasFocus);
 
-            if (node.isLeaf())
+            if (node.isLeaf()) {
                 setIcon(fNetIcon);
-            else
+                int netId = fTraceDataModel.getNetFromTreeObject(node);
+                if (!fTraceDataModel.isNetLoaded(netId)) {
+                    // Filtered out when the trace was loaded
+                    setText(getText() + " (not loaded)");
+                    setForeground(Color.GRAY);
+                }
+            } else
                 setIcon(fModuleIcon);
 
             return this;
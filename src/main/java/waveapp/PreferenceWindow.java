@@ -26,6 +26,11 @@ import java.awt.datatransfer.*;
 import javax.swing.text.*;
 
 class PreferenceWindow extends JDialog {
+    private static final String[] STORAGE_LABELS = {
+        "Java heap", "Off-heap memory", "Memory mapped file"
+    };
+    private static final String[] STORAGE_VALUES = { "heap", "direct", "mapped" };
+
     PreferenceWindow(JFrame parent) {
         super(parent, "Preferences", true);
 
@@ -35,7 +40,7 @@ class PreferenceWindow extends JDialog {
         contentPane.setLayout(new BorderLayout());
 
         JPanel bodyArea = new JPanel();
-        bodyArea.setLayout(new GridLayout(10, 1));
+        bodyArea.setLayout(new GridLayout(13, 1));
         AppPreferences prefs = AppPreferences.getInstance();
         fTraceColorButton = new ColorButton("Trace", prefs.traceColor);
         bodyArea.add(fTraceColorButton);
@@ -59,6 +64,25 @@ class PreferenceWindow extends JDialog {
         bodyArea.add(fListSelectionFgColorButton);
         fValueColorButton = new ColorButton("Value", prefs.valueColor);
         bodyArea.add(fValueColorButton);
+        fOnDemandCheckBox = new JCheckBox("Load nets on demand",
+            prefs.getLoadNetsOnDemand());
+        bodyArea.add(fOnDemandCheckBox);
+        JPanel cacheSizePanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        cacheSizePanel.add(new JLabel("Net cache size (MB)"));
+        fNetCacheSizeSpinner = new JSpinner(new SpinnerNumberModel(
+            prefs.getNetCacheSize(), 16, 65536, 16));
+        cacheSizePanel.add(fNetCacheSizeSpinner);
+        bodyArea.add(cacheSizePanel);
+        JPanel storagePanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        storagePanel.add(new JLabel("Transition storage"));
+        fStorageComboBox = new JComboBox<String>(STORAGE_LABELS);
+        for (int i = 0; i < STORAGE_VALUES.length; i++) {
+            if (STORAGE_VALUES[i].equals(prefs.getTransitionStorage()))
+                fStorageComboBox.setSelectedIndex(i);
+        }
+
+        storagePanel.add(fStorageComboBox);
+        bodyArea.add(storagePanel);
         contentPane.add(bodyArea, BorderLayout.CENTER);
 
         Container okCancelContainer = new Container();
@@ -104,6 +128,9 @@ class PreferenceWindow extends JDialog {
         prefs.listSelectionFgColor = fListSelectionFgColorButton.getColor();
         prefs.valueColor = fValueColorButton.getColor();
         prefs.writeColors();
+        prefs.setLoadNetsOnDemand(fOnDemandCheckBox.isSelected());
+        prefs.setNetCacheSize((Integer) fNetCacheSizeSpinner.getValue());
+        prefs.setTransitionStorage(STORAGE_VALUES[fStorageComboBox.getSelectedIndex()]);
         dispose();
     }
 
@@ -117,4 +144,7 @@ class PreferenceWindow extends JDialog {
     private ColorButton fListSelectionBgColorButton;
     private ColorButton fListSelectionFgColorButton;
     private ColorButton fValueColorButton;
+    private JCheckBox fOnDemandCheckBox;
+    private JSpinner fNetCacheSizeSpinner;
+    private JComboBox<String> fStorageComboBox;
 }
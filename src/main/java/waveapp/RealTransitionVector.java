@@ -0,0 +1,191 @@
+//
+// Copyright 2016 Jeff Bush
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package waveapp;
+
+import java.nio.LongBuffer;
+import java.util.*;
+
+///
+/// Transitions of a net with real values, for example a VCD $var real.
+/// Values are stored as the raw bits of doubles, parallel to the timestamps,
+/// rather than in bit planes. Transitions returned by the iterator have
+/// isReal set, and their bits are the IEEE 754 representation of the
+/// value, so bitwise formatters and comparisons still work.
+///
+public class RealTransitionVector extends TransitionVector {
+    public static final int WIDTH = 64;
+    private static final int SEGMENT_SHIFT = 12;
+
+    public RealTransitionVector() {
+        this(TransitionStorage.HEAP);
+    }
+
+    public RealTransitionVector(TransitionStorage storage) {
+        super(WIDTH, storage, false);
+        fRealValues = newRealValueBits();
+    }
+
+    @Override
+    public Iterator<Transition> findTransition(long timestamp) {
+        return new RealTransitionIterator(findIndex(timestamp));
+    }
+
+    @Override
+    public boolean isReal() {
+        return true;
+    }
+
+    private class RealTransitionIterator implements Iterator<Transition> {
+        RealTransitionIterator(int index) {
+            fNextIndex = index;
+            fTransition.setWidth(WIDTH);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return fNextIndex < getTransitionCount();
+        }
+
+        /// @note the Transition returned from next will be clobbered
+        /// if next() is called again.
+        @Override
+        public Transition next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+
+            fTransition.setRealValue(getRealValue(fNextIndex));
+            fTransition.setTimestamp(fTimestampReader.get(fNextIndex));
+            fNextIndex++;
+
+            return fTransition;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private int fNextIndex;
+        private Transition fTransition = new Transition();
+        private TimestampVector.Reader fTimestampReader = getTimestamps().new Reader();
+    }
+
+    /// Called while the waveform is being loaded. The timestamp must be
+    /// after the last transition that was appended.
+    public void appendRealTransition(long timestamp, double value) {
+        int index = getTransitionCount();
+        fRealValues.reserve(index + 1);
+        LongBuffer segment = fRealValues.getSegment(index >>> SEGMENT_SHIFT);
+        segment.put(index & ((1 << SEGMENT_SHIFT) - 1), Double.doubleToRawLongBits(value));
+        appendTimestamp(timestamp);
+    }
+
+    /// The value is copied as its IEEE 754 representation, like the bits
+    /// of the Transitions returned by the iterator.
+    @Override
+    void copyValue(int index, BitVector values) {
+        Transition.setRealBits(values, getRealValue(index));
+    }
+
+    /// Values with X or Z bits are stored as NaN
+    @Override
+    boolean isXOrZ(int index) {
+        return Double.isNaN(getRealValue(index));
+    }
+
+    double getRealValue(int index) {
+        LongBuffer segment = fRealValues.getSegment(index >>> SEGMENT_SHIFT);
+        return Double.longBitsToDouble(segment.get(index & ((1 << SEGMENT_SHIFT) - 1)));
+    }
+
+    /// Bit values are interpreted as an IEEE 754 double. A value with
+    /// X or Z bits is stored as NaN.
+    @Override
+    public void appendTransition(long timestamp, BitVector values) {
+        long rawBits = 0;
+        int width = Math.min(values.getWidth(), WIDTH);
+        for (int i = 0; i < width; i++) {
+            int bit = values.getBit(i);
+            if (bit != BitVector.VALUE_0 && bit != BitVector.VALUE_1) {
+                appendRealTransition(timestamp, Double.NaN);
+                return;
+            }
+
+            rawBits |= (long) bit << i;
+        }
+
+        appendRealTransition(timestamp, Double.longBitsToDouble(rawBits));
+    }
+
+    @Override
+    public void appendTransition(long timestamp, int[] words, int offset, int width) {
+        long rawBits = 0;
+        width = Math.min(width, WIDTH);
+        for (int i = 0; i < width; i++) {
+            int bit = (words[offset + (i >> 4)] >> ((i & 15) * 2)) & 3;
+            if (bit != BitVector.VALUE_0 && bit != BitVector.VALUE_1) {
+                appendRealTransition(timestamp, Double.NaN);
+                return;
+            }
+
+            rawBits |= (long) bit << i;
+        }
+
+        appendRealTransition(timestamp, Double.longBitsToDouble(rawBits));
+    }
+
+    /// Transition data, for serializing it, along with getTimestamps. Only
+    /// the first getTransitionCount() values are valid.
+    /// @returns Raw IEEE 754 bits of each value (see
+    ///   Double.doubleToRawLongBits)
+    LongSegments getRealValueBits() {
+        return fRealValues;
+    }
+
+    /// @returns An empty array to pass to setRealTransitions
+    LongSegments newRealValueBits() {
+        return new LongSegments(1 << SEGMENT_SHIFT, getStorage());
+    }
+
+    /// Replace the contents of this vector with transition data that was
+    /// deserialized. This takes ownership of it.
+    /// @param valueBits Created by newRealValueBits, in the same format as
+    ///    getRealValueBits.
+    void setRealTransitions(TimestampVector timestamps, LongSegments valueBits) {
+        setTransitions(timestamps, null, null);
+        fRealValues = valueBits;
+    }
+
+    @Override
+    public long getMemoryUsage() {
+        return super.getMemoryUsage() + fRealValues.getMemoryUsage();
+    }
+
+    @Override
+    public void clear() {
+        super.clear();
+        fRealValues.clear();
+    }
+
+    @Override
+    public void compact() {
+        super.compact();
+        fRealValues.compact(getTransitionCount());
+    }
+
+    private LongSegments fRealValues;
+}
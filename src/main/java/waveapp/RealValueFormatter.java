@@ -0,0 +1,49 @@
+//
+// Copyright 2016 Jeff Bush
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package waveapp;
+
+///
+/// Displays values of real nets (see TraceBuilder.newRealNet). Other values
+/// are interpreted as IEEE 754 double precision numbers.
+///
+
+public class RealValueFormatter implements ValueFormatter {
+    @Override
+    public String format(BitVector bits) {
+        if (bits instanceof Transition && ((Transition) bits).isReal())
+            return formatReal(((Transition) bits).getRealValue());
+
+        long rawBits = 0;
+        int width = Math.min(bits.getWidth(), 64);
+        for (int i = 0; i < width; i++) {
+            int bit = bits.getBit(i);
+            if (bit == BitVector.VALUE_X || bit == BitVector.VALUE_Z)
+                return bits.isZ() ? "Z" : "X";
+
+            rawBits |= (long) bit << i;
+        }
+
+        return formatReal(Double.longBitsToDouble(rawBits));
+    }
+
+    static String formatReal(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15)
+            return Long.toString((long) value);
+
+        return Double.toString(value);
+    }
+}
@@ -0,0 +1,240 @@
+//
+// Copyright 2016 Jeff Bush
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package waveapp;
+
+import java.nio.LongBuffer;
+import java.util.*;
+
+///
+/// Transitions of a net that is one bit wide. Most nets in a design are, so
+/// this avoids the generic bit plane machinery. As long as every transition
+/// toggles between 0 and 1, only the timestamps are stored: the value of
+/// transition n is the first value, inverted if n is odd. When a value
+/// doesn't fit that pattern (X, Z, or the same value twice), it switches to
+/// storing a two bit state (BitVector.VALUE_x) for each transition.
+///
+/// copyValue only writes a single word of each plane, so reading these
+/// with a TransitionCursor is nearly as cheap as reading the states
+/// directly with getValue.
+///
+public class ScalarTransitionVector extends TransitionVector {
+    private static final int STATES_PER_WORD = 32;
+    private static final int STATES_SEGMENT_SHIFT = 12;
+    private static final int STATES_SEGMENT_WORDS = (1 << STATES_SEGMENT_SHIFT)
+        / STATES_PER_WORD;
+
+    public ScalarTransitionVector() {
+        this(TransitionStorage.HEAP);
+    }
+
+    public ScalarTransitionVector(TransitionStorage storage) {
+        super(1, storage, false);
+    }
+
+    @Override
+    public Iterator<Transition> findTransition(long timestamp) {
+        return new ScalarTransitionIterator(findIndex(timestamp));
+    }
+
+    /// @returns One of BitVector.VALUE_0, VALUE_1, VALUE_X, VALUE_Z
+    int getValue(int index) {
+        if (fStates == null)
+            return fFirstValue ^ (index & 1);
+
+        LongBuffer segment = fStates.getSegment(index >>> STATES_SEGMENT_SHIFT);
+        long word = segment.get((index / STATES_PER_WORD) % STATES_SEGMENT_WORDS);
+        return (int) (word >>> ((index % STATES_PER_WORD) * 2)) & 3;
+    }
+
+    /// @returns true if values are only stored implicitly, because each
+    ///   transition toggles the net.
+    boolean isToggleOnly() {
+        return fStates == null;
+    }
+
+    private class ScalarTransitionIterator implements Iterator<Transition> {
+        ScalarTransitionIterator(int index) {
+            fNextIndex = index;
+            fTransition.setWidth(1);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return fNextIndex < getTransitionCount();
+        }
+
+        /// @note the Transition returned from next will be clobbered
+        /// if next() is called again.
+        @Override
+        public Transition next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+
+            copyValue(fNextIndex, fTransition);
+            fTransition.setTimestamp(fTimestampReader.get(fNextIndex));
+            fNextIndex++;
+
+            return fTransition;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private int fNextIndex;
+        private Transition fTransition = new Transition();
+        private TimestampVector.Reader fTimestampReader = getTimestamps().new Reader();
+    }
+
+    @Override
+    void copyValue(int index, BitVector values) {
+        int value = getValue(index);
+        values.getValueWords()[0] = value & 1;
+        values.getMaskWords()[0] = value >> 1;
+    }
+
+    @Override
+    boolean isXOrZ(int index) {
+        return fStates != null && getValue(index) >= BitVector.VALUE_X;
+    }
+
+    /// Called while the waveform is being loaded. The timestamp must be
+    /// after the last transition that was appended.
+    /// @param value One of BitVector.VALUE_0, VALUE_1, VALUE_X, VALUE_Z
+    public void appendTransition(long timestamp, int value) {
+        setValue(getTransitionCount(), value);
+        appendTimestamp(timestamp);
+    }
+
+    /// Set the value of the transition after the last one that has a value
+    private void setValue(int index, int value) {
+        if (fStates == null) {
+            if (index == 0 && value <= BitVector.VALUE_1)
+                fFirstValue = value;
+            else if (value != (fFirstValue ^ (index & 1)))
+                convertToStates(index);
+        }
+
+        if (fStates != null)
+            setState(index, value);
+    }
+
+    /// Only the lowest bit of the value is used.
+    @Override
+    public void appendTransition(long timestamp, BitVector values) {
+        appendTransition(timestamp, values.getBit(0));
+    }
+
+    @Override
+    public void appendTransition(long timestamp, int[] words, int offset, int width) {
+        appendTransition(timestamp, words[offset] & 3);
+    }
+
+    /// The bit planes are built on request, since they are only used to
+    /// serialize the vector (see TraceCacheFile).
+    @Override
+    LongSegments getValuePlane() {
+        int count = getTransitionCount();
+        LongSegments plane = newPlane();
+        plane.reserve(planeWords(count, 1));
+        for (int i = 0; i < count; i++) {
+            if ((getValue(i) & 1) != 0)
+                plane.set(i >> 6, plane.get(i >> 6) | (1L << i));
+        }
+
+        return plane;
+    }
+
+    @Override
+    LongSegments getMaskPlane() {
+        if (fStates == null)
+            return null;
+
+        int count = getTransitionCount();
+        LongSegments plane = newPlane();
+        plane.reserve(planeWords(count, 1));
+        for (int i = 0; i < count; i++) {
+            if ((getValue(i) & 2) != 0)
+                plane.set(i >> 6, plane.get(i >> 6) | (1L << i));
+        }
+
+        return plane;
+    }
+
+    @Override
+    void setTransitions(TimestampVector timestamps, LongSegments valuePlane,
+                        LongSegments maskPlane) {
+        clear();
+        super.setTransitions(timestamps, null, null);
+        int count = timestamps.size();
+        for (int i = 0; i < count; i++) {
+            int value = (int) (valuePlane.get(i >> 6) >>> i) & 1;
+            if (maskPlane != null)
+                value |= (int) ((maskPlane.get(i >> 6) >>> i) & 1) << 1;
+
+            setValue(i, value);
+        }
+
+        compact();
+    }
+
+    @Override
+    public long getMemoryUsage() {
+        long usage = super.getMemoryUsage();
+        if (fStates != null)
+            usage += fStates.getMemoryUsage();
+
+        return usage;
+    }
+
+    @Override
+    public void clear() {
+        super.clear();
+        fStates = null;
+        fFirstValue = 0;
+    }
+
+    @Override
+    public void compact() {
+        super.compact();
+        if (fStates != null)
+            fStates.compact((getTransitionCount() + STATES_PER_WORD - 1) / STATES_PER_WORD);
+    }
+
+    /// Called the first time a value is appended that isn't the inverse of
+    /// the previous one.
+    /// @param count Number of transitions that already have values
+    private void convertToStates(int count) {
+        fStates = new LongSegments(STATES_SEGMENT_WORDS, getStorage());
+        for (int i = 0; i < count; i++)
+            setState(i, fFirstValue ^ (i & 1));
+    }
+
+    /// Set the state of a transition, which must currently be zero.
+    private void setState(int index, int value) {
+        fStates.reserve(index / STATES_PER_WORD + 1);
+        LongBuffer segment = fStates.getSegment(index >>> STATES_SEGMENT_SHIFT);
+        int word = (index / STATES_PER_WORD) % STATES_SEGMENT_WORDS;
+        segment.put(word, segment.get(word)
+            | ((long) value << ((index % STATES_PER_WORD) * 2)));
+    }
+
+    // Two bits for each transition, or null if every transition toggles.
+    private LongSegments fStates;
+    private int fFirstValue;
+}
@@ -35,6 +35,17 @@ public class Search {
         match(Lexer.TOK_END);
     }
 
+    /// @returns Nets the expression reads. When transitions are read on
+    ///   demand, these must be populated before searching (see
+    ///   TraceDataModel.requestNets).
+    public int[] getNetIds() {
+        int[] netIds = new int[fNetIds.size()];
+        for (int i = 0; i < netIds.length; i++)
+            netIds[i] = fNetIds.get(i);
+
+        return netIds;
+    }
+
     /// Mainly useful for unit testing
     /// @returns true if this search string matches at the passed timestamp
     public boolean matches(long timestamp) {
@@ -153,7 +164,11 @@ public class Search {
             SCAN_LESS,
             SCAN_BINARY,
             SCAN_DECIMAL,
-            SCAN_HEXADECIMAL
+            SCAN_HEXADECIMAL,
+            SCAN_NEGATIVE,
+            SCAN_FRACTION,
+            SCAN_EXPONENT_SIGN,
+            SCAN_EXPONENT
         }
 
         Lexer(String searchString) {
@@ -218,6 +233,9 @@ public class Search {
                     } else if (isNum(c)) {
                         fPushBackChar = c;
                         state = State.SCAN_DECIMAL;
+                    } else if (c == '-') {
+                        fCurrentTokenValue.append((char) c);
+                        state = State.SCAN_NEGATIVE;
                     } else if (c == '>')
                         state = State.SCAN_GREATER;
                     else if (c == '<')
@@ -287,6 +305,7 @@ public class Search {
                         fCurrentTokenValue.append((char) c);
                     else {
                         fLiteralValue = new BitVector(getTokenString(), 2);
+                        fLiteralIsReal = false;
                         fPushBackChar = c;
                         return TOK_LITERAL;
                     }
@@ -296,19 +315,75 @@ public class Search {
                 case SCAN_DECIMAL:
                     if (c >= '0' && c <= '9')
                         fCurrentTokenValue.append((char) c);
-                    else {
-                        fLiteralValue = new BitVector(getTokenString(), 10);
+                    else if (c == '.') {
+                        fCurrentTokenValue.append((char) c);
+                        state = State.SCAN_FRACTION;
+                    } else if (c == 'e' || c == 'E') {
+                        fCurrentTokenValue.append((char) c);
+                        state = State.SCAN_EXPONENT_SIGN;
+                    } else {
                         fPushBackChar = c;
+                        if (fCurrentTokenValue.length() > 0
+                            && fCurrentTokenValue.charAt(0) == '-')
+                            return realLiteral();
+
+                        fLiteralValue = new BitVector(getTokenString(), 10);
+                        fLiteralIsReal = false;
                         return TOK_LITERAL;
                     }
 
                     break;
 
+                // Negative numbers are always real
+                case SCAN_NEGATIVE:
+                    if (!isNum(c)) {
+                        throw new ParseException("bad number", getTokenStart(),
+                            getTokenEnd());
+                    }
+
+                    fCurrentTokenValue.append((char) c);
+                    state = State.SCAN_DECIMAL;
+                    break;
+
+                case SCAN_FRACTION:
+                    if (isNum(c))
+                        fCurrentTokenValue.append((char) c);
+                    else if (c == 'e' || c == 'E') {
+                        fCurrentTokenValue.append((char) c);
+                        state = State.SCAN_EXPONENT_SIGN;
+                    } else {
+                        fPushBackChar = c;
+                        return realLiteral();
+                    }
+
+                    break;
+
+                case SCAN_EXPONENT_SIGN:
+                    if (!isNum(c) && c != '+' && c != '-') {
+                        throw new ParseException("bad exponent", getTokenStart(),
+                            getTokenEnd());
+                    }
+
+                    fCurrentTokenValue.append((char) c);
+                    state = State.SCAN_EXPONENT;
+                    break;
+
+                case SCAN_EXPONENT:
+                    if (isNum(c))
+                        fCurrentTokenValue.append((char) c);
+                    else {
+                        fPushBackChar = c;
+                        return realLiteral();
+                    }
+
+                    break;
+
                 case SCAN_HEXADECIMAL:
                     if (isHexDigit(c) || c == 'x' || c == 'z' || c == 'X' || c == 'Z')
                         fCurrentTokenValue.append((char) c);
                     else {
                         fLiteralValue = new BitVector(getTokenString(), 16);
+                        fLiteralIsReal = false;
                         fPushBackChar = c;
                         return TOK_LITERAL;
                     }
@@ -318,6 +393,20 @@ public class Search {
             }
         }
 
+        /// Finish scanning a literal with a fraction, exponent, or sign
+        private int realLiteral() throws ParseException {
+            try {
+                fRealLiteralValue = Double.parseDouble(getTokenString());
+            } catch (NumberFormatException exc) {
+                throw new ParseException("bad number", getTokenStart(), getTokenEnd());
+            }
+
+            fLiteralValue = new BitVector(RealTransitionVector.WIDTH);
+            Transition.setRealBits(fLiteralValue, fRealLiteralValue);
+            fLiteralIsReal = true;
+            return TOK_LITERAL;
+        }
+
         void pushBackToken(int tok) {
             fPushBackToken = tok;
         }
@@ -330,6 +419,16 @@ public class Search {
             return fLiteralValue;
         }
 
+        /// @returns true if the last literal had a fraction, exponent, or
+        ///   sign. getRealLiteralValue has its value.
+        boolean isRealLiteral() {
+            return fLiteralIsReal;
+        }
+
+        double getRealLiteralValue() {
+            return fRealLiteralValue;
+        }
+
         int getTokenStart() {
             return fTokenStart;
         }
@@ -347,6 +446,8 @@ public class Search {
         private int fPushBackToken = -1;
         private int fTokenStart;
         private BitVector fLiteralValue;
+        private boolean fLiteralIsReal;
+        private double fRealLiteralValue;
         private String fSearchString;
     }
 
@@ -406,10 +507,15 @@ public class Search {
                 throw new ParseException("unknown net \"" + fLexer.getTokenString() + "\"",
                     fLexer.getTokenStart(), fLexer.getTokenEnd());
 
-            return new NetValueNode(netId, fTraceDataModel.getNetWidth(netId));
+            fNetIds.add(netId);
+            return new NetValueNode(netId, fTraceDataModel.getNetWidth(netId),
+                fTraceDataModel.isNetReal(netId));
         } else {
             fLexer.pushBackToken(lookahead);
             match(Lexer.TOK_LITERAL);
+            if (fLexer.isRealLiteral())
+                return new ConstValueNode(fLexer.getRealLiteralValue());
+
             return new ConstValueNode(fLexer.getLiteralValue());
         }
     }
@@ -594,39 +700,84 @@ public class Search {
     private static abstract class ValueNode {
         abstract BitVector evaluate(TraceDataModel model, long timestamp,
             SearchHint outHint);
+
+        /// @returns true if values should be compared numerically as reals
+        boolean isReal() {
+            return false;
+        }
+
+        /// @param value Result of the last call to evaluate
+        /// @returns Numeric value, or NaN if it has X or Z bits
+        double getRealValue(BitVector value) {
+            double result = 0;
+            for (int i = value.getWidth() - 1; i >= 0; i--) {
+                int bit = value.getBit(i);
+                if (bit == BitVector.VALUE_X || bit == BitVector.VALUE_Z)
+                    return Double.NaN;
+
+                result = result * 2 + bit;
+            }
+
+            return result;
+        }
     }
 
     private static class NetValueNode extends ValueNode {
-        NetValueNode(int netId, int width) {
+        NetValueNode(int netId, int width, boolean isReal) {
             fNetId = netId;
             fValue = new BitVector(width);
+            fIsReal = isReal;
         }
 
         @Override
         BitVector evaluate(TraceDataModel model, long timestamp, SearchHint outHint) {
-            Iterator<Transition> i = model.findTransition(fNetId, timestamp);
-            Transition t = i.next();
-            fValue.assign(t);
-            if (timestamp >= t.getTimestamp())
-                outHint.backwardTimestamp = t.getTimestamp() - 1;
+            // Successive searches look at nearby timestamps, which the
+            // cursor finds quickly.
+            if (fCursor == null || fCursor.getModel() != model)
+                fCursor = model.newCursor(fNetId);
+
+            fCursor.seek(timestamp);
+            long transitionTimestamp = fCursor.getTimestamp();
+            fCursor.getValue(fValue);
+            if (fIsReal)
+                fRealValue = fCursor.getRealValue();
+
+            if (timestamp >= transitionTimestamp)
+                outHint.backwardTimestamp = transitionTimestamp - 1;
             else
                 outHint.backwardTimestamp = Long.MIN_VALUE;
 
-            if (i.hasNext()) {
-                t = i.next();
-                outHint.forwardTimestamp = t.getTimestamp();
-            } else
+            if (fCursor.next())
+                outHint.forwardTimestamp = fCursor.getTimestamp();
+            else
                 outHint.forwardTimestamp = Long.MAX_VALUE;
 
             return fValue;
         }
 
+        @Override
+        boolean isReal() {
+            return fIsReal;
+        }
+
+        @Override
+        double getRealValue(BitVector value) {
+            if (fIsReal)
+                return fRealValue;
+
+            return super.getRealValue(value);
+        }
+
         @Override
         public String toString() {
             return "net" + fNetId;
         }
 
         int fNetId;
+        boolean fIsReal;
+        double fRealValue;  // Value from the last evaluate, if fIsReal
+
+        TransitionCursor fCursor;
 
         // Preallocated for efficiency. This is returned by evaluate.
         BitVector fValue = new BitVector();
@@ -637,6 +788,13 @@ public class Search {
             fValue = new BitVector(constValue);
         }
 
+        ConstValueNode(double constValue) {
+            fValue = new BitVector(RealTransitionVector.WIDTH);
+            Transition.setRealBits(fValue, constValue);
+            fIsReal = true;
+            fRealValue = constValue;
+        }
+
         @Override
         BitVector evaluate(TraceDataModel model, long timestamp, SearchHint outHint) {
             outHint.backwardTimestamp = Long.MIN_VALUE;
@@ -644,12 +802,30 @@ public class Search {
             return fValue;
         }
 
+        @Override
+        boolean isReal() {
+            return fIsReal;
+        }
+
+        @Override
+        double getRealValue(BitVector value) {
+            if (fIsReal)
+                return fRealValue;
+
+            return super.getRealValue(value);
+        }
+
         @Override
         public String toString() {
+            if (fIsReal)
+                return Double.toString(fRealValue);
+
             return fValue.toString();
         }
 
         BitVector fValue;
+        boolean fIsReal;
+        double fRealValue;
     }
 
     private static abstract class ComparisonExpressionNode extends ExpressionNode {
@@ -662,7 +838,16 @@ public class Search {
         boolean evaluate(TraceDataModel model, long timestamp, SearchHint outHint) {
             BitVector leftValue = fLeftNode.evaluate(model, timestamp, fLeftHint);
             BitVector rightValue = fRightNode.evaluate(model, timestamp, fRightHint);
-            boolean result = doCompare(leftValue, rightValue);
+            int comparison;
+            if (fLeftNode.isReal() || fRightNode.isReal()) {
+                // If either side is real, compare numerically
+                double leftReal = fLeftNode.getRealValue(leftValue);
+                double rightReal = fRightNode.getRealValue(rightValue);
+                comparison = leftReal == rightReal ? 0 : Double.compare(leftReal, rightReal);
+            } else
+                comparison = leftValue.compare(rightValue);
+
+            boolean result = doCompare(comparison);
             outHint.backwardTimestamp = Math.max(fLeftHint.backwardTimestamp,
                 fRightHint.backwardTimestamp);
             outHint.forwardTimestamp = Math.min(fLeftHint.forwardTimestamp,
@@ -670,7 +855,9 @@ public class Search {
             return result;
         }
 
-        abstract protected boolean doCompare(BitVector value1, BitVector value2);
+        /// @param comparison Negative if the left value is less than the right
+        ///   value, 0 if they are equal, positive if it is greater
+        abstract protected boolean doCompare(int comparison);
 
         protected ValueNode fLeftNode;
         protected ValueNode fRightNode;
@@ -687,8 +874,8 @@ public class Search {
         }
 
         @Override
-        protected boolean doCompare(BitVector value1, BitVector value2) {
-            return value1.compare(value2) == 0;
+        protected boolean doCompare(int comparison) {
+            return comparison == 0;
         }
 
         @Override
@@ -703,8 +890,8 @@ public class Search {
         }
 
         @Override
-        protected boolean doCompare(BitVector value1, BitVector value2) {
-            return value1.compare(value2) != 0;
+        protected boolean doCompare(int comparison) {
+            return comparison != 0;
         }
 
         @Override
@@ -719,8 +906,8 @@ public class Search {
         }
 
         @Override
-        protected boolean doCompare(BitVector value1, BitVector value2) {
-            return value1.compare(value2) > 0;
+        protected boolean doCompare(int comparison) {
+            return comparison > 0;
         }
 
         @Override
@@ -735,8 +922,8 @@ public class Search {
         }
 
         @Override
-        protected boolean doCompare(BitVector value1, BitVector value2) {
-            return value1.compare(value2) >= 0;
+        protected boolean doCompare(int comparison) {
+            return comparison >= 0;
         }
 
         @Override
@@ -751,8 +938,8 @@ public class Search {
         }
 
         @Override
-        protected boolean doCompare(BitVector value1, BitVector value2) {
-            return value1.compare(value2) < 0;
+        protected boolean doCompare(int comparison) {
+            return comparison < 0;
         }
 
         @Override
@@ -767,8 +954,8 @@ public class Search {
         }
 
         @Override
-        protected boolean doCompare(BitVector value1, BitVector value2) {
-            return value1.compare(value2) <= 0;
+        protected boolean doCompare(int comparison) {
+            return comparison <= 0;
         }
 
         @Override
@@ -780,6 +967,7 @@ public class Search {
     private Lexer fLexer;
     private TraceDataModel fTraceDataModel;
     private ExpressionNode fSearchExpression;
+    private ArrayList<Integer> fNetIds = new ArrayList<Integer>();
     private static final BitVector ZERO_VEC = new BitVector("0", 2);
 }
 
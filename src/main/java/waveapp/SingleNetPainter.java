@@ -17,7 +17,6 @@
 package waveapp;
 
 import java.awt.*;
-import java.util.*;
 
 ///
 /// Delegate that draws the waveform for a single net that has only one
@@ -25,55 +24,83 @@ import java.util.*;
 ///
 class SingleNetPainter implements WaveformPainter {
     @Override
-    public void paint(Graphics g, TraceDataModel model, int netId,
+    public void paint(Graphics g, TransitionCursor cursor,
                       int topOffset, Rectangle visibleRect, double horizontalScale,
                       ValueFormatter formatter) {
         g.setColor(AppPreferences.getInstance().traceColor);
 
+        long firstTimestamp = (long)(visibleRect.x / horizontalScale);
+        cursor.seek(firstTimestamp);
+        if (cursor.getTransitionCount() == 0)
+            return;
+
+        ActivityPyramid pyramid = cursor.getActivityPyramid();
+        int level = pyramid == null ? -1 : pyramid.getLevel(1 / horizontalScale);
         int lastValue = 0;
         int lastX = visibleRect.x + visibleRect.width;
-        long firstTimestamp = (long)(visibleRect.x / horizontalScale);
-        Iterator<Transition> i = model.findTransition(netId, firstTimestamp);
         while (true) {
-            Transition transition = i.next();
-
             // Compute the boundaries of this segment
-            int x = (int)(transition.getTimestamp() * horizontalScale);
-            int value = transition.getBit(0);
+            int x = (int)(cursor.getTimestamp() * horizontalScale);
+            cursor.getValue(fValue);
+            int value = fValue.getBit(0);
 
             drawSpan(g, lastValue, lastX, x, topOffset);
-
-            // Draw transition line at beginning of interval
-            if (lastValue != value) {
-                if (lastValue == BitVector.VALUE_Z && value != BitVector.VALUE_X) {
-                    if (value == BitVector.VALUE_0) {
-                        g.drawLine(x, topOffset + DrawMetrics.WAVEFORM_HEIGHT / 2, x,
-                            topOffset + DrawMetrics.WAVEFORM_HEIGHT);
-                    } else
-                        g.drawLine(x, topOffset + DrawMetrics.WAVEFORM_HEIGHT / 2, x, topOffset);
-                } else if (value == BitVector.VALUE_Z && lastValue != BitVector.VALUE_X) {
-                    if (lastValue == BitVector.VALUE_0) {
-                        g.drawLine(x, topOffset + DrawMetrics.WAVEFORM_HEIGHT, x,
-                            topOffset + DrawMetrics.WAVEFORM_HEIGHT / 2);
-                    }
-                    else
-                        g.drawLine(x, topOffset, x, topOffset + DrawMetrics.WAVEFORM_HEIGHT / 2);
-                } else
-                    g.drawLine(x, topOffset, x, topOffset + DrawMetrics.WAVEFORM_HEIGHT);
-            }
+            if (lastValue != value)
+                drawTransition(g, lastValue, value, x, topOffset);
 
             if (x > visibleRect.x + visibleRect.width)
                 break;
 
             lastValue = value;
             lastX = x;
-            if (!i.hasNext()) {
+
+            // When zoomed out, many transitions land in the same pixel
+            // column. Draw them as one busy column and skip to the last
+            // one, which has the value after the column.
+            int first = cursor.getIndex();
+            if (cursor.skipColumn((long) Math.ceil((x + 1) / horizontalScale), level)) {
+                drawBusyColumn(g, x, topOffset, cursor.hasXOrZ(first, level));
+                cursor.getValue(fValue);
+                lastValue = fValue.getBit(0);
+            }
+
+            if (!cursor.next()) {
                 drawSpan(g, lastValue, x, visibleRect.x + visibleRect.width, topOffset);
                 break;
             }
         }
     }
 
+    /// Draw transition line at beginning of interval
+    private void drawTransition(Graphics g, int lastValue, int value, int x, int topOffset) {
+        if (lastValue == BitVector.VALUE_Z && value != BitVector.VALUE_X) {
+            if (value == BitVector.VALUE_0) {
+                g.drawLine(x, topOffset + DrawMetrics.WAVEFORM_HEIGHT / 2, x,
+                    topOffset + DrawMetrics.WAVEFORM_HEIGHT);
+            } else
+                g.drawLine(x, topOffset + DrawMetrics.WAVEFORM_HEIGHT / 2, x, topOffset);
+        } else if (value == BitVector.VALUE_Z && lastValue != BitVector.VALUE_X) {
+            if (lastValue == BitVector.VALUE_0) {
+                g.drawLine(x, topOffset + DrawMetrics.WAVEFORM_HEIGHT, x,
+                    topOffset + DrawMetrics.WAVEFORM_HEIGHT / 2);
+            }
+            else
+                g.drawLine(x, topOffset, x, topOffset + DrawMetrics.WAVEFORM_HEIGHT / 2);
+        } else
+            g.drawLine(x, topOffset, x, topOffset + DrawMetrics.WAVEFORM_HEIGHT);
+    }
+
+    /// Draw a column that has more than one transition in it
+    /// @param isXZ true if any of the transitions are X or Z
+    private void drawBusyColumn(Graphics g, int x, int topOffset, boolean isXZ) {
+        if (isXZ)
+            g.setColor(AppPreferences.getInstance().conflictColor);
+
+        g.drawLine(x, topOffset, x, topOffset + DrawMetrics.WAVEFORM_HEIGHT);
+        if (isXZ)
+            g.setColor(AppPreferences.getInstance().traceColor);
+    }
+
     private void drawSpan(Graphics g, int value, int left, int right, int top) {
         if (left >= right)
             return;
@@ -104,4 +131,6 @@ class SingleNetPainter implements WaveformPainter {
             break;
         }
     }
+
+    private BitVector fValue = new BitVector(1);   // Reused for each transition
 }
@@ -24,13 +24,15 @@ import java.awt.event.*;
 ///
 /// Draws the ruler with times at the top of the trace view.
 ///
-class TimescalePanel extends JPanel implements TraceDisplayModel.Listener, ActionListener {
+class TimescalePanel extends JPanel implements TraceDisplayModel.Listener,
+    TraceDataModel.Listener, ActionListener {
     private static final int TIMESTAMP_DISAPPEAR_INTERVAL = 500;
 
     TimescalePanel(TraceDisplayModel displayModel, TraceDataModel dataModel) {
         fTraceDisplayModel = displayModel;
         fTraceDataModel = dataModel;
         fTraceDisplayModel.addListener(this);
+        fTraceDataModel.addListener(this);
         setBackground(AppPreferences.getInstance().backgroundColor);
         setPreferredSize(new Dimension(200, DrawMetrics.TIMESCALE_HEIGHT));
         setFont(new Font("SansSerif", Font.PLAIN, 9));
@@ -81,6 +83,11 @@ class TimescalePanel extends JPanel implements TraceDisplayModel.Listener, Actio
     @Override
     public void formatChanged(int index) {}
 
+    @Override
+    public void dataAppended(long oldMaxTimestamp, long newMaxTimestamp) {
+        adjustCanvasSize();
+    }
+
     @Override
     public void scaleChanged(double newScale) {
         // Make sure minor ticks are large enough
@@ -0,0 +1,428 @@
+//
+// Copyright 2016 Jeff Bush
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package waveapp;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+///
+/// The sorted timestamps of the transitions in a TransitionVector. Storing
+/// them in a long[] takes 8 bytes per transition, which is most of the
+/// memory used by traces with fast clocks. Instead, timestamps are grouped
+/// into fixed size blocks. The first timestamp of each block is stored
+/// uncompressed in a key array, and the rest are stored as the difference
+/// from the previous one, encoded as a variable length integer (7 bits per
+/// byte, least significant group first, high bit set if more bytes
+/// follow). A lookup does a binary search of the block keys, then decodes
+/// a single block.
+///
+/// Encoded data is stored in fixed size segments, like LongSegments, so
+/// appending never copies it. A block never spans two segments.
+///
+class TimestampVector {
+    TimestampVector(TransitionStorage storage) {
+        fStorage = storage;
+        fBlockKeys = new LongSegments(KEY_SEGMENT_LENGTH, storage);
+        fBlockOffsets = new LongSegments(KEY_SEGMENT_LENGTH, storage);
+    }
+
+    TimestampVector() {
+        this(TransitionStorage.HEAP);
+    }
+
+    static final int BLOCK_SIZE = 64;
+
+    private static final int SEGMENT_SHIFT = 16;
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+    private static final int MIN_ALLOC = 256;
+    private static final int MAX_VARINT_BYTES = 10;
+
+    // Each delta in a block takes at most MAX_VARINT_BYTES.
+    private static final int MAX_BLOCK_BYTES = (BLOCK_SIZE - 1) * MAX_VARINT_BYTES;
+
+    // How many blocks away a Reader looks for a timestamp near the last one
+    // (see Reader.findIndex), before treating it as a random access.
+    private static final int MAX_GALLOP = 16;
+
+    // Number of block keys in each LongSegments segment
+    private static final int KEY_SEGMENT_LENGTH = 1024;
+
+    void append(long timestamp) {
+        if (fCount % BLOCK_SIZE == 0) {
+            int block = fCount / BLOCK_SIZE;
+
+            // Start a new segment if this block might not fit in the
+            // current one.
+            if (fSegmentCount == 0 || fSegmentOffset + MAX_BLOCK_BYTES > SEGMENT_SIZE) {
+                if (fSegmentCount == fSegments.length) {
+                    int newSize = Math.max(4, fSegmentCount * 2);
+                    fSegments = Arrays.copyOf(fSegments, newSize);
+                    fOffHeapBuffers = Arrays.copyOf(fOffHeapBuffers, newSize);
+                }
+
+                allocateSegment(fSegmentCount, fSegmentCount == 0 ? MIN_ALLOC : SEGMENT_SIZE);
+                fSegmentCount++;
+                fSegmentOffset = 0;
+            }
+
+            fBlockKeys.reserve(block + 1);
+            fBlockKeys.set(block, timestamp);
+            fBlockOffsets.reserve(block + 1);
+            fBlockOffsets.set(block, ((long) (fSegmentCount - 1) << SEGMENT_SHIFT)
+                | fSegmentOffset);
+        } else {
+            assert timestamp >= fLastTimestamp;
+            long delta = timestamp - fLastTimestamp;
+
+            // The last segment may be short, because it is the first one or
+            // was compacted. Only it is ever copied.
+            ByteBuffer segment = fSegments[fSegmentCount - 1];
+            if (fSegmentOffset + MAX_VARINT_BYTES > segment.capacity()) {
+                resizeSegment(fSegmentCount - 1, Math.min(SEGMENT_SIZE,
+                    Math.max(MIN_ALLOC, segment.capacity() * 2)));
+                segment = fSegments[fSegmentCount - 1];
+            }
+
+            while ((delta & ~0x7fL) != 0) {
+                segment.put(fSegmentOffset++, (byte) (delta | 0x80));
+                delta >>>= 7;
+            }
+
+            segment.put(fSegmentOffset++, (byte) delta);
+        }
+
+        fLastTimestamp = timestamp;
+        fCount++;
+    }
+
+    int size() {
+        return fCount;
+    }
+
+    /// @returns Timestamp of the last transition, or 0 if there are none
+    long getLast() {
+        return fCount == 0 ? 0 : fLastTimestamp;
+    }
+
+    /// Random access to a single timestamp. This decodes the block up to
+    /// the index, so sequential reads should use a Reader instead.
+    long get(int index) {
+        assert index >= 0 && index < fCount;
+        int block = index / BLOCK_SIZE;
+        long timestamp = fBlockKeys.get(block);
+        long location = fBlockOffsets.get(block);
+        ByteBuffer segment = fSegments[(int) (location >>> SEGMENT_SHIFT)];
+        int offset = (int) location & (SEGMENT_SIZE - 1);
+        for (int i = block * BLOCK_SIZE; i < index; i++) {
+            long delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = segment.get(offset++);
+                delta |= (long) (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+
+            timestamp += delta;
+        }
+
+        return timestamp;
+    }
+
+    /// Decode all timestamps in a block.
+    /// @param out Array with at least BLOCK_SIZE elements
+    /// @returns Number of timestamps in the block (only the last block may
+    ///   have less than BLOCK_SIZE)
+    int decodeBlock(int block, long[] out) {
+        int count = Math.min(BLOCK_SIZE, fCount - block * BLOCK_SIZE);
+        long timestamp = fBlockKeys.get(block);
+        long location = fBlockOffsets.get(block);
+        ByteBuffer segment = fSegments[(int) (location >>> SEGMENT_SHIFT)];
+        int offset = (int) location & (SEGMENT_SIZE - 1);
+        out[0] = timestamp;
+        for (int i = 1; i < count; i++) {
+            long delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = segment.get(offset++);
+                delta |= (long) (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+
+            timestamp += delta;
+            out[i] = timestamp;
+        }
+
+        return count;
+    }
+
+    /// @returns Index of the last transition at or before this timestamp.
+    ///   If this is before the first transition, 0.
+    int findIndex(long timestamp) {
+        int block = findBlock(timestamp, 0, getBlockCount() - 1);
+        if (block < 0)
+            return 0;
+
+        return findInBlock(block, timestamp);
+    }
+
+    /// Decode a block up to the last timestamp that is at or before this one
+    /// @param block Block whose first timestamp is at or before this one
+    /// @returns Index of that timestamp
+    private int findInBlock(int block, long timestamp) {
+        int index = block * BLOCK_SIZE;
+        int end = Math.min(index + BLOCK_SIZE, fCount);
+        long current = fBlockKeys.get(block);
+        long location = fBlockOffsets.get(block);
+        ByteBuffer segment = fSegments[(int) (location >>> SEGMENT_SHIFT)];
+        int offset = (int) location & (SEGMENT_SIZE - 1);
+        while (index + 1 < end) {
+            long delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = segment.get(offset++);
+                delta |= (long) (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+
+            current += delta;
+            if (current > timestamp)
+                break;
+
+            index++;
+        }
+
+        return index;
+    }
+
+    /// Binary search of the block keys
+    /// @param low Lowest block that may contain the timestamp
+    /// @param high Highest block that may contain the timestamp
+    /// @returns The last block in the range whose first timestamp is at or
+    ///   before this one, or low - 1 if there is none.
+    private int findBlock(long timestamp, int low, int high) {
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (timestamp < fBlockKeys.get(mid))
+                high = mid - 1;
+            else
+                low = mid + 1;
+        }
+
+        // Low is the first block whose key is after the timestamp, so the
+        // transition is in the block before it.
+        return low - 1;
+    }
+
+    private int getBlockCount() {
+        return (fCount + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    }
+
+    /// @returns Approximate number of bytes of heap used
+    long getMemoryUsage() {
+        long usage = fBlockKeys.getMemoryUsage() + fBlockOffsets.getMemoryUsage()
+            + fSegments.length * 8L;
+        for (int i = 0; i < fSegmentCount; i++)
+            usage += fSegments[i].capacity();
+
+        return usage;
+    }
+
+    /// Release space that was reserved for more timestamps. More can still
+    /// be appended afterward.
+    void compact() {
+        int blockCount = getBlockCount();
+        fBlockKeys.compact(blockCount);
+        fBlockOffsets.compact(blockCount);
+        if (fSegmentCount > 0 && fSegments[fSegmentCount - 1].capacity() > fSegmentOffset)
+            resizeSegment(fSegmentCount - 1, fSegmentOffset);
+
+        if (fSegments.length != fSegmentCount) {
+            fSegments = Arrays.copyOf(fSegments, fSegmentCount);
+            fOffHeapBuffers = Arrays.copyOf(fOffHeapBuffers, fSegmentCount);
+        }
+    }
+
+    /// @returns A number that changes every time this is cleared, so
+    ///   anything derived from the timestamps can tell when it is stale.
+    int getGeneration() {
+        return fGeneration;
+    }
+
+    /// Remove all timestamps and release the memory used by them
+    void clear() {
+        fBlockKeys.clear();
+        fBlockOffsets.clear();
+        for (int i = 0; i < fSegmentCount; i++) {
+            if (fOffHeapBuffers[i] != null)
+                fStorage.release(fOffHeapBuffers[i]);
+        }
+
+        fSegments = new ByteBuffer[0];
+        fOffHeapBuffers = new ByteBuffer[0];
+        fSegmentCount = 0;
+        fSegmentOffset = 0;
+        fCount = 0;
+        fLastTimestamp = 0;
+        fGeneration++;
+    }
+
+    /// Full size segments are allocated from the storage, others on the heap
+    private void allocateSegment(int index, int size) {
+        if (size == SEGMENT_SIZE && fStorage.isOffHeap()) {
+            fSegments[index] = fStorage.allocate(size);
+            fOffHeapBuffers[index] = fSegments[index];
+        } else {
+            fSegments[index] = ByteBuffer.allocate(size);
+            fOffHeapBuffers[index] = null;
+        }
+    }
+
+    /// Copy a segment to one with a different size
+    private void resizeSegment(int index, int newSize) {
+        ByteBuffer oldSegment = fSegments[index];
+        ByteBuffer oldBuffer = fOffHeapBuffers[index];
+        allocateSegment(index, newSize);
+        ByteBuffer source = oldSegment.duplicate();
+        source.clear();
+        source.limit(Math.min(oldSegment.capacity(), newSize));
+        fSegments[index].duplicate().put(source);
+        if (oldBuffer != null)
+            fStorage.release(oldBuffer);
+    }
+
+    /// Reads timestamps efficiently when they are mostly accessed in order,
+    /// by decoding a block at a time. Appending to the vector while a
+    /// Reader is in use is allowed, and so is clearing it and appending
+    /// different timestamps. A Reader must only be used by one thread.
+    class Reader {
+        long get(int index) {
+            fLastBlock = index / BLOCK_SIZE;
+            decode(fLastBlock);
+            return fDecoded[index - fBlock * BLOCK_SIZE];
+        }
+
+        /// Same as TimestampVector.findIndex, but faster when the timestamp
+        /// is near the last one that was read. If it is in the block that
+        /// is already decoded, this only searches that block. Otherwise, it
+        /// gallops over the block keys from there, checking blocks 1, 2, 4,
+        /// 8... away, then does a binary search between the last two blocks
+        /// checked. If the timestamp is more than MAX_GALLOP blocks away,
+        /// this does a binary search of the blocks beyond that instead, and
+        /// only decodes the found block up to the timestamp, like findIndex,
+        /// since the next access may not be nearby.
+        int findIndex(long timestamp) {
+            int blockCount = getBlockCount();
+            if (blockCount == 0)
+                return 0;
+
+            int block;
+            if (fLastBlock < 0 || fLastBlock >= blockCount)
+                block = findBlock(timestamp, 0, blockCount - 1);
+            else if (timestamp >= fBlockKeys.get(fLastBlock)) {
+                // Forward
+                int limit = fLastBlock + MAX_GALLOP;
+                if (limit < blockCount && timestamp >= fBlockKeys.get(limit)) {
+                    fLastBlock = findBlock(timestamp, limit, blockCount - 1);
+                    return findInBlock(fLastBlock, timestamp);
+                }
+
+                int low = fLastBlock;
+                int step = 1;
+                while (low + step < blockCount && timestamp >= fBlockKeys.get(low + step)) {
+                    low += step;
+                    step <<= 1;
+                }
+
+                block = findBlock(timestamp, low, Math.min(low + step, blockCount) - 1);
+            } else {
+                // Backward
+                int limit = fLastBlock - MAX_GALLOP;
+                if (limit >= 0 && timestamp < fBlockKeys.get(limit)) {
+                    block = findBlock(timestamp, 0, limit - 1);
+                    fLastBlock = Math.max(block, 0);
+                    return block < 0 ? 0 : findInBlock(block, timestamp);
+                }
+
+                int high = fLastBlock;
+                int step = 1;
+                while (high - step >= 0 && timestamp < fBlockKeys.get(high - step)) {
+                    high -= step;
+                    step <<= 1;
+                }
+
+                block = findBlock(timestamp, Math.max(high - step, 0), high - 1);
+            }
+
+            if (block < 0) {
+                fLastBlock = 0;
+                return 0;
+            }
+
+            fLastBlock = block;
+            decode(block);
+            int low = 0;
+            int high = fDecodedCount - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (timestamp < fDecoded[mid])
+                    high = mid - 1;
+                else
+                    low = mid + 1;
+            }
+
+            // The first timestamp of the block is at or before this one,
+            // so low is at least 1.
+            return block * BLOCK_SIZE + low - 1;
+        }
+
+        /// Decode a block if it isn't already, or if more timestamps
+        /// were appended to it.
+        private void decode(int block) {
+            if (block != fBlock || fGeneration != fDecodedGeneration
+                    || fDecodedCount < Math.min(BLOCK_SIZE, fCount - block * BLOCK_SIZE)) {
+                fDecodedCount = decodeBlock(block, fDecoded);
+                fBlock = block;
+                fDecodedGeneration = fGeneration;
+            }
+        }
+
+        private long[] fDecoded = new long[BLOCK_SIZE];
+        private int fBlock = -1;
+        private int fDecodedCount;
+        private int fDecodedGeneration;
+        private int fLastBlock = -1;    // Where the last search ended
+    }
+
+    private TransitionStorage fStorage;
+    private LongSegments fBlockKeys;
+
+    // Location of the first delta for each block: the segment index shifted
+    // left by SEGMENT_SHIFT, ORed with the offset in the segment.
+    private LongSegments fBlockOffsets;
+
+    // Encoded deltas. Only absolute get and put are used on these.
+    private ByteBuffer[] fSegments = new ByteBuffer[0];
+    private ByteBuffer[] fOffHeapBuffers = new ByteBuffer[0];  // null for heap segments
+    private int fSegmentCount;
+    private int fSegmentOffset;     // Next free byte in the last segment
+    private int fCount;
+    private long fLastTimestamp;
+    private int fGeneration;       // Incremented when cleared, for Readers
+}
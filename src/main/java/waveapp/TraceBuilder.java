@@ -18,9 +18,10 @@ package waveapp;
 
 ///
 /// Loader calls this to copy information from a trace into the model.
+/// Transitions are added with the methods of TransitionSink.
 ///
 
-public interface TraceBuilder {
+public interface TraceBuilder extends TransitionSink {
     /// Set timescale.
     /// @param order 10 raised to this number is the number of seconds per
     /// time unit.
@@ -43,12 +44,31 @@ public interface TraceBuilder {
     ///   passed to appendTransition.
     public int newNet(String shortName, int cloneId, int width);
 
-    /// Add a new transition
-    /// @param netId Identifier of the net for which the transition takes place. This
-    ///    is the value that was returned by newNet.
-    /// @param timestamp timestamp of the transition, in time units from start.
-    /// @param values New values the signal will take after the transition.
-    public void appendTransition(int netId, long timestamp, BitVector values);
+    /// Create a new net that holds real (floating point) values, for example
+    /// a VCD $var real. Transitions are added with appendRealTransition.
+    /// The default implementation creates a 64 bit net.
+    /// @param cloneId ID of a real net this shares transition data with,
+    ///   or -1 (see newNet)
+    /// @returns a unique integer identifier for the newly created net
+    public default int newRealNet(String shortName, int cloneId) {
+        return newNet(shortName, cloneId, RealTransitionVector.WIDTH);
+    }
+
+    /// Mark whether transitions are read for a net. Loaders call this with
+    /// false for nets that were filtered out (see NetFilter). They are still
+    /// created with newNet so they appear in the hierarchy, but no
+    /// transitions will be appended. Nets are loaded by default.
+    /// @param netId Value returned by newNet. Clones share the state of
+    ///    the original net.
+    public default void setNetLoaded(int netId, boolean loaded) {
+    }
+
+    /// Called by loaders that add nets without reading their transitions
+    /// up front. Transitions for a net are read from the source the first
+    /// time they are needed. This is called before loadFinished. The
+    /// default implementation ignores it, so no transitions are added.
+    public default void setNetDataSource(NetDataSource source) {
+    }
 
     /// Called when all nets and transitions have been added. No other methods
     /// in TraceBuilder will be called after this.
@@ -0,0 +1,486 @@
+//
+// Copyright 2016 Jeff Bush
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package waveapp;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+///
+/// Binary copy of a loaded TraceDataModel, stored next to the trace file,
+/// so the trace can be reopened without parsing it again. It contains the
+/// sequence of scope and net definitions that were passed to the builder,
+/// followed by the timestamp and value arrays (bit planes, or doubles for
+/// real nets) of each net that isn't a clone. When it is read, the arrays
+/// are copied directly out of a memory mapping of the file. The cache is
+/// only used if the size and modification time of the trace file match
+/// the ones it was written for.
+///
+public class TraceCacheFile {
+    private static final int MAGIC = 0x57564331;   // 'WVC1'
+    private static final int VERSION = 3;
+
+    private static final byte RECORD_ENTER_SCOPE = 1;
+    private static final byte RECORD_EXIT_SCOPE = 2;
+    private static final byte RECORD_NEW_NET = 3;
+    private static final byte RECORD_NET_LOADED = 4;
+    private static final byte RECORD_NEW_REAL_NET = 5;
+
+    /// Size of the regions of the file that are mapped at a time while
+    /// reading transition data.
+    private static final int MAP_WINDOW_SIZE = 0x4000000;
+
+    private static final int WRITE_BUFFER_SIZE = 0x10000;
+
+    /// @param file Name of a trace file
+    /// @returns cache file for this (a .dotfile in the same directory)
+    public static File cacheFileName(File file) {
+        String parent = file.getParent();
+        String path;
+        if (parent == null)
+            path = "." + file.getName() + ".wvcache";
+        else
+            path =  file.getParent() + "/." + file.getName() + ".wvcache";
+
+        return new File(path);
+    }
+
+    public TraceCacheFile(File file, TraceDataModel dataModel) {
+        fFile = file;
+        fDataModel = dataModel;
+    }
+
+    /// Wrap a builder for the data model so definitions that are added to it
+    /// are recorded, to be written by write. All calls are passed through.
+    public TraceBuilder recordDefinitions(final TraceBuilder builder) {
+        fRecords = new ByteArrayOutputStream();
+        fNetIds = new ArrayList<Integer>();
+        final DataOutputStream records = new DataOutputStream(fRecords);
+        return new TraceBuilder() {
+            @Override
+            public void setTimescale(int order) {
+                fTimescale = order;
+                builder.setTimescale(order);
+            }
+
+            @Override
+            public void enterScope(String name) {
+                try {
+                    records.writeByte(RECORD_ENTER_SCOPE);
+                    records.writeUTF(name);
+                } catch (IOException exc) {
+                    // Can't happen with a ByteArrayOutputStream
+                }
+
+                builder.enterScope(name);
+            }
+
+            @Override
+            public void exitScope() {
+                try {
+                    records.writeByte(RECORD_EXIT_SCOPE);
+                } catch (IOException exc) {
+                }
+
+                builder.exitScope();
+            }
+
+            @Override
+            public int newNet(String shortName, int cloneId, int width) {
+                int netId = builder.newNet(shortName, cloneId, width);
+                try {
+                    records.writeByte(RECORD_NEW_NET);
+                    records.writeUTF(shortName);
+                    records.writeInt(cloneId);
+                    records.writeInt(width);
+                } catch (IOException exc) {
+                }
+
+                if (cloneId == -1)
+                    fNetIds.add(netId);
+
+                return netId;
+            }
+
+            @Override
+            public int newRealNet(String shortName, int cloneId) {
+                int netId = builder.newRealNet(shortName, cloneId);
+                try {
+                    records.writeByte(RECORD_NEW_REAL_NET);
+                    records.writeUTF(shortName);
+                    records.writeInt(cloneId);
+                } catch (IOException exc) {
+                }
+
+                if (cloneId == -1)
+                    fNetIds.add(netId);
+
+                return netId;
+            }
+
+            @Override
+            public void setNetLoaded(int netId, boolean loaded) {
+                try {
+                    records.writeByte(RECORD_NET_LOADED);
+                    records.writeInt(netId);
+                    records.writeBoolean(loaded);
+                } catch (IOException exc) {
+                }
+
+                builder.setNetLoaded(netId, loaded);
+            }
+
+            @Override
+            public void setNetDataSource(NetDataSource source) {
+                // The model won't contain the transitions
+                fRecords = null;
+                builder.setNetDataSource(source);
+            }
+
+            @Override
+            public void appendTransition(int netId, long timestamp, BitVector values) {
+                builder.appendTransition(netId, timestamp, values);
+            }
+
+            @Override
+            public void appendTransition(int netId, long timestamp, int[] words, int offset,
+                                         int width) {
+                builder.appendTransition(netId, timestamp, words, offset, width);
+            }
+
+            @Override
+            public void appendRealTransition(int netId, long timestamp, double value) {
+                builder.appendRealTransition(netId, timestamp, value);
+            }
+
+            @Override
+            public void loadFinished() {
+                builder.loadFinished();
+            }
+        };
+    }
+
+    /// Write the definitions recorded by recordDefinitions, and the current
+    /// transitions in the model. Nothing is written if the model reads
+    /// transitions on demand.
+    /// @param traceFile Trace that was loaded into the model.
+    /// @returns true if the cache was written
+    public boolean write(File traceFile) throws IOException {
+        if (fRecords == null)
+            return false;
+
+        FileOutputStream outputStream = new FileOutputStream(fFile);
+        try {
+            FileChannel channel = outputStream.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putLong(traceFile.length());
+            buffer.putLong(traceFile.lastModified());
+            buffer.putInt(fTimescale);
+            buffer.putInt(fRecords.size());
+            flush(channel, buffer);
+            ByteBuffer records = ByteBuffer.wrap(fRecords.toByteArray());
+            while (records.hasRemaining())
+                channel.write(records);
+
+            buffer.putInt(fNetIds.size());
+            for (int netId : fNetIds) {
+                TransitionVector vector = fDataModel.getTransitionVector(netId);
+                int count = vector.getTransitionCount();
+                if (buffer.remaining() < 4)
+                    flush(channel, buffer);
+
+                buffer.putInt(count);
+                if (count > 0) {
+                    writeTimestamps(channel, buffer, vector.getTimestamps());
+                    if (vector.isReal()) {
+                        // The raw bits are the same as writing doubles
+                        writeSegments(channel, buffer,
+                            ((RealTransitionVector) vector).getRealValueBits(), count);
+                    } else {
+                        long planeWords = TransitionVector.planeWords(count,
+                            vector.getWidth());
+                        LongSegments maskPlane = vector.getMaskPlane();
+                        if (buffer.remaining() < 4)
+                            flush(channel, buffer);
+
+                        buffer.putInt(maskPlane != null ? 1 : 0);
+                        writeSegments(channel, buffer, vector.getValuePlane(), planeWords);
+                        if (maskPlane != null)
+                            writeSegments(channel, buffer, maskPlane, planeWords);
+                    }
+                }
+            }
+
+            flush(channel, buffer);
+        } finally {
+            outputStream.close();
+        }
+
+        return true;
+    }
+
+    /// Replace the contents of the model with the ones in the cache.
+    /// @param traceFile Trace the cache was written for
+    /// @returns false if there is no cache for this trace, or it is out of
+    ///   date. The model is not changed in this case.
+    public boolean read(File traceFile) throws IOException {
+        if (!fFile.exists())
+            return false;
+
+        FileInputStream inputStream = new FileInputStream(fFile);
+        try {
+            FileChannel channel = inputStream.getChannel();
+            DataInputStream header = new DataInputStream(new BufferedInputStream(
+                inputStream));
+            if (header.readInt() != MAGIC || header.readInt() != VERSION
+                || header.readLong() != traceFile.length()
+                || header.readLong() != traceFile.lastModified())
+                return false;
+
+            int timescale = header.readInt();
+            byte[] records = new byte[header.readInt()];
+            header.readFully(records);
+            fPosition = 32 + records.length;
+            fChannel = channel;
+
+            TraceBuilder builder = fDataModel.startBuilding();
+            builder.setTimescale(timescale);
+            ArrayList<Integer> netIds = replayDefinitions(builder, records);
+
+            int vectorCount = readInt();
+            if (vectorCount != netIds.size())
+                throw new IOException("cache file is corrupt");
+
+            for (int netId : netIds) {
+                TransitionVector vector = fDataModel.getTransitionVector(netId);
+                int count = readInt();
+                if (count > 0) {
+                    TimestampVector timestamps = readTimestamps(count,
+                        vector.getStorage());
+                    if (vector.isReal()) {
+                        RealTransitionVector realVector = (RealTransitionVector) vector;
+                        LongSegments values = realVector.newRealValueBits();
+                        readSegments(values, count);
+                        realVector.setRealTransitions(timestamps, values);
+                    } else {
+                        long planeWords = TransitionVector.planeWords(count,
+                            vector.getWidth());
+                        boolean hasMask = readInt() != 0;
+                        LongSegments valuePlane = vector.newPlane();
+                        readSegments(valuePlane, planeWords);
+                        LongSegments maskPlane = null;
+                        if (hasMask) {
+                            maskPlane = vector.newPlane();
+                            readSegments(maskPlane, planeWords);
+                        }
+
+                        vector.setTransitions(timestamps, valuePlane, maskPlane);
+                    }
+                }
+            }
+
+            builder.loadFinished();
+        } finally {
+            fWindow = null;
+            fChannel = null;
+            inputStream.close();
+        }
+
+        return true;
+    }
+
+    /// @returns IDs of nets that aren't clones, in the order they were created
+    private ArrayList<Integer> replayDefinitions(TraceBuilder builder, byte[] records)
+        throws IOException {
+        ArrayList<Integer> netIds = new ArrayList<Integer>();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(records));
+        while (in.available() > 0) {
+            byte type = in.readByte();
+            switch (type) {
+                case RECORD_ENTER_SCOPE:
+                    builder.enterScope(in.readUTF());
+                    break;
+
+                case RECORD_EXIT_SCOPE:
+                    builder.exitScope();
+                    break;
+
+                case RECORD_NEW_NET: {
+                    String shortName = in.readUTF();
+                    int cloneId = in.readInt();
+                    int width = in.readInt();
+                    int netId = builder.newNet(shortName, cloneId, width);
+                    if (cloneId == -1)
+                        netIds.add(netId);
+
+                    break;
+                }
+
+                case RECORD_NEW_REAL_NET: {
+                    String shortName = in.readUTF();
+                    int cloneId = in.readInt();
+                    int netId = builder.newRealNet(shortName, cloneId);
+                    if (cloneId == -1)
+                        netIds.add(netId);
+
+                    break;
+                }
+
+                case RECORD_NET_LOADED: {
+                    int netId = in.readInt();
+                    builder.setNetLoaded(netId, in.readBoolean());
+                    break;
+                }
+
+                default:
+                    throw new IOException("cache file is corrupt");
+            }
+        }
+
+        return netIds;
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+
+        buffer.clear();
+    }
+
+    /// @param array Only the first count elements are written. Its position
+    ///   is ignored and not changed.
+    private static void writeLongs(FileChannel channel, ByteBuffer buffer, LongBuffer array,
+                                   int count) throws IOException {
+        LongBuffer source = array.duplicate();
+        source.clear();
+        int offset = 0;
+        while (offset < count) {
+            if (buffer.remaining() < 8)
+                flush(channel, buffer);
+
+            int chunk = Math.min(count - offset, buffer.remaining() / 8);
+            source.limit(offset + chunk);
+            source.position(offset);
+            buffer.asLongBuffer().put(source);
+            buffer.position(buffer.position() + chunk * 8);
+            offset += chunk;
+        }
+    }
+
+    private static void writeSegments(FileChannel channel, ByteBuffer buffer,
+                                      LongSegments array, long length) throws IOException {
+        int segmentLength = array.getSegmentLength();
+        for (int i = 0; (long) i * segmentLength < length; i++) {
+            writeLongs(channel, buffer, array.getSegment(i),
+                (int) Math.min(segmentLength, length - (long) i * segmentLength));
+        }
+    }
+
+    /// Timestamps are stored uncompressed, so the file format doesn't depend
+    /// on how TimestampVector encodes them.
+    private static void writeTimestamps(FileChannel channel, ByteBuffer buffer,
+                                        TimestampVector timestamps) throws IOException {
+        long[] block = new long[TimestampVector.BLOCK_SIZE];
+        int blockCount = (timestamps.size() + TimestampVector.BLOCK_SIZE - 1)
+            / TimestampVector.BLOCK_SIZE;
+        for (int i = 0; i < blockCount; i++)
+            writeLongs(channel, buffer, LongBuffer.wrap(block), timestamps.decodeBlock(i, block));
+    }
+
+    /// Make sure at least minBytes bytes starting at fPosition are in the
+    /// mapped window, if they are in the file.
+    private void mapWindow(int minBytes) throws IOException {
+        if (fWindow != null && fPosition >= fWindowStart
+            && fPosition + minBytes <= fWindowStart + fWindow.limit()) {
+            fWindow.position((int) (fPosition - fWindowStart));
+            return;
+        }
+
+        long length = Math.min(Math.max(MAP_WINDOW_SIZE, minBytes),
+            fChannel.size() - fPosition);
+        if (length < minBytes)
+            throw new EOFException();
+
+        fWindow = fChannel.map(FileChannel.MapMode.READ_ONLY, fPosition, length);
+        fWindowStart = fPosition;
+    }
+
+    private int readInt() throws IOException {
+        mapWindow(4);
+        fPosition += 4;
+        return fWindow.getInt();
+    }
+
+    /// @param array The first count elements are filled in. Its position is
+    ///   ignored and not changed.
+    private void readLongs(LongBuffer array, int count) throws IOException {
+        LongBuffer dest = array.duplicate();
+        dest.clear();
+        int offset = 0;
+        while (offset < count) {
+            mapWindow(8);
+            int chunk = Math.min(count - offset, fWindow.remaining() / 8);
+            LongBuffer source = fWindow.asLongBuffer();
+            source.limit(chunk);
+            dest.position(offset);
+            dest.put(source);
+            fPosition += chunk * 8L;
+            offset += chunk;
+        }
+    }
+
+    private void readSegments(LongSegments array, long length) throws IOException {
+        array.reserve(length);
+        int segmentLength = array.getSegmentLength();
+        for (int i = 0; (long) i * segmentLength < length; i++) {
+            readLongs(array.getSegment(i), (int) Math.min(segmentLength,
+                length - (long) i * segmentLength));
+        }
+    }
+
+    private TimestampVector readTimestamps(int count, TransitionStorage storage)
+        throws IOException {
+        TimestampVector timestamps = new TimestampVector(storage);
+        long[] block = new long[TimestampVector.BLOCK_SIZE];
+        while (timestamps.size() < count) {
+            int blockLength = Math.min(count - timestamps.size(), block.length);
+            readLongs(LongBuffer.wrap(block), blockLength);
+            for (int i = 0; i < blockLength; i++)
+                timestamps.append(block[i]);
+        }
+
+        return timestamps;
+    }
+
+    private File fFile;
+    private TraceDataModel fDataModel;
+    private int fTimescale;
+    private ByteArrayOutputStream fRecords;   // Definitions, see recordDefinitions
+    private ArrayList<Integer> fNetIds;      // Nets that aren't clones
+
+    // These are only used while reading
+    private FileChannel fChannel;
+    private MappedByteBuffer fWindow;
+    private long fWindowStart;
+    private long fPosition;
+}
@@ -16,37 +16,426 @@
 
 package waveapp;
 
+import java.awt.EventQueue;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 ///
 /// Contains information about nets and transitions. View state is contained
 /// in TraceDisplayModel.
 ///
+/// The model is changed by one thread (in the application, the event
+/// dispatch thread), which may read it at any time. Other threads may
+/// only read the transitions of a net between beginReading and
+/// endReading. When transitions are read on demand, nets must be
+/// populated before they are read. Code on the event dispatch thread uses
+/// requestNets for this, so it doesn't wait for the file.
+///
 
 public class TraceDataModel {
+    /// Default for setMemoryBudget
+    private static final long DEFAULT_MEMORY_BUDGET = 256L << 20;
+
+    public interface Listener {
+        /// Called when transitions have been added to a model that was
+        /// already loaded (see resumeBuilding).
+        void dataAppended(long oldMaxTimestamp, long newMaxTimestamp);
+
+        /// Called on the event dispatch thread when transitions for nets
+        /// passed to requestNets have been read.
+        default void netsLoaded() {
+        }
+    }
+
+    public void addListener(Listener listener) {
+        fListeners.add(listener);
+    }
+
     public NetTreeModel getNetTree() {
         return fNetTree;
     }
 
     /// A bit of a kludge. Used when loading a new model.
     public void copyFrom(TraceDataModel from) {
-        fMaxTimestamp = from.fMaxTimestamp;
-        fFullNameToNetMap = from.fFullNameToNetMap;
-        fAllNets = from.fAllNets;
-        fNetTree = from.fNetTree;
-        fTimescale = from.fTimescale;
+        fLock.writeLock().lock();
+        try {
+            fMaxTimestamp = from.fMaxTimestamp;
+            fFullNameToNetMap = from.fFullNameToNetMap;
+            fAllNets = from.fAllNets;
+            fNetTree = from.fNetTree;
+            fTimescale = from.fTimescale;
+            fNetDataSource = from.fNetDataSource;
+            fPopulatedNets = from.fPopulatedNets;
+            fPopulatedMemory = from.fPopulatedMemory;
+            fUseGeneration = from.fUseGeneration;
+            fStorage = from.fStorage;
+            fRequestedNets.clear();
+            fRequestCallbacks.clear();
+        } finally {
+            fLock.writeLock().unlock();
+        }
     }
 
     public TraceBuilder startBuilding() {
         fAllNets.clear();
         fFullNameToNetMap.clear();
         fNetTree.clear();
+        fNetDataSource = null;
+        fPopulatedNets.clear();
+        fPopulatedMemory = 0;
+
+        return new ConcreteTraceBuilder(false);
+    }
 
-        return new ConcreteTraceBuilder();
+    /// Add more transitions to a model that has already been loaded,
+    /// without clearing it. Transitions must be after the last one appended
+    /// to the same net. When loadFinished is called on the returned builder,
+    /// listeners are notified.
+    public TraceBuilder resumeBuilding() {
+        return new ConcreteTraceBuilder(true);
     }
 
     public Iterator<Transition> findTransition(int netId, long timestamp) {
-        return fAllNets.get(netId).findTransition(timestamp);
+        return getReadableTransitions(netId).findTransition(timestamp);
+    }
+
+    /// The following methods read transitions by index, without allocating
+    /// anything, for callers that look up values frequently, like painting
+    /// and searching. Indices are from 0 to getTransitionCount() - 1, in
+    /// timestamp order.
+    /// @returns Number of transitions of the net. A net that wasn't loaded
+    ///   has one, which is X.
+    public int getTransitionCount(int netId) {
+        return getReadableTransitions(netId).getTransitionCount();
+    }
+
+    /// @returns Index of the transition at this timestamp. If there isn't
+    ///   one, the index of the one before it. If this is before the first
+    ///   transition, 0.
+    public int findIndex(int netId, long timestamp) {
+        return getReadableTransitions(netId).findIndex(timestamp);
+    }
+
+    public long getTimestamp(int netId, int index) {
+        return getReadableTransitions(netId).getTimestamp(index);
+    }
+
+    /// Copy the value of a transition into a vector owned by the caller.
+    /// Values of real nets are copied as their IEEE 754 representation.
+    /// @param outValue Vector to copy into. This only needs to be
+    ///   reallocated if it isn't already as wide as the net.
+    public void getValue(int netId, int index, BitVector outValue) {
+        TransitionVector vector = getReadableTransitions(netId);
+        if (outValue.getWidth() != vector.getWidth())
+            outValue.setWidth(vector.getWidth());
+
+        vector.copyValue(index, outValue);
+    }
+
+    /// @returns Value of a transition of a real net (see isNetReal). NaN
+    ///   if the value has X or Z bits, or the net wasn't loaded.
+    public double getRealValue(int netId, int index) {
+        TransitionVector vector = getReadableTransitions(netId);
+        if (!vector.isReal())
+            return Double.NaN;
+
+        return ((RealTransitionVector) vector).getRealValue(index);
+    }
+
+    /// @returns A new cursor for reading the transitions of a net. This is
+    ///   faster than findIndex for repeated lookups of nearby timestamps.
+    public TransitionCursor newCursor(int netId) {
+        return new TransitionCursor(this, netId);
+    }
+
+    /// Allow the calling thread, which doesn't change the model, to read
+    /// the transitions of a net (using any of the methods above, or a
+    /// TransitionCursor) until it calls endReading. The model can't be
+    /// changed in the meantime, so this should be held briefly.
+    /// @returns false if the net doesn't exist, or its transitions aren't
+    ///   in memory (see isNetPopulated). They aren't read here, and the
+    ///   caller must not call endReading.
+    public boolean beginReading(int netId) {
+        fLock.readLock().lock();
+        if (netId >= fAllNets.size() || !isNetPopulated(netId)) {
+            fLock.readLock().unlock();
+            return false;
+        }
+
+        return true;
+    }
+
+    public void endReading() {
+        fLock.readLock().unlock();
+    }
+
+    /// @returns false if the transitions of this net will be read from the
+    ///   NetDataSource the next time they are used, because they haven't
+    ///   been yet, or they were discarded (see setMemoryBudget).
+    public boolean isNetPopulated(int netId) {
+        NetDataModel net = fAllNets.get(netId);
+        return fNetDataSource == null || !net.isLoaded() || net.fSource.fPopulated;
+    }
+
+    /// Read the transitions of nets that aren't in memory on a background
+    /// thread, so the caller doesn't wait for them. Listeners are notified
+    /// with netsLoaded when they are ready. Each read scans the whole file,
+    /// so views should pass all the nets they need at once. Nets requested
+    /// by any caller until the current event has been handled, or while a
+    /// read is in progress, are read together afterward, with one call to
+    /// NetDataSource.loadNets. This is called on the event dispatch thread.
+    public void requestNets(int[] netIds) {
+        requestNets(netIds, null);
+    }
+
+    /// Same as requestNets, but also run something once all of these nets
+    /// can be read, for example a search that uses them. They aren't
+    /// discarded before then.
+    /// @param whenLoaded Run on the event dispatch thread. If the nets are
+    ///   already in memory, this is run before returning. It isn't run if
+    ///   a different trace is loaded first.
+    public void requestNets(int[] netIds, Runnable whenLoaded) {
+        if (whenLoaded != null) {
+            if (areNetsPopulated(netIds)) {
+                whenLoaded.run();
+                return;
+            }
+
+            fRequestCallbacks.add(new RequestCallback(netIds, whenLoaded));
+        }
+
+        for (int netId : netIds) {
+            NetDataModel source = fAllNets.get(netId).fSource;
+            if (!isNetPopulated(netId) && !source.fRequested) {
+                source.fRequested = true;
+                fRequestedNets.add(netId);
+            }
+        }
+
+        if (!fRequestScheduled && !fRequestedNets.isEmpty()) {
+            fRequestScheduled = true;
+            EventQueue.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    fRequestScheduled = false;
+                    startRequest();
+                }
+            });
+        }
+    }
+
+    /// Read the transitions of nets that aren't in memory on the calling
+    /// thread, which changes the model, with one call to
+    /// NetDataSource.loadNets. This is for callers that aren't views, like
+    /// tools and tests; views use requestNets.
+    public void populateNets(int[] netIds) {
+        ArrayList<Integer> missing = new ArrayList<Integer>();
+        IdentityHashMap<NetDataModel, Boolean> sources =
+            new IdentityHashMap<NetDataModel, Boolean>();
+        for (int netId : netIds) {
+            if (!isNetPopulated(netId) && sources.put(fAllNets.get(netId).fSource, true) == null)
+                missing.add(netId);
+        }
+
+        if (missing.isEmpty())
+            return;
+
+        int[] missingIds = new int[missing.size()];
+        for (int i = 0; i < missingIds.length; i++)
+            missingIds[i] = missing.get(i);
+
+        NetRead read = new NetRead(missingIds);
+        read.run();
+        publish(read);
+    }
+
+    /// @returns Transitions of a net, or a single X transition if the net
+    ///   wasn't loaded. Transitions of nets that are read on demand must
+    ///   be populated first (see requestNets and populateNets); they
+    ///   aren't read here, because that scans the whole file for each net.
+    TransitionVector getReadableTransitions(int netId) {
+        NetDataModel net = fAllNets.get(netId);
+        if (fNetDataSource != null && net.isLoaded()) {
+            NetDataModel source = net.fSource;
+            if (!source.fPopulated) {
+                throw new IllegalStateException("transitions for " + net.getFullName()
+                    + " haven't been read");
+            }
+
+            // Readers share the lock, so they don't reorder a list. Nets
+            // used since the last ones were read are all kept.
+            long generation = fUseGeneration;
+            if (source.fLastUsed != generation)
+                source.fLastUsed = generation;
+        }
+
+        return net.getReadableTransitions();
+    }
+
+    /// When transitions are read on demand (see TraceBuilder.setNetDataSource),
+    /// nets that haven't been used recently are discarded to keep the total
+    /// size of their transitions below this, and must be read again before
+    /// they are used (see isNetPopulated). Nets that were read or used
+    /// since nets were last read are always kept.
+    public void setMemoryBudget(long bytes) {
+        fMemoryBudget = bytes;
+    }
+
+    /// Where transition data for nets created after this is called is kept.
+    /// The default is the Java heap.
+    public void setTransitionStorage(TransitionStorage storage) {
+        fStorage = storage;
+    }
+
+    public TransitionStorage getTransitionStorage() {
+        return fStorage;
+    }
+
+    private boolean areNetsPopulated(int[] netIds) {
+        for (int netId : netIds) {
+            if (!isNetPopulated(netId))
+                return false;
+        }
+
+        return true;
+    }
+
+    /// Start reading the nets passed to requestNets, unless a read is
+    /// already in progress.
+    private void startRequest() {
+        if (fRequestInProgress || fRequestedNets.isEmpty())
+            return;
+
+        int[] netIds = new int[fRequestedNets.size()];
+        for (int i = 0; i < netIds.length; i++)
+            netIds[i] = fRequestedNets.get(i);
+
+        fRequestedNets.clear();
+        fRequestInProgress = true;
+        if (fRequestExecutor == null) {
+            fRequestExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "net loader");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        final NetRead read = new NetRead(netIds);
+        fRequestExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                read.run();
+                EventQueue.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        fRequestInProgress = false;
+                        for (NetDataModel source : read.fSources)
+                            source.fRequested = false;
+
+                        // A different trace may have been loaded since
+                        if (read.fDataSource != fNetDataSource) {
+                            read.discard();
+                            startRequest();
+                            return;
+                        }
+
+                        publish(read);
+                        for (Listener listener : fListeners)
+                            listener.netsLoaded();
+
+                        ArrayList<RequestCallback> ready = new ArrayList<RequestCallback>();
+                        Iterator<RequestCallback> it = fRequestCallbacks.iterator();
+                        while (it.hasNext()) {
+                            RequestCallback callback = it.next();
+                            if (areNetsPopulated(callback.fNetIds)) {
+                                ready.add(callback);
+                                it.remove();
+                            }
+                        }
+
+                        // Start the next read first, because a callback may
+                        // run a modal dialog.
+                        startRequest();
+                        for (RequestCallback callback : ready)
+                            callback.fWhenLoaded.run();
+                    }
+                });
+            }
+        });
+    }
+
+    /// Add nets that were read to the model, holding the write lock only
+    /// while the new transitions replace the old ones. Then discard the
+    /// nets that were used least recently if over the memory budget.
+    private void publish(NetRead read) {
+        fLock.writeLock().lock();
+        try {
+            long generation = ++fUseGeneration;
+
+            // Nets that callbacks are waiting for are kept until they run,
+            // even if they were read in an earlier pass.
+            for (RequestCallback callback : fRequestCallbacks) {
+                for (int netId : callback.fNetIds) {
+                    if (netId < fAllNets.size())
+                        fAllNets.get(netId).fSource.fLastUsed = generation;
+                }
+            }
+
+            for (int i = 0; i < read.fSources.length; i++) {
+                NetDataModel source = read.fSources[i];
+                if (source.fPopulated) {
+                    // Read another way in the meantime
+                    read.fVectors[i].clear();
+                } else if (read.fErrorMessage != null) {
+                    System.out.println("error reading transitions for " + source.getFullName()
+                        + ": " + read.fErrorMessage);
+                    read.fVectors[i].clear();
+                    source.fLoaded = false;     // Reads as X
+                } else {
+                    source.fTransitionVector = read.fVectors[i];
+                    source.fPopulated = true;
+                    source.fLastUsed = generation;
+                    fPopulatedNets.add(source);
+                    fPopulatedMemory += source.fTransitionVector.getMemoryUsage();
+                }
+            }
+
+            if (fPopulatedMemory > fMemoryBudget)
+                evict(generation);
+        } finally {
+            fLock.writeLock().unlock();
+        }
+    }
+
+    /// Discard transitions of populated nets, oldest first, until they fit
+    /// in the memory budget. Nets used in this generation are kept.
+    private void evict(long generation) {
+        Collections.sort(fPopulatedNets, new Comparator<NetDataModel>() {
+            @Override
+            public int compare(NetDataModel a, NetDataModel b) {
+                return Long.compare(a.fLastUsed, b.fLastUsed);
+            }
+        });
+
+        int evictCount = 0;
+        while (fPopulatedMemory > fMemoryBudget && evictCount < fPopulatedNets.size()) {
+            NetDataModel eldest = fPopulatedNets.get(evictCount);
+            if (eldest.fLastUsed == generation)
+                break;
+
+            fPopulatedMemory -= eldest.fTransitionVector.getMemoryUsage();
+            eldest.fTransitionVector.clear();
+            eldest.fPopulated = false;
+            evictCount++;
+        }
+
+        fPopulatedNets.subList(0, evictCount).clear();
     }
 
     public long getMaxTimestamp() {
@@ -86,18 +475,36 @@ public class TraceDataModel {
         return fAllNets.get(index).getFullName();
     }
 
+    /// Transition data for a net, which is shared with any clones. This
+    /// doesn't read transitions from a NetDataSource.
+    TransitionVector getTransitionVector(int index) {
+        return fAllNets.get(index).getTransitionVector();
+    }
+
+    /// @returns true if this net has real values (see TraceBuilder.newRealNet)
+    public boolean isNetReal(int index) {
+        return fAllNets.get(index).getTransitionVector().isReal();
+    }
+
+    /// @returns false if the loader skipped transitions for this net (see
+    ///   NetFilter). Such a net reads as X for its whole duration.
+    public boolean isNetLoaded(int index) {
+        return fAllNets.get(index).isLoaded();
+    }
+
     private static class NetDataModel {
-        NetDataModel(String shortName, String fullName, int width) {
+        NetDataModel(String shortName, String fullName, TransitionVector transitionVector) {
             fShortName = shortName;
             fFullName = fullName;
-            fTransitionVector = new TransitionVector(width);
+            fTransitionVector = transitionVector;
+            fSource = this;
         }
 
         // This NetDataModel shares its transition data with another one.
         NetDataModel(String shortName, String fullName, NetDataModel cloneFrom) {
             fShortName = shortName;
             fFullName = fullName;
-            fTransitionVector = cloneFrom.fTransitionVector;
+            fSource = cloneFrom.fSource;
         }
 
         String getFullName() {
@@ -108,24 +515,165 @@ public class TraceDataModel {
             return fShortName;
         }
 
-        Iterator<Transition> findTransition(long timestamp) {
-            return fTransitionVector.findTransition(timestamp);
+        TransitionVector getReadableTransitions() {
+            if (!isLoaded())
+                return getUnloadedTransitions();
+
+            return getTransitionVector();
+        }
+
+        /// The source's vector, which is replaced when the net is read
+        /// from a NetDataSource.
+        TransitionVector getTransitionVector() {
+            return fSource.fTransitionVector;
+        }
+
+        boolean isLoaded() {
+            return fSource.fLoaded;
+        }
+
+        /// Callers expect every net to have at least one transition, so
+        /// a net that wasn't loaded has a single X value at time 0.
+        /// Readers holding only the read lock may get here at the same
+        /// time. Each may build the vector, but it is only published
+        /// through the volatile field once it is complete.
+        private TransitionVector getUnloadedTransitions() {
+            TransitionVector transitions = fSource.fUnloadedTransitions;
+            if (transitions == null) {
+                int width = getWidth();
+                BitVector unknown = new BitVector(width);
+                for (int i = 0; i < width; i++)
+                    unknown.setBit(i, BitVector.VALUE_X);
+
+                transitions = new TransitionVector(width);
+                transitions.appendTransition(0, unknown);
+                fSource.fUnloadedTransitions = transitions;
+            }
+
+            return transitions;
         }
 
         long getMaxTimestamp() {
-            return fTransitionVector.getMaxTimestamp();
+            return getTransitionVector().getMaxTimestamp();
         }
 
         int getWidth() {
-            return fTransitionVector.getWidth();
+            return getTransitionVector().getWidth();
         }
 
-        private TransitionVector fTransitionVector;
+        private TransitionVector fTransitionVector;     // Null for clones
         private String fShortName;
         private String fFullName;
+        private NetDataModel fSource;   // Net this was cloned from, or this
+        private boolean fLoaded = true;
+        private volatile TransitionVector fUnloadedTransitions;
+
+        // The following are only used for sources, when transitions are
+        // read on demand. fPopulated changes with the write lock held.
+        private boolean fPopulated;
+        private boolean fRequested;     // Passed to requestNets, not read yet
+        private volatile long fLastUsed;    // See fUseGeneration
+    }
+
+    private static class RequestCallback {
+        RequestCallback(int[] netIds, Runnable whenLoaded) {
+            fNetIds = netIds;
+            fWhenLoaded = whenLoaded;
+        }
+
+        int[] fNetIds;
+        Runnable fWhenLoaded;
+    }
+
+    /// Reads transitions for a set of nets from the NetDataSource into new
+    /// vectors, without changing the model or holding the lock, so it can
+    /// run on any thread. publish adds them to the model.
+    private class NetRead implements TransitionSink {
+        /// Called by the thread that changes the model
+        NetRead(int[] netIds) {
+            fNetIds = netIds;
+            fDataSource = fNetDataSource;
+            fNets = fAllNets;
+            fSources = new NetDataModel[netIds.length];
+            fVectors = new TransitionVector[netIds.length];
+            for (int i = 0; i < netIds.length; i++) {
+                NetDataModel source = fAllNets.get(netIds[i]).fSource;
+                TransitionVector old = source.fTransitionVector;
+                fSources[i] = source;
+                if (old.isReal())
+                    fVectors[i] = new RealTransitionVector(fStorage);
+                else if (old instanceof ScalarTransitionVector)
+                    fVectors[i] = new ScalarTransitionVector(fStorage);
+                else
+                    fVectors[i] = new TransitionVector(old.getWidth(), fStorage);
+
+                fVectorMap.put(source, fVectors[i]);
+            }
+        }
+
+        void run() {
+            try {
+                fDataSource.loadNets(fNetIds, this);
+            } catch (TraceLoader.LoadException | java.io.IOException exc) {
+                fErrorMessage = exc.getMessage();
+                return;
+            }
+
+            for (TransitionVector vector : fVectors) {
+                vector.compact();
+                vector.updateActivityPyramid();
+            }
+        }
+
+        /// Release the transitions instead of publishing them
+        void discard() {
+            for (TransitionVector vector : fVectors)
+                vector.clear();
+        }
+
+        @Override
+        public void appendTransition(int id, long timestamp, BitVector values) {
+            getVector(id).appendTransition(timestamp, values);
+        }
+
+        @Override
+        public void appendTransition(int id, long timestamp, int[] words, int offset,
+                                     int width) {
+            getVector(id).appendTransition(timestamp, words, offset, width);
+        }
+
+        @Override
+        public void appendRealTransition(int id, long timestamp, double value) {
+            TransitionVector vector = getVector(id);
+            if (vector.isReal())
+                ((RealTransitionVector) vector).appendRealTransition(timestamp, value);
+            else
+                TransitionSink.super.appendRealTransition(id, timestamp, value);
+        }
+
+        private TransitionVector getVector(int id) {
+            TransitionVector vector = fVectorMap.get(fNets.get(id).fSource);
+            if (vector == null)
+                throw new IllegalStateException("transitions for a net that wasn't requested");
+
+            return vector;
+        }
+
+        private int[] fNetIds;
+        private NetDataSource fDataSource;
+        private ArrayList<NetDataModel> fNets;
+        private NetDataModel[] fSources;
+        private TransitionVector[] fVectors;
+        private IdentityHashMap<NetDataModel, TransitionVector> fVectorMap =
+            new IdentityHashMap<NetDataModel, TransitionVector>();
+        private String fErrorMessage;
     }
 
     private class ConcreteTraceBuilder implements TraceBuilder {
+        ConcreteTraceBuilder(boolean resumed) {
+            fResumed = resumed;
+        }
+
         @Override
         public void setTimescale(int order) {
             fTimescale = order;
@@ -143,21 +691,110 @@ public class TraceDataModel {
             fScopeStack.pop();
         }
 
+        @Override
+        public void setNetDataSource(NetDataSource source) {
+            fNetDataSource = source;
+        }
+
         @Override
         public void loadFinished() {
-            fMaxTimestamp = 0;
-            for (NetDataModel model : fAllNets)
-                fMaxTimestamp = Math.max(fMaxTimestamp, model.getMaxTimestamp());
+            long oldMaxTimestamp = fMaxTimestamp;
+            lock();
+            try {
+                fMaxTimestamp = 0;
+                for (NetDataModel model : fAllNets) {
+                    fMaxTimestamp = Math.max(fMaxTimestamp, model.getMaxTimestamp());
+
+                    // Release space reserved for more transitions, and
+                    // summarize them for drawing when zoomed out. This is
+                    // skipped for clones, which share the source's vector.
+                    // When appending, more transitions are likely to follow,
+                    // so the space is kept, and the pyramid is only
+                    // extended by the new transitions.
+                    if (model.fSource == model) {
+                        if (!fResumed)
+                            model.fTransitionVector.compact();
+
+                        model.fTransitionVector.updateActivityPyramid();
+                    }
+                }
+
+                if (fNetDataSource != null)
+                    fMaxTimestamp = Math.max(fMaxTimestamp, fNetDataSource.getMaxTimestamp());
+            } finally {
+                unlock();
+            }
+
+            if (fResumed) {
+                for (Listener listener : fListeners)
+                    listener.dataAppended(oldMaxTimestamp, fMaxTimestamp);
+            }
         }
 
         @Override
         public void appendTransition(int id, long timestamp, BitVector values) {
             NetDataModel model = fAllNets.get(id);
-            model.fTransitionVector.appendTransition(timestamp, values);
+            lock();
+            try {
+                model.getTransitionVector().appendTransition(timestamp, values);
+            } finally {
+                unlock();
+            }
+        }
+
+        @Override
+        public void appendTransition(int id, long timestamp, int[] words, int offset,
+                                     int width) {
+            NetDataModel model = fAllNets.get(id);
+            lock();
+            try {
+                model.getTransitionVector().appendTransition(timestamp, words, offset, width);
+            } finally {
+                unlock();
+            }
+        }
+
+        @Override
+        public void appendRealTransition(int id, long timestamp, double value) {
+            TransitionVector vector = fAllNets.get(id).getTransitionVector();
+            if (vector.isReal()) {
+                lock();
+                try {
+                    ((RealTransitionVector) vector).appendRealTransition(timestamp, value);
+                } finally {
+                    unlock();
+                }
+            } else
+                TraceBuilder.super.appendRealTransition(id, timestamp, value);
+        }
+
+        @Override
+        public void setNetLoaded(int id, boolean loaded) {
+            fAllNets.get(id).fSource.fLoaded = loaded;
         }
 
         @Override
         public int newNet(String shortName, int cloneId, int width) {
+            TransitionVector transitionVector = null;
+            if (cloneId == -1) {
+                if (width == 1)
+                    transitionVector = new ScalarTransitionVector(fStorage);
+                else
+                    transitionVector = new TransitionVector(width, fStorage);
+            }
+
+            return addNet(shortName, cloneId, transitionVector);
+        }
+
+        @Override
+        public int newRealNet(String shortName, int cloneId) {
+            return addNet(shortName, cloneId, cloneId == -1 ? new RealTransitionVector(fStorage)
+                : null);
+        }
+
+        /// @param transitionVector Storage for a new net, or null if this is
+        ///   a clone.
+        private int addNet(String shortName, int cloneId, TransitionVector transitionVector) {
             // Build full path
             StringBuffer fullName = new StringBuffer();
             for (String scope : fScopeStack) {
@@ -174,7 +811,7 @@ public class TraceDataModel {
             if (cloneId != -1)
                 net = new NetDataModel(shortName, fullName.toString(), fAllNets.get(cloneId));
             else
-                net = new NetDataModel(shortName, fullName.toString(), width);
+                net = new NetDataModel(shortName, fullName.toString(), transitionVector);
 
             fAllNets.add(net);
             int thisNetIndex = fAllNets.size() - 1;
@@ -184,6 +821,21 @@ public class TraceDataModel {
         }
 
         private Stack<String> fScopeStack = new Stack<String>();
+        // A model that is being built from scratch, or is being populated
+        // (which holds the lock already), isn't read by other threads.
+        // Appending to one that was already loaded locks each change, so
+        // they can keep reading in between.
+        private void lock() {
+            if (fResumed)
+                fLock.writeLock().lock();
+        }
+
+        private void unlock() {
+            if (fResumed)
+                fLock.writeLock().unlock();
+        }
+
+        private boolean fResumed;
     }
 
     private long fMaxTimestamp;
@@ -191,4 +843,29 @@ public class TraceDataModel {
     private ArrayList<NetDataModel> fAllNets = new ArrayList<NetDataModel>();
     private NetTreeModel fNetTree = new NetTreeModel();
     private int fTimescale;
+    private ArrayList<Listener> fListeners = new ArrayList<Listener>();
+    private NetDataSource fNetDataSource;
+
+    // Nets whose transitions have been read from fNetDataSource. Only the
+    // original of a set of clones is stored. Readers mark a net as used by
+    // setting its fLastUsed to fUseGeneration, which is incremented each
+    // time nets are read, so they don't need exclusive access to keep
+    // this in order. It is sorted when nets need to be discarded.
+    private ArrayList<NetDataModel> fPopulatedNets = new ArrayList<NetDataModel>();
+    private long fPopulatedMemory;
+    private volatile long fUseGeneration;
+
+    // Nets passed to requestNets that haven't been read yet, and the
+    // thread that reads them. Only used on the event dispatch thread.
+    private ArrayList<Integer> fRequestedNets = new ArrayList<Integer>();
+    private ArrayList<RequestCallback> fRequestCallbacks = new ArrayList<RequestCallback>();
+    private boolean fRequestScheduled;
+    private boolean fRequestInProgress;
+    private ExecutorService fRequestExecutor;
+    private long fMemoryBudget = DEFAULT_MEMORY_BUDGET;
+    private TransitionStorage fStorage = TransitionStorage.HEAP;
+
+    // Held for reading by threads between beginReading and endReading, and
+    // for writing while the model is changed.
+    private ReentrantReadWriteLock fLock = new ReentrantReadWriteLock();
 }
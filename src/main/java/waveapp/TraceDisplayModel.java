@@ -83,7 +83,13 @@ public class TraceDisplayModel {
     }
 
     public void makeNetVisible(int aboveIndex, int netId) {
-        fVisibleNets.add(aboveIndex, new NetViewModel(netId, null));
+        makeNetVisible(aboveIndex, netId, null);
+    }
+
+    /// @param formatter How to display values of the net, or null for the
+    ///   default (hexadecimal)
+    public void makeNetVisible(int aboveIndex, int netId, ValueFormatter formatter) {
+        fVisibleNets.add(aboveIndex, new NetViewModel(netId, formatter));
         for (Listener listener : fTraceListeners) {
             listener.netsAdded(fVisibleNets.size() - 1,
                                fVisibleNets.size() - 1);
@@ -31,10 +31,39 @@ public class Transition extends BitVector {
         fTimestamp = timestamp;
     }
 
+    /// @returns true if this is a transition of a net with real values
+    ///   (see TraceBuilder.newRealNet). The bits of the transition are then
+    ///   the IEEE 754 double precision representation of the value.
+    public boolean isReal() {
+        return fIsReal;
+    }
+
+    /// @returns Value of a real transition. Not valid if isReal is false.
+    public double getRealValue() {
+        return fRealValue;
+    }
+
+    void setRealValue(double value) {
+        fIsReal = true;
+        fRealValue = value;
+        setRealBits(this, value);
+    }
+
     void assign(Transition t) {
         super.assign(t);
         fTimestamp = t.fTimestamp;
+        fIsReal = t.fIsReal;
+        fRealValue = t.fRealValue;
+    }
+
+    /// Set a vector to the IEEE 754 representation of a value
+    /// @param bits Vector that is already 64 bits wide
+    static void setRealBits(BitVector bits, double value) {
+        bits.getValueWords()[0] = Double.doubleToRawLongBits(value);
+        bits.getMaskWords()[0] = 0;
     }
 
     private long fTimestamp;
+    private boolean fIsReal;
+    private double fRealValue;
 }
@@ -0,0 +1,107 @@
+//
+// Copyright 2016 Jeff Bush
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package waveapp;
+
+import java.util.Arrays;
+
+///
+/// A sequence of decoded transitions that have not been added to a
+/// TraceBuilder yet. Loaders use this to decode on one thread and build on
+/// another. Values are stored in the packed format described in
+/// BitVector.unpack, back to back in a single array, so adding a transition
+/// doesn't allocate anything unless the arrays need to grow.
+///
+class TransitionBatch {
+    private static final int INITIAL_SIZE = 1024;
+
+    /// Width recorded for real values, which are stored as the two halves
+    /// of their IEEE 754 representation.
+    private static final int REAL_WIDTH = -1;
+
+    void add(int netId, long timestamp, int width, int[] packedValue) {
+        int wordCount = BitVector.packedWordCount(width);
+        reserve(netId, timestamp, width, wordCount);
+        System.arraycopy(packedValue, 0, fValues, fValueLength, wordCount);
+        fValueLength += wordCount;
+    }
+
+    /// Add a transition for a net created with TraceBuilder.newRealNet
+    void addReal(int netId, long timestamp, double value) {
+        reserve(netId, timestamp, REAL_WIDTH, 2);
+        long rawBits = Double.doubleToRawLongBits(value);
+        fValues[fValueLength++] = (int) rawBits;
+        fValues[fValueLength++] = (int) (rawBits >>> 32);
+    }
+
+    /// Add an entry, and make sure there is space for its value
+    private void reserve(int netId, long timestamp, int width, int wordCount) {
+        if (fCount == fNetIds.length) {
+            int newSize = fNetIds.length * 2;
+            fNetIds = Arrays.copyOf(fNetIds, newSize);
+            fTimestamps = Arrays.copyOf(fTimestamps, newSize);
+            fWidths = Arrays.copyOf(fWidths, newSize);
+        }
+
+        if (fValueLength + wordCount > fValues.length) {
+            fValues = Arrays.copyOf(fValues, Math.max(fValues.length * 2,
+                fValueLength + wordCount));
+        }
+
+        fNetIds[fCount] = netId;
+        fTimestamps[fCount] = timestamp;
+        fWidths[fCount] = width;
+        fCount++;
+    }
+
+    int size() {
+        return fCount;
+    }
+
+    void clear() {
+        fCount = 0;
+        fValueLength = 0;
+    }
+
+    /// Add all transitions in this batch to a sink, in the order they
+    /// were added to the batch.
+    /// @param minTimestamp Transitions with timestamps earlier than this are
+    ///    moved to this time.
+    void appendTo(TransitionSink sink, long minTimestamp) {
+        int valueOffset = 0;
+        for (int i = 0; i < fCount; i++) {
+            long timestamp = Math.max(fTimestamps[i], minTimestamp);
+            if (fWidths[i] == REAL_WIDTH) {
+                long rawBits = (fValues[valueOffset] & 0xffffffffL)
+                    | ((long) fValues[valueOffset + 1] << 32);
+                sink.appendRealTransition(fNetIds[i], timestamp,
+                    Double.longBitsToDouble(rawBits));
+                valueOffset += 2;
+            } else {
+                sink.appendTransition(fNetIds[i], timestamp, fValues, valueOffset,
+                    fWidths[i]);
+                valueOffset += BitVector.packedWordCount(fWidths[i]);
+            }
+        }
+    }
+
+    private int fCount;
+    private int[] fNetIds = new int[INITIAL_SIZE];
+    private long[] fTimestamps = new long[INITIAL_SIZE];
+    private int[] fWidths = new int[INITIAL_SIZE];
+    private int[] fValues = new int[INITIAL_SIZE];
+    private int fValueLength;
+}
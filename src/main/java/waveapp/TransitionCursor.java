@@ -0,0 +1,171 @@
+//
+// Copyright 2016 Jeff Bush
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package waveapp;
+
+///
+/// Reads the transitions of one net, remembering the position of the last
+/// one that was read. Seeking to a timestamp near that position is much
+/// faster than TraceDataModel.findIndex, which starts from scratch every
+/// time (see TimestampVector.Reader.findIndex), and transitions after it
+/// can be read in order without searching at all. This suits scrolling,
+/// dragging the cursor and stepping through a search, which look at
+/// nearby timestamps over and over.
+///
+/// seek must be called before reading anything else. A cursor is not
+/// thread safe, so each thread that reads a net should use its own.
+/// Reading doesn't allocate anything, unless the transitions of the net
+/// are replaced, for example because they were read again after being
+/// discarded (see TraceDataModel.setMemoryBudget).
+///
+public class TransitionCursor {
+    TransitionCursor(TraceDataModel model, int netId) {
+        fModel = model;
+        fNetId = netId;
+    }
+
+    public TraceDataModel getModel() {
+        return fModel;
+    }
+
+    public int getNetId() {
+        return fNetId;
+    }
+
+    /// Move to the transition at this timestamp. If there isn't one, the
+    /// one before it. If this is before the first transition, the first one.
+    /// @returns Index of the transition, like TraceDataModel.findIndex
+    public int seek(long timestamp) {
+        TransitionVector vector = fModel.getReadableTransitions(fNetId);
+        TimestampVector timestamps = vector.getTimestamps();
+        if (timestamps != fTimestamps) {
+            fTimestamps = timestamps;
+            fReader = timestamps.new Reader();
+        }
+
+        fVector = vector;
+        fIndex = fReader.findIndex(timestamp);
+        return fIndex;
+    }
+
+    /// Move to the next transition, if there is one
+    /// @returns false if this is already at the last transition
+    public boolean next() {
+        if (fIndex + 1 >= fVector.getTransitionCount())
+            return false;
+
+        fIndex++;
+        return true;
+    }
+
+    /// For drawing transitions that land in the same pixel column as one.
+    /// If there are transitions after the current one that are before the
+    /// end of the column, move to the last of them, which has the value
+    /// after the column.
+    /// @param end First timestamp after the column
+    /// @param level Level of the activity pyramid to find the transitions
+    ///   with (see ActivityPyramid.getLevel), which doesn't search, but
+    ///   rounds the end up to a bucket boundary. If this is -1, it searches
+    ///   from the current transition instead.
+    /// @returns true if this moved
+    public boolean skipColumn(long end, int level) {
+        int next;
+        if (level >= 0)
+            next = getActivityPyramid().getIndexAfter(level, end);
+        else {
+            if (fIndex + 1 >= fVector.getTransitionCount() || fReader.get(fIndex + 1) >= end)
+                return false;
+
+            next = fReader.findIndex(end - 1) + 1;
+        }
+
+        if (next <= fIndex + 1)
+            return false;
+
+        fIndex = next - 1;
+        return true;
+    }
+
+    /// @returns true if any transition from firstIndex to the current one
+    ///   has X or Z bits. If level is 0 or more, the activity pyramid is
+    ///   used at that level, and this may also include transitions in the
+    ///   same buckets as those.
+    public boolean hasXOrZ(int firstIndex, int level) {
+        ActivityPyramid pyramid = getActivityPyramid();
+        if (pyramid != null) {
+            long start = fReader.get(firstIndex);
+            long end = fReader.get(fIndex) + 1;
+            if (!pyramid.hasXZ(Math.max(level, 0), start, end))
+                return false;
+
+            if (level >= 0)
+                return true;
+        }
+
+        return fVector.hasXOrZ(firstIndex, fIndex + 1);
+    }
+
+    /// @returns Index of the current transition
+    public int getIndex() {
+        return fIndex;
+    }
+
+    /// @returns Number of transitions of the net, as of the last seek
+    public int getTransitionCount() {
+        return fVector.getTransitionCount();
+    }
+
+    public long getTimestamp() {
+        return fReader.get(fIndex);
+    }
+
+    /// Copy the value of the current transition into a vector owned by the
+    /// caller (see TraceDataModel.getValue).
+    public void getValue(BitVector outValue) {
+        if (outValue.getWidth() != fVector.getWidth())
+            outValue.setWidth(fVector.getWidth());
+
+        fVector.copyValue(fIndex, outValue);
+    }
+
+    /// @returns Summary for drawing the net when zoomed out, as of the
+    ///   last seek, or null if the net has too few transitions to need one.
+    public ActivityPyramid getActivityPyramid() {
+        return fVector.getActivityPyramid();
+    }
+
+    /// @returns true if values are reals (see TraceDataModel.isNetReal),
+    ///   as of the last seek
+    public boolean isReal() {
+        return fVector.isReal();
+    }
+
+    /// @returns Value of the current transition of a real net, or NaN if it
+    ///   has X or Z bits or the net wasn't loaded.
+    public double getRealValue() {
+        if (!fVector.isReal())
+            return Double.NaN;
+
+        return ((RealTransitionVector) fVector).getRealValue(fIndex);
+    }
+
+    private TraceDataModel fModel;
+    private int fNetId;
+    private TransitionVector fVector;
+    private TimestampVector fTimestamps;
+    private TimestampVector.Reader fReader;
+    private int fIndex;
+}
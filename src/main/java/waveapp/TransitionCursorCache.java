@@ -0,0 +1,44 @@
+//
+// Copyright 2016 Jeff Bush
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package waveapp;
+
+import java.util.Arrays;
+
+///
+/// Keeps a TransitionCursor for each net of a model, for views that read
+/// the same nets over and over, like when repainting. Cursors stay valid
+/// when a new trace is loaded into the model. Like the cursors themselves,
+/// this must only be used by one thread.
+///
+class TransitionCursorCache {
+    TransitionCursorCache(TraceDataModel model) {
+        fModel = model;
+    }
+
+    TransitionCursor get(int netId) {
+        if (netId >= fCursors.length)
+            fCursors = Arrays.copyOf(fCursors, Math.max(netId + 1, fCursors.length * 2));
+
+        if (fCursors[netId] == null)
+            fCursors[netId] = fModel.newCursor(netId);
+
+        return fCursors[netId];
+    }
+
+    private TraceDataModel fModel;
+    private TransitionCursor[] fCursors = new TransitionCursor[0];
+}
@@ -0,0 +1,53 @@
+//
+// Copyright 2016 Jeff Bush
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package waveapp;
+
+///
+/// Receives transitions for nets that already exist. TraceBuilder extends
+/// this with methods to define nets; a NetDataSource only gets this part.
+///
+public interface TransitionSink {
+    /// Add a new transition
+    /// @param netId Identifier of the net for which the transition takes place. This
+    ///    is the value that was returned by newNet.
+    /// @param timestamp timestamp of the transition, in time units from start.
+    /// @param values New values the signal will take after the transition.
+    public void appendTransition(int netId, long timestamp, BitVector values);
+
+    /// Add a new transition with a value in the packed format described in
+    /// BitVector.unpack. Loaders call this on the fast path, so sinks
+    /// that can store the packed value directly should override it. The
+    /// default implementation converts to a BitVector.
+    /// @param words Array containing the packed value
+    /// @param offset Index of the first word of the value in words
+    /// @param width Number of bits in the value.
+    public default void appendTransition(int netId, long timestamp, int[] words, int offset,
+                                         int width) {
+        BitVector values = new BitVector();
+        values.unpack(words, offset, width);
+        appendTransition(netId, timestamp, values);
+    }
+
+    /// Add a new transition to a net that was created with newRealNet.
+    /// The default implementation appends the IEEE 754 representation of
+    /// the value as a 64 bit vector.
+    public default void appendRealTransition(int netId, long timestamp, double value) {
+        BitVector bits = new BitVector(RealTransitionVector.WIDTH);
+        Transition.setRealBits(bits, value);
+        appendTransition(netId, timestamp, bits);
+    }
+}
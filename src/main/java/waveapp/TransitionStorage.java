@@ -0,0 +1,147 @@
+//
+// Copyright 2016 Jeff Bush
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package waveapp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+///
+/// Where TransitionVectors keep full size segments of transition data (see
+/// LongSegments). By default this is the Java heap. Storing it off-heap
+/// keeps the heap small and the garbage collector from having to trace it,
+/// so traces with billions of transitions don't need a huge -Xmx, and
+/// don't cause long GC pauses. The data is either in direct buffers
+/// (limited by -XX:MaxDirectMemorySize) or in a memory mapped temporary
+/// file (limited by disk space, and paged in and out by the OS).
+///
+/// Off-heap space is allocated in large chunks, which are split into
+/// segments. Segments that are released are reused for new segments of
+/// the same size. Space is returned to the OS once the storage (and
+/// every vector using it) is no longer referenced.
+///
+public class TransitionStorage {
+    /// Storage that uses ordinary Java arrays
+    public static final TransitionStorage HEAP = new TransitionStorage(false, null);
+
+    private static final int CHUNK_SIZE = 64 << 20;
+
+    // Allocations bigger than this get their own buffer rather than
+    // being carved out of a chunk.
+    private static final int MAX_SLICE_SIZE = CHUNK_SIZE / 16;
+
+    /// Storage in buffers allocated with ByteBuffer.allocateDirect
+    public static TransitionStorage newDirect() {
+        return new TransitionStorage(true, null);
+    }
+
+    /// Storage in a temporary file that is mapped into memory
+    /// @param directory Where to create the file, or null for the default
+    ///   temporary file directory.
+    public static TransitionStorage newMapped(File directory) throws IOException {
+        File file = File.createTempFile("wavetrace", ".tmp", directory);
+        file.deleteOnExit();
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+
+        // The mappings stay valid after the file is deleted. Some operating
+        // systems don't allow deleting open files; deleteOnExit handles those.
+        file.delete();
+        return new TransitionStorage(true, randomAccessFile.getChannel());
+    }
+
+    private TransitionStorage(boolean offHeap, FileChannel mappedFile) {
+        fOffHeap = offHeap;
+        fMappedFile = mappedFile;
+    }
+
+    public boolean isOffHeap() {
+        return fOffHeap;
+    }
+
+    /// @returns Total bytes of off-heap memory or file space reserved
+    public synchronized long getOffHeapSize() {
+        return fOffHeapSize;
+    }
+
+    /// Allocate an off-heap buffer that is filled with zeroes, with native
+    /// byte order. Must only be called if isOffHeap is true.
+    /// @param size Number of bytes, which must be a multiple of 8
+    /// @throws UncheckedIOException if the temporary file can't be extended
+    synchronized ByteBuffer allocate(int size) {
+        assert fOffHeap && size % 8 == 0;
+        ArrayDeque<ByteBuffer> freeList = fFreeBuffers.get(size);
+        ByteBuffer buffer;
+        if (freeList != null && !freeList.isEmpty()) {
+            buffer = freeList.pop();
+            for (int i = 0; i < size; i += 8)
+                buffer.putLong(i, 0);
+        } else if (size > MAX_SLICE_SIZE)
+            buffer = allocateNew(size);
+        else {
+            if (fChunk == null || fChunk.remaining() < size)
+                fChunk = allocateNew(CHUNK_SIZE);
+
+            fChunk.limit(fChunk.position() + size);
+            buffer = fChunk.slice();
+            fChunk.position(fChunk.limit());
+            fChunk.limit(fChunk.capacity());
+        }
+
+        return buffer.order(ByteOrder.nativeOrder());
+    }
+
+    /// Return a buffer from allocate so it can be reused. It must not be
+    /// accessed afterward.
+    synchronized void release(ByteBuffer buffer) {
+        ArrayDeque<ByteBuffer> freeList = fFreeBuffers.get(buffer.capacity());
+        if (freeList == null) {
+            freeList = new ArrayDeque<ByteBuffer>();
+            fFreeBuffers.put(buffer.capacity(), freeList);
+        }
+
+        freeList.push(buffer);
+    }
+
+    private ByteBuffer allocateNew(int size) {
+        ByteBuffer buffer;
+        if (fMappedFile != null) {
+            // Mapping past the end of the file extends it. The new space
+            // reads as zeroes.
+            try {
+                buffer = fMappedFile.map(FileChannel.MapMode.READ_WRITE, fOffHeapSize, size);
+            } catch (IOException exc) {
+                throw new UncheckedIOException(exc);
+            }
+        } else
+            buffer = ByteBuffer.allocateDirect(size);
+
+        fOffHeapSize += size;
+        return buffer;
+    }
+
+    private boolean fOffHeap;
+    private FileChannel fMappedFile;    // null if using direct buffers
+    private ByteBuffer fChunk;          // Space for new segments
+    private long fOffHeapSize;
+    private HashMap<Integer, ArrayDeque<ByteBuffer>> fFreeBuffers
+        = new HashMap<Integer, ArrayDeque<ByteBuffer>>();
+}
@@ -5,7 +5,7 @@
 // you may not use this file except in compliance with the License.
 // You may obtain a copy of the License at
 //
-//       http://www.apache.org/licenses/LICENSE-2.0
+//     http://www.apache.org/licenses/LICENSE-2.0
 //
 // Unless required by applicable law or agreed to in writing, software
 // distributed under the License is distributed on an "AS IS" BASIS,
@@ -16,13 +16,15 @@
 
 package waveapp;
 
+import java.nio.LongBuffer;
 import java.util.*;
 
 ///
 /// An ordered series of value changes on a single net (which may have
 /// one or more bits).  This is a convenience class used by TraceDataModel.
 /// Allocating hundreds of thousands of Transition objects would be slow and
-/// inefficient, so this stores the values packed into a single array.
+/// inefficient, so this stores the values packed into two bit plane arrays
+/// (see BitVector), and the timestamps compressed in a TimestampVector.
 /// Because it is sorted, it supports efficient binary searches for values
 /// at specific timestamps.
 ///
@@ -30,48 +32,74 @@ import java.util.*;
 /// of the trace.  They are assumed to have the value of the first transition.
 ///
 public class TransitionVector {
+    /// Segments of the bit planes hold a power of two number of transitions
+    /// (at least 64, so each segment is a whole number of words), chosen
+    /// so the segment is no bigger than this, if possible.
+    private static final int MAX_SEGMENT_BITS = 1 << 20;
+    private static final int MIN_SEGMENT_SHIFT = 6;
+    private static final int MAX_SEGMENT_SHIFT = 12;
+
     public TransitionVector(int width) {
+        this(width, TransitionStorage.HEAP);
+    }
+
+    /// @param storage Where to keep transition data
+    public TransitionVector(int width, TransitionStorage storage) {
+        this(width, storage, true);
+    }
+
+    /// @param allocatePlanes false for subclasses that store values
+    ///   themselves, which only use the timestamps of this class. They
+    ///   override every method that reads or appends values.
+    TransitionVector(int width, TransitionStorage storage, boolean allocatePlanes) {
         assert width > 0;
         fWidth = width;
+        fStorage = storage;
+        fTimestamps = new TimestampVector(storage);
+        fSegmentShift = MIN_SEGMENT_SHIFT;
+        while (fSegmentShift < MAX_SEGMENT_SHIFT
+               && (2L << fSegmentShift) * width <= MAX_SEGMENT_BITS)
+            fSegmentShift++;
+
+        if (allocatePlanes) {
+            fValuePlane = newPlane();
+            fPlaneScratch = new long[2];
+        }
     }
 
     /// @returns Iterator at transition. If there isn't a transition at this transition,
     ///   returns the transition before it. If this is before the first transition, returns
     ///   the first transition.
     public Iterator<Transition> findTransition(long timestamp) {
-        // Binary search
-        int low = 0;                      // Lowest possible index
-        int high = fTransitionCount - 1;  // Highest possible index
-
-        while (low <= high) {
-            int mid = (low + high) >>> 1;
-            long midKey = fTimestamps[mid];
-            if (timestamp < midKey)
-                high = mid - 1;
-            else if (timestamp > midKey)
-                low = mid + 1;
-            else
-                return new TransitionVectorIterator(mid);
-        }
-
-        // No exact match. Low is equal to the index the element would be
-        // at if it existed. We want to return the element before the
-        // timestamp. If low == 0, this is before the first element:
-        // return 0.
-        return new TransitionVectorIterator(low == 0 ? 0 : low - 1);
+        return new TransitionVectorIterator(fTimestamps.findIndex(timestamp));
     }
 
     public long getMaxTimestamp() {
-        if (fTransitionCount == 0)
-            return 0;
-
-        return fTimestamps[fTransitionCount - 1];
+        return fTimestamps.getLast();
     }
 
     public int getWidth() {
         return fWidth;
     }
 
+    /// @returns true if values are stored as doubles (see RealTransitionVector)
+    public boolean isReal() {
+        return false;
+    }
+
+    /// @returns Index of the transition at this timestamp. If there isn't
+    ///   one, the index of the one before it. If this is before the first
+    ///   transition, 0.
+    int findIndex(long timestamp) {
+        return getTimestamps().findIndex(timestamp);
+    }
+
+    /// Random access to a timestamp. Use getTimestamps().new Reader() to
+    /// read a series of them.
+    long getTimestamp(int index) {
+        return getTimestamps().get(index);
+    }
+
     private class TransitionVectorIterator implements Iterator<Transition> {
         TransitionVectorIterator(int index) {
             assert index >= 0;
@@ -92,24 +120,8 @@ public class TransitionVector {
             if (!hasNext())
                 throw new NoSuchElementException();
 
-            int bitOffset = fNextIndex * fWidth * 2;
-            int wordOffset = bitOffset >> 5;
-            bitOffset &= 31;
-            int currentWord = fValues[wordOffset] >> bitOffset;
-
-            // Copy values out of packed array
-            for (int i = 0; i < fWidth; i++) {
-                fTransition.setBit(fWidth - i - 1, currentWord & 3);
-                bitOffset += 2;
-                if (bitOffset == 32) {
-                    wordOffset++;
-                    currentWord = fValues[wordOffset];
-                    bitOffset = 0;
-                } else
-                    currentWord >>= 2;
-            }
-
-            fTransition.setTimestamp(fTimestamps[fNextIndex]);
+            copyValue(fNextIndex, fTransition);
+            fTransition.setTimestamp(fTimestampReader.get(fNextIndex));
             fNextIndex++;
 
             return fTransition;
@@ -125,72 +137,288 @@ public class TransitionVector {
         // Reuse the same Transition/BitVector so we don't have to keep
         // reallocating.
         private Transition fTransition = new Transition();
+        private TimestampVector.Reader fTimestampReader = fTimestamps.new Reader();
+    }
+
+    /// Copy the value of a transition into a vector, a word at a time
+    /// @param values Vector that has the same width as this one
+    void copyValue(int index, BitVector values) {
+        long[] valueWords = values.getValueWords();
+        long[] maskWords = values.getMaskWords();
+        int segment = index >>> fSegmentShift;
+        LongBuffer valueSegment = fValuePlane.getSegment(segment);
+        LongBuffer maskSegment = fMaskPlane == null ? null : fMaskPlane.getSegment(segment);
+        long bitOffset = (long) (index & ((1 << fSegmentShift) - 1)) * fWidth;
+        for (int i = 0; i < valueWords.length; i++) {
+            int count = Math.min(64, fWidth - i * 64);
+            valueWords[i] = extractBits(valueSegment, bitOffset, count);
+            maskWords[i] = maskSegment == null ? 0 : extractBits(maskSegment, bitOffset, count);
+            bitOffset += 64;
+        }
+    }
+
+    /// @returns true if any bit of a transition is X or Z
+    boolean isXOrZ(int index) {
+        if (fMaskPlane == null)
+            return false;
+
+        LongBuffer maskSegment = fMaskPlane.getSegment(index >>> fSegmentShift);
+        long bitOffset = (long) (index & ((1 << fSegmentShift) - 1)) * fWidth;
+        for (int remaining = fWidth; remaining > 0; remaining -= 64) {
+            if (extractBits(maskSegment, bitOffset, Math.min(64, remaining)) != 0)
+                return true;
+
+            bitOffset += 64;
+        }
+
+        return false;
+    }
+
+    /// @returns true if any transition from start up to, but not
+    ///   including, end has X or Z bits
+    boolean hasXOrZ(int start, int end) {
+        for (int index = start; index < end; index++) {
+            if (isXOrZ(index))
+                return true;
+        }
+
+        return false;
+    }
+
+    /// Build or extend the summary used to draw this when zoomed out.
+    /// Called after transitions are loaded or appended.
+    void updateActivityPyramid() {
+        if (fPyramid == null) {
+            if (getTransitionCount() < ActivityPyramid.MIN_TRANSITIONS)
+                return;
+
+            fPyramid = new ActivityPyramid();
+        }
+
+        fPyramid.update(this);
+    }
+
+    /// @returns null if this had too few transitions to need one the last
+    ///   time updateActivityPyramid was called.
+    ActivityPyramid getActivityPyramid() {
+        return fPyramid;
+    }
+
+    /// @returns count bits (1-64) starting at a bit offset in a plane
+    private static long extractBits(LongBuffer plane, long bitOffset, int count) {
+        int word = (int) (bitOffset >>> 6);
+        int shift = (int) bitOffset & 63;
+        long bits = plane.get(word) >>> shift;
+        if (shift + count > 64)
+            bits |= plane.get(word + 1) << (64 - shift);
+
+        if (count < 64)
+            bits &= (1L << count) - 1;
+
+        return bits;
+    }
+
+    /// Set count bits (1-64) starting at a bit offset in a plane. The bits
+    /// must currently be zero.
+    private static void depositBits(LongBuffer plane, long bitOffset, int count, long bits) {
+        int word = (int) (bitOffset >>> 6);
+        int shift = (int) bitOffset & 63;
+        plane.put(word, plane.get(word) | (bits << shift));
+        if (shift + count > 64)
+            plane.put(word + 1, plane.get(word + 1) | (bits >>> (64 - shift)));
     }
 
     /// Called while the waveform is being loaded.
     /// The timestamp must be after the last transition that was
     /// appended
     public void appendTransition(long timestamp, BitVector values) {
-        if (fTransitionCount == fAllocSize) {
-            // Grow the array
-            if (fAllocSize < 128)
-                fAllocSize = 128;
-            else
-                fAllocSize *= 2;
-
-            long[] newTimestamps = new long[fAllocSize];
-            int[] newValues = new int[fAllocSize * fWidth / 16];
-
-            if (fTimestamps != null) {
-                System.arraycopy(fTimestamps, 0, newTimestamps,
-                                 0, fTransitionCount);
-                System.arraycopy(fValues, 0, newValues,
-                                 0, fTransitionCount * fWidth / 16);
+        reservePlanes();
+        fTimestamps.append(timestamp);
+
+        // If the passed value is smaller than the vector width, pad with zeroes
+        // (the planes are initially zero). If it is wider, only copy the low
+        // order bits of it.
+        long[] valueWords = values.getValueWords();
+        long[] maskWords = values.getMaskWords();
+        int copyWidth = Math.min(values.getWidth(), fWidth);
+        int segment = fTransitionCount >>> fSegmentShift;
+        long bitOffset = (long) (fTransitionCount & ((1 << fSegmentShift) - 1)) * fWidth;
+        for (int i = 0; i * 64 < copyWidth; i++) {
+            int count = Math.min(64, copyWidth - i * 64);
+            long validBits = count == 64 ? -1L : (1L << count) - 1;
+            depositBits(fValuePlane.getSegment(segment), bitOffset, count,
+                valueWords[i] & validBits);
+            long mask = maskWords[i] & validBits;
+            if (mask != 0) {
+                allocateMaskPlane();
+                depositBits(fMaskPlane.getSegment(segment), bitOffset, count, mask);
             }
 
-            fTimestamps = newTimestamps;
-            fValues = newValues;
+            bitOffset += 64;
         }
 
-        if (fTransitionCount > 0)
-            assert timestamp >= fTimestamps[fTransitionCount - 1];
-
-        fTimestamps[fTransitionCount] = timestamp;
-
-        int bitIndex = fTransitionCount * fWidth;
+        fTransitionCount++;
+    }
 
-        // If the passed value is smaller than the vector width, pad with zeroes
-        if (fWidth > values.getWidth())
-            bitIndex += fWidth - values.getWidth();
-
-        int wordOffset = bitIndex / 16;
-        int bitOffset = (bitIndex * 2) % 32;
-
-        // If the passed value is wider than the vector width, only copy the
-        // low order bits of it.
-        for (int i = Math.min(values.getWidth(), fWidth) - 1; i >= 0; i--) {
-            fValues[wordOffset] |= values.getBit(i) << bitOffset;
-            bitOffset += 2;
-            if (bitOffset == 32) {
-                wordOffset++;
-                bitOffset = 0;
+    /// Same as appendTransition(long, BitVector), but takes a value in the
+    /// packed format described in BitVector.unpack and converts it directly
+    /// into the bit planes without allocating anything.
+    /// @param words Array containing the packed value
+    /// @param offset Index of the first word of the value in words
+    /// @param width Number of bits in the value. If this is different than
+    ///    the width of this vector, the value is zero padded or truncated.
+    public void appendTransition(long timestamp, int[] words, int offset, int width) {
+        reservePlanes();
+        fTimestamps.append(timestamp);
+
+        int copyWidth = Math.min(width, fWidth);
+        int segment = fTransitionCount >>> fSegmentShift;
+        long bitOffset = (long) (fTransitionCount & ((1 << fSegmentShift) - 1)) * fWidth;
+        for (int i = 0; i * 64 < copyWidth; i++) {
+            int count = Math.min(64, copyWidth - i * 64);
+            BitVector.unpackPlanes(words, offset, copyWidth, i, fPlaneScratch);
+            depositBits(fValuePlane.getSegment(segment), bitOffset, count, fPlaneScratch[0]);
+            if (fPlaneScratch[1] != 0) {
+                allocateMaskPlane();
+                depositBits(fMaskPlane.getSegment(segment), bitOffset, count,
+                    fPlaneScratch[1]);
             }
+
+            bitOffset += 64;
         }
 
         fTransitionCount++;
     }
 
+    int getTransitionCount() {
+        return fTransitionCount;
+    }
+
+    /// For subclasses, which store the value of the new transition first
+    /// (at index getTransitionCount()), then call this.
+    void appendTimestamp(long timestamp) {
+        fTimestamps.append(timestamp);
+        fTransitionCount++;
+    }
+
+    /// Transition data, for serializing it (see TraceCacheFile). Only the
+    /// first planeWords(getTransitionCount(), getWidth()) words of each
+    /// plane are valid. These must not be modified.
+    TimestampVector getTimestamps() {
+        return fTimestamps;
+    }
+
+    LongSegments getValuePlane() {
+        return fValuePlane;
+    }
+
+    /// @returns null if no transition has X or Z bits
+    LongSegments getMaskPlane() {
+        return fMaskPlane;
+    }
+
+    /// @returns An empty plane with the segment size used by this vector,
+    ///   for passing to setTransitions.
+    LongSegments newPlane() {
+        return new LongSegments((int) ((1L << fSegmentShift) * fWidth / 64), fStorage);
+    }
+
+    TransitionStorage getStorage() {
+        return fStorage;
+    }
+
+    /// @returns Number of words in each plane that are used for count
+    ///   transitions of a net with this width.
+    static long planeWords(int count, int width) {
+        return ((long) count * width + 63) / 64;
+    }
+
+    /// Replace the contents of this vector with transition data that was
+    /// deserialized. This takes ownership of them.
+    /// @param timestamps One for each transition
+    /// @param valuePlane Values in the same format as getValuePlane, created
+    ///    by newPlane. It must have at least planeWords(timestamps.size(),
+    ///    width) elements reserved.
+    /// @param maskPlane Same length as valuePlane, or null if there are
+    ///    no X or Z values.
+    ///    Subclasses that store values themselves pass null for both planes.
+    void setTransitions(TimestampVector timestamps, LongSegments valuePlane,
+                        LongSegments maskPlane) {
+        fTimestamps = timestamps;
+        fValuePlane = valuePlane;
+        fMaskPlane = maskPlane;
+        fTransitionCount = timestamps.size();
+    }
+
+    /// @returns Approximate number of bytes of heap used by transition data
+    public long getMemoryUsage() {
+        long usage = fTimestamps.getMemoryUsage();
+        if (fValuePlane != null)
+            usage += fValuePlane.getMemoryUsage();
+
+        if (fMaskPlane != null)
+            usage += fMaskPlane.getMemoryUsage();
+
+        return usage;
+    }
+
+    /// Remove all transitions and release the memory used by them. More
+    /// can be appended afterward.
+    public void clear() {
+        fTimestamps.clear();
+        if (fValuePlane != null)
+            fValuePlane.clear();
+
+        fMaskPlane = null;
+        fTransitionCount = 0;
+    }
+
+    /// Called after loading to release space that was reserved for more
+    /// transitions. More can still be appended afterward.
+    public void compact() {
+        fTimestamps.compact();
+        long words = planeWords(fTransitionCount, fWidth);
+        if (fValuePlane != null)
+            fValuePlane.compact(words);
+
+        if (fMaskPlane != null)
+            fMaskPlane.compact(words);
+    }
+
+    /// Called the first time a value with X or Z bits is appended
+    private void allocateMaskPlane() {
+        if (fMaskPlane == null) {
+            fMaskPlane = newPlane();
+            fMaskPlane.reserve(planeWords(fTransitionCount + 1, fWidth));
+        }
+    }
+
+    /// Make sure there is space in the planes for another transition
+    private void reservePlanes() {
+        long words = planeWords(fTransitionCount + 1, fWidth);
+        fValuePlane.reserve(words);
+        if (fMaskPlane != null)
+            fMaskPlane.reserve(words);
+    }
+
     // Number of bits for this net
     private int fWidth;
 
-    private long[] fTimestamps;
-
-    // Values are packed into this array. Each bit in the output requires two
-    // bits in this array (to represent four values: 0, 1, X, and Z). These
-    // are stored starting with the first bit as the LSB of each array word
-    // up to the MSB. The next bit is then stored in the next higher array
-    // entry. There is no padding between adjacent transitions.
-    private int[] fValues;
+    private TransitionStorage fStorage;
+    private TimestampVector fTimestamps;
+
+    // Values are stored in two bit planes (see BitVector). Transition n
+    // occupies bits n * fWidth through (n + 1) * fWidth - 1 of each plane,
+    // starting with the least significant bit of each word. There is no
+    // padding between adjacent transitions. Each segment of the planes
+    // holds 1 << fSegmentShift transitions, so none span two segments.
+    // The mask plane is only allocated once a value with X or Z bits is
+    // appended, so nets that only have 0 and 1 values use one bit per bit.
+    // The value plane is null in subclasses that store values themselves.
+    private LongSegments fValuePlane;
+    private LongSegments fMaskPlane;
+    private int fSegmentShift;
     private int fTransitionCount;
-    private int fAllocSize; // Used only while building
+    private long[] fPlaneScratch;
+    private ActivityPyramid fPyramid;
 }
@@ -17,36 +17,163 @@
 package waveapp;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
 
 ///
 /// Parse a value change dump (VCD) formatted text file and push the contents into a
 /// provided trace model
 /// All section references are to IEEE 1364-2001.
 ///
-public class VCDLoader implements TraceLoader {
+public class VCDLoader implements TraceLoader, NetDataSource {
+    /// Parallel loads split the file into ranges no smaller than this.
+    private static final long MIN_RANGE_SIZE = 0x4000;
+
+    /// Number of ranges created per thread in a parallel load. Having more
+    /// ranges than threads balances the load when ranges take different
+    /// amounts of time to parse.
+    private static final int RANGES_PER_THREAD = 4;
+
+    private static final int PROGRESS_POLL_INTERVAL_MS = 100;
+
+    /// Number of bytes before the end of the loaded data that are checked
+    /// to detect if a file has been rewritten (see canLoadAppended)
+    private static final int TAIL_CHECK_SIZE = 0x1000;
+
+    /// Maximum number of entries in the checkpoint index built in lazy mode
+    private static final int MAX_CHECKPOINTS = 1024;
+
+    private static final int DEFAULT_BATCH_SIZE = 4096;
+    private static final int DEFAULT_QUEUE_DEPTH = 8;
+
+    /// Queued after the last batch of a pipelined load.
+    private static final TransitionBatch END_OF_BATCHES = new TransitionBatch();
+
+    public VCDLoader() {}
+
+    /// Loader for one range of a parallel load, or the lexer stage of a
+    /// pipelined load. It writes into a TransitionBatch rather than a
+    /// TraceBuilder.
+    private VCDLoader(VCDLoader parent, VCDTokenizer tokenizer, long currentTime) {
+        fParent = parent;
+        fNetMap = parent.fNetMap;
+        fTokenizer = tokenizer;
+        fCurrentTime = currentTime;
+        fBatch = new TransitionBatch();
+    }
+
+    /// Parse value changes using multiple threads. The header is always
+    /// parsed serially. After that, the file is split into ranges at
+    /// timestamp boundaries, which are parsed concurrently then added to the
+    /// builder in file order, so the builder sees the same sequence of calls
+    /// as a serial load. Compressed files are always loaded serially.
+    /// @param threadCount Number of threads to use. 1 (the default) loads
+    ///    serially.
+    public void setParallelism(int threadCount) {
+        fParallelism = Math.max(threadCount, 1);
+    }
+
+    /// When loading serially, one thread reads and decodes value changes,
+    /// and passes them in batches to the calling thread, which adds them to
+    /// the TraceBuilder. This allows file I/O and parsing to overlap with
+    /// building the model.
+    /// @param batchSize Number of transitions in each batch.
+    /// @param queueDepth Maximum number of batches waiting to be added to
+    ///    the builder. If this is 0, everything is done on the calling thread.
+    public void setPipelineOptions(int batchSize, int queueDepth) {
+        fBatchSize = Math.max(batchSize, 1);
+        fQueueDepth = Math.max(queueDepth, 0);
+    }
+
+    /// Allows reading value changes that are appended to the file after it
+    /// has been loaded, for example while a simulation is still running (see
+    /// loadAppended). In this mode, load stops at the end of the last complete
+    /// line, because the writer may not have finished the one after it.
+    /// This is ignored for compressed files.
+    public void setFollowMode(boolean follow) {
+        fFollow = follow;
+    }
+
+    /// Only read transitions for nets that are accepted by the filter. Other
+    /// nets are still added to the builder, but are marked as not loaded,
+    /// and their value changes are skipped without being decoded. An
+    /// identifier code is loaded if any of the nets that share it is
+    /// accepted.
+    /// @param filter Filter to apply, or null to load all nets.
+    public void setNetFilter(NetFilter filter) {
+        fNetFilter = filter != null && !filter.isEmpty() ? filter : null;
+    }
+
+    /// In lazy mode, load only reads the header and builds a sparse index
+    /// of timestamp lines in the rest of the file. The loader is passed to
+    /// the builder as a NetDataSource, and transitions are read for a net
+    /// the first time the model needs them, skipping all other nets.
+    /// Ranges between index entries are scanned in parallel (see
+    /// setParallelism). This is ignored for compressed files. Appended data
+    /// can't be read in this mode (see loadAppended).
+    public void setLazyMode(boolean lazy) {
+        fLazy = lazy;
+    }
+
     @Override
     public void load(File file, TraceBuilder builder, ProgressListener listener)
         throws LoadException, IOException {
+        fFile = file;
         fProgressListener = listener;
-        fProgressStream = new ProgressInputStream(new FileInputStream(file));
-        fTokenizer = new StreamTokenizer(new BufferedReader(
-            new InputStreamReader(fProgressStream, "UTF8")));
         fFileLength = file.length();
         fUpdateInterval = fFileLength / 100;
-        fTokenizer.resetSyntax();
-        fTokenizer.wordChars(33, 126);
-        fTokenizer.whitespaceChars('\r', '\r');
-        fTokenizer.whitespaceChars('\n', '\n');
-        fTokenizer.whitespaceChars(' ', ' ');
-        fTokenizer.whitespaceChars('\t', '\t');
         fTraceBuilder = builder;
+        fTransitionSink = builder;
+
+        FileInputStream inputStream = new FileInputStream(file);
+        try {
+            FileChannel channel = inputStream.getChannel();
+            if (isGzipFile(channel)) {
+                fBlockReader = new GzipBlockReader(inputStream);
+                fTokenizer = new VCDTokenizer(fBlockReader);
+            } else {
+                fEndOffset = fFollow ? findLastLineEnd(channel, 0, fFileLength) : fFileLength;
+                fTokenizer = new VCDTokenizer(channel, 0, fEndOffset);
+            }
 
-        while (parseDefinition())
-            ;
+            while (parseDefinition())
+                ;
+
+            fHeaderLength = fTokenizer.getOffset();
+            if (fBlockReader == null)
+                fHeaderChecksum = checksum(channel, 0, fHeaderLength);
+
+            boolean lazy = fLazy && fBlockReader == null;
+            if (lazy) {
+                fCheckpoints = buildCheckpointIndex(channel, fHeaderLength, fEndOffset);
+                fMaxTimestamp = findMaxTimestamp(channel,
+                    fCheckpoints[fCheckpoints.length - 2], fEndOffset);
+                builder.setNetDataSource(this);
+            } else if (fParallelism > 1 && fBlockReader == null) {
+                parseRanges(channel, splitBody(channel, fHeaderLength, fEndOffset), true);
+            } else if (fQueueDepth > 0)
+                parseTransitionsPipelined();
+            else {
+                while (parseTransition())
+                    ;
+            }
 
-        while (parseTransition())
-            ;
+            // If the file doesn't end with a complete line, the last value
+            // change may have been cut off, so it can't be resumed.
+            fResumable = fBlockReader == null && !lazy && (fFollow
+                || findLastLineEnd(channel, fHeaderLength, fEndOffset) == fEndOffset);
+            if (fResumable)
+                fTailChecksum = checksum(channel, tailCheckStart(), fEndOffset);
+        } finally {
+            if (fBlockReader != null)
+                fBlockReader.close();
+
+            inputStream.close();
+        }
 
         builder.loadFinished();
 
@@ -54,14 +181,212 @@ public class VCDLoader implements TraceLoader {
         System.out.println(Integer.toString(fNetMap.size()) + " total nets");
     }
 
+    /// Check if a file that was loaded previously can be updated with
+    /// loadAppended, rather than being reloaded from the beginning. This
+    /// is true if the header and the end of the data that was loaded are
+    /// unchanged, and the file didn't end with an incomplete line.
+    /// It reads a small part of the file regardless of the file size.
+    public boolean canLoadAppended() throws IOException {
+        if (!fResumable)
+            return false;
+
+        FileInputStream inputStream = new FileInputStream(fFile);
+        try {
+            FileChannel channel = inputStream.getChannel();
+            return channel.size() >= fEndOffset
+                && checksum(channel, 0, fHeaderLength) == fHeaderChecksum
+                && checksum(channel, tailCheckStart(), fEndOffset) == fTailChecksum;
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /// Read value changes that have been appended to the file since the
+    /// last call to load or loadAppended, and add them to a builder. Only
+    /// the new part of the file is parsed. In follow mode (see
+    /// setFollowMode), this works for any uncompressed file. Otherwise, it
+    /// requires the file to have ended with a complete line when it was
+    /// loaded. The caller may check canLoadAppended first to make sure the
+    /// file hasn't been rewritten.
+    /// @param builder Builder to add transitions to. This should be attached
+    ///   to the same model as the one passed to load (see
+    ///   TraceDataModel.resumeBuilding). loadFinished will be called on it
+    ///   if anything was added.
+    /// @returns true if any new data was read
+    public boolean loadAppended(TraceBuilder builder) throws LoadException, IOException {
+        TransitionBatch batch = readAppendedTransitions();
+        if (batch == null)
+            return false;
+
+        batch.appendTo(builder, Long.MIN_VALUE);
+        builder.loadFinished();
+        return true;
+    }
+
+    @Override
+    public long getMaxTimestamp() {
+        return fMaxTimestamp;
+    }
+
+    /// Read transitions for nets that were skipped by a load in lazy mode.
+    /// This scans the whole value change section, but only decodes value
+    /// changes for the requested nets.
+    @Override
+    public synchronized void loadNets(int[] netIds, TransitionSink sink)
+        throws LoadException, IOException {
+        if (fCheckpoints == null)
+            throw new LoadException("trace was not loaded in lazy mode");
+
+        for (Net net : fLazyNets)
+            net.fLoaded = false;
+
+        for (int netId : netIds) {
+            Net net = fNetsByBuilderID.get(netId);
+            if (net == null)
+                throw new LoadException("unknown net " + netId);
+
+            net.fLoaded = true;
+        }
+
+        FileInputStream inputStream = new FileInputStream(fFile);
+        try {
+            FileChannel channel = inputStream.getChannel();
+            if (channel.size() < fEndOffset
+                || checksum(channel, 0, fHeaderLength) != fHeaderChecksum)
+                throw new LoadException("file has changed since it was loaded");
+
+            fTransitionSink = sink;
+            fProgressListener = null;
+            fCurrentTime = 0;
+            fCancelled = false;
+            parseRanges(channel, fCheckpoints, false);
+        } finally {
+            fTransitionSink = null;
+            inputStream.close();
+        }
+    }
+
+    /// Same as loadAppended, but returns the transitions instead of adding
+    /// them to a builder, so the caller can parse on one thread and update
+    /// the model on another.
+    /// @returns New transitions, or null if nothing complete has been
+    ///   appended to the file.
+    TransitionBatch readAppendedTransitions() throws LoadException, IOException {
+        if (!fResumable)
+            return null;
+
+        FileInputStream inputStream = new FileInputStream(fFile);
+        try {
+            FileChannel channel = inputStream.getChannel();
+            long fileLength = channel.size();
+            if (fileLength < fEndOffset)
+                throw new LoadException("file was truncated");
+
+            long end = findLastLineEnd(channel, fEndOffset, fileLength);
+            if (end == fEndOffset)
+                return null;
+
+            fCancelled = false;
+            VCDLoader reader = new VCDLoader(this, new VCDTokenizer(channel, fEndOffset, end),
+                fCurrentTime);
+            reader.parseRange();
+            if (reader.fRangeError instanceof LoadException)
+                throw (LoadException) reader.fRangeError;
+            else if (reader.fRangeError instanceof IOException)
+                throw (IOException) reader.fRangeError;
+            else if (reader.fRangeError instanceof RuntimeException)
+                throw (RuntimeException) reader.fRangeError;
+
+            fCurrentTime = reader.fCurrentTime;
+            fTotalTransitions += reader.fTotalTransitions;
+            fEndOffset = end;
+            fTailChecksum = checksum(channel, tailCheckStart(), fEndOffset);
+            return reader.fBatch;
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /// @returns Offset just past the last line ending in a region of the
+    ///   file, or start if there isn't one. A line that ends with a vector
+    ///   or real value is skipped, because its identifier may not have been
+    ///   written yet.
+    private static long findLastLineEnd(FileChannel channel, long start, long end)
+        throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(0x10000);
+        long chunkEnd = end;
+        while (chunkEnd > start) {
+            long chunkStart = Math.max(start, chunkEnd - buffer.capacity());
+            buffer.clear();
+            buffer.limit((int) (chunkEnd - chunkStart));
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, chunkStart + buffer.position()) < 0)
+                    throw new EOFException();
+            }
+
+            for (int i = buffer.limit() - 1; i >= 0; i--) {
+                byte c = buffer.get(i);
+                long offset = chunkStart + i;
+
+                // If a CR is last, wait for the LF that may follow so it
+                // isn't counted as a separate line.
+                if ((c == '\n' || (c == '\r' && offset + 1 < end))
+                    && !followsVectorValue(channel, offset, start))
+                    return offset + 1;
+            }
+
+            chunkEnd = chunkStart;
+        }
+
+        return start;
+    }
+
+    private long tailCheckStart() {
+        return Math.max(fHeaderLength, fEndOffset - TAIL_CHECK_SIZE);
+    }
+
+    private static long checksum(FileChannel channel, long start, long end)
+        throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocate(0x10000);
+        long offset = start;
+        while (offset < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - offset));
+            int got = channel.read(buffer, offset);
+            if (got < 0)
+                break;
+
+            buffer.flip();
+            crc.update(buffer);
+            offset += got;
+        }
+
+        return crc.getValue();
+    }
+
+    /// @returns true if the file starts with the gzip magic number
+    private static boolean isGzipFile(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(2);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0)
+                return false;
+        }
+
+        return (header.get(0) & 0xff) == 0x1f && (header.get(1) & 0xff) == 0x8b;
+    }
+
     private static class Net {
-        Net(int builderID, int width) {
+        Net(int builderID, int width, boolean isReal) {
             fBuilderID = builderID;
             fWidth = width;
+            fIsReal = isReal;
         }
 
         int fBuilderID;  /// ID given to this net by the builder
         int fWidth;
+        boolean fIsReal; /// Created with newRealNet
+        boolean fLoaded = true;  /// If false, skip value changes (see setNetFilter, loadNets)
     }
 
     /// 18.2.3.4 $scope
@@ -73,6 +398,7 @@ public class VCDLoader implements TraceLoader {
         nextToken(true);
         String scopeIdentifier = getTokenString();
         fTraceBuilder.enterScope(scopeIdentifier);
+        fScopeStack.add(scopeIdentifier);
         match("$end");
     }
 
@@ -80,6 +406,8 @@ public class VCDLoader implements TraceLoader {
     private void parseUpscope() throws LoadException, IOException {
         match("$end");
         fTraceBuilder.exitScope();
+        if (!fScopeStack.isEmpty())
+            fScopeStack.remove(fScopeStack.size() - 1);
     }
 
     /// 18.2.3.8 $var
@@ -91,7 +419,10 @@ public class VCDLoader implements TraceLoader {
     ///               | identifier[msb_index:lsb_index]
     /// index := decimal_number
     private void parseVar() throws LoadException, IOException {
-        nextToken(true);    // type (ignored)
+        nextToken(true);
+        String type = getTokenString();
+        boolean isReal = type.equals("real") || type.equals("realtime")
+            || type.equals("shortreal");
         nextToken(true);    // size
         int width = Integer.parseInt(getTokenString());
 
@@ -102,7 +433,7 @@ public class VCDLoader implements TraceLoader {
 
         // Bit select index (ignore)
         nextToken(true);
-        if (getTokenString().charAt(0) != '[')
+        if (fTokenizer.getTokenChar(0) != '[')
             fTokenizer.pushBack();
 
         match("$end");
@@ -115,12 +446,54 @@ public class VCDLoader implements TraceLoader {
             if (openBracket != -1)
                 netName = netName.substring(0, openBracket);
 
-            net = new Net(fTraceBuilder.newNet(netName, -1, width), width);
+            if (isReal)
+                net = new Net(fTraceBuilder.newRealNet(netName, -1),
+                    RealTransitionVector.WIDTH, true);
+            else
+                net = new Net(fTraceBuilder.newNet(netName, -1, width), width, false);
+
             fNetMap.put(id, net);
+            if (fLazy) {
+                fLazyNets.add(net);
+                fNetsByBuilderID.put(net.fBuilderID, net);
+            }
+
+            if (!isNetIncluded(netName)) {
+                net.fLoaded = false;
+                fTraceBuilder.setNetLoaded(net.fBuilderID, false);
+            }
         } else {
             // Shares data with existing net.  Add as clone.
-            fTraceBuilder.newNet(netName, net.fBuilderID, width);
+            int cloneID;
+            if (net.fIsReal)
+                cloneID = fTraceBuilder.newRealNet(netName, net.fBuilderID);
+            else
+                cloneID = fTraceBuilder.newNet(netName, net.fBuilderID, width);
+
+            if (fLazy)
+                fNetsByBuilderID.put(cloneID, net);
+
+            if (!net.fLoaded && isNetIncluded(netName)) {
+                net.fLoaded = true;
+                fTraceBuilder.setNetLoaded(net.fBuilderID, true);
+            }
+        }
+    }
+
+    /// @param netName Name of a net in the current scope
+    /// @returns true if the net filter accepts it
+    private boolean isNetIncluded(String netName) {
+        if (fNetFilter == null)
+            return true;
+
+        StringBuffer fullName = new StringBuffer();
+        for (String scope : fScopeStack) {
+            fullName.append(scope);
+            fullName.append('.');
         }
+
+        fullName.append(netName);
+        return fNetFilter.accept(fullName.toString());
     }
 
     /// 18.2.3.5 $timescale
@@ -168,26 +541,59 @@ public class VCDLoader implements TraceLoader {
         fTraceBuilder.setTimescale(order);
     }
 
+    /// Handle a real value change. The current token is the value.
+    private void parseRealTransition() throws LoadException, IOException {
+        double value;
+        try {
+            value = Double.parseDouble(fTokenizer.getTokenString(1));
+        } catch (NumberFormatException exc) {
+            throw new LoadException("line " + fTokenizer.lineno()
+                + ": invalid real value " + fTokenizer.getTokenString());
+        }
+
+        nextToken(true);
+        Net net = fNetMap.get(fTokenizer, 0);
+        if (net == null) {
+            throw new LoadException("line " + fTokenizer.lineno()
+                + ": Unknown net id " + fTokenizer.getTokenString());
+        }
+
+        if (!net.fIsReal) {
+            throw new LoadException("line " + fTokenizer.lineno()
+                + ": real value for non-real net " + fTokenizer.getTokenString());
+        }
+
+        if (!net.fLoaded)
+            return;
+
+        if (fBatch != null) {
+            fBatch.addReal(net.fBuilderID, fCurrentTime, value);
+            if (fBatchQueue != null && fBatch.size() >= fBatchSize)
+                queueBatch();
+        } else
+            fTransitionSink.appendRealTransition(net.fBuilderID, fCurrentTime, value);
+    }
+
     /// @returns true if there are more definitions, false if it has hit
     /// the end of the definitions section
     private boolean parseDefinition() throws LoadException, IOException {
         nextToken(true);
-        if (getTokenString().equals("$scope"))
+        if (fTokenizer.tokenEquals("$scope"))
             parseScope();
-        else if (getTokenString().equals("$var"))
+        else if (fTokenizer.tokenEquals("$var"))
             parseVar();
-        else if (getTokenString().equals("$upscope"))
+        else if (fTokenizer.tokenEquals("$upscope"))
             parseUpscope();
-        else if (getTokenString().equals("$timescale"))
+        else if (fTokenizer.tokenEquals("$timescale"))
             parseTimescale();
-        else if (getTokenString().equals("$enddefinitions")) {
+        else if (fTokenizer.tokenEquals("$enddefinitions")) {
             match("$end");
             return false;
         } else {
             // Ignore this defintion
             do {
                 nextToken(true);
-            } while (!getTokenString().equals("$end"));
+            } while (!fTokenizer.tokenEquals("$end"));
         }
 
         return true;
@@ -199,22 +605,33 @@ public class VCDLoader implements TraceLoader {
         if (!nextToken(false))
             return false;
 
-        if (getTokenString().charAt(0) == '#') {
+        int leadingVal = fTokenizer.getTokenChar(0);
+        if (leadingVal == '#') {
             // If the line begins with a #, this is a timestamp.
-            long nextTimestamp = Long.parseLong(getTokenString().substring(1));
+            long nextTimestamp = fTokenizer.parseTokenLong(1);
             if (nextTimestamp >= fCurrentTime)
                 fCurrentTime = nextTimestamp;
+            else if (fDeferTimestampWarnings)
+                fTimestampWarningCount++;   // Reported by parent, see reportTimestampWarnings
             else
                 System.out.println("warning: timestamp out of order line " + fTokenizer.lineno());
+
+            if (fParent != null) {
+                if (!fSawTimestamp) {
+                    fFirstTimestamp = nextTimestamp;
+                    fSawTimestamp = true;
+                }
+
+                if (fParent.fCancelled)
+                    throw new LoadException("load cancelled");
+
+                fRangeBytesParsed = fTokenizer.getOffset();
+            }
         } else {
-            if (getTokenString().equals("$dumpvars") || getTokenString().equals("$end"))
+            if (fTokenizer.tokenEquals("$dumpvars") || fTokenizer.tokenEquals("$end"))
                 return true;
 
-            String value;
-            String id;
-            char leadingVal = getTokenString().charAt(0);
-
-            // @todo Does not support real types.
+            int idStart;    // Offset of identifier code in current token
             switch (leadingVal) {
                 case '0':
                 case '1':
@@ -225,44 +642,53 @@ public class VCDLoader implements TraceLoader {
                     // Single bit value
                     // 18.2.1 scalar_value_change ::= value identifier_code
                     // (no space)
-                    value = getTokenString().substring(0, 1);
-                    id = getTokenString().substring(1);
+                    copyValue(0, 1);
+                    idStart = 1;
                     break;
 
                 case 'b':
                     // Multi bit value
                     // 18.2.1 vector_value_change ::= b binary_number identification_code
-                    value = getTokenString().substring(1);
+                    // The value is copied because the token span is no longer
+                    // valid after reading the identifier.
+                    copyValue(1, fTokenizer.getTokenLength() - 1);
                     nextToken(true);
-                    id = getTokenString();
+                    idStart = 0;
                     break;
 
                 case 'r':
                 case 'R':
-                    throw new LoadException("line " + fTokenizer.lineno()
-                        + ": real values are not supported");
+                    // 18.2.1 real_value_change ::= r real_number identifier_code
+                    parseRealTransition();
+                    return true;
 
                 default:
                     throw new LoadException("line " + fTokenizer.lineno()
-                        + ": invalid value type '" + leadingVal + "'");
+                        + ": invalid value type '" + (char) leadingVal + "'");
             }
 
-            Net net = fNetMap.get(id);
+            Net net = fNetMap.get(fTokenizer, idStart);
             if (net == null) {
                 throw new LoadException("line " + fTokenizer.lineno()
-                    + ": Unknown net id " + id);
+                    + ": Unknown net id " + fTokenizer.getTokenString(idStart));
             }
 
-            BitVector decodedValues = new BitVector(net.fWidth);
+            if (!net.fLoaded)
+                return true;    // Filtered out, skip decoding
 
             // Decode and pad if necessary.
             // 18.2.1 value ::= 0 | 1 | x | X | z | Z
-            int valueLength = value.length();
+            int wordCount = BitVector.packedWordCount(net.fWidth);
+            if (fPackedValue.length < wordCount)
+                fPackedValue = new int[wordCount];
+
+            Arrays.fill(fPackedValue, 0, wordCount, 0);
+            int valueLength = fValueLength;
             int bitsToCopy = Math.min(valueLength, net.fWidth);
             int outBit = 0;
             int bitValue = BitVector.VALUE_0;
             while (outBit < bitsToCopy) {
-                switch (value.charAt(valueLength - outBit - 1)) {
+                switch (fValueBuffer[valueLength - outBit - 1]) {
                 case 'z':
                 case 'Z':
                     bitValue = BitVector.VALUE_Z;
@@ -286,7 +712,8 @@ public class VCDLoader implements TraceLoader {
                         + ": invalid logic value");
                 }
 
-                decodedValues.setBit(outBit++, bitValue);
+                fPackedValue[outBit >> 4] |= bitValue << ((outBit & 15) * 2);
+                outBit++;
             }
 
             // Table 83: Rules for left-extending vector values
@@ -299,18 +726,40 @@ public class VCDLoader implements TraceLoader {
             else
                 padValue = BitVector.VALUE_0;
 
-            while (outBit < net.fWidth)
-                decodedValues.setBit(outBit++, padValue);
+            if (padValue != BitVector.VALUE_0) {
+                while (outBit < net.fWidth) {
+                    fPackedValue[outBit >> 4] |= padValue << ((outBit & 15) * 2);
+                    outBit++;
+                }
+            }
 
-            fTraceBuilder.appendTransition(net.fBuilderID, fCurrentTime, decodedValues);
+            if (fBatch != null) {
+                fBatch.add(net.fBuilderID, fCurrentTime, net.fWidth, fPackedValue);
+                if (fBatchQueue != null && fBatch.size() >= fBatchSize)
+                    queueBatch();
+            } else {
+                fTransitionSink.appendTransition(net.fBuilderID, fCurrentTime, fPackedValue, 0,
+                    net.fWidth);
+            }
         }
 
         return true;
     }
 
+    /// Copy characters of the current token into fValueBuffer
+    private void copyValue(int start, int length) {
+        if (fValueBuffer.length < length)
+            fValueBuffer = new byte[Math.max(length, fValueBuffer.length * 2)];
+
+        for (int i = 0; i < length; i++)
+            fValueBuffer[i] = (byte) fTokenizer.getTokenChar(start + i);
+
+        fValueLength = length;
+    }
+
     private void match(String value) throws LoadException, IOException {
         nextToken(true);
-        if (!getTokenString().equals(value)) {
+        if (!fTokenizer.tokenEquals(value)) {
             throw new LoadException("line " + fTokenizer.lineno()
                 + ": parse error, expected " + value + " got "
                 + getTokenString());
@@ -321,19 +770,10 @@ public class VCDLoader implements TraceLoader {
     ///        throw an exception.
     /// @returns True if token was returned, false if not
     private boolean nextToken(boolean require) throws LoadException, IOException {
-        if (fProgressListener != null) {
-            // Update periodically
-            long totalRead = fProgressStream.getTotalRead();
-            if (totalRead - fLastProgressUpdate > fUpdateInterval) {
-                if (!fProgressListener.updateProgress((int)(totalRead
-                    * 100 / fFileLength)))
-                    throw new LoadException("load cancelled");
-
-                fLastProgressUpdate = totalRead;
-            }
-        }
+        if (fProgressListener != null)
+            updateProgress(getProgressOffset(fTokenizer.getOffset()));
 
-        if (fTokenizer.nextToken() == StreamTokenizer.TT_EOF) {
+        if (!fTokenizer.nextToken()) {
             if (require) {
                 throw new LoadException("line " + fTokenizer.lineno()
                                         + ": unexpected end of file");
@@ -344,58 +784,414 @@ public class VCDLoader implements TraceLoader {
         return true;
     }
 
+    /// Notify the progress listener periodically
+    /// @param totalRead Number of bytes of the file that have been parsed
+    /// @param offset Offset into the (uncompressed) VCD data that has been parsed
+    /// @returns Number of bytes of the file that have been read. For a
+    ///   compressed file, this is the number of compressed bytes
+    ///   decompressed so far.
+    private long getProgressOffset(long offset) {
+        if (fBlockReader != null)
+            return fBlockReader.getCompressedBytesRead();
+
+        return offset;
+    }
+
+    private void updateProgress(long totalRead) throws LoadException {
+        if (totalRead - fLastProgressUpdate > fUpdateInterval) {
+            if (!fProgressListener.updateProgress((int)(totalRead
+                * 100 / fFileLength)))
+                throw new LoadException("load cancelled");
+
+            fLastProgressUpdate = totalRead;
+        }
+    }
+
     private String getTokenString() {
-        return fTokenizer.sval;
+        return fTokenizer.getTokenString();
     }
 
-    private static class ProgressInputStream extends InputStream {
-        ProgressInputStream(InputStream wrapped) {
-            fWrapped = wrapped;
+    /// Parse ranges of the value change section concurrently, and add them
+    /// to the builder in order.
+    /// @param boundaries Range n starts at element n and ends at element n + 1
+    ///   (see splitBody)
+    /// @param reportWarnings If false, don't print out of order timestamp
+    ///   warnings, because they were already printed by a previous load.
+    private void parseRanges(FileChannel channel, long[] boundaries, boolean reportWarnings)
+        throws LoadException, IOException {
+        int rangeCount = boundaries.length - 1;
+        final VCDLoader[] workers = new VCDLoader[rangeCount];
+        ArrayList<Future<?>> futures = new ArrayList<Future<?>>();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(fParallelism,
+            rangeCount));
+        try {
+            for (int i = 0; i < rangeCount; i++) {
+                // Only the first range knows the current time when it starts.
+                // The others are clamped when they are added to the builder.
+                workers[i] = new VCDLoader(this, new VCDTokenizer(channel, boundaries[i],
+                    boundaries[i + 1]), i == 0 ? fCurrentTime : Long.MIN_VALUE);
+                workers[i].fDeferTimestampWarnings = true;
+                final VCDLoader worker = workers[i];
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        worker.parseRange();
+                    }
+                }));
+            }
+
+            for (int i = 0; i < rangeCount; i++) {
+                waitForRange(futures.get(i), workers, boundaries);
+                VCDLoader worker = workers[i];
+
+                // A timestamp in this range may be earlier than one in a
+                // previous range, which the worker couldn't see.
+                if (reportWarnings && (worker.fTimestampWarningCount > 0
+                    || (worker.fSawTimestamp && worker.fFirstTimestamp < fCurrentTime))) {
+                    reportTimestampWarnings(channel, boundaries[i], boundaries[i + 1]);
+                }
+
+                worker.fBatch.appendTo(fTransitionSink, fCurrentTime);
+                fCurrentTime = Math.max(fCurrentTime, worker.fCurrentTime);
+                fTotalTransitions += worker.fTotalTransitions;
+                workers[i] = null;  // Release buffered transitions
+                if (worker.fRangeError instanceof LoadException)
+                    throw (LoadException) worker.fRangeError;
+                else if (worker.fRangeError instanceof IOException)
+                    throw (IOException) worker.fRangeError;
+                else if (worker.fRangeError instanceof RuntimeException)
+                    throw (RuntimeException) worker.fRangeError;
+            }
+        } finally {
+            fCancelled = true;  // Stop any remaining workers if this failed
+            executor.shutdown();
         }
+    }
 
-        @Override
-        public int read() throws IOException {
-            int got = fWrapped.read();
-            if (got >= 0)
-                fTotalRead++;
+    /// Lex and decode on a separate thread, and add batches of transitions to
+    /// the builder on this one.
+    private void parseTransitionsPipelined() throws LoadException, IOException {
+        long bodyStart = fTokenizer.getOffset();
+        final VCDLoader lexer = new VCDLoader(this, fTokenizer, fCurrentTime);
+        lexer.fBatchSize = fBatchSize;
+        lexer.fBatchQueue = new ArrayBlockingQueue<TransitionBatch>(fQueueDepth);
+        lexer.fFreeBatches = new ArrayBlockingQueue<TransitionBatch>(fQueueDepth + 1);
+        Thread lexerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                lexer.parseRange();
+                try {
+                    lexer.queueBatch();
+                    lexer.fBatchQueue.put(END_OF_BATCHES);
+                } catch (LoadException | InterruptedException exc) {
+                    // Interrupted because the builder stage failed. Nothing
+                    // is waiting for the batches.
+                }
+            }
+        }, "VCD lexer");
+        lexerThread.setDaemon(true);
 
-            return got;
+        long buildTime = 0;
+        long builtCount = 0;
+        long startTime = System.nanoTime();
+        lexerThread.start();
+        try {
+            for (;;) {
+                TransitionBatch batch;
+                try {
+                    batch = lexer.fBatchQueue.take();
+                } catch (InterruptedException exc) {
+                    throw new LoadException("load interrupted");
+                }
+
+                if (batch == END_OF_BATCHES)
+                    break;
+
+                long batchStartTime = System.nanoTime();
+                batch.appendTo(fTransitionSink, Long.MIN_VALUE);
+                buildTime += System.nanoTime() - batchStartTime;
+                builtCount += batch.size();
+                batch.clear();
+                lexer.fFreeBatches.offer(batch);
+                if (fProgressListener != null)
+                    updateProgress(getProgressOffset(lexer.fRangeBytesParsed));
+            }
+        } finally {
+            fCancelled = true;  // Stop the lexer if this failed
+            lexerThread.interrupt();
+        }
+
+        long elapsed = System.nanoTime() - startTime;
+        fCurrentTime = lexer.fCurrentTime;
+        fTotalTransitions += lexer.fTotalTransitions;
+        long bodyLength = fTokenizer.getOffset() - bodyStart;
+        System.out.println("lexer: " + bodyLength + " bytes in " + lexer.fLexTime / 1000000
+            + " ms (" + throughput(bodyLength, lexer.fLexTime) + " bytes/s)");
+        System.out.println("builder: " + builtCount + " transitions in "
+            + buildTime / 1000000 + " ms (" + throughput(builtCount, buildTime)
+            + " transitions/s)");
+        System.out.println("pipeline: " + elapsed / 1000000 + " ms total");
+
+        if (lexer.fRangeError instanceof LoadException)
+            throw (LoadException) lexer.fRangeError;
+        else if (lexer.fRangeError instanceof IOException)
+            throw (IOException) lexer.fRangeError;
+        else if (lexer.fRangeError instanceof RuntimeException)
+            throw (RuntimeException) lexer.fRangeError;
+    }
+
+    private static long throughput(long count, long nanoseconds) {
+        return nanoseconds == 0 ? 0 : count * 1000000000 / nanoseconds;
+    }
+
+    /// Called on the lexer thread of a pipelined load to pass the current
+    /// batch to the builder stage. Time spent waiting for the builder is not
+    /// counted as lexing time.
+    private void queueBatch() throws LoadException {
+        long queueStartTime = System.nanoTime();
+        fRangeBytesParsed = fTokenizer.getOffset();
+        try {
+            fBatchQueue.put(fBatch);
+        } catch (InterruptedException exc) {
+            throw new LoadException("load cancelled");
+        }
+
+        fBatch = fFreeBatches.poll();
+        if (fBatch == null)
+            fBatch = new TransitionBatch();
+
+        fQueueWaitTime += System.nanoTime() - queueStartTime;
+    }
+
+    /// Called on worker thread
+    private void parseRange() {
+        long startTime = System.nanoTime();
+        try {
+            while (parseTransition())
+                ;
+        } catch (LoadException | IOException | RuntimeException exc) {
+            fRangeError = exc;
+        } finally {
+            fRangeBytesParsed = fTokenizer.getOffset();
+            fLexTime = System.nanoTime() - startTime - fQueueWaitTime;
+        }
+    }
+
+    /// Wait for a worker to finish, updating the progress listener while waiting.
+    private void waitForRange(Future<?> future, VCDLoader[] workers, long[] boundaries)
+        throws LoadException {
+        for (;;) {
+            try {
+                future.get(PROGRESS_POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                return;
+            } catch (TimeoutException exc) {
+                if (fProgressListener != null) {
+                    long totalRead = boundaries[0];
+                    for (int i = 0; i < workers.length; i++) {
+                        if (workers[i] == null)
+                            totalRead += boundaries[i + 1] - boundaries[i];
+                        else
+                            totalRead += workers[i].fRangeBytesParsed - boundaries[i];
+                    }
+
+                    updateProgress(totalRead);
+                }
+            } catch (InterruptedException exc) {
+                throw new LoadException("load interrupted");
+            } catch (ExecutionException exc) {
+                throw new RuntimeException(exc.getCause());
+            }
+        }
+    }
+
+    /// Print out of order timestamp warnings for a range with the same line
+    /// numbers and in the same order as a serial load. This is only called
+    /// when a range contains at least one out of order timestamp, so it
+    /// doesn't need to be fast.
+    private void reportTimestampWarnings(FileChannel channel, long start, long end)
+        throws IOException {
+        VCDTokenizer tokenizer = new VCDTokenizer(channel, start, end);
+        long currentTime = fCurrentTime;
+        while (tokenizer.nextToken()) {
+            int c = tokenizer.getTokenChar(0);
+            if (c == 'b' || c == 'B' || c == 'r' || c == 'R') {
+                // Skip identifier, which may also begin with #
+                tokenizer.nextToken();
+            } else if (c == '#') {
+                long timestamp = tokenizer.parseTokenLong(1);
+                if (timestamp >= currentTime)
+                    currentTime = timestamp;
+                else
+                    System.out.println("warning: timestamp out of order line " + tokenizer.lineno());
+            }
+        }
+    }
+
+    /// Split the value change section into ranges that can be parsed independently.
+    /// @returns Array of file offsets. Range n starts at element n and ends
+    ///   at element n + 1. All ranges other than the first begin with a timestamp.
+    private long[] splitBody(FileChannel channel, long bodyStart, long end) throws IOException {
+        long bodyLength = end - bodyStart;
+        int rangeCount = (int) Math.max(1, Math.min(fParallelism * RANGES_PER_THREAD,
+            bodyLength / MIN_RANGE_SIZE));
+        long[] boundaries = new long[rangeCount + 1];
+        int count = 0;
+        boundaries[count++] = bodyStart;
+        for (int i = 1; i < rangeCount; i++) {
+            long split = findTimestampLine(channel, Math.max(bodyStart + bodyLength * i
+                / rangeCount, boundaries[count - 1] + 1), bodyStart, end);
+            if (split == end)
+                break;
+
+            boundaries[count++] = split;
         }
 
-        @Override
-        public int read(byte[] b) throws IOException {
-            int got = fWrapped.read(b);
-            if (got >= 0)
-                fTotalRead += got;
+        boundaries[count++] = end;
+        return Arrays.copyOf(boundaries, count);
+    }
+
+    /// Build the sparse index used by lazy mode. The entries are spaced so
+    /// the index has a bounded size, but ranges aren't too small to parse
+    /// efficiently.
+    /// @returns Array of file offsets in the same format as splitBody.
+    private static long[] buildCheckpointIndex(FileChannel channel, long bodyStart, long end)
+        throws IOException {
+        long interval = Math.max(MIN_RANGE_SIZE, (end - bodyStart) / MAX_CHECKPOINTS);
+        long[] checkpoints = new long[16];
+        int count = 0;
+        checkpoints[count++] = bodyStart;
+        for (;;) {
+            long next = findTimestampLine(channel, checkpoints[count - 1] + interval,
+                bodyStart, end);
+            if (next >= end)
+                break;
 
-            return got;
+            if (count == checkpoints.length - 1)
+                checkpoints = Arrays.copyOf(checkpoints, checkpoints.length * 2);
+
+            checkpoints[count++] = next;
         }
 
-        @Override
-        public int read(byte[] b, int off, int len) throws IOException {
-            int got = fWrapped.read(b, off, len);
-            if (got >= 0)
-                fTotalRead += got;
+        checkpoints[count++] = end;
+        return Arrays.copyOf(checkpoints, count);
+    }
 
-            return got;
+    /// @returns Largest timestamp in a range of the value change section,
+    ///   or 0 if there are none.
+    private static long findMaxTimestamp(FileChannel channel, long start, long end)
+        throws IOException {
+        VCDTokenizer tokenizer = new VCDTokenizer(channel, start, end);
+        long maxTimestamp = 0;
+        while (tokenizer.nextToken()) {
+            int c = tokenizer.getTokenChar(0);
+            if (c == 'b' || c == 'B' || c == 'r' || c == 'R') {
+                // Skip identifier, which may also begin with #
+                tokenizer.nextToken();
+            } else if (c == '#')
+                maxTimestamp = Math.max(maxTimestamp, tokenizer.parseTokenLong(1));
         }
 
-        long getTotalRead() {
-            return fTotalRead;
+        return maxTimestamp;
+    }
+
+    /// Search for a timestamp at the beginning of a line.
+    /// @returns Offset of the '#' character, or end if none was found
+    private static long findTimestampLine(FileChannel channel, long offset, long bodyStart,
+                                          long end) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(0x10000);
+        long position = offset - 1;
+        int lastChar = -1;
+        while (position < end) {
+            buffer.clear();
+            int got = channel.read(buffer, position);
+            if (got <= 0)
+                break;
+
+            got = (int) Math.min(got, end - position);
+            for (int i = 0; i < got; i++) {
+                int c = buffer.get(i);
+                if (c == '#' && (lastChar == '\n' || lastChar == '\r')
+                    && !followsVectorValue(channel, position + i, bodyStart))
+                    return position + i;
+
+                lastChar = c;
+            }
+
+            position += got;
         }
 
-        private long fTotalRead;
-        private InputStream fWrapped;
+        return end;
+    }
+
+    /// An identifier code may also begin with '#', and may be on a different
+    /// line than the value that precedes it. Check that the token before
+    /// this one isn't a vector or real value.
+    private static boolean followsVectorValue(FileChannel channel, long offset, long bodyStart)
+        throws IOException {
+        long windowStart = Math.max(bodyStart, offset - 0x10000);
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, windowStart,
+            offset - windowStart);
+        int index = buffer.limit() - 1;
+        while (index >= 0 && (buffer.get(index) & 0xff) <= ' ')
+            index--;
+
+        while (index >= 0 && (buffer.get(index) & 0xff) > ' ')
+            index--;
+
+        if (index < 0 && windowStart != bodyStart)
+            return true;    // Token is too long to check, be conservative
+
+        if (index + 1 == buffer.limit())
+            return false;   // No token before offset
+
+        int c = buffer.get(index + 1);
+        return c == 'b' || c == 'B' || c == 'r' || c == 'R';
     }
 
-    private StreamTokenizer fTokenizer;
+    private VCDTokenizer fTokenizer;
     private TraceBuilder fTraceBuilder;
+    private TransitionSink fTransitionSink;     // fTraceBuilder, or see loadNets
+    private GzipBlockReader fBlockReader;
     private long fCurrentTime;
-    private HashMap<String, Net> fNetMap = new HashMap<String, Net>();
+    private IdentifierTable<Net> fNetMap = new IdentifierTable<Net>();
+    private NetFilter fNetFilter;
+    private ArrayList<String> fScopeStack = new ArrayList<String>();
+    private boolean fLazy;
+    private long[] fCheckpoints;    // Index of timestamp lines, only in lazy mode
+    private long fMaxTimestamp;
+    private ArrayList<Net> fLazyNets = new ArrayList<Net>();
+    private HashMap<Integer, Net> fNetsByBuilderID = new HashMap<Integer, Net>();
     private int fTotalTransitions;
     private ProgressListener fProgressListener;
-    private ProgressInputStream fProgressStream;
     private long fLastProgressUpdate;
     private long fFileLength;
+    private long fEndOffset;    // End of data that has been parsed
+    private File fFile;
+    private boolean fFollow;
+    private boolean fResumable;     // See canLoadAppended
+    private long fHeaderLength;
+    private long fHeaderChecksum;
+    private long fTailChecksum;     // Checksum of data just before fEndOffset
     private long fUpdateInterval;
+    private byte[] fValueBuffer = new byte[64];
+    private int fValueLength;
+    private int[] fPackedValue = new int[4];
+    private int fParallelism = 1;
+    private int fBatchSize = DEFAULT_BATCH_SIZE;
+    private int fQueueDepth = DEFAULT_QUEUE_DEPTH;
+    private volatile boolean fCancelled;
+
+    // These are only used by parallel range loaders and pipeline lexers
+    private VCDLoader fParent;
+    private TransitionBatch fBatch;
+    private volatile long fRangeBytesParsed;
+    private boolean fSawTimestamp;
+    private long fFirstTimestamp;
+    private int fTimestampWarningCount;
+    private boolean fDeferTimestampWarnings;
+    private BlockingQueue<TransitionBatch> fBatchQueue;
+    private BlockingQueue<TransitionBatch> fFreeBatches;
+    private long fLexTime;
+    private long fQueueWaitTime;
+    private Exception fRangeError;
 };
@@ -0,0 +1,314 @@
+//
+// Copyright 2016 Jeff Bush
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package waveapp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+///
+/// Splits a region of a VCD file into whitespace delimited tokens.
+/// The file is memory mapped and scanned as raw ASCII bytes. Unlike
+/// StreamTokenizer, this doesn't decode characters or allocate a String
+/// for each token: the current token is a span of the mapped buffer that
+/// callers can examine with getTokenChar. Files larger than the maximum
+/// mapping size are read through a sliding window.
+///
+/// A tokenizer can also read decompressed data from a GzipBlockReader, in
+/// which case the window is the current block.
+///
+/// A tokenizer may start in the middle of a file. In that case, the number
+/// of lines before the start offset is only counted when a line number is
+/// first requested, which normally only happens when reporting an error.
+///
+class VCDTokenizer {
+    /// Largest region of the file that will be mapped at once.
+    private static final int MAX_WINDOW_SIZE = Integer.MAX_VALUE;
+
+    /// @param channel File to read from
+    /// @param startOffset Byte offset in the file of the first character to read
+    /// @param endOffset Byte offset in the file one past the last character to read
+    VCDTokenizer(FileChannel channel, long startOffset, long endOffset) throws IOException {
+        fChannel = channel;
+        fStartOffset = startOffset;
+        fEndOffset = endOffset;
+        if (startOffset == 0)
+            fLineBase = 0;
+
+        mapWindow(startOffset);
+    }
+
+    /// Read from the blocks of a decompressed stream
+    VCDTokenizer(GzipBlockReader blockReader) {
+        fBlockReader = blockReader;
+        fEndOffset = Long.MAX_VALUE;
+        fLineBase = 0;
+        fWindow = ByteBuffer.allocate(0);
+    }
+
+    /// Read the next token
+    /// @returns true if a token was read, false if the end of the region
+    ///   was reached.
+    boolean nextToken() throws IOException {
+        if (fPushedBack) {
+            fPushedBack = false;
+            return true;
+        }
+
+        // Skip whitespace, counting lines. A CR/LF pair counts as a single
+        // line, which matches StreamTokenizer.
+        for (;;) {
+            if (fPos == fWindowLimit && !advanceWindow(fPos))
+                return false;
+
+            int c = fWindow.get(fPos) & 0xff;
+            if (c > ' ')
+                break;
+
+            if (c == '\n') {
+                if (!fLastWasCR)
+                    fLineNumber++;
+
+                fLastWasCR = false;
+            } else if (c == '\r') {
+                fLineNumber++;
+                fLastWasCR = true;
+            } else
+                fLastWasCR = false;
+
+            fPos++;
+        }
+
+        fLastWasCR = false;
+        fTokenStart = fPos++;
+        for (;;) {
+            if (fPos == fWindowLimit && !advanceWindow(fTokenStart))
+                break;
+
+            if ((fWindow.get(fPos) & 0xff) <= ' ')
+                break;
+
+            fPos++;
+        }
+
+        fTokenLength = fPos - fTokenStart;
+        return true;
+    }
+
+    /// The next call to nextToken will return the current token again.
+    void pushBack() {
+        fPushedBack = true;
+    }
+
+    int getTokenLength() {
+        return fTokenLength;
+    }
+
+    /// @param index Offset from the beginning of the current token.
+    /// @returns ASCII value of the character
+    int getTokenChar(int index) {
+        return fWindow.get(fTokenStart + index) & 0xff;
+    }
+
+    /// @returns true if the current token is identical to the passed string
+    boolean tokenEquals(String value) {
+        if (value.length() != fTokenLength)
+            return false;
+
+        for (int i = 0; i < fTokenLength; i++) {
+            if (getTokenChar(i) != value.charAt(i))
+                return false;
+        }
+
+        return true;
+    }
+
+    /// Allocates a new String. This should only be used where it will not be
+    /// called frequently (e.g. definitions or error messages).
+    String getTokenString() {
+        return getTokenString(0);
+    }
+
+    /// @param start Offset into the current token of the first character.
+    String getTokenString(int start) {
+        StringBuilder result = new StringBuilder(fTokenLength - start);
+        for (int i = start; i < fTokenLength; i++)
+            result.append((char) getTokenChar(i));
+
+        return result.toString();
+    }
+
+    /// Parse a decimal number from the current token.
+    /// @param start Offset into the current token of the first digit.
+    /// @throws NumberFormatException if it is not a valid number
+    long parseTokenLong(int start) throws NumberFormatException {
+        int index = start;
+        boolean negative = false;
+        if (index < fTokenLength && (getTokenChar(index) == '-' || getTokenChar(index) == '+')) {
+            negative = getTokenChar(index) == '-';
+            index++;
+        }
+
+        if (index == fTokenLength)
+            throw new NumberFormatException("For input string: \"" + getTokenString(start) + "\"");
+
+        long value = 0;
+        while (index < fTokenLength) {
+            int digit = getTokenChar(index++) - '0';
+            if (digit < 0 || digit > 9 || value > (Long.MAX_VALUE - digit) / 10) {
+                throw new NumberFormatException("For input string: \""
+                    + getTokenString(start) + "\"");
+            }
+
+            value = value * 10 + digit;
+        }
+
+        return negative ? -value : value;
+    }
+
+    /// @returns Line number of the current token, starting with 1.
+    int lineno() throws IOException {
+        if (fLineBase < 0)
+            fLineBase = countLines(fChannel, 0, fStartOffset);
+
+        return fLineBase + fLineNumber;
+    }
+
+    /// @returns Number of line endings in a region of a file, using the same
+    /// rules as nextToken.
+    static int countLines(FileChannel channel, long start, long end) throws IOException {
+        int count = 0;
+        boolean lastWasCR = false;
+        long offset = start;
+        while (offset < end) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset,
+                Math.min(end - offset, MAX_WINDOW_SIZE));
+            int limit = buffer.limit();
+            for (int i = 0; i < limit; i++) {
+                byte c = buffer.get(i);
+                if (c == '\n') {
+                    if (!lastWasCR)
+                        count++;
+
+                    lastWasCR = false;
+                } else if (c == '\r') {
+                    count++;
+                    lastWasCR = true;
+                } else
+                    lastWasCR = false;
+            }
+
+            offset += limit;
+        }
+
+        return count;
+    }
+
+    /// @returns Offset in the file of the next character that will be read.
+    long getOffset() {
+        return fWindowStart + fPos;
+    }
+
+    private void mapWindow(long start) throws IOException {
+        long size = Math.min(fEndOffset - start, MAX_WINDOW_SIZE);
+        fWindow = fChannel.map(FileChannel.MapMode.READ_ONLY, start, size);
+        fWindowStart = start;
+        fWindowLimit = (int) size;
+    }
+
+    /// Map the next part of the file.
+    /// @param keepFrom Offset in the current window of the first byte
+    ///    that must remain accessible (the start of a partial token).
+    /// @returns false if there is no more data to read.
+    private boolean advanceWindow(int keepFrom) throws IOException {
+        if (fBlockReader != null)
+            return nextBlock(keepFrom);
+
+        if (fWindowStart + fWindowLimit >= fEndOffset)
+            return false;
+
+        if (keepFrom == 0)
+            throw new IOException("token is larger than the maximum window size");
+
+        mapWindow(fWindowStart + keepFrom);
+        fPos -= keepFrom;
+        fTokenStart -= keepFrom;
+        return true;
+    }
+
+    /// Same as advanceWindow, for a decompressed stream. Normally the
+    /// partial token is copied to the headroom at the beginning of the next
+    /// block, but a very long one needs a new buffer.
+    private boolean nextBlock(int keepFrom) throws IOException {
+        GzipBlockReader.Block block = fBlockReader.next();
+        if (block == null)
+            return false;
+
+        int partialLength = fWindowLimit - keepFrom;
+        int windowLength = partialLength + block.fLength;
+        byte[] data;
+        int dataStart;
+        if (partialLength <= GzipBlockReader.HEADROOM) {
+            data = block.fData;
+            dataStart = GzipBlockReader.HEADROOM - partialLength;
+        } else {
+            data = new byte[windowLength];
+            dataStart = 0;
+            System.arraycopy(block.fData, GzipBlockReader.HEADROOM, data, partialLength,
+                block.fLength);
+        }
+
+        for (int i = 0; i < partialLength; i++)
+            data[dataStart + i] = fWindow.get(keepFrom + i);
+
+        // The block may be refilled as soon as it is recycled, so
+        // don't touch it after this.
+        if (fBlock != null)
+            fBlockReader.recycle(fBlock);
+
+        if (data == block.fData)
+            fBlock = block;
+        else {
+            fBlock = null;
+            fBlockReader.recycle(block);
+        }
+
+        fWindow = ByteBuffer.wrap(data, dataStart, windowLength).slice();
+        fWindowStart += keepFrom;
+        fWindowLimit = windowLength;
+        fPos -= keepFrom;
+        fTokenStart -= keepFrom;
+        return true;
+    }
+
+    private FileChannel fChannel;
+    private GzipBlockReader fBlockReader;
+    private GzipBlockReader.Block fBlock;   // Block that fWindow points into, if any
+    private ByteBuffer fWindow;
+    private long fStartOffset;
+    private long fWindowStart;     // File offset of the first byte of fWindow
+    private int fWindowLimit;      // Number of valid bytes in fWindow
+    private long fEndOffset;
+    private int fPos;              // Offset in fWindow of next character
+    private int fTokenStart;       // Offset in fWindow of current token
+    private int fTokenLength;
+    private int fLineNumber = 1;  // Relative to fStartOffset
+    private int fLineBase = -1;   // Lines before fStartOffset, -1 if not counted yet
+    private boolean fLastWasCR;
+    private boolean fPushedBack;
+}
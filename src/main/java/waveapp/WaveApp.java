@@ -25,6 +25,9 @@ import java.io.*;
 
 /// @todo Add menu item to jump to specific timestamp
 class WaveApp extends JPanel implements ActionListener {
+    /// How often to check for new data in follow mode
+    private static final int FOLLOW_POLL_INTERVAL_MS = 1000;
+
     WaveApp() {
         super(new BorderLayout());
 
@@ -111,7 +114,13 @@ class WaveApp extends JPanel implements ActionListener {
                 loadTraceFile(chooser.getSelectedFile());
             }
         } else if (cmd.equals("reloadtrace"))
-            loadTraceFile(fCurrentTraceFile);
+            reloadTrace();
+        else if (cmd.equals("followtrace"))
+            setFollowTrace(((JCheckBoxMenuItem) e.getSource()).isSelected());
+        else if (cmd.equals("followpoll"))
+            pollFollowedTrace();
+        else if (cmd.equals("loadfilter"))
+            editLoadFilter();
         else if (cmd.equals("quit"))
             fFrame.dispose();
         else if (cmd.equals("removeAllMarkers"))
@@ -176,14 +185,52 @@ class WaveApp extends JPanel implements ActionListener {
         TraceLoadWorker(File file, ProgressMonitor monitor) {
             fFile = file;
             fProgressMonitor = monitor;
+            fFollow = fFollowTrace;
+            fNetFilter = new NetFilter(AppPreferences.getInstance().getLoadIncludePatterns(),
+                AppPreferences.getInstance().getLoadExcludePatterns());
+            fLazy = AppPreferences.getInstance().getLoadNetsOnDemand();
+            fStorage = AppPreferences.getInstance().getTransitionStorage();
         }
 
         @Override
         public Void doInBackground() {
             try {
-                /// @todo Determine the loader type dynamically
-                TraceLoader loader = new VCDLoader();
+                TraceLoader loader;
+                VCDLoader vcdLoader = null;
+                if (FstLoader.isFstFile(fFile)) {
+                    FstLoader fstLoader = new FstLoader();
+                    fstLoader.setParallelism(Runtime.getRuntime().availableProcessors());
+                    loader = fstLoader;
+                } else {
+                    vcdLoader = new VCDLoader();
+                    vcdLoader.setParallelism(Runtime.getRuntime().availableProcessors());
+                    vcdLoader.setFollowMode(fFollow);
+                    vcdLoader.setNetFilter(fNetFilter);
+                    vcdLoader.setLazyMode(fLazy);
+                    loader = vcdLoader;
+                }
+
                 fNewModel = new TraceDataModel();
+                if (fStorage.equals("direct"))
+                    fNewModel.setTransitionStorage(TransitionStorage.newDirect());
+                else if (fStorage.equals("mapped"))
+                    fNewModel.setTransitionStorage(TransitionStorage.newMapped(null));
+
+                // The cache always contains every net. In follow mode, the
+                // file is expected to change.
+                boolean useCache = !fFollow && !fLazy && fNetFilter.isEmpty();
+                TraceCacheFile cache = new TraceCacheFile(
+                    TraceCacheFile.cacheFileName(fFile), fNewModel);
+                long startTime = System.currentTimeMillis();
+                if (useCache && readCache(cache)) {
+                    // The cache doesn't record the parser state VCDLoader
+                    // needs to resume, so fLoader stays null and a reload
+                    // of this trace parses the whole file again.
+                    System.out.println("Loaded from cache in "
+                        + (System.currentTimeMillis() - startTime) + " ms");
+                    return null;
+                }
+
                 TraceLoader.ProgressListener progressListener = new TraceLoader.ProgressListener() {
                     @Override
                     public boolean updateProgress(final int percentRead) {
@@ -203,9 +250,20 @@ class WaveApp extends JPanel implements ActionListener {
                     }
                 };
 
-                long startTime = System.currentTimeMillis();
-                loader.load(fFile, fNewModel.startBuilding(), progressListener);
+                TraceBuilder builder = fNewModel.startBuilding();
+                if (useCache)
+                    builder = cache.recordDefinitions(builder);
+
+                loader.load(fFile, builder, progressListener);
                 System.out.println("Loaded in " + (System.currentTimeMillis() - startTime) + " ms");
+                fLoader = vcdLoader;  // Only VCD files can be reloaded incrementally
+                if (useCache) {
+                    try {
+                        cache.write(fFile);
+                    } catch (IOException exc) {
+                        System.out.println("error writing trace cache: " + exc.getMessage());
+                    }
+                }
             } catch (Exception exc) {
                 fErrorMessage = exc.getMessage();
             }
@@ -213,6 +271,16 @@ class WaveApp extends JPanel implements ActionListener {
             return null;
         }
 
+        /// @returns true if the model was loaded from the cache
+        private boolean readCache(TraceCacheFile cache) {
+            try {
+                return cache.read(fFile);
+            } catch (IOException exc) {
+                System.out.println("error reading trace cache: " + exc.getMessage());
+                return false;
+            }
+        }
+
         // Executed on main thread
         @Override
         protected void done() {
@@ -231,6 +299,8 @@ class WaveApp extends JPanel implements ActionListener {
                 // the new object to the old one. Since I'm in the main window thread now,
                 // this is safe.
                 fTraceDataModel.copyFrom(fNewModel);
+                fTraceDataModel.setMemoryBudget(
+                    (long) AppPreferences.getInstance().getNetCacheSize() << 20);
 
                 fTraceDisplayModel.clear();
                 fFrame.setTitle("Waveform Viewer [" + fFile.getName() + "]");
@@ -263,15 +333,145 @@ class WaveApp extends JPanel implements ActionListener {
                 }
 
                 fCurrentTraceFile = fFile;
+                fCurrentLoader = fLoader;
             }
         }
 
         private File fFile;
         private ProgressMonitor fProgressMonitor;
         private TraceDataModel fNewModel;
+        private VCDLoader fLoader;
+        private boolean fFollow;
+        private NetFilter fNetFilter;
+        private boolean fLazy;
+        private String fStorage;
         private String fErrorMessage;
     }
 
+    /// Reads data that has been appended to the current trace file on a
+    /// background thread, then adds it to the model on the main thread.
+    /// This is used both for follow mode and to reload a trace.
+    class AppendWorker extends SwingWorker<Void, Void> {
+        /// @param isReload If true, the file is checked to make sure it
+        ///    hasn't been rewritten. If it has, or it can't be read
+        ///    incrementally, it is reloaded from the beginning.
+        AppendWorker(VCDLoader loader, boolean isReload) {
+            fLoader = loader;
+            fIsReload = isReload;
+        }
+
+        @Override
+        public Void doInBackground() {
+            try {
+                if (fIsReload && !fLoader.canLoadAppended())
+                    fNeedsFullReload = true;
+                else
+                    fTransitions = fLoader.readAppendedTransitions();
+            } catch (Exception exc) {
+                fErrorMessage = exc.getMessage();
+                fNeedsFullReload = fIsReload;
+            }
+
+            return null;
+        }
+
+        // Executed on main thread
+        @Override
+        protected void done() {
+            fAppendWorker = null;
+            if (fLoader != fCurrentLoader)
+                return;     // A different file was loaded in the meantime
+
+            if (fNeedsFullReload)
+                loadTraceFile(fCurrentTraceFile);
+            else if (fErrorMessage != null) {
+                fFollowMenuItem.setSelected(false);
+                setFollowTrace(false);
+                JOptionPane.showMessageDialog(WaveApp.this, "Error reading appended data: "
+                                              + fErrorMessage);
+            } else if (fTransitions != null) {
+                TraceBuilder builder = fTraceDataModel.resumeBuilding();
+                fTransitions.appendTo(builder, Long.MIN_VALUE);
+                builder.loadFinished();
+            }
+        }
+
+        private VCDLoader fLoader;
+        private boolean fIsReload;
+        private boolean fNeedsFullReload;
+        private TransitionBatch fTransitions;
+        private String fErrorMessage;
+    }
+
+    /// In follow mode, traces are loaded so data appended to them can be read
+    /// later, and the file is periodically checked for new data.
+    private void setFollowTrace(boolean follow) {
+        if (follow == fFollowTrace)
+            return;
+
+        fFollowTrace = follow;
+        if (follow) {
+            // Pick up anything that was added since the trace was loaded.
+            // This also reloads the file if it can't be followed.
+            reloadTrace();
+
+            fFollowTimer = new javax.swing.Timer(FOLLOW_POLL_INTERVAL_MS, this);
+            fFollowTimer.setActionCommand("followpoll");
+            fFollowTimer.start();
+        } else {
+            fFollowTimer.stop();
+            fFollowTimer = null;
+        }
+    }
+
+    private void pollFollowedTrace() {
+        // Don't start another read if the previous one hasn't finished
+        if (fAppendWorker == null && fCurrentLoader != null) {
+            fAppendWorker = new AppendWorker(fCurrentLoader, false);
+            fAppendWorker.execute();
+        }
+    }
+
+    /// If only data has been appended to the trace file since it was loaded,
+    /// parse just the new part. Otherwise reload the whole file.
+    private void reloadTrace() {
+        if (fCurrentLoader == null) {
+            if (fCurrentTraceFile != null)
+                loadTraceFile(fCurrentTraceFile);
+        } else if (fAppendWorker == null) {
+            fAppendWorker = new AppendWorker(fCurrentLoader, true);
+            fAppendWorker.execute();
+        }
+    }
+
+    /// Ask for the patterns that select which nets are loaded. If they
+    /// change, the current trace is loaded again so nets that were
+    /// filtered out can be viewed.
+    private void editLoadFilter() {
+        AppPreferences prefs = AppPreferences.getInstance();
+        JTextField includeField = new JTextField(prefs.getLoadIncludePatterns(), 30);
+        JTextField excludeField = new JTextField(prefs.getLoadExcludePatterns(), 30);
+        JPanel panel = new JPanel(new GridLayout(4, 1));
+        panel.add(new JLabel("Include nets matching (e.g. top.cpu.*):"));
+        panel.add(includeField);
+        panel.add(new JLabel("Exclude nets matching:"));
+        panel.add(excludeField);
+        int result = JOptionPane.showConfirmDialog(fFrame, panel, "Load Filter",
+            JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
+        if (result != JOptionPane.OK_OPTION)
+            return;
+
+        String include = includeField.getText().trim();
+        String exclude = excludeField.getText().trim();
+        if (include.equals(prefs.getLoadIncludePatterns())
+            && exclude.equals(prefs.getLoadExcludePatterns()))
+            return;
+
+        prefs.setLoadFilter(include, exclude);
+        if (fCurrentTraceFile != null)
+            loadTraceFile(fCurrentTraceFile);
+    }
+
     private void loadTraceFile(File file) {
         saveConfig();
         ProgressMonitor monitor = new ProgressMonitor(WaveApp.this, "Loading...", "", 0, 100);
@@ -280,13 +480,27 @@ class WaveApp extends JPanel implements ActionListener {
 
     private void showFindDialog() {
         // The initial search string is formed by the selected nets and
-        // their values at the cursor position.
+        // their values at the cursor position, so they are read first if
+        // needed.
+        int[] selected = fTracePanel.getSelectedNets();
+        final int[] netIds = new int[selected.length];
+        for (int i = 0; i < selected.length; i++)
+            netIds[i] = fTraceDisplayModel.getVisibleNet(selected[i]);
+
+        fTraceDataModel.requestNets(netIds, new Runnable() {
+            @Override
+            public void run() {
+                showFindDialog(netIds);
+            }
+        });
+    }
+
+    private void showFindDialog(int[] netIds) {
         StringBuffer initialSearch = new StringBuffer();
         boolean first = true;
         long cursorPosition = fTraceDisplayModel.getCursorPosition();
 
-        for (int index : fTracePanel.getSelectedNets()) {
-            int netId = fTraceDisplayModel.getVisibleNet(index);
+        for (int netId : netIds) {
             if (first)
                 first = false;
             else
@@ -314,27 +528,37 @@ class WaveApp extends JPanel implements ActionListener {
     }
 
     void findNext(boolean extendSelection) {
-        if (fCurrentSearch != null) {
-            long newTimestamp = fCurrentSearch.getNextMatch(fTraceDisplayModel.getCursorPosition());
-            if (newTimestamp >= 0) {
-                if (!extendSelection)
-                    fTraceDisplayModel.setSelectionStart(newTimestamp);
-
-                fTraceDisplayModel.setCursorPosition(newTimestamp);
-            }
-        }
+        find(true, extendSelection);
     }
 
     void findPrev(boolean extendSelection) {
-        if (fCurrentSearch != null) {
-            long newTimestamp = fCurrentSearch.getPreviousMatch(fTraceDisplayModel.getCursorPosition());
-            if (newTimestamp >= 0) {
-                if (!extendSelection)
-                    fTraceDisplayModel.setSelectionStart(newTimestamp);
+        find(false, extendSelection);
+    }
+
+    /// The nets the search uses are read in one pass on a background
+    /// thread if they aren't in memory, then it runs.
+    private void find(final boolean forward, final boolean extendSelection) {
+        final Search search = fCurrentSearch;
+        if (search == null)
+            return;
+
+        fTraceDataModel.requestNets(search.getNetIds(), new Runnable() {
+            @Override
+            public void run() {
+                if (search != fCurrentSearch)
+                    return;     // Changed while the nets were read
 
-                fTraceDisplayModel.setCursorPosition(newTimestamp);
+                long cursorPosition = fTraceDisplayModel.getCursorPosition();
+                long newTimestamp = forward ? search.getNextMatch(cursorPosition)
+                    : search.getPreviousMatch(cursorPosition);
+                if (newTimestamp >= 0) {
+                    if (!extendSelection)
+                        fTraceDisplayModel.setSelectionStart(newTimestamp);
+
+                    fTraceDisplayModel.setCursorPosition(newTimestamp);
+                }
             }
-        }
+        });
     }
 
     private void saveConfig() {
@@ -407,6 +631,16 @@ class WaveApp extends JPanel implements ActionListener {
         item.addActionListener(this);
         fileMenu.add(item);
 
+        fFollowMenuItem = new JCheckBoxMenuItem("Follow Trace");
+        fFollowMenuItem.setActionCommand("followtrace");
+        fFollowMenuItem.addActionListener(this);
+        fileMenu.add(fFollowMenuItem);
+
+        item = new JMenuItem("Load Filter...");
+        item.setActionCommand("loadfilter");
+        item.addActionListener(this);
+        fileMenu.add(item);
+
         item = new JMenuItem("Preferences...");
         item.setActionCommand("prefs");
         item.addActionListener(this);
@@ -510,6 +744,11 @@ class WaveApp extends JPanel implements ActionListener {
     private TraceSettingsFile fTraceSettingsFile;
     private File fCurrentTraceFile;
     private NetSearchPanel fNetSearchPane;
+    private VCDLoader fCurrentLoader;
+    private boolean fFollowTrace;
+    private JCheckBoxMenuItem fFollowMenuItem;
+    private javax.swing.Timer fFollowTimer;
+    private AppendWorker fAppendWorker;
 
     private static void createAndShowGUI(String[] args) {
         final WaveApp contentPane = new WaveApp();
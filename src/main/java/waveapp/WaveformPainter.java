@@ -25,15 +25,14 @@ import java.awt.*;
 
 interface WaveformPainter {
     /// @param g Graphics context to draw onto
-    /// @param model Waveform information will be pulled from this model
-    /// @param netId Identifier of net to paint
+    /// @param cursor Transitions of the net to paint are read with this
     /// @param y Vertical offset of top of waveform
     /// @param visibleRect This is used to constrain what subset of the
     ///         wave is drawn.
     /// @param horizontalScale pixels per time unit
     /// @param formatter Used to convert the BitVector to a readable string
     ///        that is drawn on top of the trace waveform.
-    void paint(Graphics g, TraceDataModel model, int netId,
+    void paint(Graphics g, TransitionCursor cursor,
                int y, Rectangle visibleRect, double horizontalScale,
                ValueFormatter formatter);
 }
@@ -20,6 +20,8 @@ import javax.swing.*;
 import javax.swing.event.*;
 import java.awt.*;
 import java.awt.event.*;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
 import java.util.*;
 
 ///
@@ -27,12 +29,14 @@ import java.util.*;
 ///
 
 class WaveformPanel extends JPanel implements MouseListener,
-    MouseMotionListener, TraceDisplayModel.Listener {
+    MouseMotionListener, TraceDisplayModel.Listener, TraceDataModel.Listener {
 
     WaveformPanel(TraceDisplayModel traceViewModel, TraceDataModel traceDataModel) {
         fTraceDisplayModel = traceViewModel;
         fTraceDataModel = traceDataModel;
+        fTileRenderer = new WaveformTileRenderer(traceDataModel, fTileCache, this);
         traceViewModel.addListener(this);
+        traceDataModel.addListener(this);
 
         setBackground(AppPreferences.getInstance().backgroundColor);
         setFont(new Font("SansSerif", Font.PLAIN, 9));
@@ -64,12 +68,53 @@ class WaveformPanel extends JPanel implements MouseListener,
 
             visibleRect.width = 100;
             scrollRectToVisible(visibleRect);
-        } else {
-            int x1 = timestampToXCoordinate(oldTimestamp);
-            int left = Math.min(x1, x2);
-            int right = Math.max(x1, x2);
-            repaint(left - 1, 0, right - left + 2, getHeight());
+        } else if (oldTimestamp != newTimestamp) {
+            // The cursor and selection are drawn over cached tiles, so only
+            // repaint the parts of them that changed. The tiles are copied
+            // again, but not drawn.
+            repaintColumns(timestampToXCoordinate(oldTimestamp), 1);
+            repaintColumns(x2, 1);
         }
+
+        repaintSelection();
+    }
+
+    /// Repaint the part of the selection that changed since this was last
+    /// called, if any. The selection start can be set without an event, so
+    /// this is checked whenever the cursor changes. The previous selection
+    /// is kept as timestamps, so it is still valid after the scale changes.
+    private void repaintSelection() {
+        long left = 0;
+        long right = 0;
+        if (fTraceDisplayModel.getCursorPosition() != fTraceDisplayModel.getSelectionStart()) {
+            long start = fTraceDisplayModel.getSelectionStart();
+            long end = fTraceDisplayModel.getCursorPosition();
+            left = Math.min(start, end);
+            right = Math.max(start, end);
+        }
+
+        if (left == fSelectionLeft)
+            repaintSpan(Math.min(right, fSelectionRight), Math.max(right, fSelectionRight));
+        else if (right == fSelectionRight)
+            repaintSpan(Math.min(left, fSelectionLeft), Math.max(left, fSelectionLeft));
+        else {
+            repaintSpan(fSelectionLeft, fSelectionRight);
+            repaintSpan(left, right);
+        }
+
+        fSelectionLeft = left;
+        fSelectionRight = right;
+    }
+
+    private void repaintSpan(long leftTimestamp, long rightTimestamp) {
+        int left = timestampToXCoordinate(leftTimestamp);
+        int right = timestampToXCoordinate(rightTimestamp);
+        if (right > left)
+            repaintColumns(left, right - left);
+    }
+
+    private void repaintColumns(int x, int width) {
+        repaint(x - 1, 0, width + 2, getHeight());
     }
 
     @Override
@@ -80,6 +125,11 @@ class WaveformPanel extends JPanel implements MouseListener,
 
     @Override
     public void netsRemoved(int firstIndex, int lastIndex) {
+        // A new trace is loaded by removing all nets from the display
+        // model (see WaveApp). After that, net IDs refer to different nets.
+        if (fTraceDisplayModel.getVisibleNetCount() == 0)
+            discardTiles();
+
         computeBounds();
         Rectangle visibleRect = getVisibleRect();
         Dimension preferredSize = getPreferredSize();
@@ -111,6 +161,8 @@ class WaveformPanel extends JPanel implements MouseListener,
 
     @Override
     public void scaleChanged(double newScale) {
+        discardTiles();
+
         // Adjust size of canvas
         computeBounds();
         repaint();
@@ -118,6 +170,23 @@ class WaveformPanel extends JPanel implements MouseListener,
 
     @Override
     public void formatChanged(int index) {
+        discardTiles();
+        repaint();
+    }
+
+    @Override
+    public void dataAppended(long oldMaxTimestamp, long newMaxTimestamp) {
+        // Extend canvas. The value of the last segment of each net is
+        // drawn up to the old end of the trace, so that changes as well.
+        int oldX = timestampToXCoordinate(oldMaxTimestamp) - DrawMetrics.WAVEFORM_TRANSITION_WIDTH;
+        fTileCache.clearFrom(Math.max(oldX, 0) / WaveformTileCache.TILE_WIDTH);
+        fTileRenderer.cancelAll();
+        computeBounds();
+        repaint();
+    }
+
+    @Override
+    public void netsLoaded() {
         repaint();
     }
 
@@ -144,29 +213,61 @@ class WaveformPanel extends JPanel implements MouseListener,
 
         drawMarkers(g, visibleRect);
 
-        // Draw nets
-        int waveformIndex = visibleRect.y / DrawMetrics.WAVEFORM_V_SPACING;
-        if (waveformIndex > 0)
-            waveformIndex--;
+        // Draw nets. Tiles that aren't ready yet are drawn in the background,
+        // and a placeholder is shown until the view is repainted with them.
+        // The same goes for nets that must be read from the file first.
+        checkTileCache(g);
+        if (!visibleRect.equals(fLastVisibleRect)) {
+            fTileRenderer.cancelOutside(visibleRect);
+            fLastVisibleRect = visibleRect;
+        }
+
+        Rectangle clipRect = g.getClipBounds();
+        if (clipRect == null)
+            clipRect = visibleRect;
 
+        int firstTile = Math.max(clipRect.x, 0) / WaveformTileCache.TILE_WIDTH;
+        int lastTile = (clipRect.x + clipRect.width - 1) / WaveformTileCache.TILE_WIDTH;
+        int waveformIndex = clipRect.y / DrawMetrics.WAVEFORM_V_SPACING;
         double horizontalScale = fTraceDisplayModel.getHorizontalScale();
-        while (waveformIndex * DrawMetrics.WAVEFORM_V_SPACING < visibleRect.y + visibleRect.height
+        int missingCount = 0;
+        while (waveformIndex * DrawMetrics.WAVEFORM_V_SPACING < clipRect.y + clipRect.height
                 && waveformIndex < fTraceDisplayModel.getVisibleNetCount()) {
             ValueFormatter formatter = fTraceDisplayModel.getValueFormatter(waveformIndex);
             int netId = fTraceDisplayModel.getVisibleNet(waveformIndex);
-            if (fTraceDataModel.getNetWidth(netId) > 1) {
-                fMultiNetPainter.paint(g, fTraceDataModel, netId,
-                    waveformIndex * DrawMetrics.WAVEFORM_V_SPACING + DrawMetrics.WAVEFORM_V_GAP,
-                    visibleRect, horizontalScale, formatter);
-            } else {
-                fSingleNetPainter.paint(g, fTraceDataModel, netId,
-                    waveformIndex * DrawMetrics.WAVEFORM_V_SPACING + DrawMetrics.WAVEFORM_V_GAP,
-                    visibleRect, horizontalScale, formatter);
+            int top = waveformIndex * DrawMetrics.WAVEFORM_V_SPACING;
+            boolean populated = fTraceDataModel.isNetPopulated(netId);
+            if (!populated) {
+                if (missingCount == fMissingNets.length)
+                    fMissingNets = Arrays.copyOf(fMissingNets, missingCount * 2 + 16);
+
+                fMissingNets[missingCount++] = netId;
+            }
+
+            for (int tile = firstTile; tile <= lastTile; tile++) {
+                BufferedImage image = fTileCache.get(netId, formatter, horizontalScale, tile);
+                if (image != null) {
+                    g.drawImage(image, tile * WaveformTileCache.TILE_WIDTH, top,
+                                WaveformTileCache.TILE_WIDTH, DrawMetrics.WAVEFORM_V_SPACING,
+                                null);
+                } else {
+                    if (populated)
+                        fTileRenderer.request(netId, formatter, horizontalScale, tile, top);
+
+                    g.setColor(prefs.timingMarkerColor);
+                    g.fillRect(tile * WaveformTileCache.TILE_WIDTH,
+                               top + DrawMetrics.WAVEFORM_V_GAP,
+                               WaveformTileCache.TILE_WIDTH, DrawMetrics.WAVEFORM_HEIGHT);
+                }
             }
 
             waveformIndex++;
         }
 
+        // Read all the missing nets in one pass over the file
+        if (missingCount > 0)
+            fTraceDataModel.requestNets(Arrays.copyOf(fMissingNets, missingCount));
+
         // Draw the cursor (a vertical line that runs from the top to the
         // bottom of the trace).
         g.setColor(prefs.cursorColor);
@@ -174,6 +275,31 @@ class WaveformPanel extends JPanel implements MouseListener,
         g.drawLine(cursorX, visibleRect.y, cursorX, visibleRect.y + visibleRect.height);
     }
 
+    /// Discard the cached tiles if they were drawn with different colors
+    /// or for a display with a different pixel density than the one
+    /// being painted now.
+    private void checkTileCache(Graphics g) {
+        AppPreferences prefs = AppPreferences.getInstance();
+        AffineTransform transform = ((Graphics2D) g).getTransform();
+        if (transform.getScaleX() != fTileDeviceScaleX
+                || transform.getScaleY() != fTileDeviceScaleY
+                || !prefs.traceColor.equals(fTileTraceColor)
+                || !prefs.conflictColor.equals(fTileConflictColor)) {
+            discardTiles();
+            fTileDeviceScaleX = transform.getScaleX();
+            fTileDeviceScaleY = transform.getScaleY();
+            fTileTraceColor = prefs.traceColor;
+            fTileConflictColor = prefs.conflictColor;
+            fTileRenderer.setStyle(getFont(), ((Graphics2D) g).getRenderingHints(),
+                                   fTileDeviceScaleX, fTileDeviceScaleY);
+        }
+    }
+
+    private void discardTiles() {
+        fTileCache.clear();
+        fTileRenderer.cancelAll();
+    }
+
     private void drawMarkers(Graphics g, Rectangle visibleRect) {
         g.setColor(AppPreferences.getInstance().markerColor);
 
@@ -270,13 +396,25 @@ class WaveformPanel extends JPanel implements MouseListener,
         return (int)(timestamp * fTraceDisplayModel.getHorizontalScale());
     }
 
+    private static final long TILE_CACHE_BYTES = 64L << 20;
     private float DOT_DESCRIPTION[] = { 2.0f, 4.0f };
     private float DASH_DESCRIPTION[] = { 10.0f };
     private transient Stroke DOTTED_STROKE = new BasicStroke(1, 0, 0, 10, DOT_DESCRIPTION, 0);
     private transient Stroke SOLID_STROKE = new BasicStroke(1);
-    private transient SingleNetPainter fSingleNetPainter = new SingleNetPainter();
-    private transient MultiNetPainter fMultiNetPainter = new MultiNetPainter();
     private transient TraceDisplayModel fTraceDisplayModel;
     private transient TraceDataModel fTraceDataModel;
+    private transient WaveformTileCache fTileCache = new WaveformTileCache(TILE_CACHE_BYTES);
+    private transient WaveformTileRenderer fTileRenderer;
+    private transient Rectangle fLastVisibleRect;
+    private transient int[] fMissingNets = new int[0];  // Reused by paintComponent
+
+    // Timestamps of the selection as of the last cursor change (see
+    // repaintSelection)
+    private long fSelectionLeft;
+    private long fSelectionRight;
+    private transient double fTileDeviceScaleX;
+    private transient double fTileDeviceScaleY;
+    private transient Color fTileTraceColor;
+    private transient Color fTileConflictColor;
     private int fOldCursor;
 }
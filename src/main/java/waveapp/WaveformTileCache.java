@@ -0,0 +1,163 @@
+//
+// Copyright 2016 Jeff Bush
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package waveapp;
+
+import java.awt.image.BufferedImage;
+import java.util.*;
+
+///
+/// Images of the waveforms of nets, so WaveformPanel can copy them to the
+/// screen instead of painting the transitions again when it is repainted.
+/// Each row is split into tiles of a fixed width, so scrolling only needs
+/// to render the ones that come into view. The least recently used tiles
+/// are discarded when the total size reaches a limit.
+///
+class WaveformTileCache {
+    static final int TILE_WIDTH = 256;
+    private static final int MAX_FREE_IMAGES = 16;
+
+    /// @param maxBytes Discard tiles when they use more memory than this
+    WaveformTileCache(long maxBytes) {
+        fMaxBytes = maxBytes;
+    }
+
+    /// @param formatter The formatter the tile was drawn with. Formatters
+    ///   are compared by identity.
+    /// @param scale Horizontal scale the tile was drawn at (see
+    ///   TraceDisplayModel.getHorizontalScale)
+    /// @param tile Index of the tile in the row. It covers x coordinates
+    ///   from tile * TILE_WIDTH up to (tile + 1) * TILE_WIDTH.
+    /// @returns null if this tile isn't cached
+    BufferedImage get(int netId, ValueFormatter formatter, double scale, int tile) {
+        fProbe.set(netId, formatter, scale, tile);
+        return fTiles.get(fProbe);
+    }
+
+    void put(int netId, ValueFormatter formatter, double scale, int tile,
+             BufferedImage image) {
+        TileKey key = new TileKey();
+        key.set(netId, formatter, scale, tile);
+        BufferedImage old = fTiles.put(key, image);
+        if (old != null)
+            release(old);
+
+        fBytes += imageBytes(image);
+        Iterator<BufferedImage> it = fTiles.values().iterator();
+        while (fBytes > fMaxBytes && fTiles.size() > 1) {
+            BufferedImage eldest = it.next();
+            it.remove();
+            release(eldest);
+        }
+    }
+
+    /// @returns A transparent image to draw a tile into. This reuses the
+    ///   image of a discarded tile if one of the right size is available.
+    BufferedImage newImage(int width, int height) {
+        for (int i = fFreeImages.size() - 1; i >= 0; i--) {
+            BufferedImage image = fFreeImages.get(i);
+            if (image.getWidth() == width && image.getHeight() == height) {
+                fFreeImages.remove(i);
+                Arrays.fill(((java.awt.image.DataBufferInt) image.getRaster().getDataBuffer())
+                    .getData(), 0);
+                return image;
+            }
+        }
+
+        return new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE);
+    }
+
+    /// Discard all tiles, for example because the scale changed
+    void clear() {
+        for (BufferedImage image : fTiles.values())
+            release(image);
+
+        fTiles.clear();
+        fBytes = 0;
+    }
+
+    /// Discard tiles of all nets at or to the right of a tile, for example
+    /// because transitions were appended there.
+    void clearFrom(int tile) {
+        Iterator<Map.Entry<TileKey, BufferedImage>> it = fTiles.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<TileKey, BufferedImage> entry = it.next();
+            if (entry.getKey().fTile >= tile) {
+                release(entry.getValue());
+                it.remove();
+            }
+        }
+    }
+
+    /// Keep an image from newImage that wasn't added to the cache, so it
+    /// can be reused.
+    void recycle(BufferedImage image) {
+        if (fFreeImages.size() < MAX_FREE_IMAGES)
+            fFreeImages.add(image);
+    }
+
+    private void release(BufferedImage image) {
+        fBytes -= imageBytes(image);
+        recycle(image);
+    }
+
+    private static long imageBytes(BufferedImage image) {
+        return (long) image.getWidth() * image.getHeight() * 4;
+    }
+
+    /// Identifies a tile (see get)
+    static class TileKey {
+        void set(int netId, ValueFormatter formatter, double scale, int tile) {
+            fNetId = netId;
+            fFormatter = formatter;
+            fScale = scale;
+            fTile = tile;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof TileKey))
+                return false;
+
+            TileKey other = (TileKey) o;
+            return fNetId == other.fNetId && fFormatter == other.fFormatter
+                && fScale == other.fScale && fTile == other.fTile;
+        }
+
+        @Override
+        public int hashCode() {
+            return ((fNetId * 31 + fTile) * 31 + System.identityHashCode(fFormatter)) * 31
+                + Double.hashCode(fScale);
+        }
+
+        int fNetId;
+        ValueFormatter fFormatter;
+        double fScale;
+        int fTile;
+    }
+
+    private long fMaxBytes;
+    private long fBytes;
+
+    // Access ordered, so iteration starts with the least recently used
+    private LinkedHashMap<TileKey, BufferedImage> fTiles =
+        new LinkedHashMap<TileKey, BufferedImage>(16, 0.75f, true);
+
+    // Reused for lookups, so they don't allocate
+    private TileKey fProbe = new TileKey();
+
+    private ArrayList<BufferedImage> fFreeImages = new ArrayList<BufferedImage>();
+}
@@ -0,0 +1,268 @@
+//
+// Copyright 2016 Jeff Bush
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package waveapp;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.*;
+import java.util.concurrent.*;
+
+///
+/// Draws waveform tiles for WaveformPanel on a pool of background threads,
+/// so a slow tile, for example one with many transitions, doesn't stop the
+/// window from responding. Requests, cancellation and finished tiles are
+/// handled on the event dispatch thread. The workers only draw, reading
+/// the model between TraceDataModel.beginReading and endReading. They
+/// don't read nets from the file; tiles are only requested for nets that
+/// are in memory.
+///
+class WaveformTileRenderer {
+    /// @param cache Finished tiles are added to this
+    /// @param view Repainted where a tile has finished
+    WaveformTileRenderer(TraceDataModel model, WaveformTileCache cache, JComponent view) {
+        fModel = model;
+        fCache = cache;
+        fView = view;
+
+        int threadCount = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        fExecutor = new ThreadPoolExecutor(threadCount, threadCount, 0, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "waveform renderer");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.NORM_PRIORITY - 1);
+                    return thread;
+                }
+            });
+    }
+
+    /// Set how tiles requested after this are drawn. This doesn't affect
+    /// tiles that were already requested; callers normally cancel them
+    /// with cancelAll.
+    /// @param deviceScaleX Number of image pixels per horizontal unit of the
+    ///   view, which is more than 1 on high density displays
+    void setStyle(Font font, RenderingHints hints, double deviceScaleX, double deviceScaleY) {
+        fFont = font;
+        fHints = hints;
+        fDeviceScaleX = deviceScaleX;
+        fDeviceScaleY = deviceScaleY;
+    }
+
+    /// Start drawing a tile (see WaveformTileCache.get), unless that has
+    /// been started already.
+    /// @param top Y coordinate of the row the tile is shown in, used by
+    ///   cancelOutside
+    void request(int netId, ValueFormatter formatter, double scale, int tile, int top) {
+        fProbe.set(netId, formatter, scale, tile);
+        if (fPending.containsKey(fProbe))
+            return;
+
+        Job job = new Job();
+        job.fKey.set(netId, formatter, scale, tile);
+        job.fTop = top;
+        job.fFont = fFont;
+        job.fHints = fHints;
+        job.fDeviceScaleX = fDeviceScaleX;
+        job.fDeviceScaleY = fDeviceScaleY;
+        job.fImage = fCache.newImage(
+            (int) Math.ceil(WaveformTileCache.TILE_WIDTH * fDeviceScaleX),
+            (int) Math.ceil(DrawMetrics.WAVEFORM_V_SPACING * fDeviceScaleY));
+        fPending.put(job.fKey, job);
+        fExecutor.execute(job);
+    }
+
+    /// Stop drawing all tiles that were requested, for example because
+    /// the tile cache was cleared.
+    void cancelAll() {
+        for (Job job : fPending.values())
+            cancel(job);
+
+        fPending.clear();
+    }
+
+    /// Stop drawing tiles that were requested for rows or columns that
+    /// aren't in this rectangle, for example because the view was scrolled
+    /// away from them.
+    void cancelOutside(Rectangle rect) {
+        Iterator<Job> it = fPending.values().iterator();
+        while (it.hasNext()) {
+            Job job = it.next();
+            int left = job.fKey.fTile * WaveformTileCache.TILE_WIDTH;
+            if (left >= rect.x + rect.width || left + WaveformTileCache.TILE_WIDTH <= rect.x
+                    || job.fTop >= rect.y + rect.height
+                    || job.fTop + DrawMetrics.WAVEFORM_V_SPACING <= rect.y) {
+                cancel(job);
+                it.remove();
+            }
+        }
+    }
+
+    private void cancel(Job job) {
+        job.fCancelled = true;
+
+        // If the job already started, finish recycles its image.
+        if (fExecutor.remove(job))
+            fCache.recycle(job.fImage);
+    }
+
+    // Called on the event dispatch thread after a job has run
+    private void finish(Job job) {
+        if (fPending.get(job.fKey) != job) {
+            // Canceled while it was being drawn
+            fCache.recycle(job.fImage);
+            return;
+        }
+
+        fPending.remove(job.fKey);
+        if (!job.fDrawn) {
+            // If the net was discarded before the tile was drawn,
+            // repainting the view requests it again.
+            fCache.recycle(job.fImage);
+            int netId = job.fKey.fNetId;
+            if (netId < fModel.getTotalNetCount() && !fModel.isNetPopulated(netId)) {
+                fView.repaint(job.fKey.fTile * WaveformTileCache.TILE_WIDTH, 0,
+                              WaveformTileCache.TILE_WIDTH, fView.getHeight());
+            }
+
+            return;
+        }
+
+        fCache.put(job.fKey.fNetId, job.fKey.fFormatter, job.fKey.fScale, job.fKey.fTile,
+                   job.fImage);
+
+        // The row may have moved since the tile was requested, so repaint
+        // the whole column. Rows whose tiles are cached are only copied.
+        fView.repaint(job.fKey.fTile * WaveformTileCache.TILE_WIDTH, 0,
+                      WaveformTileCache.TILE_WIDTH, fView.getHeight());
+    }
+
+    private class Job implements Runnable {
+        @Override
+        public void run() {
+            if (fCancelled)
+                return;
+
+            // Painters and cursors can only be used by one thread at a time
+            Rasterizer rasterizer = fRasterizers.poll();
+            if (rasterizer == null)
+                rasterizer = new Rasterizer();
+
+            try {
+                fDrawn = rasterizer.draw(this);
+            } catch (RuntimeException exc) {
+                // A different trace may have been loaded since this was
+                // requested, in which case it has already been canceled.
+                if (!fCancelled)
+                    exc.printStackTrace();
+            } finally {
+                fRasterizers.add(rasterizer);
+            }
+
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    finish(Job.this);
+                }
+            });
+        }
+
+        WaveformTileCache.TileKey fKey = new WaveformTileCache.TileKey();
+        int fTop;
+        Font fFont;
+        RenderingHints fHints;
+        double fDeviceScaleX;
+        double fDeviceScaleY;
+        BufferedImage fImage;
+        volatile boolean fCancelled;
+        volatile boolean fDrawn;
+    }
+
+    /// State for drawing tiles on one worker thread
+    private class Rasterizer {
+        /// Draw the waveform of the job's net into its image. The image is
+        /// transparent where there is no waveform, so the selection and
+        /// markers drawn beneath it by WaveformPanel show through.
+        /// @returns false if the net isn't in memory anymore, or a
+        ///   different trace was loaded
+        boolean draw(Job job) {
+            int netId = job.fKey.fNetId;
+            int tileLeft = job.fKey.fTile * WaveformTileCache.TILE_WIDTH;
+            Graphics2D g = job.fImage.createGraphics();
+            try {
+                g.setRenderingHints(job.fHints);
+                g.setFont(job.fFont);
+                g.scale(job.fDeviceScaleX, job.fDeviceScaleY);
+                g.translate(-tileLeft, 0);
+                g.clipRect(tileLeft, 0, WaveformTileCache.TILE_WIDTH,
+                           DrawMetrics.WAVEFORM_V_SPACING);
+
+                // The painters treat the edges of the rectangle they are
+                // given as the edges of the view. Extend it past the tile,
+                // so the waveform doesn't change where tiles meet.
+                fTileRect.setBounds(tileLeft - TILE_MARGIN, 0,
+                                    WaveformTileCache.TILE_WIDTH + TILE_MARGIN * 2,
+                                    DrawMetrics.WAVEFORM_V_SPACING);
+                if (!fModel.beginReading(netId))
+                    return false;
+
+                try {
+                    TransitionCursor cursor = fCursors.get(netId);
+                    if (fModel.getNetWidth(netId) > 1) {
+                        fMultiNetPainter.paint(g, cursor, DrawMetrics.WAVEFORM_V_GAP, fTileRect,
+                            job.fKey.fScale, job.fKey.fFormatter);
+                    } else {
+                        fSingleNetPainter.paint(g, cursor, DrawMetrics.WAVEFORM_V_GAP, fTileRect,
+                            job.fKey.fScale, job.fKey.fFormatter);
+                    }
+                } finally {
+                    fModel.endReading();
+                }
+            } finally {
+                g.dispose();
+            }
+
+            return true;
+        }
+
+        private SingleNetPainter fSingleNetPainter = new SingleNetPainter();
+        private MultiNetPainter fMultiNetPainter = new MultiNetPainter();
+        private TransitionCursorCache fCursors = new TransitionCursorCache(fModel);
+        private Rectangle fTileRect = new Rectangle();
+    }
+
+    private static final int TILE_MARGIN = DrawMetrics.WAVEFORM_TRANSITION_WIDTH * 2;
+
+    private TraceDataModel fModel;
+    private WaveformTileCache fCache;
+    private JComponent fView;
+    private ThreadPoolExecutor fExecutor;
+    private ConcurrentLinkedQueue<Rasterizer> fRasterizers =
+        new ConcurrentLinkedQueue<Rasterizer>();
+
+    // Jobs that were requested and haven't finished or been canceled. Only
+    // used on the event dispatch thread.
+    private HashMap<WaveformTileCache.TileKey, Job> fPending =
+        new HashMap<WaveformTileCache.TileKey, Job>();
+    private WaveformTileCache.TileKey fProbe = new WaveformTileCache.TileKey();
+
+    private Font fFont;
+    private RenderingHints fHints;
+    private double fDeviceScaleX = 1;
+    private double fDeviceScaleY = 1;
+}
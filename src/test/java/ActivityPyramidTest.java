@@ -0,0 +1,144 @@
+//
+// Copyright 2016 Jeff Bush
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+import waveapp.*;
+import static org.junit.Assert.*;
+import org.junit.*;
+
+public class ActivityPyramidTest {
+    private static final int COUNT = 10000;
+
+    private static TraceDataModel buildClock(int count, int xIndex) {
+        TraceDataModel model = new TraceDataModel();
+        TraceBuilder builder = model.startBuilding();
+        builder.enterScope("mod1");
+        builder.newNet("clk", -1, 1);
+        builder.exitScope();
+        BitVector zero = new BitVector("0", 2);
+        BitVector one = new BitVector("1", 2);
+        BitVector x = new BitVector("x", 2);
+        for (int i = 0; i < count; i++)
+            builder.appendTransition(0, i * 10L, i == xIndex ? x : (i & 1) == 0 ? zero : one);
+
+        builder.loadFinished();
+        return model;
+    }
+
+    private static ActivityPyramid getPyramid(TraceDataModel model) {
+        TransitionCursor cursor = model.newCursor(0);
+        cursor.seek(0);
+        return cursor.getActivityPyramid();
+    }
+
+    @Test
+    public void testSmallNet() {
+        assertNull(getPyramid(buildClock(100, -1)));
+    }
+
+    @Test
+    public void testLevels() {
+        TraceDataModel model = buildClock(COUNT, -1);
+        ActivityPyramid pyramid = getPyramid(model);
+        assertNotNull(pyramid);
+
+        // The finest buckets hold a few transitions, and the coarsest
+        // covers the whole trace.
+        long width = pyramid.getBucketWidth(0);
+        assertTrue(width >= 10 && width <= 10 * 64);
+        int top = pyramid.getLevelCount() - 1;
+        assertEquals(0, pyramid.getFirstIndex(top, 0));
+        assertEquals(COUNT, pyramid.getFirstIndex(top, 1));
+        assertTrue(pyramid.getBucketWidth(top) > model.getMaxTimestamp());
+
+        // Too zoomed in to use it
+        assertEquals(-1, pyramid.getLevel(width / 2.0));
+        assertEquals(0, pyramid.getLevel(width));
+        assertEquals(0, pyramid.getLevel(width * 1.5));
+        assertEquals(1, pyramid.getLevel(width * 2));
+        assertEquals(top, pyramid.getLevel(1e12));
+
+        // Index counts match findIndex at every bucket boundary
+        for (int level = 0; level <= top; level++) {
+            long levelWidth = pyramid.getBucketWidth(level);
+            for (long bucket = 0; bucket * levelWidth <= model.getMaxTimestamp(); bucket++) {
+                long start = bucket * levelWidth;
+                int expected = model.findIndex(0, start - 1) + 1;
+                if (start == 0)
+                    expected = 0;
+
+                assertEquals(expected, pyramid.getFirstIndex(level, bucket));
+                assertEquals(expected, pyramid.getIndexAfter(level, start));
+            }
+        }
+
+        assertFalse(pyramid.hasXZ(0, 0, model.getMaxTimestamp() + 1));
+    }
+
+    @Test
+    public void testXZ() {
+        TraceDataModel model = buildClock(COUNT, 5000);
+        ActivityPyramid pyramid = getPyramid(model);
+        for (int level = 0; level < pyramid.getLevelCount(); level++) {
+            assertTrue(pyramid.hasXZ(level, 50000, 50001));
+            assertTrue(pyramid.hasXZ(level, 0, model.getMaxTimestamp() + 1));
+            long width = pyramid.getBucketWidth(level);
+            long bucketStart = 50000 / width * width;
+            assertFalse(pyramid.hasXZ(level, bucketStart + width, bucketStart + width * 2));
+            if (bucketStart > 0)
+                assertFalse(pyramid.hasXZ(level, 0, bucketStart));
+        }
+    }
+
+    // Appending transitions extends the pyramid the same as building it
+    // from scratch.
+    @Test
+    public void testAppend() {
+        TraceDataModel model = buildClock(COUNT, 200);
+        TraceBuilder builder = model.resumeBuilding();
+        for (int i = COUNT; i < COUNT * 2; i++) {
+            builder.appendTransition(0, i * 10L, new BitVector(i == 15000 ? "z"
+                : (i & 1) == 0 ? "0" : "1", 2));
+        }
+
+        builder.loadFinished();
+
+        TraceDataModel expectedModel = new TraceDataModel();
+        builder = expectedModel.startBuilding();
+        builder.enterScope("mod1");
+        builder.newNet("clk", -1, 1);
+        builder.exitScope();
+        for (int i = 0; i < COUNT * 2; i++) {
+            builder.appendTransition(0, i * 10L, new BitVector(i == 200 ? "x"
+                : i == 15000 ? "z" : (i & 1) == 0 ? "0" : "1", 2));
+        }
+
+        builder.loadFinished();
+
+        ActivityPyramid pyramid = getPyramid(model);
+        ActivityPyramid expected = getPyramid(expectedModel);
+        assertEquals(expected.getLevelCount(), pyramid.getLevelCount());
+        for (int level = 0; level < expected.getLevelCount(); level++) {
+            assertEquals(expected.getBucketWidth(level), pyramid.getBucketWidth(level));
+            long width = expected.getBucketWidth(level);
+            for (long bucket = 0; bucket * width <= COUNT * 20; bucket++) {
+                assertEquals(expected.getFirstIndex(level, bucket),
+                    pyramid.getFirstIndex(level, bucket));
+                assertEquals(expected.hasXZ(level, bucket * width, (bucket + 1) * width),
+                    pyramid.hasXZ(level, bucket * width, (bucket + 1) * width));
+            }
+        }
+    }
+}
@@ -299,4 +299,26 @@ public class BitVectorTest {
         bv7.assign(bv6);
         assertEquals("0", bv7.toString());
     }
+
+    /// Values that span multiple words
+    @Test
+    public void testWideValues() {
+        BitVector bv1 = new BitVector("1ffffffffffffffff0123456789abcdef", 16);
+        BitVector bv2 = new BitVector("20000000000000000", 16);
+        BitVector bv3 = new BitVector("xffffffffffffffff0123456789abcdef", 16);
+
+        assertEquals(132, bv1.getWidth());
+        assertEquals("1FFFFFFFFFFFFFFFF0123456789ABCDEF", bv1.toString(16));
+        assertEquals("20000000000000000", bv2.toString(16));
+        assertEquals("XFFFFFFFFFFFFFFFF0123456789ABCDEF", bv3.toString(16));
+        assertEquals(1, bv1.compare(bv2));
+        assertEquals(-1, bv2.compare(bv1));
+        assertEquals(0, bv1.compare(new BitVector(bv1)));
+        assertFalse(bv1.isX());
+        assertTrue(bv3.isX());
+        assertFalse(bv3.isZ());
+        assertEquals(BitVector.VALUE_X, bv3.getBit(131));
+        assertEquals(BitVector.VALUE_X, bv3.getBit(128));
+        assertEquals(BitVector.VALUE_1, bv3.getBit(127));
+    }
 }
@@ -0,0 +1,421 @@
+//
+// Copyright 2016 Jeff Bush
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+import waveapp.*;
+import static org.junit.Assert.*;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import java.io.*;
+import java.util.Iterator;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+public class FstLoaderTest {
+    @Rule
+    public TemporaryFolder fTempFolder = new TemporaryFolder();
+
+    static final int BL_HDR = 0;
+    static final int BL_VCDATA = 1;
+    static final int BL_GEOM = 3;
+    static final int BL_HIER = 4;
+    static final int BL_VCDATA_DYN_ALIAS2 = 8;
+    static final int BL_ZWRAPPER = 254;
+
+    static final int ST_VCD_SCOPE = 254;
+    static final int ST_VCD_UPSCOPE = 255;
+    static final int VCD_WIRE = 16;
+
+    /// Builds FST files. Everything here is uncompressed unless the test
+    /// provides compressed data.
+    static class FstWriter {
+        void header(int timescale) throws IOException {
+            fOut.write(BL_HDR);
+            writeUint64(fOut, 329);
+            for (int i = 0; i < 8; i++)
+                writeUint64(fOut, 0);
+
+            fOut.write(timescale);
+            fOut.write(new byte[128 + 119 + 1 + 8]);
+        }
+
+        /// @param lengths Bit width of each handle, 0 for real
+        void geometry(long[] lengths) throws IOException {
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            for (long length : lengths)
+                writeVarint(data, length);
+
+            fOut.write(BL_GEOM);
+            writeUint64(fOut, data.size() + 24);
+            writeUint64(fOut, data.size());
+            writeUint64(fOut, lengths.length);
+            data.writeTo(fOut);
+        }
+
+        void hierarchy(byte[] records) throws IOException {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+            gzip.write(records);
+            gzip.close();
+            fOut.write(BL_HIER);
+            writeUint64(fOut, compressed.size() + 16);
+            writeUint64(fOut, records.length);
+            compressed.writeTo(fOut);
+        }
+
+        /// @param frame Initial values, as ASCII characters
+        /// @param packType 'Z', 'F', or '4'
+        /// @param changes Data for each handle, including the length prefix
+        ///    (null for no changes)
+        /// @param chain Encoded position table
+        void valueChanges(int type, long beginTime, long endTime, byte[] frame,
+                          int packType, byte[][] changes, byte[] chain, long[] times)
+            throws IOException {
+            ByteArrayOutputStream block = new ByteArrayOutputStream();
+            writeUint64(block, beginTime);
+            writeUint64(block, endTime);
+            writeUint64(block, 0);
+            writeVarint(block, frame.length);
+            writeVarint(block, frame.length);
+            writeVarint(block, changes.length);
+            block.write(frame);
+            writeVarint(block, changes.length);
+            block.write(packType);
+            for (byte[] data : changes) {
+                if (data != null)
+                    block.write(data);
+            }
+
+            block.write(chain);
+            writeUint64(block, chain.length);
+            ByteArrayOutputStream timeData = new ByteArrayOutputStream();
+            long lastTime = 0;
+            for (long time : times) {
+                writeVarint(timeData, time - lastTime);
+                lastTime = time;
+            }
+
+            timeData.writeTo(block);
+            writeUint64(block, timeData.size());
+            writeUint64(block, timeData.size());
+            writeUint64(block, times.length);
+
+            fOut.write(type);
+            writeUint64(fOut, block.size() + 8);
+            block.writeTo(fOut);
+        }
+
+        byte[] toByteArray() {
+            return fOut.toByteArray();
+        }
+
+        private ByteArrayOutputStream fOut = new ByteArrayOutputStream();
+    }
+
+    static void writeUint64(OutputStream out, long value) throws IOException {
+        for (int i = 56; i >= 0; i -= 8)
+            out.write((int) (value >> i));
+    }
+
+    static void writeVarint(OutputStream out, long value) throws IOException {
+        while (value >= 0x80) {
+            out.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+
+        out.write((int) value);
+    }
+
+    static void writeSignedVarint(OutputStream out, long value) throws IOException {
+        for (;;) {
+            int b = (int) (value & 0x7f);
+            value >>= 7;
+            if ((value == 0 && (b & 0x40) == 0) || (value == -1 && (b & 0x40) != 0)) {
+                out.write(b);
+                return;
+            }
+
+            out.write(b | 0x80);
+        }
+    }
+
+    static void writeString(OutputStream out, String string) throws IOException {
+        out.write(string.getBytes("UTF-8"));
+        out.write(0);
+    }
+
+    static byte[] scope(String name) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(ST_VCD_SCOPE);
+        out.write(0);
+        writeString(out, name);
+        writeString(out, "");
+        return out.toByteArray();
+    }
+
+    static byte[] var(String name, int length, int alias) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(VCD_WIRE);
+        out.write(0);
+        writeString(out, name);
+        writeVarint(out, length);
+        writeVarint(out, alias);
+        return out.toByteArray();
+    }
+
+    static byte[] concat(byte[]... arrays) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] array : arrays)
+            out.write(array);
+
+        return out.toByteArray();
+    }
+
+    static byte[] varints(long... values) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (long value : values)
+            writeVarint(out, value);
+
+        return out.toByteArray();
+    }
+
+    static byte[] bytes(int... values) {
+        byte[] array = new byte[values.length];
+        for (int i = 0; i < values.length; i++)
+            array[i] = (byte) values[i];
+
+        return array;
+    }
+
+    static byte[] littleEndian(double value) {
+        long bits = Double.doubleToLongBits(value);
+        byte[] array = new byte[8];
+        for (int i = 0; i < 8; i++)
+            array[i] = (byte) (bits >> (i * 8));
+
+        return array;
+    }
+
+    static byte[] ascii(String string) throws IOException {
+        return string.getBytes("US-ASCII");
+    }
+
+    /// Change data with a zero length prefix, which means uncompressed
+    static byte[] uncompressed(byte[] data) throws IOException {
+        return concat(varints(0), data);
+    }
+
+    static byte[] zlib(byte[] data) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        DeflaterOutputStream deflater = new DeflaterOutputStream(compressed);
+        deflater.write(data);
+        deflater.close();
+        return concat(varints(data.length), compressed.toByteArray());
+    }
+
+    static int sizeOf(byte[] changes) {
+        return changes == null ? 0 : changes.length;
+    }
+
+    /// Hierarchy used by the tests:
+    ///   handle 0: top.a (1 bit)
+    ///   handle 1: top.b (8 bits)
+    ///   top.c is an alias of a
+    ///   handle 2: top.r (real)
+    ///   handle 3: top.d (4 bits)
+    ///   handle 4: top.e (1 bit)
+    byte[] buildFile() throws IOException {
+        FstWriter writer = new FstWriter();
+        writer.header(-9);
+
+        // Block 1, zlib compression, dynamic aliases
+        byte[][] changes1 = {
+            // a: 1 at time index 1, z at index 3 (after 2 more)
+            uncompressed(varints((1 << 2) | (1 << 1), (2 << 4) | (1 << 1) | 1)),
+            // b: 0x5a at time index 0, bitwise
+            zlib(concat(varints(0), bytes(0x5a))),
+            // r: 1.5 at time index 2, little endian
+            uncompressed(concat(varints(2 << 1), littleEndian(1.5))),
+            // d: 01xz at index 2, as characters
+            uncompressed(concat(varints((2 << 1) | 1), ascii("01xz"))),
+            null
+        };
+
+        ByteArrayOutputStream chain1 = new ByteArrayOutputStream();
+        writeSignedVarint(chain1, (1 << 1) | 1);
+        writeSignedVarint(chain1, (sizeOf(changes1[0]) << 1) | 1);
+        writeSignedVarint(chain1, (sizeOf(changes1[1]) << 1) | 1);
+        writeSignedVarint(chain1, (sizeOf(changes1[2]) << 1) | 1);
+        writeVarint(chain1, 1 << 1);        // e has no changes
+        writer.valueChanges(BL_VCDATA_DYN_ALIAS2, 0, 20,
+            concat(ascii("0"), ascii("00000000"), new byte[8], ascii("xxxx"), ascii("1")),
+            'Z', changes1, chain1.toByteArray(), new long[] { 0, 5, 10, 20 });
+
+        // Block 2, LZ4, old style aliases. e has the same changes as a.
+        byte[][] changes2 = {
+            // a: 0 at index 1
+            concat(varints(1), bytes(0x10, 1 << 2)),
+            // b: 10101010 at index 0, as characters. The second sequence
+            // copies the first two characters.
+            concat(varints(9), bytes(0x30, 0x01, '1', '0', 0x02, 0x00, 0x20, '1', '0')),
+            null,
+            null,
+            null
+        };
+
+        writer.valueChanges(BL_VCDATA, 30, 40, ascii("0000000000000000000000"), '4',
+            changes2, concat(varints((1 << 1) | 1, (sizeOf(changes2[0]) << 1) | 1,
+            2 << 1, 0, 1)), new long[] { 30, 40 });
+
+        // Block 3, FastLZ
+        byte[][] changes3 = {
+            null,
+            null,
+            null,
+            // d: 1111 at index 0. The last three characters are a match.
+            concat(varints(5), bytes(0x01, 0x01, '1', 0x20, 0x00)),
+            null
+        };
+
+        writer.valueChanges(BL_VCDATA_DYN_ALIAS2, 50, 50, ascii("0000000000000000000000"),
+            'F', changes3, concat(varints(3 << 1), bytes(0x03), varints(1 << 1)),
+            new long[] { 50 });
+
+        writer.geometry(new long[] { 1, 8, 0, 4, 1 });
+        ByteArrayOutputStream upscope = new ByteArrayOutputStream();
+        upscope.write(ST_VCD_UPSCOPE);
+        writer.hierarchy(concat(scope("top"), var("a", 1, 0), var("b [7:0]", 8, 0),
+            var("c", 1, 1), var("r", 64, 0), var("d", 4, 0), var("e", 1, 0),
+            upscope.toByteArray()));
+
+        return writer.toByteArray();
+    }
+
+    File writeFile(String name, byte[] contents) throws IOException {
+        File file = fTempFolder.newFile(name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(contents);
+        } finally {
+            out.close();
+        }
+
+        return file;
+    }
+
+    void checkTransitions(TraceDataModel model, String netName, long[] timestamps,
+                          String[] values) {
+        int netId = model.findNet(netName);
+        assertTrue(netName, netId >= 0);
+        Iterator<Transition> it = model.findTransition(netId, 0);
+        for (int i = 0; i < timestamps.length; i++) {
+            assertTrue(netName, it.hasNext());
+            Transition transition = it.next();
+            assertEquals(netName, timestamps[i], transition.getTimestamp());
+            assertEquals(netName, values[i], transition.toString(2));
+        }
+
+        assertFalse(netName, it.hasNext());
+    }
+
+    void checkModel(TraceDataModel model) {
+        assertEquals(-9, model.getTimescale());
+        assertEquals(50, model.getMaxTimestamp());
+        assertEquals(8, model.getNetWidth(model.findNet("top.b")));
+        assertTrue(model.isNetLoaded(model.findNet("top.a")));
+
+        int realId = model.findNet("top.r");
+        assertTrue(model.isNetLoaded(realId));
+        assertTrue(model.isNetReal(realId));
+        Iterator<Transition> it = model.findTransition(realId, 0);
+        Transition transition = it.next();
+        assertEquals(0, transition.getTimestamp());
+        assertEquals(0.0, transition.getRealValue(), 0.0);
+        transition = it.next();
+        assertEquals(10, transition.getTimestamp());
+        assertEquals(1.5, transition.getRealValue(), 0.0);
+        assertFalse(it.hasNext());
+
+        checkTransitions(model, "top.a", new long[] { 0, 5, 20, 40 },
+            new String[] { "0", "1", "z", "0" });
+        checkTransitions(model, "top.c", new long[] { 0, 5, 20, 40 },
+            new String[] { "0", "1", "z", "0" });
+        checkTransitions(model, "top.b", new long[] { 0, 30 },
+            new String[] { new BitVector("01011010", 2).toString(2),
+            new BitVector("10101010", 2).toString(2) });
+        checkTransitions(model, "top.d", new long[] { 0, 10, 50 },
+            new String[] { "xxxx", new BitVector("01xz", 2).toString(2), "1111" });
+        checkTransitions(model, "top.e", new long[] { 0, 40 },
+            new String[] { "1", "0" });
+    }
+
+    TraceDataModel load(File file, int threadCount) throws Exception {
+        TraceDataModel model = new TraceDataModel();
+        FstLoader loader = new FstLoader();
+        loader.setParallelism(threadCount);
+        loader.load(file, model.startBuilding(), null);
+        return model;
+    }
+
+    @Test
+    public void testLoad() throws Exception {
+        File file = writeFile("test.fst", buildFile());
+        assertTrue(FstLoader.isFstFile(file));
+        checkModel(load(file, 1));
+    }
+
+    @Test
+    public void testParallel() throws Exception {
+        checkModel(load(writeFile("test.fst", buildFile()), 4));
+    }
+
+    @Test
+    public void testWrapped() throws Exception {
+        byte[] contents = buildFile();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+        gzip.write(contents);
+        gzip.close();
+
+        ByteArrayOutputStream wrapped = new ByteArrayOutputStream();
+        wrapped.write(BL_ZWRAPPER);
+        writeUint64(wrapped, compressed.size() + 16);
+        writeUint64(wrapped, contents.length);
+        compressed.writeTo(wrapped);
+
+        File file = writeFile("wrapped.fst", wrapped.toByteArray());
+        assertTrue(FstLoader.isFstFile(file));
+        checkModel(load(file, 1));
+    }
+
+    @Test
+    public void testNotFst() throws Exception {
+        assertFalse(FstLoader.isFstFile(writeFile("test.vcd", ascii("$timescale 1ns $end\n"))));
+        assertFalse(FstLoader.isFstFile(writeFile("empty.fst", new byte[0])));
+    }
+
+    @Test
+    public void testTruncated() throws Exception {
+        byte[] contents = buildFile();
+        byte[] truncated = new byte[340];
+        System.arraycopy(contents, 0, truncated, 0, truncated.length);
+        try {
+            load(writeFile("truncated.fst", truncated), 1);
+            fail("Didn't throw exception");
+        } catch (TraceLoader.LoadException exc) {
+            // Expected
+        }
+    }
+}
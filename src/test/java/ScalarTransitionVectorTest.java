@@ -0,0 +1,145 @@
+//
+// Copyright 2016 Jeff Bush
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+import waveapp.*;
+import static org.junit.Assert.*;
+import org.junit.*;
+import java.util.Iterator;
+
+public class ScalarTransitionVectorTest {
+    private static final String STATES = "01xz";
+
+    private void checkValues(ScalarTransitionVector vec, String values) {
+        Iterator<Transition> iter = vec.findTransition(0);
+        for (int i = 0; i < values.length(); i++) {
+            Transition t = iter.next();
+            assertEquals(i * 10, t.getTimestamp());
+            assertEquals(values.substring(i, i + 1), t.toString(2));
+        }
+
+        assertFalse(iter.hasNext());
+    }
+
+    @Test
+    public void testToggle() {
+        ScalarTransitionVector vec = new ScalarTransitionVector();
+        StringBuilder values = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            int value = (i + 1) & 1;
+            vec.appendTransition(i * 10, value);
+            values.append(STATES.charAt(value));
+        }
+
+        checkValues(vec, values.toString());
+        assertEquals(1, vec.getWidth());
+        assertEquals(9990, vec.getMaxTimestamp());
+
+        Transition t = vec.findTransition(15).next();
+        assertEquals(10, t.getTimestamp());
+        assertEquals(BitVector.VALUE_0, t.getBit(0));
+    }
+
+    /// Values that don't toggle, added after the vector has grown, convert
+    /// it to storing states.
+    @Test
+    public void testConvertToStates() {
+        ScalarTransitionVector vec = new ScalarTransitionVector();
+        StringBuilder values = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            int value;
+            if (i < 300)
+                value = i & 1;
+            else if (i == 300)
+                value = BitVector.VALUE_1;  // Same as previous
+            else
+                value = (i * 7 + (i >> 2)) & 3;
+
+            vec.appendTransition(i * 10, new BitVector(STATES.substring(value, value + 1), 2));
+            values.append(STATES.charAt(value));
+        }
+
+        checkValues(vec, values.toString());
+    }
+
+    @Test
+    public void testFirstValueX() {
+        ScalarTransitionVector vec = new ScalarTransitionVector();
+        vec.appendTransition(0, BitVector.VALUE_X);
+        vec.appendTransition(10, BitVector.VALUE_0);
+        vec.appendTransition(20, BitVector.VALUE_1);
+        checkValues(vec, "x01");
+    }
+
+    @Test
+    public void testMemoryUsage() {
+        ScalarTransitionVector toggle = new ScalarTransitionVector();
+        ScalarTransitionVector states = new ScalarTransitionVector();
+        for (int i = 0; i < 1024; i++) {
+            toggle.appendTransition(i, i & 1);
+            states.appendTransition(i, i == 0 ? BitVector.VALUE_Z : i & 1);
+        }
+
+        // States take two bits per transition
+        long statesSize = states.getMemoryUsage() - toggle.getMemoryUsage();
+        assertTrue(statesSize >= 1024 / 4);
+        assertTrue(statesSize < 1024 / 4 + 64);
+    }
+
+    /// Compare memory used by a clock to storing timestamps in a long[],
+    /// which was the previous layout.
+    @Test
+    public void testClockMemoryUsage() {
+        final int COUNT = 1000000;
+        ScalarTransitionVector clock = new ScalarTransitionVector();
+        for (int i = 0; i < COUNT; i++)
+            clock.appendTransition(i * 5L, i & 1);
+
+        clock.compact();
+        long uncompressed = COUNT * 8L;
+        long compressed = clock.getMemoryUsage();
+        assertTrue(compressed * 4 < uncompressed);
+
+        Iterator<Transition> iter = clock.findTransition(4999992);
+        Transition t = iter.next();
+        assertEquals(4999990, t.getTimestamp());
+        assertEquals(BitVector.VALUE_0, t.getBit(0));
+        assertEquals(4999995, iter.next().getTimestamp());
+        assertFalse(iter.hasNext());
+    }
+
+    /// The model uses this for nets that are one bit wide
+    @Test
+    public void testModelSelectsScalar() {
+        TraceDataModel model = new TraceDataModel();
+        TraceBuilder builder = model.startBuilding();
+        builder.enterScope("mod1");
+        int net1 = builder.newNet("net1", -1, 1);
+        int net2 = builder.newNet("net2", -1, 2);
+        builder.exitScope();
+        builder.appendTransition(net1, 0, new BitVector("0", 2));
+        builder.appendTransition(net1, 5, new BitVector("1", 2));
+        builder.appendTransition(net1, 7, new BitVector("1", 2));
+        builder.appendTransition(net2, 0, new BitVector("10", 2));
+        builder.loadFinished();
+
+        Iterator<Transition> iter = model.findTransition(net1, 6);
+        assertEquals(5, iter.next().getTimestamp());
+        Transition t = iter.next();
+        assertEquals(7, t.getTimestamp());
+        assertEquals(BitVector.VALUE_1, t.getBit(0));
+        assertEquals("10", model.findTransition(net2, 0).next().toString(2));
+    }
+}
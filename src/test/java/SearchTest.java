@@ -836,5 +836,51 @@ public class SearchTest {
         assertEquals(2, search.getNextMatch(0));
         assertEquals(2, search.getPreviousMatch(5));
     }
-}
 
+    @Test
+    public void testRealCompare() throws Exception {
+        TraceDataModel traceDataModel = new TraceDataModel();
+        TraceBuilder builder = traceDataModel.startBuilding();
+        builder.setTimescale(-9);
+        builder.enterScope("mod1");
+        int id1 = builder.newRealNet("voltage", -1);
+        int id2 = builder.newNet("count", -1, 4);
+        builder.exitScope();
+        builder.appendRealTransition(id1, 0, -1.5);
+        builder.appendRealTransition(id1, 10, 0.25);
+        builder.appendRealTransition(id1, 20, 3.0);
+        builder.appendRealTransition(id1, 30, 2e-3);
+        builder.appendTransition(id2, 0, new BitVector("2", 10));
+        builder.appendTransition(id2, 25, new BitVector("3", 10));
+        builder.loadFinished();
+
+        // Negative values compare numerically, not by bit pattern
+        Search search = new Search(traceDataModel, "mod1.voltage < 0");
+        assertTrue(search.matches(5));
+        assertFalse(search.matches(15));
+
+        search = new Search(traceDataModel, "mod1.voltage > -2");
+        assertTrue(search.matches(5));
+
+        search = new Search(traceDataModel, "mod1.voltage = 0.25");
+        assertEquals(10, search.getNextMatch(0));
+        assertEquals("(eq net0 0.25)", search.toString());
+
+        search = new Search(traceDataModel, "mod1.voltage <= 2.5e-3");
+        assertEquals(30, search.getNextMatch(20));
+
+        // Integer literal and integer net against a real net
+        search = new Search(traceDataModel, "mod1.voltage = 3");
+        assertEquals(20, search.getNextMatch(0));
+        search = new Search(traceDataModel, "mod1.voltage = mod1.count");
+        assertTrue(search.matches(25));
+        assertFalse(search.matches(20));
+
+        try {
+            new Search(traceDataModel, "mod1.voltage = 1e");
+            fail("Did not throw exception");
+        } catch (Search.ParseException exc) {
+            // Expected
+        }
+    }
+}
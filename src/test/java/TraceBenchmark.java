@@ -0,0 +1,251 @@
+//
+// Copyright 2016 Jeff Bush
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+import waveapp.*;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+
+///
+/// Measures memory use and garbage collection cost of a large synthetic
+/// trace. This is not run as part of the tests. Run it with:
+///
+///     ./gradlew benchmark [-PbenchmarkArgs="[seek] <transitions per net>"]
+///
+/// For each kind of TransitionStorage, it builds a trace with clock, bus,
+/// and control nets, then reports the heap that is still in use after a
+/// full collection, off-heap size, time spent in the garbage collector
+/// while loading, the time a full collection takes with the trace live,
+/// and the time to scroll through the trace.
+///
+/// With "seek", it instead compares the cost of looking up a transition
+/// with TraceDataModel.findIndex and with a TransitionCursor, for
+/// timestamps that step forward one transition at a time (like a search),
+/// a hundred at a time (like dragging the cursor), and at random.
+///
+public class TraceBenchmark {
+    private static final int CLOCK_NETS = 16;
+    private static final int BUS_NETS = 64;
+    private static final int CONTROL_NETS = 64;
+    private static final int BUS_WIDTH = 32;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("seek")) {
+            seek(args.length > 1 ? Integer.parseInt(args[1]) : 1000000);
+            return;
+        }
+
+        int transitionsPerNet = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+
+        // Warm up the JIT, so the order the storage kinds are measured in
+        // doesn't matter.
+        for (int i = 0; i < 3; i++) {
+            runStorage("heap", TransitionStorage.HEAP, 5000, false);
+            runStorage("direct", TransitionStorage.newDirect(), 5000, false);
+        }
+
+        System.out.println("transitions per net: " + transitionsPerNet);
+        System.out.println("storage    heap MB   off-heap MB   load GC ms   full GC ms"
+            + "   load ms   scroll ms");
+        runStorage("heap", TransitionStorage.HEAP, transitionsPerNet, true);
+        runStorage("direct", TransitionStorage.newDirect(), transitionsPerNet, true);
+        runStorage("mapped", TransitionStorage.newMapped(null), transitionsPerNet, true);
+    }
+
+    private static void runStorage(String name, TransitionStorage storage,
+                                   int transitionsPerNet, boolean report) {
+        collect();
+        long baseHeap = usedHeap();
+
+        long startTime = System.currentTimeMillis();
+        long startGcTime = gcTime();
+        TraceDataModel model = buildTrace(storage, transitionsPerNet);
+        long loadTime = System.currentTimeMillis() - startTime;
+        long loadGcTime = gcTime() - startGcTime;
+
+        long fullGcTime = collect();
+        long heap = Math.max(0, usedHeap() - baseHeap);
+
+        startTime = System.currentTimeMillis();
+        scroll(model, transitionsPerNet);
+        long scrollTime = System.currentTimeMillis() - startTime;
+
+        if (report) {
+            System.out.println(String.format("%-8s %9.1f %13.1f %12d %12d %9d %11d", name,
+                heap / 1048576.0, storage.getOffHeapSize() / 1048576.0, loadGcTime,
+                fullGcTime, loadTime, scrollTime));
+        }
+    }
+
+    private static TraceDataModel buildTrace(TransitionStorage storage,
+                                             int transitionsPerNet) {
+        TraceDataModel model = new TraceDataModel();
+        model.setTransitionStorage(storage);
+        TraceBuilder builder = model.startBuilding();
+        builder.enterScope("top");
+        int netCount = CLOCK_NETS + BUS_NETS + CONTROL_NETS;
+        int[] netIds = new int[netCount];
+        for (int i = 0; i < netCount; i++) {
+            netIds[i] = builder.newNet("net" + i, -1, i >= CLOCK_NETS
+                && i < CLOCK_NETS + BUS_NETS ? BUS_WIDTH : 1);
+        }
+
+        builder.exitScope();
+
+        BitVector zero = new BitVector("0", 2);
+        BitVector one = new BitVector("1", 2);
+        BitVector busValue = new BitVector(BUS_WIDTH);
+        long seed = 1;
+        for (int t = 0; t < transitionsPerNet; t++) {
+            long timestamp = t * 10L;
+            for (int i = 0; i < netCount; i++) {
+                seed = seed * 6364136223846793005L + 1442695040888963407L;
+                if (i < CLOCK_NETS)
+                    builder.appendTransition(netIds[i], timestamp, (t & 1) == 0 ? zero : one);
+                else if (i < CLOCK_NETS + BUS_NETS) {
+                    for (int bit = 0; bit < BUS_WIDTH; bit++)
+                        busValue.setBit(bit, (int) (seed >>> (bit + 16)) & 1);
+
+                    builder.appendTransition(netIds[i], timestamp + 1, busValue);
+                } else {
+                    builder.appendTransition(netIds[i], timestamp + 2,
+                        (seed & 0x10000) != 0 ? one : zero);
+                }
+            }
+        }
+
+        builder.loadFinished();
+        return model;
+    }
+
+    /// Read every net in windows across the whole trace, like painting
+    /// while scrolling.
+    private static void scroll(TraceDataModel model, int transitionsPerNet) {
+        long windowSize = 2000;
+        long maxTimestamp = model.getMaxTimestamp();
+        long checksum = 0;
+        BitVector value = new BitVector();
+        TransitionCursor[] cursors = new TransitionCursor[model.getTotalNetCount()];
+        for (int netId = 0; netId < cursors.length; netId++)
+            cursors[netId] = model.newCursor(netId);
+
+        for (long start = 0; start < maxTimestamp; start += maxTimestamp / 200) {
+            for (TransitionCursor cursor : cursors) {
+                cursor.seek(start);
+                do {
+                    if (cursor.getTimestamp() > start + windowSize)
+                        break;
+
+                    cursor.getValue(value);
+                    checksum += value.getBit(0);
+                } while (cursor.next());
+            }
+        }
+
+        if (checksum == 42)
+            System.out.println();   // Keep the loop from being optimized out
+    }
+
+    private static void seek(int transitionsPerNet) {
+        TraceDataModel model = buildTrace(TransitionStorage.HEAP, transitionsPerNet);
+        long maxTimestamp = model.getMaxTimestamp();
+        int seekCount = 2000000;
+        long[] step = new long[seekCount];
+        long[] drag = new long[seekCount];
+        long[] jump = new long[seekCount];
+        long seed = 1;
+        for (int i = 0; i < seekCount; i++) {
+            // Transitions of each net are 10 apart
+            step[i] = (i * 10L) % maxTimestamp;
+            drag[i] = (i * 1000L) % maxTimestamp;
+            seed = seed * 6364136223846793005L + 1442695040888963407L;
+            jump[i] = (seed >>> 1) % maxTimestamp;
+        }
+
+        // Warm up the JIT
+        for (int i = 0; i < 3; i++) {
+            timeFindIndex(model, step);
+            timeCursor(model, step);
+        }
+
+        System.out.println("transitions per net: " + transitionsPerNet);
+        System.out.println("pattern   findIndex ns/seek   cursor ns/seek");
+        reportSeek("step", model, step);
+        reportSeek("drag", model, drag);
+        reportSeek("jump", model, jump);
+    }
+
+    private static void reportSeek(String name, TraceDataModel model, long[] timestamps) {
+        System.out.println(String.format("%-8s %19.1f %16.1f", name,
+            (double) timeFindIndex(model, timestamps) / timestamps.length,
+            (double) timeCursor(model, timestamps) / timestamps.length));
+    }
+
+    /// @returns Nanoseconds to look up every timestamp on one clock, bus,
+    ///   and control net.
+    private static long timeFindIndex(TraceDataModel model, long[] timestamps) {
+        long checksum = 0;
+        long startTime = System.nanoTime();
+        for (int netId = 0; netId < CLOCK_NETS + BUS_NETS + CONTROL_NETS;
+                netId += CLOCK_NETS + BUS_NETS / 2) {
+            for (long timestamp : timestamps)
+                checksum += model.findIndex(netId, timestamp);
+        }
+
+        long elapsed = System.nanoTime() - startTime;
+        if (checksum == 42)
+            System.out.println();   // Keep the loop from being optimized out
+
+        return elapsed / 3;
+    }
+
+    private static long timeCursor(TraceDataModel model, long[] timestamps) {
+        long checksum = 0;
+        long startTime = System.nanoTime();
+        for (int netId = 0; netId < CLOCK_NETS + BUS_NETS + CONTROL_NETS;
+                netId += CLOCK_NETS + BUS_NETS / 2) {
+            TransitionCursor cursor = model.newCursor(netId);
+            for (long timestamp : timestamps)
+                checksum += cursor.seek(timestamp);
+        }
+
+        long elapsed = System.nanoTime() - startTime;
+        if (checksum == 42)
+            System.out.println();   // Keep the loop from being optimized out
+
+        return elapsed / 3;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /// Run a full garbage collection
+    /// @returns Time it took in milliseconds, according to the collectors
+    private static long collect() {
+        long before = gcTime();
+        System.gc();
+        return gcTime() - before;
+    }
+
+    private static long gcTime() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            total += gc.getCollectionTime();
+
+        return total;
+    }
+}
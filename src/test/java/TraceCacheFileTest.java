@@ -0,0 +1,174 @@
+//
+// Copyright 2016 Jeff Bush
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+import waveapp.*;
+import static org.junit.Assert.*;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Iterator;
+
+public class TraceCacheFileTest {
+    @Rule
+    public TemporaryFolder fTempFolder = new TemporaryFolder();
+
+    File makeTraceFile() throws Exception {
+        File traceFile = fTempFolder.newFile("trace.vcd");
+        FileOutputStream out = new FileOutputStream(traceFile);
+        try {
+            out.write("not really a trace".getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+
+        return traceFile;
+    }
+
+    @Test
+    public void testCacheFileName() {
+        assertEquals(new File("/foo/bar/.trace.vcd.wvcache"),
+            TraceCacheFile.cacheFileName(new File("/foo/bar/trace.vcd")));
+        assertEquals(new File(".trace.vcd.wvcache"),
+            TraceCacheFile.cacheFileName(new File("trace.vcd")));
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        File traceFile = makeTraceFile();
+        File cacheFile = TraceCacheFile.cacheFileName(traceFile);
+
+        TraceDataModel sourceModel = new TraceDataModel();
+        TraceCacheFile cache = new TraceCacheFile(cacheFile, sourceModel);
+        TraceBuilder builder = cache.recordDefinitions(sourceModel.startBuilding());
+        builder.setTimescale(-9);
+        builder.enterScope("mod1");
+        int net1 = builder.newNet("net1", -1, 1);
+        builder.enterScope("mod2");
+        int net2 = builder.newNet("net2", -1, 37);
+        int net3 = builder.newNet("net3", net1, 1);
+        int net4 = builder.newNet("net4", -1, 3);
+        builder.exitScope();
+        builder.exitScope();
+        builder.setNetLoaded(net4, false);
+        for (int i = 0; i < 1000; i++) {
+            builder.appendTransition(net1, i * 10, new BitVector((i & 1) != 0 ? "1" : "0", 2));
+            if (i % 3 == 0)
+                builder.appendTransition(net2, i * 10, new BitVector(Integer.toString(i), 10));
+        }
+
+        builder.loadFinished();
+        assertTrue(cache.write(traceFile));
+
+        TraceDataModel model = new TraceDataModel();
+        assertTrue(new TraceCacheFile(cacheFile, model).read(traceFile));
+
+        assertEquals(-9, model.getTimescale());
+        assertEquals(9990, model.getMaxTimestamp());
+        assertEquals(4, model.getTotalNetCount());
+        assertEquals(net2, model.findNet("mod1.mod2.net2"));
+        assertEquals(37, model.getNetWidth(net2));
+        assertTrue(model.isNetLoaded(net1));
+        assertFalse(model.isNetLoaded(net4));
+
+        NetTreeModel tree = model.getNetTree();
+        Object root = tree.getRoot();
+        assertEquals("mod1", root.toString());
+        assertEquals(2, tree.getChildCount(root));
+        assertEquals(3, tree.getChildCount(tree.getChild(root, 1)));
+
+        int[] nets = { net1, net2, net3 };
+        for (int netId : nets) {
+            Iterator<Transition> expected = sourceModel.findTransition(netId, 0);
+            Iterator<Transition> actual = model.findTransition(netId, 0);
+            while (expected.hasNext()) {
+                Transition expectedTransition = expected.next();
+                Transition actualTransition = actual.next();
+                assertEquals(expectedTransition.getTimestamp(), actualTransition.getTimestamp());
+                assertEquals(expectedTransition.toString(2), actualTransition.toString(2));
+            }
+
+            assertFalse(actual.hasNext());
+        }
+
+        // Transitions can still be appended after reading
+        TraceBuilder resumed = model.resumeBuilding();
+        resumed.appendTransition(net1, 10000, new BitVector("1", 2));
+        resumed.loadFinished();
+        assertEquals(10000, model.getMaxTimestamp());
+    }
+
+    @Test
+    public void testRealNet() throws Exception {
+        File traceFile = makeTraceFile();
+        File cacheFile = TraceCacheFile.cacheFileName(traceFile);
+
+        TraceDataModel sourceModel = new TraceDataModel();
+        TraceCacheFile cache = new TraceCacheFile(cacheFile, sourceModel);
+        TraceBuilder builder = cache.recordDefinitions(sourceModel.startBuilding());
+        builder.enterScope("mod1");
+        int real = builder.newRealNet("voltage", -1);
+        int clone = builder.newRealNet("voltage2", real);
+        builder.exitScope();
+        for (int i = 0; i < 300; i++)
+            builder.appendRealTransition(real, i * 2, i * 0.5 - 10);
+
+        builder.loadFinished();
+        assertTrue(cache.write(traceFile));
+
+        TraceDataModel model = new TraceDataModel();
+        assertTrue(new TraceCacheFile(cacheFile, model).read(traceFile));
+        assertTrue(model.isNetReal(real));
+        assertTrue(model.isNetReal(clone));
+        Iterator<Transition> it = model.findTransition(clone, 0);
+        for (int i = 0; i < 300; i++) {
+            Transition t = it.next();
+            assertEquals(i * 2, t.getTimestamp());
+            assertEquals(i * 0.5 - 10, t.getRealValue(), 0.0);
+        }
+
+        assertFalse(it.hasNext());
+    }
+
+    @Test
+    public void testStale() throws Exception {
+        File traceFile = makeTraceFile();
+        File cacheFile = TraceCacheFile.cacheFileName(traceFile);
+
+        TraceDataModel sourceModel = new TraceDataModel();
+        TraceCacheFile cache = new TraceCacheFile(cacheFile, sourceModel);
+        TraceBuilder builder = cache.recordDefinitions(sourceModel.startBuilding());
+        builder.enterScope("mod1");
+        builder.newNet("net1", -1, 1);
+        builder.exitScope();
+        builder.appendTransition(0, 5, new BitVector("1", 2));
+        builder.loadFinished();
+        assertTrue(cache.write(traceFile));
+
+        assertTrue(traceFile.setLastModified(traceFile.lastModified() - 10000));
+        TraceDataModel model = new TraceDataModel();
+        assertFalse(new TraceCacheFile(cacheFile, model).read(traceFile));
+        assertEquals(0, model.getTotalNetCount());
+    }
+
+    @Test
+    public void testMissing() throws Exception {
+        File traceFile = makeTraceFile();
+        TraceDataModel model = new TraceDataModel();
+        assertFalse(new TraceCacheFile(TraceCacheFile.cacheFileName(traceFile), model)
+            .read(traceFile));
+    }
+}
@@ -117,6 +117,37 @@ public class TraceDataModelTest {
         assertEquals(17, ati.next().getTimestamp());
     }
 
+    // A net that wasn't loaded reads as X, and aliases share its state
+    @Test
+    public void testNetNotLoaded() {
+        TraceDataModel model = new TraceDataModel();
+        TraceBuilder builder = model.startBuilding();
+
+        builder.enterScope("mod1");
+        int net1 = builder.newNet("net1", -1, 4);
+        int net2 = builder.newNet("net2", -1, 1);
+        int net3 = builder.newNet("net3", net1, 4);
+        builder.exitScope();
+        builder.setNetLoaded(net1, false);
+        builder.appendTransition(net2, 17, new BitVector("1", 2));
+        builder.loadFinished();
+
+        assertFalse(model.isNetLoaded(net1));
+        assertTrue(model.isNetLoaded(net2));
+        assertFalse(model.isNetLoaded(net3));
+
+        Iterator<Transition> i = model.findTransition(net1, 100);
+        Transition t = i.next();
+        assertEquals(0, t.getTimestamp());
+        assertEquals(4, t.getWidth());
+        assertTrue(t.isX());
+        assertFalse(i.hasNext());
+
+        t = model.findTransition(net3, 0).next();
+        assertTrue(t.isX());
+        assertEquals(17, model.getMaxTimestamp());
+    }
+
     @Test
     public void testCopyFrom() {
         TraceDataModel model1 = new TraceDataModel();
@@ -156,4 +187,136 @@ public class TraceDataModelTest {
         assertEquals(net1, model2.getNetFromTreeObject(kid0));
         assertEquals(net2, model2.getNetFromTreeObject(kid1));
     }
+
+    @Test
+    public void testResumeBuilding() {
+        TraceDataModel model = new TraceDataModel();
+        TraceBuilder builder = model.startBuilding();
+        builder.enterScope("mod1");
+        int net1 = builder.newNet("net1", -1, 1);
+        int net2 = builder.newNet("net2", -1, 4);
+        builder.exitScope();
+        builder.appendTransition(net1, 10, new BitVector("1", 2));
+        builder.appendTransition(net2, 15, new BitVector("0011", 2));
+        builder.loadFinished();
+
+        final long[] notified = new long[] { -1, -1 };
+        model.addListener(new TraceDataModel.Listener() {
+            @Override
+            public void dataAppended(long oldMaxTimestamp, long newMaxTimestamp) {
+                notified[0] = oldMaxTimestamp;
+                notified[1] = newMaxTimestamp;
+            }
+        });
+
+        builder = model.resumeBuilding();
+        builder.appendTransition(net1, 20, new BitVector("0", 2));
+        builder.appendTransition(net2, 30, new BitVector("1100", 2));
+        builder.loadFinished();
+
+        assertEquals(15, notified[0]);
+        assertEquals(30, notified[1]);
+        assertEquals(30, model.getMaxTimestamp());
+        assertEquals(2, model.getTotalNetCount());
+
+        Iterator<Transition> it = model.findTransition(net1, 0);
+        assertEquals(10, it.next().getTimestamp());
+        Transition t = it.next();
+        assertEquals(20, t.getTimestamp());
+        assertEquals("0", t.toString(2));
+        assertFalse(it.hasNext());
+
+        it = model.findTransition(net2, 0);
+        assertEquals("0011", it.next().toString(2));
+        t = it.next();
+        assertEquals(30, t.getTimestamp());
+        assertEquals("1100", t.toString(2));
+        assertFalse(it.hasNext());
+    }
+
+    // Reading transitions by index, for all kinds of nets
+    @Test
+    public void testIndexAccess() {
+        TraceDataModel model = new TraceDataModel();
+        TraceBuilder builder = model.startBuilding();
+        builder.enterScope("mod1");
+        int net1 = builder.newNet("net1", -1, 1);
+        int net2 = builder.newNet("net2", -1, 4);
+        int net3 = builder.newRealNet("net3", -1);
+        int net4 = builder.newNet("net4", -1, 4);
+        builder.exitScope();
+        builder.setNetLoaded(net4, false);
+        builder.appendTransition(net1, 10, new BitVector("1", 2));
+        builder.appendTransition(net1, 20, new BitVector("0", 2));
+        builder.appendTransition(net2, 5, new BitVector("0011", 2));
+        builder.appendTransition(net2, 25, new BitVector("1z0x", 2));
+        builder.appendRealTransition(net3, 7, 2.5);
+        builder.loadFinished();
+
+        assertEquals(2, model.getTransitionCount(net1));
+        assertEquals(0, model.findIndex(net1, 0));
+        assertEquals(0, model.findIndex(net1, 19));
+        assertEquals(1, model.findIndex(net1, 20));
+        assertEquals(1, model.findIndex(net1, 100));
+        assertEquals(10, model.getTimestamp(net1, 0));
+        assertEquals(20, model.getTimestamp(net1, 1));
+
+        BitVector value = new BitVector();
+        model.getValue(net1, 0, value);
+        assertEquals("1", value.toString(2));
+        model.getValue(net2, model.findIndex(net2, 30), value);
+        assertEquals(4, value.getWidth());
+        assertEquals("1z0x", value.toString(2));
+        assertEquals(25, model.getTimestamp(net2, 1));
+
+        assertEquals(1, model.getTransitionCount(net3));
+        assertEquals(2.5, model.getRealValue(net3, 0), 0.0);
+        model.getValue(net3, 0, value);
+        assertEquals(64, value.getWidth());
+        assertEquals(Long.toHexString(Double.doubleToRawLongBits(2.5)), value.toString(16));
+
+        // Not loaded: a single X transition
+        assertEquals(1, model.getTransitionCount(net4));
+        assertEquals(0, model.findIndex(net4, 100));
+        assertEquals(0, model.getTimestamp(net4, 0));
+        model.getValue(net4, 0, value);
+        assertEquals(4, value.getWidth());
+        assertTrue(value.isX());
+    }
+
+    // A thread that is reading a net keeps appended transitions from
+    // changing it until it is done.
+    @Test
+    public void testBeginReading() throws InterruptedException {
+        TraceDataModel model = new TraceDataModel();
+        TraceBuilder builder = model.startBuilding();
+        builder.enterScope("mod1");
+        final int net1 = builder.newNet("net1", -1, 1);
+        builder.exitScope();
+        builder.appendTransition(net1, 10, new BitVector("1", 2));
+        builder.loadFinished();
+
+        final TraceBuilder resumed = model.resumeBuilding();
+        Thread appender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                resumed.appendTransition(net1, 20, new BitVector("0", 2));
+                resumed.loadFinished();
+            }
+        });
+
+        model.beginReading(net1);
+        try {
+            appender.start();
+            appender.join(100);
+            assertTrue(appender.isAlive());
+            assertEquals(1, model.getTransitionCount(net1));
+        } finally {
+            model.endReading();
+        }
+
+        appender.join();
+        assertEquals(2, model.getTransitionCount(net1));
+        assertEquals(20, model.getMaxTimestamp());
+    }
 }
@@ -0,0 +1,200 @@
+//
+// Copyright 2016 Jeff Bush
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+import waveapp.*;
+import static org.junit.Assert.*;
+import org.junit.*;
+
+public class TransitionCursorTest {
+    // Seeks in every direction and distance find the same transitions
+    // as findIndex.
+    @Test
+    public void testSeek() {
+        TraceDataModel model = new TraceDataModel();
+        TraceBuilder builder = model.startBuilding();
+        builder.enterScope("mod1");
+        int net1 = builder.newNet("net1", -1, 8);
+        builder.exitScope();
+        BitVector value = new BitVector(8);
+        for (int i = 0; i < 10000; i++) {
+            value.setBit(i % 8, value.getBit(i % 8) ^ 1);
+            builder.appendTransition(net1, 5 + i * 3 + (i % 2), value);
+        }
+
+        builder.loadFinished();
+
+        TransitionCursor cursor = model.newCursor(net1);
+        BitVector expected = new BitVector();
+        BitVector actual = new BitVector();
+        long seed = 1;
+        long timestamp = 0;
+        for (int i = 0; i < 5000; i++) {
+            seed = seed * 6364136223846793005L + 1442695040888963407L;
+            switch ((int) (seed >>> 60) & 3) {
+            case 0:
+                timestamp = (seed >>> 8) % 31000;
+                break;
+            case 1:
+                timestamp += (seed >>> 8) % 20;
+                break;
+            case 2:
+                timestamp -= (seed >>> 8) % 20;
+                break;
+            default:
+                timestamp += (seed >>> 8) % 2000 - 1000;
+                break;
+            }
+
+            int index = model.findIndex(net1, timestamp);
+            assertEquals("timestamp " + timestamp, index, cursor.seek(timestamp));
+            assertEquals(index, cursor.getIndex());
+            assertEquals(model.getTimestamp(net1, index), cursor.getTimestamp());
+            model.getValue(net1, index, expected);
+            cursor.getValue(actual);
+            assertEquals(0, expected.compare(actual));
+        }
+    }
+
+    @Test
+    public void testNext() {
+        TraceDataModel model = new TraceDataModel();
+        TraceBuilder builder = model.startBuilding();
+        builder.enterScope("mod1");
+        int net1 = builder.newNet("net1", -1, 1);
+        builder.exitScope();
+        for (int i = 0; i < 200; i++)
+            builder.appendTransition(net1, i * 10, new BitVector((i & 1) == 0 ? "0" : "1", 2));
+
+        builder.loadFinished();
+
+        TransitionCursor cursor = model.newCursor(net1);
+        assertEquals(190, cursor.seek(1905));
+        assertEquals(1900, cursor.getTimestamp());
+        BitVector value = new BitVector();
+        for (int i = 190; i < 199; i++) {
+            assertTrue(cursor.next());
+            assertEquals(i + 1, cursor.getIndex());
+            assertEquals((i + 1) * 10, cursor.getTimestamp());
+            cursor.getValue(value);
+            assertEquals((i + 1) & 1, value.getBit(0));
+        }
+
+        assertFalse(cursor.next());
+        assertEquals(199, cursor.getIndex());
+        assertEquals(0, cursor.seek(-5));
+        assertEquals(0, cursor.getTimestamp());
+    }
+
+    // Transitions appended after the cursor read the last block are found
+    @Test
+    public void testAppend() {
+        TraceDataModel model = new TraceDataModel();
+        TraceBuilder builder = model.startBuilding();
+        builder.enterScope("mod1");
+        int net1 = builder.newNet("net1", -1, 4);
+        builder.exitScope();
+        builder.appendTransition(net1, 10, new BitVector("0001", 2));
+        builder.appendTransition(net1, 20, new BitVector("0010", 2));
+        builder.loadFinished();
+
+        TransitionCursor cursor = model.newCursor(net1);
+        assertEquals(1, cursor.seek(100));
+        assertFalse(cursor.next());
+
+        builder = model.resumeBuilding();
+        builder.appendTransition(net1, 30, new BitVector("0100", 2));
+        builder.appendTransition(net1, 40, new BitVector("1000", 2));
+        builder.loadFinished();
+
+        assertEquals(3, cursor.seek(100));
+        assertEquals(40, cursor.getTimestamp());
+        BitVector value = new BitVector();
+        cursor.getValue(value);
+        assertEquals("1000", value.toString(2));
+        assertEquals(1, cursor.seek(25));
+        assertTrue(cursor.next());
+        assertEquals(30, cursor.getTimestamp());
+    }
+
+    @Test
+    public void testNotLoaded() {
+        TraceDataModel model = new TraceDataModel();
+        TraceBuilder builder = model.startBuilding();
+        builder.enterScope("mod1");
+        int net1 = builder.newNet("net1", -1, 4);
+        int net2 = builder.newRealNet("net2", -1);
+        builder.exitScope();
+        builder.setNetLoaded(net1, false);
+        builder.appendRealTransition(net2, 5, 1.5);
+        builder.loadFinished();
+
+        TransitionCursor cursor = model.newCursor(net1);
+        assertEquals(0, cursor.seek(1000));
+        assertEquals(1, cursor.getTransitionCount());
+        assertEquals(0, cursor.getTimestamp());
+        BitVector value = new BitVector();
+        cursor.getValue(value);
+        assertTrue(value.isX());
+        assertFalse(cursor.next());
+
+        cursor = model.newCursor(net2);
+        cursor.seek(1000);
+        assertTrue(cursor.isReal());
+        assertEquals(1.5, cursor.getRealValue(), 0.0);
+    }
+
+    @Test
+    public void testSkipColumn() {
+        TraceDataModel model = new TraceDataModel();
+        TraceBuilder builder = model.startBuilding();
+        builder.enterScope("mod1");
+        int net1 = builder.newNet("net1", -1, 4);
+        builder.exitScope();
+        builder.appendTransition(net1, 0, new BitVector("0000", 2));
+        builder.appendTransition(net1, 100, new BitVector("0001", 2));
+        builder.appendTransition(net1, 101, new BitVector("0010", 2));
+        builder.appendTransition(net1, 102, new BitVector("00x0", 2));
+        builder.appendTransition(net1, 103, new BitVector("0100", 2));
+        builder.appendTransition(net1, 200, new BitVector("1000", 2));
+        builder.appendTransition(net1, 300, new BitVector("1001", 2));
+        builder.loadFinished();
+
+        TransitionCursor cursor = model.newCursor(net1);
+        cursor.seek(0);
+        assertFalse(cursor.skipColumn(100, -1));
+        assertEquals(0, cursor.getIndex());
+
+        assertEquals(1, cursor.seek(100));
+        assertTrue(cursor.skipColumn(102, -1));
+        assertEquals(2, cursor.getIndex());
+        assertFalse(cursor.hasXOrZ(1, -1));
+
+        cursor.seek(100);
+        assertTrue(cursor.skipColumn(110, -1));
+        assertEquals(4, cursor.getIndex());
+        assertEquals(103, cursor.getTimestamp());
+        assertTrue(cursor.hasXOrZ(1, -1));
+
+        // Only one transition in the column
+        cursor.seek(200);
+        assertFalse(cursor.skipColumn(250, -1));
+        assertEquals(5, cursor.getIndex());
+        assertTrue(cursor.skipColumn(1000, -1));
+        assertEquals(6, cursor.getIndex());
+        assertFalse(cursor.hasXOrZ(5, -1));
+        assertFalse(cursor.skipColumn(2000, -1));
+    }
+}
@@ -0,0 +1,133 @@
+//
+// Copyright 2016 Jeff Bush
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+import waveapp.*;
+import static org.junit.Assert.*;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import java.util.Iterator;
+
+public class TransitionStorageTest {
+    @Rule
+    public TemporaryFolder fTempFolder = new TemporaryFolder();
+
+    private static final int COUNT = 200000;
+
+    private static BitVector makeValue(int idx) {
+        BitVector value = new BitVector(40);
+        for (int bit = 0; bit < 40; bit++)
+            value.setBit(bit, (idx * 31 + bit * 7) % 37 == 0 ? BitVector.VALUE_X
+                : (idx >> (bit % 20)) & 1);
+
+        return value;
+    }
+
+    /// Fill vectors using this storage and check they read back the same
+    /// as ones on the heap.
+    private void checkStorage(TransitionStorage storage) {
+        TransitionVector bus = new TransitionVector(40, storage);
+        ScalarTransitionVector scalar = new ScalarTransitionVector(storage);
+        RealTransitionVector real = new RealTransitionVector(storage);
+        for (int idx = 0; idx < COUNT; idx++) {
+            bus.appendTransition(idx * 7L, makeValue(idx));
+            scalar.appendTransition(idx * 3L, idx == 1000 ? BitVector.VALUE_Z : idx & 1);
+            real.appendRealTransition(idx * 5L, idx * 0.25);
+        }
+
+        assertTrue(storage.getOffHeapSize() > 0);
+        bus.compact();
+        scalar.compact();
+        real.compact();
+
+        Iterator<Transition> busIter = bus.findTransition(0);
+        Iterator<Transition> scalarIter = scalar.findTransition(0);
+        Iterator<Transition> realIter = real.findTransition(0);
+        for (int idx = 0; idx < COUNT; idx++) {
+            Transition t = busIter.next();
+            assertEquals(idx * 7L, t.getTimestamp());
+            assertEquals(makeValue(idx).toString(2), t.toString(2));
+
+            t = scalarIter.next();
+            assertEquals(idx * 3L, t.getTimestamp());
+            assertEquals(idx == 1000 ? BitVector.VALUE_Z : idx & 1, t.getBit(0));
+
+            t = realIter.next();
+            assertEquals(idx * 5L, t.getTimestamp());
+            assertEquals(idx * 0.25, t.getRealValue(), 0.0);
+        }
+
+        Transition t = bus.findTransition(COUNT * 7L - 10).next();
+        assertEquals((COUNT - 2) * 7L, t.getTimestamp());
+
+        // Space that is released is reused
+        long offHeapSize = storage.getOffHeapSize();
+        bus.clear();
+        for (int idx = 0; idx < COUNT; idx++)
+            bus.appendTransition(idx, makeValue(idx));
+
+        assertEquals(offHeapSize, storage.getOffHeapSize());
+        assertEquals(makeValue(COUNT - 1).toString(2),
+            bus.findTransition(COUNT).next().toString(2));
+    }
+
+    @Test
+    public void testHeap() {
+        assertFalse(TransitionStorage.HEAP.isOffHeap());
+        TransitionVector vec = new TransitionVector(40, TransitionStorage.HEAP);
+        vec.appendTransition(5, makeValue(5));
+        assertEquals(makeValue(5).toString(2), vec.findTransition(0).next().toString(2));
+        assertEquals(0, TransitionStorage.HEAP.getOffHeapSize());
+    }
+
+    @Test
+    public void testDirect() {
+        TransitionStorage storage = TransitionStorage.newDirect();
+        assertTrue(storage.isOffHeap());
+        checkStorage(storage);
+    }
+
+    @Test
+    public void testMapped() throws Exception {
+        TransitionStorage storage = TransitionStorage.newMapped(fTempFolder.getRoot());
+        assertTrue(storage.isOffHeap());
+        checkStorage(storage);
+    }
+
+    /// Nets created by the model use its storage
+    @Test
+    public void testModel() {
+        TraceDataModel model = new TraceDataModel();
+        TransitionStorage storage = TransitionStorage.newDirect();
+        model.setTransitionStorage(storage);
+        TraceBuilder builder = model.startBuilding();
+        builder.enterScope("mod1");
+        int net1 = builder.newNet("net1", -1, 1);
+        int net2 = builder.newNet("net2", -1, 40);
+        builder.exitScope();
+        for (int idx = 0; idx < COUNT; idx++) {
+            builder.appendTransition(net1, idx * 2L,
+                new BitVector((idx & 1) == 0 ? "0" : "1", 2));
+            builder.appendTransition(net2, idx * 2L, makeValue(idx));
+        }
+
+        builder.loadFinished();
+        assertTrue(storage.getOffHeapSize() > 0);
+        Iterator<Transition> iter = model.findTransition(net2, 201);
+        assertEquals(200, iter.next().getTimestamp());
+        assertEquals(makeValue(101).toString(2), iter.next().toString(2));
+        assertEquals(BitVector.VALUE_1, model.findTransition(net1, 3).next().getBit(0));
+    }
+}
@@ -168,4 +168,172 @@ public class TransitionVectorTest {
         tvec.appendTransition(100, new BitVector("1", 2));
         assertEquals(100, tvec.getMaxTimestamp());
     }
+
+    // Pack a binary string in the format used by BitVector.unpack
+    private int[] packValue(String value) {
+        int[] words = new int[(value.length() + 15) / 16];
+        for (int i = 0; i < value.length(); i++) {
+            int bitValue;
+            switch (value.charAt(value.length() - i - 1)) {
+                case '1': bitValue = BitVector.VALUE_1; break;
+                case 'x': bitValue = BitVector.VALUE_X; break;
+                case 'z': bitValue = BitVector.VALUE_Z; break;
+                default: bitValue = BitVector.VALUE_0;
+            }
+
+            words[i / 16] |= bitValue << ((i % 16) * 2);
+        }
+
+        return words;
+    }
+
+    @Test
+    public void testAppendPacked() {
+        TransitionVector vec = new TransitionVector(37);
+        String value1 = "1z0x01100101110001010zzzz0011xx010101";
+        String value2 = "0000000000000000000000000000000000001";
+        vec.appendTransition(100, packValue(value1), 0, 37);
+
+        // Second value is at a non-zero offset in the array
+        int[] words = new int[4];
+        System.arraycopy(packValue(value2), 0, words, 1, 3);
+        vec.appendTransition(110, words, 1, 37);
+
+        Iterator<Transition> ti = vec.findTransition(0);
+        Transition t = ti.next();
+        assertEquals(100, t.getTimestamp());
+        assertEquals(value1, t.toString(2));
+        t = ti.next();
+        assertEquals(110, t.getTimestamp());
+        assertEquals(value2, t.toString(2));
+        assertFalse(ti.hasNext());
+    }
+
+    @Test
+    public void testAppendPackedPadAndTruncate() {
+        TransitionVector vec = new TransitionVector(8);
+        vec.appendTransition(100, packValue("x01"), 0, 3);
+        vec.appendTransition(110, packValue("0101010111001100"), 0, 16);
+        Iterator<Transition> ti = vec.findTransition(0);
+        assertEquals("00000x01", ti.next().toString(2));
+        assertEquals("11001100", ti.next().toString(2));
+    }
+
+    /// Mix packed and BitVector appends, with enough transitions to grow
+    /// the arrays.
+    @Test
+    public void testLargeAppendPacked() {
+        TransitionVector tvec = new TransitionVector(16);
+        BitVector bvec = new BitVector(16);
+        int[] words = new int[1];
+        for (int idx = 0; idx < 10000; idx++) {
+            if ((idx & 1) != 0) {
+                words[0] = 0;
+                for (int bit = 0; bit < 16; bit++)
+                    words[0] |= ((idx >> bit) & 1) << (bit * 2);
+
+                tvec.appendTransition(idx * 5, words, 0, 16);
+            } else {
+                makeBitVectorFromInt(bvec, idx);
+                tvec.appendTransition(idx * 5, bvec);
+            }
+        }
+
+        Iterator<Transition> iter = tvec.findTransition(0);
+        for (int idx = 0; idx < 10000; idx++) {
+            makeBitVectorFromInt(bvec, idx);
+            Transition t = iter.next();
+            assertEquals(idx * 5, t.getTimestamp());
+            assertEquals(0, t.compare(bvec));
+        }
+    }
+
+    /// Wide values with X and Z bits, which are not aligned to word
+    /// boundaries in the planes.
+    @Test
+    public void testWideXZValues() {
+        TransitionVector tvec = new TransitionVector(70);
+        String[] values = new String[300];
+        StringBuilder sb = new StringBuilder();
+        for (int idx = 0; idx < values.length; idx++) {
+            sb.setLength(0);
+            for (int bit = 0; bit < 70; bit++)
+                sb.append("01xz".charAt((idx + bit * 7 + (idx >> 3)) & (idx < 100 ? 1 : 3)));
+
+            values[idx] = sb.toString();
+            tvec.appendTransition(idx * 3, new BitVector(values[idx], 2));
+        }
+
+        Iterator<Transition> iter = tvec.findTransition(0);
+        for (int idx = 0; idx < values.length; idx++) {
+            Transition t = iter.next();
+            assertEquals(idx * 3, t.getTimestamp());
+            assertEquals(values[idx], t.toString(2));
+        }
+
+        assertFalse(iter.hasNext());
+    }
+
+    /// Timestamps are compressed as differences, so check ones that are far
+    /// apart and repeated ones, across many blocks.
+    @Test
+    public void testTimestampDeltas() {
+        TransitionVector tvec = new TransitionVector(2);
+        long[] timestamps = new long[1000];
+        BitVector bvec = new BitVector(2);
+        long timestamp = 17;
+        for (int idx = 0; idx < timestamps.length; idx++) {
+            if (idx % 7 != 0)
+                timestamp += ((long) idx * idx * idx) << (idx % 23);
+
+            timestamps[idx] = timestamp;
+            makeBitVectorFromInt(bvec, idx);
+            tvec.appendTransition(timestamp, bvec);
+        }
+
+        assertEquals(timestamps[timestamps.length - 1], tvec.getMaxTimestamp());
+        assertEquals(17, tvec.findTransition(0).next().getTimestamp());
+        for (int idx = 1; idx < timestamps.length; idx++) {
+            if (timestamps[idx] == timestamps[idx - 1])
+                continue;
+
+            // Last transition with this timestamp
+            Iterator<Transition> iter = tvec.findTransition(timestamps[idx] - 1);
+            Transition t = iter.next();
+            assertEquals(timestamps[idx - 1], t.getTimestamp());
+            makeBitVectorFromInt(bvec, idx - 1);
+            assertEquals(0, t.compare(bvec));
+            assertEquals(timestamps[idx], iter.next().getTimestamp());
+        }
+    }
+
+    /// Transitions are stored in segments. Check values that span several
+    /// of them, and appending after compact has trimmed the last one.
+    @Test
+    public void testCompact() {
+        TransitionVector tvec = new TransitionVector(100);
+        BitVector bvec = new BitVector(100);
+        for (int idx = 0; idx < 20000; idx++) {
+            makeBitVectorFromInt(bvec, idx);
+            bvec.setBit(99, (idx % 5) == 0 ? BitVector.VALUE_Z : BitVector.VALUE_0);
+            tvec.appendTransition(idx * 3, bvec);
+            if (idx == 9000) {
+                long usage = tvec.getMemoryUsage();
+                tvec.compact();
+                assertTrue(tvec.getMemoryUsage() < usage);
+            }
+        }
+
+        tvec.compact();
+        Iterator<Transition> iter = tvec.findTransition(0);
+        for (int idx = 0; idx < 20000; idx++) {
+            makeBitVectorFromInt(bvec, idx);
+            bvec.setBit(99, (idx % 5) == 0 ? BitVector.VALUE_Z : BitVector.VALUE_0);
+            Transition t = iter.next();
+            assertEquals(idx * 3, t.getTimestamp());
+            assertEquals(bvec.toString(2), t.toString(2));
+        }
+
+        assertFalse(iter.hasNext());
+    }
 }
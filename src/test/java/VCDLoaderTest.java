@@ -21,7 +21,9 @@ import static org.junit.Assert.*;
 import java.nio.file.Paths;
 import java.nio.charset.StandardCharsets;
 import java.io.*;
+import java.util.Iterator;
 import java.util.Vector;
+import java.util.zip.GZIPOutputStream;
 
 public class VCDLoaderTest {
     @Rule
@@ -94,6 +96,7 @@ public class VCDLoaderTest {
 
             Event event = fEventList.elementAt(fCurrentEvent++);
             assertEquals(event.fType, EXPECT_TRANSITION);
+            assertEquals(event.fId, id);
             assertEquals(event.fTimestamp, timestamp);
 
             // Convert to string instead of using compare so Z and X values are
@@ -288,6 +291,19 @@ public class VCDLoaderTest {
         }
     }
 
+    File gzipTempFileFrom(String contents) {
+        try {
+            File f = fTempFolder.newFile("test.vcd.gz");
+            OutputStream os = new GZIPOutputStream(new FileOutputStream(f));
+            os.write(contents.getBytes(StandardCharsets.US_ASCII));
+            os.close();
+            return f;
+        } catch (IOException exc) {
+            fail("Caught I/O exception trying to create temporary file");
+            return null;
+        }
+    }
+
     File testFile(String name) {
         return new File("src/test/resources/vcd/" + name);
     }
@@ -457,7 +473,7 @@ public class VCDLoaderTest {
         builder.expectAppendTransition(0, 5, "1101010010100010");
         builder.expectAppendTransition(1, 5, "100");
         builder.expectAppendTransition(2, 5, "x");
-        builder.expectAppendTransition(1, 10, "01zxxz10zxzx1010");
+        builder.expectAppendTransition(0, 10, "01zxxz10zxzx1010");
         builder.expectAppendTransition(2, 10, "1");
         builder.expectAppendTransition(0, 15, "zzzzzzzzzzzzzzzz");
         builder.expectAppendTransition(1, 15, "xxx");
@@ -516,6 +532,23 @@ public class VCDLoaderTest {
         }
     }
 
+    // Line numbers in errors must count CR/LF pairs as a single line.
+    @Test
+    public void testCrLfLineNumbers() throws Exception {
+        File file = tempFileFrom("$scope module mod1 $end\r\n"
+            + "$var wire 1 ! foo $end\r\n"
+            + "$upscope $end\r\n"
+            + "$enddefinitions $end\r\n"
+            + "#0\r\n"
+            + "1$\r\n");
+        try {
+            (new VCDLoader()).load(file, new DummyTraceBuilder(), null);
+            fail("Didn't throw exception");
+        } catch (TraceLoader.LoadException exc) {
+            assertEquals("line 6: Unknown net id $", exc.getMessage());
+        }
+    }
+
     @Test
     public void testInvalidValueType() throws Exception {
         try {
@@ -597,7 +630,7 @@ public class VCDLoaderTest {
         }
     }
 
-    // This file is spec compliant, but we don't support real values
+    // Real value change for a net that wasn't declared as real
     @Test
     public void testRealValueType() throws Exception {
         try {
@@ -605,10 +638,47 @@ public class VCDLoaderTest {
                 new DummyTraceBuilder(), null);
             fail("Didn't throw exception");
         } catch (TraceLoader.LoadException exc) {
-            assertEquals("line 6: real values are not supported", exc.getMessage());
+            assertEquals("line 6: real value for non-real net !", exc.getMessage());
         }
     }
 
+    @Test
+    public void testRealValues() throws Exception {
+        TraceDataModel model = new TraceDataModel();
+        VCDLoader loader = new VCDLoader();
+        loader.load(testFile("real.vcd"), model.startBuilding(), null);
+
+        int voltage = model.findNet("mod1.voltage");
+        int alias = model.findNet("mod1.voltage_alias");
+        int counter = model.findNet("mod1.counter");
+        assertTrue(model.isNetReal(voltage));
+        assertTrue(model.isNetReal(alias));
+        assertFalse(model.isNetReal(counter));
+        assertEquals(64, model.getNetWidth(voltage));
+
+        double[] expected = { 0.0, 1.5, -2.25e-3, 3e10 };
+        long[] timestamps = { 0, 5, 10, 20 };
+        for (int netId : new int[] { voltage, alias }) {
+            Iterator<Transition> it = model.findTransition(netId, 0);
+            for (int i = 0; i < expected.length; i++) {
+                Transition t = it.next();
+                assertTrue(t.isReal());
+                assertEquals(timestamps[i], t.getTimestamp());
+                assertEquals(expected[i], t.getRealValue(), 0.0);
+            }
+
+            assertFalse(it.hasNext());
+        }
+
+        Transition t = model.findTransition(voltage, 7).next();
+        assertEquals(1.5, t.getRealValue(), 0.0);
+        assertEquals("1.5", new RealValueFormatter().format(t));
+
+        t = model.findTransition(counter, 20).next();
+        assertFalse(t.isReal());
+        assertEquals(3, t.intValue());
+    }
+
     @Test
     public void testTraceAlias() throws Exception {
         ExpectTraceBuilder builder = new ExpectTraceBuilder();
@@ -624,6 +694,98 @@ public class VCDLoaderTest {
             builder, null);
     }
 
+    // Identifier codes of different lengths are stored in different
+    // tables internally. Make sure all of them are found, including aliases.
+    @Test
+    public void testIdentifierCodes() throws Exception {
+        String[] ids = { "!", "~", "!!", "~~", "~~~", "!!!!", "~~~~", "abcdefghi",
+            "~~~~~~~~~", "abcdefghij", "abcdefghijklmnopqrstuvwxyz" };
+        ExpectTraceBuilder builder = new ExpectTraceBuilder();
+        StringBuilder contents = new StringBuilder();
+        contents.append("$scope module mod1 $end\n");
+        builder.expectEnterModule("mod1");
+        for (int i = 0; i < ids.length; i++) {
+            contents.append("$var wire 1 " + ids[i] + " net" + i + " $end\n");
+            builder.expectNewNet("net" + i, -1, 1);
+        }
+
+        // Enough nets to grow the hash table
+        for (int i = 0; i < 500; i++) {
+            contents.append("$var wire 1 " + ids[i % ids.length] + "$" + i + " hashed"
+                + i + " $end\n");
+            builder.expectNewNet("hashed" + i, -1, 1);
+        }
+
+        // Aliases
+        for (int i = 0; i < ids.length; i++) {
+            contents.append("$var wire 1 " + ids[i] + " alias" + i + " $end\n");
+            builder.expectNewNet("alias" + i, i, 1);
+        }
+
+        contents.append("$upscope $end\n$enddefinitions $end\n#1\n");
+        builder.expectExitModule();
+        for (int i = 0; i < ids.length; i++) {
+            contents.append("1" + ids[i] + "\n");
+            builder.expectAppendTransition(i, 1, "1");
+        }
+
+        for (int i = 0; i < 500; i++) {
+            contents.append("0" + ids[i % ids.length] + "$" + i + "\n");
+            builder.expectAppendTransition(ids.length + i, 1, "0");
+        }
+
+        builder.expectLoadFinished();
+        (new VCDLoader()).load(tempFileFrom(contents.toString()), builder, null);
+    }
+
+    // Nets that are filtered out are still created, but their value changes
+    // are skipped. An identifier code is loaded if any alias is included.
+    @Test
+    public void testNetFilter() throws Exception {
+        ExpectTraceBuilder builder = new ExpectTraceBuilder();
+        builder.expectEnterModule("top");
+        builder.expectEnterModule("cpu");
+        builder.expectNewNet("clk", -1, 1);
+        builder.expectNewNet("data", -1, 8);
+        builder.expectExitModule();
+        builder.expectEnterModule("mem");
+        builder.expectNewNet("addr", -1, 4);
+        builder.expectNewNet("bus", 1, 8);
+        builder.expectNewNet("ready", -1, 1);
+        builder.expectExitModule();
+        builder.expectExitModule();
+        builder.expectAppendTransition(0, 0, "1");
+        builder.expectAppendTransition(1, 0, "00000011");
+        builder.expectAppendTransition(0, 5, "0");
+        builder.expectAppendTransition(1, 5, "00000101");
+        builder.expectLoadFinished();
+
+        VCDLoader loader = new VCDLoader();
+        loader.setNetFilter(new NetFilter("top.cpu.* top.mem.bu?", "*.data"));
+        loader.load(tempFileFrom("$scope module top $end\n"
+            + "$scope module cpu $end\n"
+            + "$var wire 1 ! clk $end\n"
+            + "$var wire 8 \" data $end\n"
+            + "$upscope $end\n"
+            + "$scope module mem $end\n"
+            + "$var wire 4 # addr [3:0] $end\n"
+            + "$var wire 8 \" bus $end\n"
+            + "$var wire 1 $ ready $end\n"
+            + "$upscope $end\n"
+            + "$upscope $end\n"
+            + "$enddefinitions $end\n"
+            + "#0\n"
+            + "1!\n"
+            + "b11 \"\n"
+            + "b1010 #\n"
+            + "1$\n"
+            + "#5\n"
+            + "0!\n"
+            + "b101 \"\n"
+            + "bzzzz #\n"
+            + "0$\n"), builder, null);
+    }
+
     // Put everything together with more data and multiple signals
     @Test
     public void testMixed() throws Exception {
@@ -665,6 +827,504 @@ public class VCDLoaderTest {
                     null);
     }
 
+    File makePipelineTestFile(TestBuilder builder) {
+        builder.setTimescale("1us", -6);
+        builder.enterScope("mod1");
+        builder.defineNet("clk", -1, 1);
+        builder.defineNet("data", -1, 32);
+        builder.exitScope();
+        builder.endDefinitions();
+        for (int i = 0; i < 1000; i++) {
+            builder.appendTransition(0, i * 5, (i & 1) != 0 ? "1" : "0");
+            builder.appendTransition(1, i * 5, i * 7);
+        }
+
+        builder.finish();
+        return builder.getVCDFile();
+    }
+
+    // Batches are smaller than the number of transitions, and the lexer
+    // must wait for the builder.
+    @Test
+    public void testPipelineSmallBatches() throws Exception {
+        TestBuilder builder = new TestBuilder();
+        File file = makePipelineTestFile(builder);
+        VCDLoader loader = new VCDLoader();
+        loader.setPipelineOptions(3, 1);
+        loader.load(file, builder.getTraceBuilder(), null);
+    }
+
+    // Queue depth of zero parses on the calling thread
+    @Test
+    public void testPipelineDisabled() throws Exception {
+        TestBuilder builder = new TestBuilder();
+        File file = makePipelineTestFile(builder);
+        VCDLoader loader = new VCDLoader();
+        loader.setPipelineOptions(1, 0);
+        loader.load(file, builder.getTraceBuilder(), null);
+    }
+
+    // Transitions before an error are added to the builder before the
+    // exception is thrown.
+    @Test
+    public void testPipelineError() throws Exception {
+        ExpectTraceBuilder builder = new ExpectTraceBuilder();
+        builder.expectEnterModule("mod1");
+        builder.expectNewNet("clk", -1, 1);
+        builder.expectExitModule();
+        StringBuilder contents = new StringBuilder();
+        contents.append("$scope module mod1 $end\n$var wire 1 ! clk $end\n$upscope $end\n"
+            + "$enddefinitions $end\n");
+        for (int i = 0; i < 100; i++) {
+            contents.append("#" + (i * 5) + "\n1!\n");
+            builder.expectAppendTransition(0, i * 5, "1");
+        }
+
+        contents.append("1$\n");
+        try {
+            VCDLoader loader = new VCDLoader();
+            loader.setPipelineOptions(7, 2);
+            loader.load(tempFileFrom(contents.toString()), builder, null);
+            fail("Didn't throw exception");
+        } catch (TraceLoader.LoadException exc) {
+            assertEquals("line 205: Unknown net id $", exc.getMessage());
+        }
+
+        builder.expectLoadFinished();
+        builder.loadFinished();
+    }
+
+    // Same as testMixed, but split the file into multiple ranges and parse
+    // them concurrently. The builder must see the same sequence of calls.
+    @Test
+    public void testParallelLoad() throws Exception {
+        TestBuilder builder = new TestBuilder();
+        builder.setTimescale("1us", -6);
+        builder.enterScope("mod1");
+        builder.defineNet("clk", -1, 1);
+        builder.defineNet("reset", -1, 1);
+        builder.defineNet("addr", -1, 32);
+        builder.defineNet("data", -1, 32);
+        builder.exitScope();
+        builder.endDefinitions();
+        for (int i = 0; i < 10000; i++) {
+            long time = i * 5;
+            if (i % 2 == 0)
+                builder.appendTransition(0, time, "0");
+            else {
+                builder.appendTransition(0, time, "1");
+                builder.appendTransition(2, time, i * 8);
+                builder.appendTransition(3, time, (i * 123123123) ^ i);
+            }
+        }
+
+        builder.finish();
+        VCDLoader loader = new VCDLoader();
+        loader.setParallelism(4);
+        loader.load(builder.getVCDFile(), builder.getTraceBuilder(),
+                    null);
+    }
+
+    void assertSameTransitions(TraceDataModel expected, TraceDataModel actual, int netId) {
+        java.util.Iterator<Transition> expectedIter = expected.findTransition(netId, 0);
+        java.util.Iterator<Transition> actualIter = actual.findTransition(netId, 0);
+        while (expectedIter.hasNext()) {
+            assertTrue(actualIter.hasNext());
+            Transition expectedTransition = expectedIter.next();
+            Transition actualTransition = actualIter.next();
+            assertEquals(expectedTransition.getTimestamp(), actualTransition.getTimestamp());
+            assertEquals(expectedTransition.toString(2), actualTransition.toString(2));
+        }
+
+        assertFalse(actualIter.hasNext());
+    }
+
+    File lazyLoadFile() throws IOException {
+        StringBuilder contents = new StringBuilder();
+        contents.append("$timescale 1ns $end\n$scope module mod1 $end\n"
+            + "$var wire 1 ! clk $end\n$var wire 32 \" data $end\n"
+            + "$var wire 32 # addr $end\n$var wire 1 ! clk_alias $end\n"
+            + "$upscope $end\n$enddefinitions $end\n");
+        for (int i = 0; i < 10000; i++) {
+            contents.append("#" + (i * 5) + "\n" + (i & 1) + "!\n");
+            if (i % 3 == 0)
+                contents.append("b" + Integer.toBinaryString(i * 7) + " \"\n");
+
+            if (i % 7 == 0)
+                contents.append("b" + Integer.toBinaryString(i ^ 0x5a5a) + " #\n");
+        }
+
+        contents.append("#50000\n");
+        return tempFileFrom(contents.toString());
+    }
+
+    // In lazy mode, transitions for each net are read when they are
+    // populated, and must be read again if they were discarded to stay
+    // within the memory budget.
+    @Test
+    public void testLazyLoad() throws Exception {
+        File file = lazyLoadFile();
+        TraceDataModel expected = new TraceDataModel();
+        (new VCDLoader()).load(file, expected.startBuilding(), null);
+
+        TraceDataModel lazy = new TraceDataModel();
+        VCDLoader loader = new VCDLoader();
+        loader.setLazyMode(true);
+        loader.setParallelism(4);
+        loader.load(file, lazy.startBuilding(), null);
+        assertEquals(4, lazy.getTotalNetCount());
+        assertEquals(50000, lazy.getMaxTimestamp());
+        assertFalse(lazy.isNetPopulated(0));
+        lazy.populateNets(new int[] { 0, 1, 2, 3 });
+        for (int netId = 0; netId < 4; netId++)
+            assertSameTransitions(expected, lazy, netId);
+
+        // Only the most recently read net fits
+        lazy = new TraceDataModel();
+        lazy.setMemoryBudget(1);
+        loader = new VCDLoader();
+        loader.setLazyMode(true);
+        loader.load(file, lazy.startBuilding(), null);
+        for (int pass = 0; pass < 2; pass++) {
+            for (int netId = 0; netId < 3; netId++) {
+                lazy.populateNets(new int[] { netId });
+                assertTrue(lazy.isNetPopulated(netId));
+                assertSameTransitions(expected, lazy, netId);
+                if (netId > 0)
+                    assertFalse(lazy.isNetPopulated(netId - 1));
+            }
+        }
+
+        assertFalse(loader.canLoadAppended());
+    }
+
+    // Nets requested by views are read on a background thread, all in one
+    // pass, and listeners are notified on the event dispatch thread.
+    @Test
+    public void testRequestNets() throws Exception {
+        File file = lazyLoadFile();
+        TraceDataModel expected = new TraceDataModel();
+        (new VCDLoader()).load(file, expected.startBuilding(), null);
+
+        final TraceDataModel lazy = new TraceDataModel();
+        VCDLoader loader = new VCDLoader();
+        loader.setLazyMode(true);
+        loader.load(file, lazy.startBuilding(), null);
+        assertFalse(lazy.isNetPopulated(1));
+        assertFalse(lazy.beginReading(1));
+
+        final java.util.concurrent.CountDownLatch loaded =
+            new java.util.concurrent.CountDownLatch(1);
+        lazy.addListener(new TraceDataModel.Listener() {
+            @Override
+            public void dataAppended(long oldMaxTimestamp, long newMaxTimestamp) {}
+
+            @Override
+            public void netsLoaded() {
+                assertTrue(java.awt.EventQueue.isDispatchThread());
+                loaded.countDown();
+            }
+        });
+
+        java.awt.EventQueue.invokeAndWait(new Runnable() {
+            @Override
+            public void run() {
+                lazy.requestNets(new int[] { 1, 3 });
+            }
+        });
+
+        assertTrue(loaded.await(10, java.util.concurrent.TimeUnit.SECONDS));
+        assertTrue(lazy.isNetPopulated(1));
+        assertTrue(lazy.isNetPopulated(0));     // 3 is a clone of 0
+        assertFalse(lazy.isNetPopulated(2));
+        assertTrue(lazy.beginReading(1));
+        lazy.endReading();
+        assertSameTransitions(expected, lazy, 1);
+        assertSameTransitions(expected, lazy, 3);
+
+        // A search waits for its nets, rather than reading them itself
+        final String expression = "mod1.addr = 'h5a5a and mod1.data = 'h0";
+        final Search search = new Search(lazy, expression);
+        final long[] match = new long[1];
+        final java.util.concurrent.CountDownLatch searched =
+            new java.util.concurrent.CountDownLatch(1);
+        java.awt.EventQueue.invokeAndWait(new Runnable() {
+            @Override
+            public void run() {
+                lazy.requestNets(search.getNetIds(), new Runnable() {
+                    @Override
+                    public void run() {
+                        match[0] = search.getNextMatch(0);
+                        searched.countDown();
+                    }
+                });
+            }
+        });
+
+        assertTrue(searched.await(10, java.util.concurrent.TimeUnit.SECONDS));
+        assertTrue(lazy.isNetPopulated(2));
+        assertEquals(new Search(expected, expression).getNextMatch(0), match[0]);
+    }
+
+    // The identifier for a vector value may be on the next line and
+    // begin with #. The file must not be split there.
+    @Test
+    public void testParallelIdentifierOnNextLine() throws Exception {
+        TestBuilder builder = new TestBuilder();
+        builder.setTimescale("1us", -6);
+        builder.enterScope("mod1");
+        builder.defineNet("clk", -1, 1);
+        builder.defineNet("reset", -1, 1);
+        builder.defineNet("addr", -1, 4);    // Identifier is #
+        builder.exitScope();
+        builder.endDefinitions();
+        for (int i = 0; i < 10000; i++) {
+            long time = i * 5;
+            String value = (i & 1) != 0 ? "1010" : "0101";
+            builder.addString("#" + time + "\n1!\nb" + value + "\n#\n");
+            builder.fTraceBuilder.expectAppendTransition(0, time, "1");
+            builder.fTraceBuilder.expectAppendTransition(2, time, value);
+        }
+
+        builder.finish();
+        VCDLoader loader = new VCDLoader();
+        loader.setParallelism(4);
+        loader.load(builder.getVCDFile(), builder.getTraceBuilder(),
+                    null);
+    }
+
+    // Timestamps go backward in the middle of the file, and don't catch up
+    // until later ranges. These must be clamped the same way as a serial
+    // load, even though the ranges are parsed independently.
+    @Test
+    public void testParallelTimestampOutOfOrder() throws Exception {
+        TestBuilder builder = new TestBuilder();
+        builder.setTimescale("1us", -6);
+        builder.enterScope("mod1");
+        builder.defineNet("value", -1, 16);
+        builder.exitScope();
+        builder.endDefinitions();
+        long lastTime = 0;
+        for (int i = 0; i < 10000; i++) {
+            long time = i < 5000 ? i * 5 : i * 5 - 1000;
+            lastTime = Math.max(lastTime, time);
+            builder.addString("#" + time + "\nb1010101010101010 !\n");
+            builder.fTraceBuilder.expectAppendTransition(0, lastTime, "1010101010101010");
+        }
+
+        builder.finish();
+        VCDLoader loader = new VCDLoader();
+        loader.setParallelism(4);
+        loader.load(builder.getVCDFile(), builder.getTraceBuilder(),
+                    null);
+    }
+
+    // Errors in a later range are reported with the correct line number
+    @Test
+    public void testParallelErrorLineNumber() throws Exception {
+        StringBuilder contents = new StringBuilder();
+        contents.append("$scope module mod1 $end\n$var wire 1 ! clk $end\n$upscope $end\n"
+            + "$enddefinitions $end\n");
+        for (int i = 0; i < 10000; i++)
+            contents.append("#" + (i * 5) + "\n1!\n");
+
+        contents.append("1$\n");
+        try {
+            VCDLoader loader = new VCDLoader();
+            loader.setParallelism(4);
+            loader.load(tempFileFrom(contents.toString()), new DummyTraceBuilder(), null);
+            fail("Didn't throw exception");
+        } catch (TraceLoader.LoadException exc) {
+            assertEquals("line 20005: Unknown net id $", exc.getMessage());
+        }
+    }
+
+    // Load a compressed file that decompresses to several blocks. This
+    // also asks for a parallel load, which falls back to a serial one.
+    @Test
+    public void testGzip() throws Exception {
+        TestBuilder builder = new TestBuilder();
+        builder.setTimescale("1us", -6);
+        builder.enterScope("mod1");
+        builder.defineNet("clk", -1, 1);
+        builder.defineNet("addr", -1, 32);
+        builder.exitScope();
+        builder.endDefinitions();
+        for (int i = 0; i < 20000; i++) {
+            builder.appendTransition(0, i * 5, (i & 1) != 0 ? "1" : "0");
+            builder.appendTransition(1, i * 5, i * 12345);
+        }
+
+        builder.finish();
+        TestProgressListener listener = new TestProgressListener();
+        VCDLoader loader = new VCDLoader();
+        loader.setParallelism(4);
+        loader.load(gzipTempFileFrom(builder.fVCDContents.toString()),
+            builder.getTraceBuilder(), listener);
+        assertNotEquals(-1, listener.fLastUpdate);
+    }
+
+    // Values that are longer than the space reserved to join tokens that
+    // span blocks.
+    @Test
+    public void testGzipLongValues() throws Exception {
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 50000; i++)
+            value.append((i % 3) != 0 ? '1' : '0');
+
+        TestBuilder builder = new TestBuilder();
+        builder.enterScope("mod1");
+        builder.defineNet("wide", -1, 50000);
+        builder.exitScope();
+        builder.endDefinitions();
+        for (int i = 0; i < 30; i++)
+            builder.appendTransition(0, i * 5, value.toString());
+
+        builder.finish();
+        VCDLoader loader = new VCDLoader();
+        loader.setPipelineOptions(1, 0);
+        loader.load(gzipTempFileFrom(builder.fVCDContents.toString()),
+            builder.getTraceBuilder(), null);
+    }
+
+    // The compressed data ends early
+    @Test
+    public void testGzipTruncated() throws Exception {
+        StringBuilder contents = new StringBuilder();
+        contents.append("$scope module mod1 $end\n$var wire 1 ! clk $end\n$upscope $end\n"
+            + "$enddefinitions $end\n");
+        for (int i = 0; i < 10000; i++)
+            contents.append("#" + (i * 5) + "\n1!\n");
+
+        File file = gzipTempFileFrom(contents.toString());
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(file.length() / 2);
+        raf.close();
+
+        try {
+            (new VCDLoader()).load(file, new DummyTraceBuilder(), null);
+            fail("Didn't throw exception");
+        } catch (IOException exc) {
+            // Expected
+        }
+    }
+
+    void writeFile(File file, String contents, boolean append) throws IOException {
+        FileOutputStream fos = new FileOutputStream(file, append);
+        fos.write(contents.getBytes(StandardCharsets.US_ASCII));
+        fos.close();
+    }
+
+    // Load a file that is still being written, then read data as it is
+    // appended.
+    @Test
+    public void testFollow() throws Exception {
+        ExpectTraceBuilder builder = new ExpectTraceBuilder();
+        builder.expectEnterModule("mod1");
+        builder.expectNewNet("clk", -1, 1);
+        builder.expectNewNet("data", -1, 4);
+        builder.expectExitModule();
+        builder.expectAppendTransition(0, 0, "1");
+        builder.expectAppendTransition(1, 0, "0101");
+        builder.expectLoadFinished();
+
+        // The last line is incomplete
+        File file = tempFileFrom("$scope module mod1 $end\n$var wire 1 ! clk $end\n"
+            + "$var wire 4 \" data $end\n$upscope $end\n$enddefinitions $end\n"
+            + "#0\n1!\nb0101 \"\n#5\n0");
+        VCDLoader loader = new VCDLoader();
+        loader.setFollowMode(true);
+        loader.load(file, builder, null);
+
+        // Nothing new
+        assertFalse(loader.loadAppended(builder));
+
+        // Still not a complete line
+        writeFile(file, "!", true);
+        assertFalse(loader.loadAppended(builder));
+
+        // The identifier for a vector may be on the next line, so this
+        // isn't complete either.
+        writeFile(file, "\nb1111\n", true);
+        builder.expectAppendTransition(0, 5, "0");
+        builder.expectLoadFinished();
+        assertTrue(loader.loadAppended(builder));
+
+        writeFile(file, "\"\n#10\n1!\n", true);
+        builder.expectAppendTransition(1, 5, "1111");
+        builder.expectAppendTransition(0, 10, "1");
+        builder.expectLoadFinished();
+        assertTrue(loader.loadAppended(builder));
+    }
+
+    // A file that was loaded normally can be updated with data appended to
+    // it if the previously loaded part is unchanged.
+    @Test
+    public void testLoadAppended() throws Exception {
+        String header = "$scope module mod1 $end\n$var wire 1 ! clk $end\n"
+            + "$upscope $end\n$enddefinitions $end\n";
+        ExpectTraceBuilder builder = new ExpectTraceBuilder();
+        builder.expectEnterModule("mod1");
+        builder.expectNewNet("clk", -1, 1);
+        builder.expectExitModule();
+        builder.expectAppendTransition(0, 0, "1");
+        builder.expectLoadFinished();
+        File file = tempFileFrom(header + "#0\n1!\n");
+        VCDLoader loader = new VCDLoader();
+        loader.load(file, builder, null);
+
+        writeFile(file, "#5\n0!\n", true);
+        assertTrue(loader.canLoadAppended());
+        builder.expectAppendTransition(0, 5, "0");
+        builder.expectLoadFinished();
+        assertTrue(loader.loadAppended(builder));
+
+        // Same length, but the header changed
+        writeFile(file, header.replace("clk", "foo") + "#0\n1!\n#5\n0!\n#7\n1!\n", false);
+        assertFalse(loader.canLoadAppended());
+
+        // Data that was already loaded changed
+        writeFile(file, header + "#0\n1!\n#6\n0!\n#7\n1!\n", false);
+        assertFalse(loader.canLoadAppended());
+
+        // Shorter
+        writeFile(file, header + "#0\n", false);
+        assertFalse(loader.canLoadAppended());
+
+        writeFile(file, header + "#0\n1!\n#5\n0!\n#7\n1!\n", false);
+        assertTrue(loader.canLoadAppended());
+    }
+
+    // If the last line of a file is incomplete, the last value change
+    // may have been cut off, so it can't be updated.
+    @Test
+    public void testLoadAppendedIncomplete() throws Exception {
+        File file = tempFileFrom("$scope module mod1 $end\n$var wire 1 ! clk $end\n"
+            + "$upscope $end\n$enddefinitions $end\n#0\n1!\n#5");
+        VCDLoader loader = new VCDLoader();
+        loader.load(file, new DummyTraceBuilder(), null);
+        writeFile(file, "0\n0!\n", true);
+        assertFalse(loader.canLoadAppended());
+        assertFalse(loader.loadAppended(new DummyTraceBuilder()));
+    }
+
+    // Errors in appended data have the correct line number
+    @Test
+    public void testFollowError() throws Exception {
+        File file = tempFileFrom("$scope module mod1 $end\n$var wire 1 ! clk $end\n"
+            + "$upscope $end\n$enddefinitions $end\n#0\n1!\n");
+        VCDLoader loader = new VCDLoader();
+        loader.setFollowMode(true);
+        loader.load(file, new DummyTraceBuilder(), null);
+        writeFile(file, "#5\n0!\n1$\n", true);
+        try {
+            loader.loadAppended(new DummyTraceBuilder());
+            fail("Didn't throw exception");
+        } catch (TraceLoader.LoadException exc) {
+            assertEquals("line 9: Unknown net id $", exc.getMessage());
+        }
+    }
+
     static class TestProgressListener implements TraceLoader.ProgressListener {
         @Override
         public boolean updateProgress(int percentRead) {
@@ -60,4 +60,13 @@ public class ValueFormatterTest {
         HexadecimalValueFormatter hf = new HexadecimalValueFormatter();
         assertEquals("ABCDEF12345678", hf.format(new BitVector("ABCDEF12345678", 16)));
     }
+
+    @Test
+    public void testRealValueFormatter() {
+        RealValueFormatter rf = new RealValueFormatter();
+        assertEquals("1.5", rf.format(new BitVector("3ff8000000000000", 16)));
+        assertEquals("-2", rf.format(new BitVector("c000000000000000", 16)));
+        assertEquals("1.0E20", rf.format(new BitVector("4415af1d78b58c40", 16)));
+        assertEquals("X", rf.format(new BitVector("xxxxxxxx", 2)));
+    }
 }